@@ -0,0 +1,35 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.agent;
+
+import java.io.IOException;
+
+/**
+ * Maps a mail domain to the endpoints mail for that domain should be
+ * delivered to.
+ */
+public interface EndpointResolver {
+
+    /**
+     * Resolves endpoints for the given domain in order of preference.
+     *
+     * @return resolved endpoints. An empty endpoint list means the domain
+     *   does not accept mail.
+     * @throws IOException if the domain could not be resolved due to
+     *   a (possibly transient) lookup failure.
+     */
+    ResolvedEndpoints resolve(String domain) throws IOException;
+
+}
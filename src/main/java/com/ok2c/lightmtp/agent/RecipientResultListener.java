@@ -0,0 +1,31 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.agent;
+
+import com.ok2c.lightmtp.protocol.DeliveryRequest;
+import com.ok2c.lightmtp.protocol.RcptResult;
+
+/**
+ * Listener notified of the outcome of individual recipients of a delivery
+ * ahead of the delivery result. Listeners are invoked by I/O dispatch threads
+ * and must not block.
+ *
+ * @see com.ok2c.lightmtp.protocol.RecipientResultHandler
+ */
+public interface RecipientResultListener {
+
+    void recipientCompleted(DeliveryRequest request, RcptResult result);
+
+}
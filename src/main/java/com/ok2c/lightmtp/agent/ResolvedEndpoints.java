@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.http.util.Args;
+
+/**
+ * Endpoints of a mail domain in order of preference along with the time
+ * the resolution result may be cached for.
+ */
+public final class ResolvedEndpoints {
+
+    private final List<SessionEndpoint> endpoints;
+    private final long ttl;
+
+    /**
+     * @param endpoints endpoints in order of preference.
+     * @param ttl time in milliseconds the result may be cached for.
+     */
+    public ResolvedEndpoints(final List<SessionEndpoint> endpoints, final long ttl) {
+        super();
+        Args.notNull(endpoints, "Endpoint list");
+        Args.notNegative(ttl, "TTL");
+        this.endpoints = Collections.unmodifiableList(new ArrayList<SessionEndpoint>(endpoints));
+        this.ttl = ttl;
+    }
+
+    public List<SessionEndpoint> getEndpoints() {
+        return this.endpoints;
+    }
+
+    public long getTtl() {
+        return this.ttl;
+    }
+
+    public boolean isEmpty() {
+        return this.endpoints.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append(this.endpoints);
+        buffer.append(" (ttl: ");
+        buffer.append(this.ttl);
+        buffer.append(")");
+        return buffer.toString();
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.util.Args;
+
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+
+/**
+ * Adjusts the number of concurrent sessions per endpoint using additive increase
+ * and multiplicative decrease (AIMD). The limit grows by one for every
+ * <i>limit</i> deliveries that complete successfully within the latency threshold
+ * and gets cut by the backoff factor when the endpoint replies with a transient
+ * (4xx) error at the transaction level or cannot be connected to. Transient
+ * failures of individual recipients do not affect the limit. Consecutive cuts are spaced at least
+ * by the backoff interval, so that a burst of failures from the same window
+ * counts as a single congestion signal.
+ */
+public class AdaptiveConcurrencyController {
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int initialLimit;
+    private final double backoffFactor;
+    private final long latencyThreshold;
+    private final long backoffInterval;
+    private final ConcurrentMap<SessionEndpoint, Entry> entries;
+
+    /**
+     * @param minLimit minimum number of concurrent sessions.
+     * @param maxLimit maximum number of concurrent sessions.
+     * @param initialLimit initial number of concurrent sessions.
+     * @param backoffFactor factor the limit gets multiplied by on failure;
+     *   must be in range (0, 1).
+     * @param latencyThreshold delivery latency above which the limit is not
+     *   increased. <code>0</code> means no threshold.
+     * @param backoffInterval minimum interval between two consecutive cuts.
+     * @param unit time unit of the latency threshold and backoff interval.
+     */
+    public AdaptiveConcurrencyController(
+            final int minLimit,
+            final int maxLimit,
+            final int initialLimit,
+            final double backoffFactor,
+            final long latencyThreshold,
+            final long backoffInterval,
+            final TimeUnit unit) {
+        super();
+        Args.positive(minLimit, "Min limit");
+        Args.check(maxLimit >= minLimit, "Max limit may not be less than min limit");
+        Args.check(initialLimit >= minLimit && initialLimit <= maxLimit,
+                "Initial limit must be in range [min limit, max limit]");
+        Args.check(backoffFactor > 0 && backoffFactor < 1,
+                "Backoff factor must be in range (0, 1)");
+        Args.notNegative(latencyThreshold, "Latency threshold");
+        Args.notNegative(backoffInterval, "Backoff interval");
+        Args.notNull(unit, "Time unit");
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.initialLimit = initialLimit;
+        this.backoffFactor = backoffFactor;
+        this.latencyThreshold = unit.toMillis(latencyThreshold);
+        this.backoffInterval = unit.toMillis(backoffInterval);
+        this.entries = new ConcurrentHashMap<SessionEndpoint, Entry>();
+    }
+
+    public AdaptiveConcurrencyController(final int minLimit, final int maxLimit) {
+        this(minLimit, maxLimit, minLimit, 0.5d, 0, 1, TimeUnit.SECONDS);
+    }
+
+    private Entry getEntry(final SessionEndpoint endpoint) {
+        Entry entry = this.entries.get(endpoint);
+        if (entry == null) {
+            Entry newEntry = new Entry(this.initialLimit);
+            entry = this.entries.putIfAbsent(endpoint, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the current concurrency limit for the given endpoint.
+     */
+    public int getLimit(final SessionEndpoint endpoint) {
+        Args.notNull(endpoint, "Session endpoint");
+        Entry entry = this.entries.get(endpoint);
+        return entry != null ? entry.getLimit() : this.initialLimit;
+    }
+
+    /**
+     * Signals a successful delivery to the given endpoint.
+     *
+     * @param latency delivery latency in milliseconds.
+     * @return the new concurrency limit.
+     */
+    public int success(final SessionEndpoint endpoint, final long latency) {
+        Args.notNull(endpoint, "Session endpoint");
+        Entry entry = getEntry(endpoint);
+        if (this.latencyThreshold > 0 && latency > this.latencyThreshold) {
+            return entry.getLimit();
+        }
+        return entry.increase();
+    }
+
+    /**
+     * Signals a transient failure (such as a 421 or another 4xx reply) or
+     * a connection failure on the given endpoint.
+     *
+     * @return the new concurrency limit.
+     */
+    public int backoff(final SessionEndpoint endpoint) {
+        Args.notNull(endpoint, "Session endpoint");
+        return getEntry(endpoint).decrease();
+    }
+
+    public void reset(final SessionEndpoint endpoint) {
+        Args.notNull(endpoint, "Session endpoint");
+        this.entries.remove(endpoint);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[min limit: ");
+        buffer.append(this.minLimit);
+        buffer.append("][max limit: ");
+        buffer.append(this.maxLimit);
+        buffer.append("][endpoints: ");
+        buffer.append(this.entries.size());
+        buffer.append("]");
+        return buffer.toString();
+    }
+
+    class Entry {
+
+        private int limit;
+        private int successCount;
+        private long lastBackoff;
+
+        Entry(final int limit) {
+            super();
+            this.limit = limit;
+        }
+
+        synchronized int getLimit() {
+            return this.limit;
+        }
+
+        synchronized int increase() {
+            this.successCount++;
+            if (this.successCount >= this.limit) {
+                this.successCount = 0;
+                this.limit = Math.min(maxLimit, this.limit + 1);
+            }
+            return this.limit;
+        }
+
+        synchronized int decrease() {
+            long now = System.currentTimeMillis();
+            if (this.lastBackoff == 0 || now - this.lastBackoff >= backoffInterval) {
+                this.lastBackoff = now;
+                this.successCount = 0;
+                this.limit = Math.max(minLimit, (int) (this.limit * backoffFactor));
+            }
+            return this.limit;
+        }
+
+    }
+
+}
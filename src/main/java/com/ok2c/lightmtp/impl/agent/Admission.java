@@ -0,0 +1,39 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+/**
+ * Outcome of a {@link ConnectionAdmissionController#admit(java.net.InetAddress)} call.
+ */
+public enum Admission {
+
+    /**
+     * The connection has been admitted and counted. It must be released with
+     * {@link ConnectionAdmissionController#release(java.net.InetAddress)}.
+     */
+    ADMITTED,
+
+    /**
+     * The connection has been admitted without being counted, because the table
+     * of tracked clients is full. It must not be released.
+     */
+    UNTRACKED,
+
+    /**
+     * The connection has been rejected.
+     */
+    REJECTED
+
+}
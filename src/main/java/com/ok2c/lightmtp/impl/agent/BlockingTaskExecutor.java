@@ -0,0 +1,171 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.util.Args;
+
+/**
+ * Bounded worker pool for blocking tasks such as envelop validation or message
+ * delivery. Tasks submitted in excess of the queue capacity are rejected
+ * immediately instead of being queued without limit.
+ */
+public class BlockingTaskExecutor {
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong submittedCount;
+    private final AtomicLong rejectedCount;
+    private final AtomicLong completedCount;
+    private final AtomicLong failedCount;
+
+    public BlockingTaskExecutor(final String id, final int maxThreads, final int maxQueueSize) {
+        super();
+        Args.notNull(id, "Id");
+        Args.positive(maxThreads, "Max threads");
+        Args.positive(maxQueueSize, "Max queue size");
+        this.executor = new ThreadPoolExecutor(
+                maxThreads, maxThreads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueueSize),
+                new WorkerThreadFactory(id),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.submittedCount = new AtomicLong();
+        this.rejectedCount = new AtomicLong();
+        this.completedCount = new AtomicLong();
+        this.failedCount = new AtomicLong();
+    }
+
+    /**
+     * Executes the task on a worker thread and reports its outcome to the callback.
+     *
+     * @throws RejectedExecutionException if the task queue is full or the executor
+     *   has been shut down.
+     */
+    public <T> Future<T> submit(final Callable<T> task, final FutureCallback<T> callback) {
+        Args.notNull(task, "Task");
+        final BasicFuture<T> future = new BasicFuture<T>(callback);
+        try {
+            this.executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (future.isDone()) {
+                        // Cancelled while queued
+                        return;
+                    }
+                    try {
+                        T result = task.call();
+                        completedCount.incrementAndGet();
+                        future.completed(result);
+                    } catch (Exception ex) {
+                        failedCount.incrementAndGet();
+                        future.failed(ex);
+                    }
+                }
+
+            });
+        } catch (RejectedExecutionException ex) {
+            this.rejectedCount.incrementAndGet();
+            throw ex;
+        }
+        this.submittedCount.incrementAndGet();
+        return future;
+    }
+
+    public int getActiveCount() {
+        return this.executor.getActiveCount();
+    }
+
+    public int getQueueSize() {
+        return this.executor.getQueue().size();
+    }
+
+    public long getSubmittedCount() {
+        return this.submittedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    public long getCompletedCount() {
+        return this.completedCount.get();
+    }
+
+    public long getFailedCount() {
+        return this.failedCount.get();
+    }
+
+    public void shutdown() {
+        this.executor.shutdown();
+    }
+
+    public boolean awaitTermination(
+            final long timeout, final TimeUnit unit) throws InterruptedException {
+        return this.executor.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[active: ");
+        buffer.append(getActiveCount());
+        buffer.append("][queued: ");
+        buffer.append(getQueueSize());
+        buffer.append("][submitted: ");
+        buffer.append(this.submittedCount.get());
+        buffer.append("][rejected: ");
+        buffer.append(this.rejectedCount.get());
+        buffer.append("][completed: ");
+        buffer.append(this.completedCount.get());
+        buffer.append("][failed: ");
+        buffer.append(this.failedCount.get());
+        buffer.append("]");
+        return buffer.toString();
+    }
+
+    static class WorkerThreadFactory implements ThreadFactory {
+
+        private final static AtomicInteger COUNT = new AtomicInteger(0);
+
+        private final String id;
+
+        WorkerThreadFactory(final String id) {
+            super();
+            this.id = id;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(r, this.id + " worker " + (COUNT.incrementAndGet()));
+            t.setDaemon(true);
+            return t;
+        }
+
+    }
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.net.ConnectException;
+
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+
+/**
+ * Signals that a delivery was not attempted because the circuit of
+ * the endpoint is open.
+ */
+public class CircuitOpenException extends ConnectException {
+
+    private static final long serialVersionUID = 4125792236489124587L;
+
+    private final SessionEndpoint endpoint;
+
+    public CircuitOpenException(final SessionEndpoint endpoint) {
+        super("Circuit open for endpoint " + endpoint);
+        this.endpoint = endpoint;
+    }
+
+    public SessionEndpoint getEndpoint() {
+        return this.endpoint;
+    }
+
+}
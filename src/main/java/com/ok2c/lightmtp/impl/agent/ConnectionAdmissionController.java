@@ -0,0 +1,326 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.util.Args;
+
+/**
+ * Tracks live connections and connection rates per client address or address
+ * prefix. Counters of each client are guarded by their own lock, so admission
+ * of different clients does not contend.
+ * <p/>
+ * The number of tracked entries is bounded. When the table is full, entries
+ * that have no live connections and whose rate window has expired are evicted.
+ * At most a few entries are examined per admission, resuming where the
+ * previous scan stopped, so the cost of eviction is amortized over new
+ * connections and active entries do not keep idle ones from being reached.
+ * <p/>
+ * If no entry can be evicted, new clients are handled according to the
+ * <code>rejectWhenFull</code> setting: by default they are admitted untracked
+ * (fail-open), which keeps the server reachable for legitimate clients while
+ * the table is flooded, for example by many distinct IPv6 prefixes. Setting
+ * <code>rejectWhenFull</code> makes admission fail closed instead.
+ */
+public class ConnectionAdmissionController {
+
+    private static final int MAX_EVICTION_SCAN = 64;
+
+    private final int maxConnectionsPerClient;
+    private final int maxConnectionRate;
+    private final long rateInterval;
+    private final int ipv4PrefixLength;
+    private final int ipv6PrefixLength;
+    private final int maxEntries;
+    private final boolean rejectWhenFull;
+    private final ConcurrentMap<InetAddress, Entry> entries;
+    private final AtomicInteger entryCount;
+    private final AtomicLong rejectedCount;
+    private final AtomicLong untrackedCount;
+    private final Object evictionLock;
+
+    private Iterator<Map.Entry<InetAddress, Entry>> evictionCursor;
+
+    /**
+     * @param maxConnectionsPerClient maximum number of concurrent connections per
+     *   client prefix. <code>0</code> means no limit.
+     * @param maxConnectionRate maximum number of new connections per client prefix
+     *   within the rate interval. <code>0</code> means no limit.
+     * @param rateInterval rate interval.
+     * @param unit rate interval time unit.
+     * @param ipv4PrefixLength number of leading bits of an IPv4 address used
+     *   to group clients.
+     * @param ipv6PrefixLength number of leading bits of an IPv6 address used
+     *   to group clients.
+     * @param maxEntries maximum number of tracked client prefixes.
+     * @param rejectWhenFull whether new clients are rejected (<code>true</code>)
+     *   or admitted untracked (<code>false</code>) when the table is full of
+     *   active prefixes.
+     */
+    public ConnectionAdmissionController(
+            final int maxConnectionsPerClient,
+            final int maxConnectionRate,
+            final long rateInterval,
+            final TimeUnit unit,
+            final int ipv4PrefixLength,
+            final int ipv6PrefixLength,
+            final int maxEntries,
+            final boolean rejectWhenFull) {
+        super();
+        Args.notNegative(maxConnectionsPerClient, "Max connections per client");
+        Args.notNegative(maxConnectionRate, "Max connection rate");
+        Args.notNull(unit, "Time unit");
+        Args.check(ipv4PrefixLength > 0 && ipv4PrefixLength <= 32,
+                "IPv4 prefix length must be in range [1, 32]");
+        Args.check(ipv6PrefixLength > 0 && ipv6PrefixLength <= 128,
+                "IPv6 prefix length must be in range [1, 128]");
+        Args.positive(maxEntries, "Max entries");
+        this.maxConnectionsPerClient = maxConnectionsPerClient;
+        this.maxConnectionRate = maxConnectionRate;
+        this.rateInterval = Math.max(1, unit.toMillis(rateInterval));
+        this.ipv4PrefixLength = ipv4PrefixLength;
+        this.ipv6PrefixLength = ipv6PrefixLength;
+        this.maxEntries = maxEntries;
+        this.rejectWhenFull = rejectWhenFull;
+        this.entries = new ConcurrentHashMap<InetAddress, Entry>();
+        this.entryCount = new AtomicInteger();
+        this.rejectedCount = new AtomicLong();
+        this.untrackedCount = new AtomicLong();
+        this.evictionLock = new Object();
+    }
+
+    public ConnectionAdmissionController(
+            final int maxConnectionsPerClient,
+            final int maxConnectionRate,
+            final long rateInterval,
+            final TimeUnit unit,
+            final int ipv4PrefixLength,
+            final int ipv6PrefixLength,
+            final int maxEntries) {
+        this(maxConnectionsPerClient, maxConnectionRate, rateInterval, unit,
+                ipv4PrefixLength, ipv6PrefixLength, maxEntries, false);
+    }
+
+    public ConnectionAdmissionController(
+            final int maxConnectionsPerClient,
+            final int maxConnectionRate,
+            final long rateInterval,
+            final TimeUnit unit) {
+        this(maxConnectionsPerClient, maxConnectionRate, rateInterval, unit, 32, 64, 10000);
+    }
+
+    InetAddress getKey(final InetAddress address) {
+        byte[] bytes = address.getAddress();
+        int prefixLength = bytes.length == 4 ? this.ipv4PrefixLength : this.ipv6PrefixLength;
+        for (int i = 0; i < bytes.length; i++) {
+            int bits = prefixLength - i * 8;
+            if (bits <= 0) {
+                bytes[i] = 0;
+            } else if (bits < 8) {
+                bytes[i] = (byte) (bytes[i] & (0xff << (8 - bits)));
+            }
+        }
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException ex) {
+            // Should never happen
+            return address;
+        }
+    }
+
+    /**
+     * Attempts to admit a new connection from the given client address.
+     *
+     * @return {@link Admission#ADMITTED} if the connection has been admitted and must
+     *   later be released with {@link #release(InetAddress)},
+     *   {@link Admission#UNTRACKED} if the connection has been admitted without
+     *   being tracked, {@link Admission#REJECTED} otherwise.
+     */
+    public Admission admit(final InetAddress address) {
+        Args.notNull(address, "Address");
+        InetAddress key = getKey(address);
+        long now = System.currentTimeMillis();
+        for (;;) {
+            Entry entry = this.entries.get(key);
+            if (entry == null) {
+                if (!reserveEntry(now)) {
+                    // Table is full of active clients
+                    if (this.rejectWhenFull) {
+                        this.rejectedCount.incrementAndGet();
+                        return Admission.REJECTED;
+                    } else {
+                        this.untrackedCount.incrementAndGet();
+                        return Admission.UNTRACKED;
+                    }
+                }
+                Entry newEntry = new Entry();
+                entry = this.entries.putIfAbsent(key, newEntry);
+                if (entry != null) {
+                    this.entryCount.decrementAndGet();
+                } else {
+                    entry = newEntry;
+                }
+            }
+            synchronized (entry) {
+                if (entry.evicted) {
+                    continue;
+                }
+                if (now - entry.windowStart >= this.rateInterval) {
+                    entry.windowStart = now;
+                    entry.windowCount = 0;
+                }
+                if (this.maxConnectionsPerClient > 0 && entry.live >= this.maxConnectionsPerClient) {
+                    this.rejectedCount.incrementAndGet();
+                    return Admission.REJECTED;
+                }
+                if (this.maxConnectionRate > 0 && entry.windowCount >= this.maxConnectionRate) {
+                    this.rejectedCount.incrementAndGet();
+                    return Admission.REJECTED;
+                }
+                entry.live++;
+                entry.windowCount++;
+                return Admission.ADMITTED;
+            }
+        }
+    }
+
+    /**
+     * Releases a connection previously admitted with {@link #admit(InetAddress)}
+     * as {@link Admission#ADMITTED}.
+     */
+    public void release(final InetAddress address) {
+        Args.notNull(address, "Address");
+        Entry entry = this.entries.get(getKey(address));
+        if (entry != null) {
+            synchronized (entry) {
+                if (entry.live > 0) {
+                    entry.live--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reserves room for a new entry, evicting idle entries if the table is full.
+     */
+    private boolean reserveEntry(final long now) {
+        for (;;) {
+            int count = this.entryCount.get();
+            if (count >= this.maxEntries) {
+                evictIdle(now);
+                count = this.entryCount.get();
+                if (count >= this.maxEntries) {
+                    return false;
+                }
+            }
+            if (this.entryCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Examines up to {@link #MAX_EVICTION_SCAN} entries following the ones
+     * examined by the previous scan and evicts the idle ones.
+     */
+    private void evictIdle(final long now) {
+        synchronized (this.evictionLock) {
+            int n = Math.min(MAX_EVICTION_SCAN, this.entryCount.get());
+            for (int i = 0; i < n; i++) {
+                if (this.evictionCursor == null || !this.evictionCursor.hasNext()) {
+                    this.evictionCursor = this.entries.entrySet().iterator();
+                    if (!this.evictionCursor.hasNext()) {
+                        return;
+                    }
+                }
+                Map.Entry<InetAddress, Entry> mapEntry = this.evictionCursor.next();
+                Entry entry = mapEntry.getValue();
+                synchronized (entry) {
+                    if (!entry.evicted && entry.live == 0
+                            && now - entry.windowStart >= this.rateInterval) {
+                        entry.evicted = true;
+                        this.entries.remove(mapEntry.getKey(), entry);
+                        this.entryCount.decrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    public int getConnectionCount(final InetAddress address) {
+        Args.notNull(address, "Address");
+        Entry entry = this.entries.get(getKey(address));
+        if (entry == null) {
+            return 0;
+        }
+        synchronized (entry) {
+            return entry.live;
+        }
+    }
+
+    public int getEntryCount() {
+        return this.entryCount.get();
+    }
+
+    public long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * Returns the number of connections admitted untracked because the table
+     * was full.
+     */
+    public long getUntrackedCount() {
+        return this.untrackedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[max connections per client: ");
+        buffer.append(this.maxConnectionsPerClient);
+        buffer.append("][max connection rate: ");
+        buffer.append(this.maxConnectionRate);
+        buffer.append("/");
+        buffer.append(this.rateInterval);
+        buffer.append("ms][entries: ");
+        buffer.append(this.entryCount.get());
+        buffer.append("][rejected: ");
+        buffer.append(this.rejectedCount);
+        buffer.append("][untracked: ");
+        buffer.append(this.untrackedCount);
+        buffer.append("]");
+        return buffer.toString();
+    }
+
+    static class Entry {
+
+        boolean evicted;
+        int live;
+        long windowStart;
+        int windowCount;
+
+    }
+
+}
@@ -31,7 +31,10 @@ import org.apache.http.util.Args;
 
 import com.ok2c.lightmtp.agent.MailServerTransport;
 import com.ok2c.lightmtp.impl.protocol.ServerSession;
+import com.ok2c.lightmtp.impl.protocol.ServerSessionConfig;
 import com.ok2c.lightmtp.impl.protocol.ServerSessionFactory;
+import com.ok2c.lightmtp.impl.protocol.ServerSessionMetrics;
+import com.ok2c.lightmtp.protocol.AsyncRemoteAddressValidator;
 import com.ok2c.lightmtp.protocol.DeliveryHandler;
 import com.ok2c.lightmtp.protocol.EnvelopValidator;
 import com.ok2c.lightmtp.protocol.RemoteAddressValidator;
@@ -43,6 +46,10 @@ public class DefaultMailServerTransport extends AbstractMailTransport
 
     private final File workingDir;
     private final DefaultListeningIOReactor ioReactor;
+    private final ServerSessionMetrics metrics;
+
+    private volatile ServerSessionConfig sessionConfig;
+    private volatile ConnectionAdmissionController admissionController;
 
     public DefaultMailServerTransport(
             final IOSessionRegistryCallback sessionRegistryCallback,
@@ -54,6 +61,8 @@ public class DefaultMailServerTransport extends AbstractMailTransport
         this.workingDir = workingDir;
         this.ioReactor = new DefaultListeningIOReactor(config,
                 new SimpleThreadFactory("MTA"));
+        this.sessionConfig = ServerSessionConfig.DEFAULT;
+        this.metrics = new ServerSessionMetrics();
     }
 
     public DefaultMailServerTransport(
@@ -84,6 +93,29 @@ public class DefaultMailServerTransport extends AbstractMailTransport
         return this.ioReactor.getEndpoints();
     }
 
+    public ServerSessionMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    protected ServerSessionConfig getSessionConfig() {
+        return this.sessionConfig;
+    }
+
+    /**
+     * Sets server session configuration. Must be called before the transport is started.
+     */
+    public void setSessionConfig(final ServerSessionConfig sessionConfig) {
+        Args.notNull(sessionConfig, "Session config");
+        this.sessionConfig = sessionConfig;
+    }
+
+    /**
+     * Sets connection admission controller. Must be called before the transport is started.
+     */
+    public void setAdmissionController(final ConnectionAdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
     public void setExceptionHandler(final IOReactorExceptionHandler exceptionHandler) {
         this.ioReactor.setExceptionHandler(exceptionHandler);
     }
@@ -99,7 +131,29 @@ public class DefaultMailServerTransport extends AbstractMailTransport
                 idgenerator,
                 addressValidator,
                 envelopValidator,
-                deliveryHandler);
+                deliveryHandler,
+                this.sessionConfig,
+                this.metrics);
+        start(sessionFactory);
+    }
+
+    /**
+     * Starts the transport with an asynchronous remote address validator. The service
+     * ready banner is sent to the client once the validation completes.
+     */
+    public void startWithAsyncValidator(
+            final UniqueIdGenerator idgenerator,
+            final AsyncRemoteAddressValidator addressValidator,
+            final EnvelopValidator envelopValidator,
+            final DeliveryHandler deliveryHandler) {
+        ServerSessionFactory sessionFactory = new ServerSessionFactory(
+                this.workingDir,
+                idgenerator,
+                addressValidator,
+                envelopValidator,
+                deliveryHandler,
+                this.sessionConfig,
+                this.metrics);
         start(sessionFactory);
     }
 
@@ -113,7 +167,8 @@ public class DefaultMailServerTransport extends AbstractMailTransport
     protected void start(final SessionFactory<ServerSession> sessionFactory) {
         ServerIOEventDispatch iodispatch = new ServerIOEventDispatch(
                 getSessionRegistry(),
-                sessionFactory);
+                sessionFactory,
+                this.admissionController);
         start(iodispatch);
     }
 
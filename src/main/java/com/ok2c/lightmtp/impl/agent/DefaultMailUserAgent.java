@@ -16,13 +16,32 @@ package com.ok2c.lightmtp.impl.agent;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
 import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.http.concurrent.BasicFuture;
 import org.apache.http.concurrent.FutureCallback;
@@ -31,30 +50,64 @@ import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.nio.reactor.IOReactorExceptionHandler;
 import org.apache.http.nio.reactor.IOReactorStatus;
 import org.apache.http.nio.reactor.IOSession;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.Args;
 
+import com.ok2c.lightmtp.SMTPCodes;
+import com.ok2c.lightmtp.SMTPReply;
+import com.ok2c.lightmtp.agent.EndpointResolver;
 import com.ok2c.lightmtp.agent.MailUserAgent;
+import com.ok2c.lightmtp.agent.RecipientResultListener;
+import com.ok2c.lightmtp.agent.ResolvedEndpoints;
 import com.ok2c.lightmtp.agent.SessionEndpoint;
 import com.ok2c.lightmtp.agent.TransportType;
 import com.ok2c.lightmtp.impl.pool.LeasedSession;
 import com.ok2c.lightmtp.impl.pool.MailIOSessionManager;
+import com.ok2c.lightmtp.impl.pool.SessionPoolConfig;
 import com.ok2c.lightmtp.impl.protocol.ClientSession;
+import com.ok2c.lightmtp.impl.protocol.ClientSessionConfig;
 import com.ok2c.lightmtp.impl.protocol.ClientSessionFactory;
 import com.ok2c.lightmtp.impl.protocol.LocalClientSessionFactory;
+import com.ok2c.lightmtp.message.content.SharedEncodedContent;
 import com.ok2c.lightmtp.protocol.DeliveryRequest;
 import com.ok2c.lightmtp.protocol.DeliveryRequestHandler;
 import com.ok2c.lightmtp.protocol.DeliveryResult;
+import com.ok2c.lightmtp.protocol.RcptResult;
+import com.ok2c.lightmtp.protocol.RecipientResultHandler;
+import com.ok2c.lightmtp.protocol.ServiceRefusedException;
 import com.ok2c.lightmtp.protocol.SessionContext;
 import com.ok2c.lightmtp.protocol.SessionFactory;
 
 public class DefaultMailUserAgent implements MailUserAgent {
 
     private static final String PENDING_DELIVERY = "com.ok2c.lightmtp.delivery";
+    private static final String DELIVERY_QUEUE = "com.ok2c.lightmtp.delivery-queue";
+    private static final String LEASED_SESSION = "com.ok2c.lightmtp.leased-session";
+    private static final String CONNECT_RACE = "com.ok2c.lightmtp.connect-race";
 
     private final MailIOSessionManager sessionManager;
     private final DefaultMailClientTransport transport;
     private final TransportType type;
     private final Set<PendingDelivery> pendingDeliveries;
+    private final Set<BasicFuture<DeliveryResult>> delayedDeliveries;
+    private final Queue<BasicFuture<Boolean>> capacityWaiters;
+    private final ConcurrentMap<SessionEndpoint, EndpointDeliveryQueue> deliveryQueues;
+    private final ScheduledExecutorService scheduler;
+    private final RateShaper rateShaper;
+    private final AtomicLong lastQueuePrune;
 
+    private volatile ClientSessionConfig sessionConfig;
+    private volatile AdaptiveConcurrencyController concurrencyController;
+    private volatile int maxRecipientsPerTransaction;
+    private volatile EndpointResolver endpointResolver;
+    private volatile SourceAddressPool sourceAddressPool;
+    private volatile long connectStagger;
+    private volatile long queueIdleTime;
+    private volatile EndpointCircuitBreaker circuitBreaker;
+    private volatile PriorityLaneConfig laneConfig;
+    private volatile int maxPendingDeliveries;
+    private volatile Semaphore submissionPermits;
+    private volatile SubmissionPolicy submissionPolicy;
     private volatile boolean started;
 
     private volatile boolean shutdown;
@@ -67,15 +120,46 @@ public class DefaultMailUserAgent implements MailUserAgent {
 
     public DefaultMailUserAgent(
             final TransportType type,
-            final IOReactorConfig config) throws IOException {
+            final IOReactorConfig config,
+            final SessionPoolConfig poolConfig) throws IOException {
         super();
         this.type = type;
         this.transport = new DefaultMailClientTransport(
                 null,
                 new InternalIOReactorThreadCallback(),
                 config);
-        this.sessionManager = new MailIOSessionManager(this.transport.getIOReactor());
-        this.pendingDeliveries = Collections.synchronizedSet(new HashSet<PendingDelivery>());
+        this.sessionManager = new MailIOSessionManager(this.transport.getIOReactor(), poolConfig);
+        this.pendingDeliveries = Collections.newSetFromMap(
+                new ConcurrentHashMap<PendingDelivery, Boolean>());
+        this.delayedDeliveries = Collections.newSetFromMap(
+                new ConcurrentHashMap<BasicFuture<DeliveryResult>, Boolean>());
+        this.capacityWaiters = new ConcurrentLinkedQueue<BasicFuture<Boolean>>();
+        this.deliveryQueues = new ConcurrentHashMap<SessionEndpoint, EndpointDeliveryQueue>();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "MUA scheduler");
+                t.setDaemon(true);
+                return t;
+            }
+
+        });
+        this.rateShaper = new RateShaper();
+        this.lastQueuePrune = new AtomicLong(System.currentTimeMillis());
+        this.maxRecipientsPerTransaction = 100;
+        // Blocking is opt-in: a blocked I/O dispatch thread would never see
+        // the deliveries it waits for complete
+        this.submissionPolicy = SubmissionPolicy.REJECT;
+        setMaxPendingDeliveries(10000);
+        this.connectStagger = 250;
+        this.queueIdleTime = 60000;
+    }
+
+    public DefaultMailUserAgent(
+            final TransportType type,
+            final IOReactorConfig config) throws IOException {
+        this(type, config, null);
     }
 
     @Override
@@ -85,13 +169,14 @@ public class DefaultMailUserAgent implements MailUserAgent {
         SessionFactory<ClientSession> sessionFactory;
         switch (this.type) {
         case SMTP:
-            sessionFactory = new ClientSessionFactory(handler, heloName, username, password);
+            sessionFactory = new ClientSessionFactory(handler, heloName, username, password,
+                    sessionConfig);
             break;
         case LMTP:
-            sessionFactory = new LocalClientSessionFactory(handler, heloName);
+            sessionFactory = new LocalClientSessionFactory(handler, heloName, sessionConfig);
             break;
         default:
-            sessionFactory = new ClientSessionFactory(handler);
+            sessionFactory = new ClientSessionFactory(handler, null, null, null, sessionConfig);
         }
 
         this.transport.start(sessionFactory);
@@ -105,6 +190,18 @@ public class DefaultMailUserAgent implements MailUserAgent {
         this.heloName = heloName;
     }
 
+    public ClientSessionConfig getSessionConfig() {
+        return this.sessionConfig;
+    }
+
+    /**
+     * Set the client session configuration to use. Must be called before {@link #start()}
+     */
+    public void setSessionConfig(final ClientSessionConfig sessionConfig) {
+        if (started) throw new IllegalStateException("Can only be set when not started");
+        this.sessionConfig = sessionConfig;
+    }
+
     /**
      * Set the authentication to use. Must be called before {@link #start()}
      */
@@ -117,24 +214,837 @@ public class DefaultMailUserAgent implements MailUserAgent {
         this.password = password;
     }
 
+    public PriorityLaneConfig getPriorityLaneConfig() {
+        return this.laneConfig;
+    }
+
+    /**
+     * Set the priority lane configuration to use. Must be called before {@link #start()}
+     */
+    public void setPriorityLaneConfig(final PriorityLaneConfig laneConfig) {
+        if (started) throw new IllegalStateException("Can only be set when not started");
+        this.laneConfig = laneConfig;
+    }
+
+    public int getMaxPendingDeliveries() {
+        return this.maxPendingDeliveries;
+    }
+
+    /**
+     * Sets the maximum number of deliveries accepted by the agent and not yet
+     * completed. Deliveries submitted in excess of the limit are handled
+     * according to the {@link #setSubmissionPolicy(SubmissionPolicy) submission
+     * policy}. <code>0</code> means no limit. Must be called before {@link #start()}
+     * <p/>
+     * Default: <code>10000</code>
+     */
+    public void setMaxPendingDeliveries(final int maxPendingDeliveries) {
+        if (started) throw new IllegalStateException("Can only be set when not started");
+        Args.notNegative(maxPendingDeliveries, "Max pending deliveries");
+        this.maxPendingDeliveries = maxPendingDeliveries;
+        this.submissionPermits = maxPendingDeliveries > 0 ? new Semaphore(maxPendingDeliveries) : null;
+    }
+
+    public SubmissionPolicy getSubmissionPolicy() {
+        return this.submissionPolicy;
+    }
+
+    /**
+     * Sets how deliveries submitted in excess of the
+     * {@link #setMaxPendingDeliveries(int) max pending deliveries} limit are handled.
+     * {@link SubmissionPolicy#BLOCK} may only be used if deliveries are never
+     * submitted from I/O dispatch threads, including delivery callbacks.
+     * <p/>
+     * Default: {@link SubmissionPolicy#REJECT}
+     */
+    public void setSubmissionPolicy(final SubmissionPolicy submissionPolicy) {
+        Args.notNull(submissionPolicy, "Submission policy");
+        this.submissionPolicy = submissionPolicy;
+    }
+
+    /**
+     * Returns a future that completes once the number of pending deliveries
+     * drops below the {@link #setMaxPendingDeliveries(int) limit}. This is
+     * a notification rather than a reservation: concurrent submissions may
+     * use up the capacity before the caller gets to submit a delivery.
+     * The future is cancelled if the agent shuts down.
+     */
+    public Future<Boolean> awaitCapacity(final FutureCallback<Boolean> callback) {
+        BasicFuture<Boolean> future = new BasicFuture<Boolean>(callback);
+        Semaphore permits = this.submissionPermits;
+        if (permits == null || permits.availablePermits() > 0) {
+            future.completed(Boolean.TRUE);
+            return future;
+        }
+        this.capacityWaiters.add(future);
+        // Capacity may have been released in the meantime
+        signalCapacity();
+        return future;
+    }
+
+    /**
+     * Returns statistics of the sessions to the given endpoint. Sessions being
+     * pre-warmed are reported as leased until they are ready for delivery.
+     */
+    public PoolStats getSessionStats(final SessionEndpoint endpoint) {
+        return this.sessionManager.getStats(endpoint);
+    }
+
+    public int getPendingDeliveryCount() {
+        Semaphore permits = this.submissionPermits;
+        return permits != null ? this.maxPendingDeliveries - permits.availablePermits() : 0;
+    }
+
+    private Exception acquirePermit() {
+        Semaphore permits = this.submissionPermits;
+        if (permits == null) {
+            return null;
+        }
+        switch (this.submissionPolicy) {
+        case REJECT:
+            if (!permits.tryAcquire()) {
+                return new RejectedExecutionException(
+                        "Too many pending deliveries: " + this.maxPendingDeliveries);
+            }
+            return null;
+        default:
+            try {
+                permits.acquire();
+                return null;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return ex;
+            }
+        }
+    }
+
+    void releasePermit() {
+        Semaphore permits = this.submissionPermits;
+        if (permits != null) {
+            permits.release();
+            signalCapacity();
+        }
+    }
+
+    private void signalCapacity() {
+        Semaphore permits = this.submissionPermits;
+        while (!this.capacityWaiters.isEmpty()
+                && (permits == null || permits.availablePermits() > 0 || this.shutdown)) {
+            BasicFuture<Boolean> waiter = this.capacityWaiters.poll();
+            if (waiter == null) {
+                break;
+            }
+            if (this.shutdown) {
+                waiter.cancel(true);
+            } else {
+                waiter.completed(Boolean.TRUE);
+            }
+        }
+    }
+
+    private <T> FutureCallback<T> permitCallback(final FutureCallback<T> callback) {
+        return this.submissionPermits != null ? new PermitReleaseCallback<T>(callback) : callback;
+    }
+
+    private static <T> Future<T> failedFuture(
+            final FutureCallback<T> callback, final Exception ex) {
+        BasicFuture<T> future = new BasicFuture<T>(callback);
+        future.failed(ex);
+        return future;
+    }
+
+    /**
+     * Delivers the request to the given endpoint. If the number of pending
+     * deliveries has reached the {@link #setMaxPendingDeliveries(int) limit},
+     * the method blocks until capacity frees up or the returned future fails
+     * with {@link RejectedExecutionException}, depending on the
+     * {@link #setSubmissionPolicy(SubmissionPolicy) submission policy}. Blocking
+     * submissions must not be made from I/O dispatch threads, including
+     * delivery callbacks.
+     */
     @Override
     public Future<DeliveryResult> deliver(
             final SessionEndpoint endpoint,
             final int connectTimeout,
             final DeliveryRequest request,
             final FutureCallback<DeliveryResult> callback) {
+        return deliver(endpoint, connectTimeout, request, DeliveryPriority.NORMAL, callback);
+    }
+
+    /**
+     * Delivers the request to the given endpoint with the given priority.
+     * Deliveries of higher priority pending for the same endpoint are handed
+     * over to sessions ahead of those of lower priority in proportion to
+     * the weights of their {@link PriorityLaneConfig lanes}.
+     */
+    public Future<DeliveryResult> deliver(
+            final SessionEndpoint endpoint,
+            final int connectTimeout,
+            final DeliveryRequest request,
+            final DeliveryPriority priority,
+            final FutureCallback<DeliveryResult> callback) {
+        return deliver(endpoint, connectTimeout, request, priority, null, callback);
+    }
+
+    /**
+     * Delivers the request to the given endpoint with the given priority.
+     * The given listener is notified of the outcome of individual recipients
+     * as soon as the endpoint replies for them, which in LMTP sessions
+     * precedes the delivery result.
+     */
+    public Future<DeliveryResult> deliver(
+            final SessionEndpoint endpoint,
+            final int connectTimeout,
+            final DeliveryRequest request,
+            final DeliveryPriority priority,
+            final RecipientResultListener listener,
+            final FutureCallback<DeliveryResult> callback) {
+        Args.notNull(priority, "Delivery priority");
+        if (this.shutdown) {
+            throw new IllegalStateException("Mail transport has been shut down");
+        }
+        Exception ex = acquirePermit();
+        if (ex != null) {
+            return failedFuture(callback, ex);
+        }
+        try {
+            return submitDelivery(endpoint, connectTimeout, request, priority, listener,
+                    permitCallback(callback));
+        } catch (RuntimeException rex) {
+            releasePermit();
+            throw rex;
+        }
+    }
+
+    /**
+     * Queues the delivery without taking up a submission permit.
+     */
+    Future<DeliveryResult> submitDelivery(
+            final SessionEndpoint endpoint,
+            final int connectTimeout,
+            final DeliveryRequest request,
+            final DeliveryPriority priority,
+            final RecipientResultListener listener,
+            final FutureCallback<DeliveryResult> callback) {
         if (this.shutdown) {
             throw new IllegalStateException("Mail transport has been shut down");
         }
-        BasicFuture<DeliveryResult> future = new BasicFuture<DeliveryResult>(callback);
-        PendingDelivery delivery = new PendingDelivery(request, future);
+        FutureCallback<DeliveryResult> futureCallback = callback;
+        if (request.getContent() instanceof SharedEncodedContent) {
+            SharedEncodedContent content = (SharedEncodedContent) request.getContent();
+            content.retain();
+            futureCallback = new ContentReleaseCallback(content, callback);
+        }
+        BasicFuture<DeliveryResult> future = new BasicFuture<DeliveryResult>(futureCallback);
+        final SessionEndpoint route = selectRoute(endpoint);
+        EndpointCircuitBreaker breaker = this.circuitBreaker;
+        if (breaker != null && !breaker.allowRequest(route)) {
+            future.failed(new CircuitOpenException(route));
+            return future;
+        }
+        final PendingDelivery delivery = new PendingDelivery(
+                request, future, connectTimeout, priority, listener);
         this.pendingDeliveries.add(delivery);
-        this.sessionManager.leaseSession(endpoint,
-                connectTimeout, TimeUnit.MILLISECONDS,
-                new IOSessionReadyCallback(delivery));
+        final SocketAddress key = route.getRemoteAddress();
+        final int recipients = request.getRecipients().size();
+        long delay = this.rateShaper.reserve(key, recipients);
+        if (delay > 0) {
+            schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    rateShaper.released(key, recipients);
+                    requestSessions(enqueue(route, delivery));
+                }
+
+            }, delay, future);
+        } else {
+            requestSessions(enqueue(route, delivery));
+        }
         return future;
     }
 
+    private void schedule(final Runnable task, final long delay, final BasicFuture<?> future) {
+        try {
+            this.scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            this.delayedDeliveries.remove(future);
+            future.failed(new IllegalStateException("Mail transport has been shut down"));
+        }
+    }
+
+    /**
+     * Fails deliveries whose scheduled tasks are discarded on shutdown.
+     */
+    private void failDelayedDeliveries() {
+        Iterator<BasicFuture<DeliveryResult>> it = this.delayedDeliveries.iterator();
+        while (it.hasNext()) {
+            BasicFuture<DeliveryResult> future = it.next();
+            it.remove();
+            future.failed(new IllegalStateException("Mail transport has been shut down"));
+        }
+    }
+
+    private static String domainKey(final String domain) {
+        return domain.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Limits the rate of messages and recipients delivered to the given endpoint.
+     * The limit applies to the remote address of the endpoint regardless of
+     * the local address sessions are established from. Deliveries exceeding
+     * the limit are delayed rather than failed. <code>null</code> removes
+     * the limit.
+     */
+    public void setRateLimit(final SessionEndpoint endpoint, final RateLimit limit) {
+        Args.notNull(endpoint, "Session endpoint");
+        this.rateShaper.setLimit(endpoint.getRemoteAddress(), limit);
+    }
+
+    /**
+     * Limits the rate of messages and recipients delivered to the given domain
+     * by {@link #deliver(String, int, DeliveryRequest, FutureCallback)}.
+     * Limits of the endpoints the domain resolves to apply as well.
+     * <code>null</code> removes the limit.
+     */
+    public void setRateLimit(final String domain, final RateLimit limit) {
+        Args.notBlank(domain, "Domain");
+        this.rateShaper.setLimit(domainKey(domain), limit);
+    }
+
+    public RateShapingStats getRateStats(final SessionEndpoint endpoint) {
+        Args.notNull(endpoint, "Session endpoint");
+        return this.rateShaper.getStats(endpoint.getRemoteAddress());
+    }
+
+    public RateShapingStats getRateStats(final String domain) {
+        Args.notBlank(domain, "Domain");
+        return this.rateShaper.getStats(domainKey(domain));
+    }
+
+    /**
+     * Delivers the request to the endpoints the given domain resolves to using
+     * the {@link #setEndpointResolver(EndpointResolver) endpoint resolver}.
+     * If the delivery fails with an I/O error or is refused by the endpoint,
+     * it is re-attempted with the next endpoint in order of preference.
+     * <p/>
+     * The domain is resolved on the calling thread, which may block for as long
+     * as the resolver takes: {@link com.ok2c.lightmtp.impl.resolver.DnsEndpointResolver}
+     * performs JNDI lookups and resolves host names synchronously. This method
+     * should not be called from I/O dispatch threads or delivery callbacks unless
+     * the resolver is known not to block, for instance a warmed up
+     * {@link com.ok2c.lightmtp.impl.resolver.CachingEndpointResolver}.
+     * If the resolver throws a runtime exception, the delivery is failed and the
+     * exception is re-thrown.
+     */
+    public Future<DeliveryResult> deliver(
+            final String domain,
+            final int connectTimeout,
+            final DeliveryRequest request,
+            final FutureCallback<DeliveryResult> callback) {
+        return deliver(domain, connectTimeout, request, DeliveryPriority.NORMAL, callback);
+    }
+
+    /**
+     * Delivers the request to the endpoints the given domain resolves to
+     * with the given priority.
+     *
+     * @see #deliver(String, int, DeliveryRequest, FutureCallback)
+     */
+    public Future<DeliveryResult> deliver(
+            final String domain,
+            final int connectTimeout,
+            final DeliveryRequest request,
+            final DeliveryPriority priority,
+            final FutureCallback<DeliveryResult> callback) {
+        Args.notBlank(domain, "Domain");
+        Args.notNull(request, "Delivery request");
+        Args.notNull(priority, "Delivery priority");
+        EndpointResolver resolver = this.endpointResolver;
+        if (resolver == null) {
+            throw new IllegalStateException("Endpoint resolver has not been set");
+        }
+        if (this.shutdown) {
+            throw new IllegalStateException("Mail transport has been shut down");
+        }
+        Exception ex = acquirePermit();
+        if (ex != null) {
+            return failedFuture(callback, ex);
+        }
+        final BasicFuture<DeliveryResult> future = new BasicFuture<DeliveryResult>(
+                permitCallback(callback));
+        ResolvedEndpoints resolved;
+        try {
+            resolved = resolver.resolve(domain);
+        } catch (IOException ioex) {
+            future.failed(ioex);
+            return future;
+        } catch (RuntimeException rex) {
+            // Release the submission permit
+            future.failed(rex);
+            throw rex;
+        }
+        if (resolved == null || resolved.isEmpty()) {
+            future.failed(new UnknownHostException("No mail endpoint found for " + domain));
+            return future;
+        }
+        EndpointCircuitBreaker breaker = this.circuitBreaker;
+        List<SessionEndpoint> routes = new ArrayList<SessionEndpoint>(resolved.getEndpoints().size());
+        for (SessionEndpoint endpoint: resolved.getEndpoints()) {
+            SessionEndpoint route = selectRoute(endpoint);
+            if (breaker == null || breaker.isAvailable(route)) {
+                routes.add(route);
+            }
+        }
+        if (routes.isEmpty()) {
+            future.failed(new CircuitOpenException(resolved.getEndpoints().get(0)));
+            return future;
+        }
+        final FailoverDelivery delivery = new FailoverDelivery(
+                routes, connectTimeout, request, priority, future);
+        long stagger = this.connectStagger;
+        final ConnectRace race = routes.size() > 1 && stagger > 0
+                ? new ConnectRace(routes, connectTimeout, stagger, delivery) : null;
+        final String key = domainKey(domain);
+        final int recipients = request.getRecipients().size();
+        long delay = this.rateShaper.reserve(key, recipients);
+        if (delay > 0) {
+            // Not a pending delivery yet: keep track of it to fail it on shutdown
+            this.delayedDeliveries.add(future);
+            schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    delayedDeliveries.remove(future);
+                    rateShaper.released(key, recipients);
+                    if (future.isDone()) {
+                        return;
+                    }
+                    if (race != null) {
+                        race.startNext();
+                    } else {
+                        delivery.deliverNext();
+                    }
+                }
+
+            }, delay, future);
+        } else if (race != null) {
+            race.startNext();
+        } else {
+            delivery.deliverNext();
+        }
+        return future;
+    }
+
+    public long getConnectStagger() {
+        return this.connectStagger;
+    }
+
+    /**
+     * Sets the delay in milliseconds after which
+     * {@link #deliver(String, int, DeliveryRequest, FutureCallback)} starts connecting
+     * to the next endpoint of a domain while the session with the previous one
+     * is still being established. The delivery is made over the first session
+     * to complete the greeting. Sessions that lose the race are released back
+     * to the pool. <code>0</code> disables connect racing: endpoints are tried
+     * one at a time.
+     * <p/>
+     * Default: <code>250</code>
+     */
+    public void setConnectStagger(final long connectStagger) {
+        Args.notNegative(connectStagger, "Connect stagger");
+        this.connectStagger = connectStagger;
+    }
+
+    public long getQueueIdleTime() {
+        return this.queueIdleTime;
+    }
+
+    /**
+     * Sets the time in milliseconds after which the delivery queue of an endpoint
+     * that has neither pending deliveries nor sessions gets discarded along
+     * with its lane statistics. Idle queues are looked for at most once
+     * within this time, as sessions get released.
+     * <p/>
+     * Default: <code>60000</code>
+     */
+    public void setQueueIdleTime(final long queueIdleTime) {
+        Args.notNegative(queueIdleTime, "Queue idle time");
+        this.queueIdleTime = queueIdleTime;
+    }
+
+    public SourceAddressPool getSourceAddressPool() {
+        return this.sourceAddressPool;
+    }
+
+    /**
+     * Sets the pool of local addresses sessions to endpoints without an explicit
+     * local address are spread over. Session limits apply to each (local, remote)
+     * address pair separately.
+     */
+    public void setSourceAddressPool(final SourceAddressPool sourceAddressPool) {
+        this.sourceAddressPool = sourceAddressPool;
+    }
+
+    public EndpointCircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+
+    /**
+     * Sets the circuit breaker that stops deliveries to endpoints failing with
+     * connection errors or <code>421</code> replies. Deliveries to an endpoint
+     * with an open circuit fail with {@link CircuitOpenException} without
+     * a connection attempt, or fail over to the next endpoint of the domain.
+     */
+    public void setCircuitBreaker(final EndpointCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public EndpointResolver getEndpointResolver() {
+        return this.endpointResolver;
+    }
+
+    /**
+     * Sets the resolver used to map domains to endpoints by
+     * {@link #deliver(String, int, DeliveryRequest, FutureCallback)}.
+     * The resolver gets called on the thread submitting the delivery.
+     */
+    public void setEndpointResolver(final EndpointResolver endpointResolver) {
+        this.endpointResolver = endpointResolver;
+    }
+
+    /**
+     * Delivers multiple requests to the same endpoint. Recipients of requests
+     * with the same sender and the same content object are merged into as few
+     * mail transactions as permitted by {@link #getMaxRecipientsPerTransaction()}.
+     * Results of merged transactions are split back out per original request:
+     * each request is given the recipient failures relevant to its recipients
+     * and the first non-successful transaction reply, if any.
+     *
+     * @return futures of the given requests in the same order.
+     */
+    public List<Future<DeliveryResult>> deliver(
+            final SessionEndpoint endpoint,
+            final int connectTimeout,
+            final List<? extends DeliveryRequest> requests,
+            final FutureCallback<DeliveryResult> callback) {
+        Args.notNull(requests, "Delivery requests");
+        if (this.shutdown) {
+            throw new IllegalStateException("Mail transport has been shut down");
+        }
+        int maxRecipients = this.maxRecipientsPerTransaction;
+        List<Future<DeliveryResult>> futures = new ArrayList<Future<DeliveryResult>>(requests.size());
+        Map<MergedDelivery.MergeKey, MergedDelivery> merged =
+            new LinkedHashMap<MergedDelivery.MergeKey, MergedDelivery>();
+        for (DeliveryRequest request: requests) {
+            BasicFuture<DeliveryResult> future = new BasicFuture<DeliveryResult>(callback);
+            futures.add(future);
+            MergedDelivery.MergeKey key = new MergedDelivery.MergeKey(
+                    request.getSender(), request.getContent());
+            MergedDelivery delivery = merged.get(key);
+            if (delivery == null) {
+                delivery = new MergedDelivery(this, endpoint, connectTimeout,
+                        request.getSender(), request.getContent(), maxRecipients);
+                merged.put(key, delivery);
+            }
+            delivery.add(request, future);
+        }
+        for (MergedDelivery delivery: merged.values()) {
+            Exception ex = acquirePermit();
+            if (ex != null) {
+                delivery.rejected(ex);
+            } else {
+                delivery.start();
+            }
+        }
+        return futures;
+    }
+
+    public int getMaxRecipientsPerTransaction() {
+        return this.maxRecipientsPerTransaction;
+    }
+
+    /**
+     * Sets the maximum number of recipients merged into one mail transaction
+     * by {@link #deliver(SessionEndpoint, int, List, FutureCallback)}.
+     * <p/>
+     * Default: <code>100</code>
+     */
+    public void setMaxRecipientsPerTransaction(final int maxRecipientsPerTransaction) {
+        Args.positive(maxRecipientsPerTransaction, "Max recipients per transaction");
+        this.maxRecipientsPerTransaction = maxRecipientsPerTransaction;
+    }
+
+    private SessionEndpoint selectRoute(final SessionEndpoint endpoint) {
+        SourceAddressPool pool = this.sourceAddressPool;
+        if (pool == null || endpoint.getLocalAddress() != null) {
+            return endpoint;
+        }
+        SocketAddress remoteAddress = endpoint.getRemoteAddress();
+        switch (pool.getPolicy()) {
+        case LEAST_CONNECTIONS:
+            SessionEndpoint route = null;
+            int minLoad = Integer.MAX_VALUE;
+            for (SocketAddress localAddress: pool.getAddresses()) {
+                SessionEndpoint candidate = new SessionEndpoint(localAddress, remoteAddress);
+                EndpointDeliveryQueue queue = this.deliveryQueues.get(candidate);
+                int load = queue != null ? queue.size() + queue.getSessionCount() : 0;
+                if (load < minLoad) {
+                    minLoad = load;
+                    route = candidate;
+                }
+            }
+            return route;
+        default:
+            return new SessionEndpoint(pool.next(), remoteAddress);
+        }
+    }
+
+    private EndpointDeliveryQueue getDeliveryQueue(final SessionEndpoint endpoint) {
+        EndpointDeliveryQueue queue = this.deliveryQueues.get(endpoint);
+        if (queue == null) {
+            EndpointDeliveryQueue newQueue = new EndpointDeliveryQueue(endpoint, this.laneConfig);
+            queue = this.deliveryQueues.putIfAbsent(endpoint, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+                AdaptiveConcurrencyController controller = this.concurrencyController;
+                if (controller != null) {
+                    this.sessionManager.setMaxPerAddress(endpoint, controller.getLimit(endpoint));
+                }
+            }
+        }
+        return queue;
+    }
+
+    private EndpointDeliveryQueue enqueue(
+            final SessionEndpoint endpoint, final PendingDelivery delivery) {
+        for (;;) {
+            EndpointDeliveryQueue queue = getDeliveryQueue(endpoint);
+            if (queue.add(delivery)) {
+                return queue;
+            }
+            // Retired concurrently
+            this.deliveryQueues.remove(endpoint, queue);
+        }
+    }
+
+    private void pruneDeliveryQueues() {
+        long now = System.currentTimeMillis();
+        long idleTime = this.queueIdleTime;
+        long last = this.lastQueuePrune.get();
+        if (now - last < idleTime || !this.lastQueuePrune.compareAndSet(last, now)) {
+            return;
+        }
+        for (Map.Entry<SessionEndpoint, EndpointDeliveryQueue> entry: this.deliveryQueues.entrySet()) {
+            EndpointDeliveryQueue queue = entry.getValue();
+            if (queue.retire(now - idleTime)) {
+                this.deliveryQueues.remove(entry.getKey(), queue);
+            }
+        }
+    }
+
+    private void requestSessions(final EndpointDeliveryQueue queue) {
+        if (this.shutdown) {
+            return;
+        }
+        SessionEndpoint endpoint = queue.getEndpoint();
+        EndpointCircuitBreaker breaker = this.circuitBreaker;
+        if (breaker != null && !breaker.isAvailable(endpoint)) {
+            // Fail fast instead of waiting out connect timeouts
+            PendingDelivery delivery;
+            while ((delivery = nextDelivery(queue)) != null) {
+                delivery.getDeliveryFuture().failed(new CircuitOpenException(endpoint));
+            }
+            return;
+        }
+        int max = this.sessionManager.getMaxPerAddress(endpoint);
+        while (queue.reserveSession(max)) {
+            PendingDelivery next = queue.peek();
+            int connectTimeout = next != null ? next.getConnectTimeout() : 0;
+            // Sessions are shared by all classes of the endpoint, but high priority
+            // deliveries must not wait for sessions requested on behalf of others
+            boolean priority = next != null && next.getPriority() == DeliveryPriority.HIGH;
+            this.sessionManager.leaseSession(endpoint,
+                    connectTimeout, TimeUnit.MILLISECONDS, priority,
+                    new IOSessionReadyCallback(queue));
+        }
+    }
+
+    private PendingDelivery nextDelivery(final EndpointDeliveryQueue queue) {
+        PendingDelivery delivery;
+        while ((delivery = queue.poll()) != null) {
+            this.pendingDeliveries.remove(delivery);
+            if (!delivery.getDeliveryFuture().isDone()) {
+                return delivery;
+            }
+        }
+        return null;
+    }
+
+    private PendingDelivery dispatchDelivery(final EndpointDeliveryQueue queue) {
+        int max = this.sessionManager.getMaxPerAddress(queue.getEndpoint());
+        PendingDelivery delivery;
+        while ((delivery = queue.dispatch(max)) != null) {
+            this.pendingDeliveries.remove(delivery);
+            if (!delivery.getDeliveryFuture().isDone()) {
+                return delivery;
+            }
+            queue.finished(delivery);
+        }
+        return null;
+    }
+
+    /**
+     * Returns statistics of the given priority lane across all endpoints
+     * with a delivery queue.
+     *
+     * @see #setQueueIdleTime(long)
+     */
+    public DeliveryLaneStats getLaneStats(final DeliveryPriority priority) {
+        Args.notNull(priority, "Delivery priority");
+        int queued = 0;
+        int active = 0;
+        long dispatched = 0;
+        long totalWaitTime = 0;
+        long maxWaitTime = 0;
+        for (EndpointDeliveryQueue queue: this.deliveryQueues.values()) {
+            DeliveryLaneStats stats = queue.getStats(priority);
+            queued += stats.getQueued();
+            active += stats.getActive();
+            dispatched += stats.getDispatched();
+            totalWaitTime += stats.getTotalWaitTime();
+            maxWaitTime = Math.max(maxWaitTime, stats.getMaxWaitTime());
+        }
+        return new DeliveryLaneStats(queued, active, dispatched, totalWaitTime, maxWaitTime);
+    }
+
+    /**
+     * Returns statistics of the given priority lane of the given endpoint.
+     */
+    public DeliveryLaneStats getLaneStats(
+            final SessionEndpoint endpoint, final DeliveryPriority priority) {
+        Args.notNull(endpoint, "Session endpoint");
+        Args.notNull(priority, "Delivery priority");
+        EndpointDeliveryQueue queue = this.deliveryQueues.get(endpoint);
+        return queue != null ? queue.getStats(priority) : new DeliveryLaneStats(0, 0, 0, 0, 0);
+    }
+
+    private static boolean isTransientFailure(final SMTPReply reply) {
+        return reply != null && reply.getCode() >= 400 && reply.getCode() < 500;
+    }
+
+    private void updateLimit(final EndpointDeliveryQueue queue, final int limit) {
+        SessionEndpoint endpoint = queue.getEndpoint();
+        if (limit != this.sessionManager.getMaxPerAddress(endpoint)) {
+            this.sessionManager.setMaxPerAddress(endpoint, limit);
+            if (!queue.isEmpty()) {
+                requestSessions(queue);
+            }
+        }
+    }
+
+    private void deliveryFeedback(
+            final EndpointDeliveryQueue queue,
+            final PendingDelivery delivery,
+            final DeliveryResult result) {
+        if (queue == null || result == null) {
+            return;
+        }
+        SMTPReply reply = result.getReply();
+        EndpointCircuitBreaker breaker = this.circuitBreaker;
+        if (breaker != null) {
+            if (reply != null && reply.getCode() == SMTPCodes.ERR_TRANS_SERVICE_NOT_AVAILABLE) {
+                breaker.failure(queue.getEndpoint());
+            } else {
+                breaker.success(queue.getEndpoint());
+            }
+        }
+        AdaptiveConcurrencyController controller = this.concurrencyController;
+        if (controller == null) {
+            return;
+        }
+        // Per-recipient 4xx replies (mailbox busy, over quota, greylisted)
+        // do not signal congestion; only transaction level ones do
+        if (isTransientFailure(reply)) {
+            updateLimit(queue, controller.backoff(queue.getEndpoint()));
+        } else if (reply != null && reply.getCode() >= 200 && reply.getCode() < 300) {
+            long latency = System.currentTimeMillis() - delivery.getStartTime();
+            updateLimit(queue, controller.success(queue.getEndpoint(), latency));
+        }
+    }
+
+    private void circuitFailure(final SessionEndpoint endpoint, final Exception ex) {
+        EndpointCircuitBreaker breaker = this.circuitBreaker;
+        if (breaker == null || endpoint == null || ex instanceof CircuitOpenException) {
+            return;
+        }
+        if (ex instanceof IOException || (ex instanceof ServiceRefusedException
+                && ((ServiceRefusedException) ex).getReply().getCode()
+                        == SMTPCodes.ERR_TRANS_SERVICE_NOT_AVAILABLE)) {
+            breaker.failure(endpoint);
+        }
+    }
+
+    private void failureFeedback(final EndpointDeliveryQueue queue) {
+        AdaptiveConcurrencyController controller = this.concurrencyController;
+        if (controller == null || queue == null) {
+            return;
+        }
+        updateLimit(queue, controller.backoff(queue.getEndpoint()));
+    }
+
+    private void releasePrewarmedSession(final SessionContext context) {
+        LeasedSession leasedSession = (LeasedSession) context.removeAttribute(
+                MailIOSessionManager.PREWARMED_SESSION);
+        if (leasedSession != null) {
+            // Pre-warmed session has completed the handshake or has been closed
+            this.sessionManager.releaseSession(leasedSession);
+        }
+    }
+
+    private void releaseSession(final SessionContext context) {
+        EndpointDeliveryQueue queue = (EndpointDeliveryQueue) context.removeAttribute(DELIVERY_QUEUE);
+        LeasedSession leasedSession = (LeasedSession) context.removeAttribute(LEASED_SESSION);
+        if (leasedSession != null) {
+            this.sessionManager.releaseSession(leasedSession);
+            if (queue != null) {
+                queue.releaseSession();
+                if (!queue.isEmpty()) {
+                    requestSessions(queue);
+                }
+            }
+            pruneDeliveryQueues();
+        }
+    }
+
+    /**
+     * Sets the minimum number of sessions to be kept open and ready for delivery
+     * to the given endpoint. Requires the session pool maintenance task to be
+     * enabled for sessions to be re-established as they expire.
+     */
+    public void setMinSessions(final SessionEndpoint endpoint, final int min) {
+        this.sessionManager.setMinPerAddress(endpoint, min);
+    }
+
+    public AdaptiveConcurrencyController getConcurrencyController() {
+        return this.concurrencyController;
+    }
+
+    /**
+     * Sets the controller that adjusts the number of concurrent sessions per
+     * endpoint based on observed replies and delivery latency. Overrides limits
+     * set directly on the session pool for the endpoints the agent delivers to,
+     * including the ones delivered to before the controller was set.
+     */
+    public void setConcurrencyController(final AdaptiveConcurrencyController concurrencyController) {
+        this.concurrencyController = concurrencyController;
+        if (concurrencyController != null) {
+            for (EndpointDeliveryQueue queue: this.deliveryQueues.values()) {
+                updateLimit(queue, concurrencyController.getLimit(queue.getEndpoint()));
+            }
+        }
+    }
+
     public void setExceptionHandler(final IOReactorExceptionHandler exceptionHandler) {
         this.transport.setExceptionHandler(exceptionHandler);
     }
@@ -158,6 +1068,9 @@ public class DefaultMailUserAgent implements MailUserAgent {
     public void shutdown() throws IOException {
         this.shutdown = true;
         this.started = false;
+        this.scheduler.shutdownNow();
+        failDelayedDeliveries();
+        signalCapacity();
         this.transport.closeActiveSessions();
         this.sessionManager.shutdown();
         this.transport.shutdown();
@@ -165,18 +1078,22 @@ public class DefaultMailUserAgent implements MailUserAgent {
 
     @Override
     public void forceShutdown() {
+        this.scheduler.shutdownNow();
+        failDelayedDeliveries();
         this.transport.forceShutdown();
     }
 
     class InternalIOReactorThreadCallback implements IOReactorThreadCallback {
 
         private void cancelDeliveries() {
-            synchronized (pendingDeliveries) {
-                for (PendingDelivery delivery: pendingDeliveries) {
-                    delivery.getDeliveryFuture().cancel(true);
-                }
-                pendingDeliveries.clear();
+            Iterator<PendingDelivery> it = pendingDeliveries.iterator();
+            while (it.hasNext()) {
+                PendingDelivery delivery = it.next();
+                it.remove();
+                delivery.getDeliveryFuture().cancel(true);
             }
+            signalCapacity();
+            deliveryQueues.clear();
         }
 
         @Override
@@ -195,43 +1112,307 @@ public class DefaultMailUserAgent implements MailUserAgent {
 
     }
 
-    class IOSessionReadyCallback implements FutureCallback<LeasedSession> {
+    class FailoverDelivery implements FutureCallback<DeliveryResult> {
+
+        private final List<SessionEndpoint> endpoints;
+        private final int connectTimeout;
+        private final DeliveryRequest request;
+        private final DeliveryPriority priority;
+        private final BasicFuture<DeliveryResult> future;
 
-        private final PendingDelivery pendingDelivery;
+        private int index;
 
-        public IOSessionReadyCallback(final PendingDelivery pendingDelivery) {
+        FailoverDelivery(
+                final List<SessionEndpoint> endpoints,
+                final int connectTimeout,
+                final DeliveryRequest request,
+                final DeliveryPriority priority,
+                final BasicFuture<DeliveryResult> future) {
             super();
-            this.pendingDelivery = pendingDelivery;
+            this.endpoints = endpoints;
+            this.connectTimeout = connectTimeout;
+            this.request = request;
+            this.priority = priority;
+            this.future = future;
+        }
+
+        void deliverFirst(final SessionEndpoint endpoint) {
+            // Try the given endpoint first, then fail over to the others in order
+            this.endpoints.remove(endpoint);
+            this.endpoints.add(0, endpoint);
+            deliverNext();
         }
 
-        private void deliveryDone() {
-            pendingDeliveries.remove(this.pendingDelivery);
+        void deliverNext() {
+            SessionEndpoint endpoint = this.endpoints.get(this.index++);
+            try {
+                submitDelivery(endpoint, this.connectTimeout, this.request, this.priority, null, this);
+            } catch (IllegalStateException ex) {
+                this.future.failed(ex);
+            }
+        }
+
+        @Override
+        public void completed(final DeliveryResult result) {
+            this.future.completed(result);
+        }
+
+        @Override
+        public void failed(final Exception ex) {
+            if (this.index > 0 && this.index < this.endpoints.size() && !this.future.isDone()
+                    && (ex instanceof IOException || ex instanceof ServiceRefusedException)) {
+                // Content may have been partially sent
+                this.request.getContent().reset();
+                deliverNext();
+            } else {
+                this.future.failed(ex);
+            }
+        }
+
+        @Override
+        public void cancelled() {
+            this.future.cancel(true);
+        }
+
+    }
+
+    class ConnectRace {
+
+        private final List<SessionEndpoint> routes;
+        private final int connectTimeout;
+        private final long stagger;
+        private final FailoverDelivery delivery;
+        private final AtomicInteger started;
+        private final AtomicInteger failed;
+        private final AtomicBoolean won;
+
+        ConnectRace(
+                final List<SessionEndpoint> routes,
+                final int connectTimeout,
+                final long stagger,
+                final FailoverDelivery delivery) {
+            super();
+            this.routes = routes;
+            this.connectTimeout = connectTimeout;
+            this.stagger = stagger;
+            this.delivery = delivery;
+            this.started = new AtomicInteger();
+            this.failed = new AtomicInteger();
+            this.won = new AtomicBoolean();
+        }
+
+        void startNext() {
+            if (this.won.get()) {
+                return;
+            }
+            if (shutdown) {
+                // Staggered attempts are discarded on shutdown
+                this.delivery.failed(new IllegalStateException("Mail transport has been shut down"));
+                return;
+            }
+            int i = this.started.getAndIncrement();
+            if (i >= this.routes.size()) {
+                return;
+            }
+            final SessionEndpoint route = this.routes.get(i);
+            sessionManager.leaseSession(route,
+                    this.connectTimeout, TimeUnit.MILLISECONDS,
+                    new FutureCallback<LeasedSession>() {
+
+                @Override
+                public void completed(final LeasedSession leasedSession) {
+                    if (won.get()) {
+                        sessionManager.releaseSession(leasedSession);
+                        return;
+                    }
+                    IOSession iosession = leasedSession.getIOSession();
+                    iosession.setAttribute(LEASED_SESSION, leasedSession);
+                    iosession.setAttribute(CONNECT_RACE, ConnectRace.this);
+                    iosession.setEvent(SelectionKey.OP_WRITE);
+                }
+
+                @Override
+                public void failed(final Exception ex) {
+                    circuitFailure(route, ex);
+                    attemptFailed(ex);
+                }
+
+                @Override
+                public void cancelled() {
+                    attemptFailed(new IOException("Session request cancelled"));
+                }
+
+            });
+            if (i + 1 < this.routes.size()) {
+                try {
+                    scheduler.schedule(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            startNext();
+                        }
+
+                    }, this.stagger, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ex) {
+                    // Shut down
+                }
+            }
+        }
+
+        void attemptFailed(final Exception ex) {
+            if (this.won.get()) {
+                return;
+            }
+            if (this.failed.incrementAndGet() >= this.routes.size()) {
+                this.delivery.failed(ex);
+            } else {
+                startNext();
+            }
+        }
+
+        /**
+         * Called once a racing session is ready to accept a delivery.
+         *
+         * @return <code>true</code> if the session won the race.
+         */
+        boolean sessionReady(final SessionContext context) {
+            LeasedSession leasedSession = (LeasedSession) context.getAttribute(LEASED_SESSION);
+            if (leasedSession == null || !this.won.compareAndSet(false, true)) {
+                return false;
+            }
+            SessionEndpoint route = leasedSession.getRoute();
+            // Account for the session before queueing the delivery, so that
+            // no other session gets requested for it
+            EndpointDeliveryQueue queue = getDeliveryQueue(route);
+            while (!queue.attachSession()) {
+                deliveryQueues.remove(route, queue);
+                queue = getDeliveryQueue(route);
+            }
+            context.setAttribute(DELIVERY_QUEUE, queue);
+            this.delivery.deliverFirst(route);
+            return true;
+        }
+
+    }
+
+    class PermitReleaseCallback<T> implements FutureCallback<T> {
+
+        private final FutureCallback<T> callback;
+
+        PermitReleaseCallback(final FutureCallback<T> callback) {
+            super();
+            this.callback = callback;
+        }
+
+        @Override
+        public void completed(final T result) {
+            releasePermit();
+            if (this.callback != null) {
+                this.callback.completed(result);
+            }
+        }
+
+        @Override
+        public void failed(final Exception ex) {
+            releasePermit();
+            if (this.callback != null) {
+                this.callback.failed(ex);
+            }
+        }
+
+        @Override
+        public void cancelled() {
+            releasePermit();
+            if (this.callback != null) {
+                this.callback.cancelled();
+            }
+        }
+
+    }
+
+    static class ContentReleaseCallback implements FutureCallback<DeliveryResult> {
+
+        private final SharedEncodedContent content;
+        private final FutureCallback<DeliveryResult> callback;
+
+        ContentReleaseCallback(
+                final SharedEncodedContent content,
+                final FutureCallback<DeliveryResult> callback) {
+            super();
+            this.content = content;
+            this.callback = callback;
+        }
+
+        @Override
+        public void completed(final DeliveryResult result) {
+            this.content.release();
+            if (this.callback != null) {
+                this.callback.completed(result);
+            }
+        }
+
+        @Override
+        public void failed(final Exception ex) {
+            this.content.release();
+            if (this.callback != null) {
+                this.callback.failed(ex);
+            }
+        }
+
+        @Override
+        public void cancelled() {
+            this.content.release();
+            if (this.callback != null) {
+                this.callback.cancelled();
+            }
+        }
+
+    }
+
+    class IOSessionReadyCallback implements FutureCallback<LeasedSession> {
+
+        private final EndpointDeliveryQueue queue;
+
+        public IOSessionReadyCallback(final EndpointDeliveryQueue queue) {
+            super();
+            this.queue = queue;
         }
 
         @Override
         public void completed(final LeasedSession leasedSession) {
-            deliveryDone();
-            this.pendingDelivery.setLeasedSession(leasedSession);
             IOSession iosession = leasedSession.getIOSession();
-            iosession.setAttribute(PENDING_DELIVERY, this.pendingDelivery);
+            iosession.setAttribute(LEASED_SESSION, leasedSession);
+            iosession.setAttribute(DELIVERY_QUEUE, this.queue);
             iosession.setEvent(SelectionKey.OP_WRITE);
         }
 
         @Override
         public void failed(final Exception ex) {
-            deliveryDone();
-            this.pendingDelivery.getDeliveryFuture().failed(ex);
+            this.queue.releaseSession();
+            if (ex instanceof IOException) {
+                failureFeedback(this.queue);
+            }
+            circuitFailure(this.queue.getEndpoint(), ex);
+            PendingDelivery delivery = nextDelivery(this.queue);
+            if (delivery != null) {
+                delivery.getDeliveryFuture().failed(ex);
+            }
+            requestSessions(this.queue);
         }
 
         @Override
         public void cancelled() {
-            deliveryDone();
-            this.pendingDelivery.getDeliveryFuture().cancel(true);
+            this.queue.releaseSession();
+            PendingDelivery delivery = nextDelivery(this.queue);
+            if (delivery != null) {
+                delivery.getDeliveryFuture().cancel(true);
+            }
+            requestSessions(this.queue);
         }
 
     }
 
-    class InternalDeliveryRequestHandler implements DeliveryRequestHandler {
+    class InternalDeliveryRequestHandler implements DeliveryRequestHandler, RecipientResultHandler {
 
         public InternalDeliveryRequestHandler() {
             super();
@@ -241,21 +1422,73 @@ public class DefaultMailUserAgent implements MailUserAgent {
         public void connected(final SessionContext context) {
         }
 
+        @SuppressWarnings("unchecked")
+        private List<PendingDelivery> getDeliveries(final SessionContext context) {
+            return (List<PendingDelivery>) context.getAttribute(PENDING_DELIVERY);
+        }
+
+        private void deliveryFinished(final SessionContext context, final PendingDelivery delivery) {
+            EndpointDeliveryQueue queue = (EndpointDeliveryQueue) context.getAttribute(DELIVERY_QUEUE);
+            if (queue != null) {
+                queue.finished(delivery);
+            }
+        }
+
+        private PendingDelivery removeDelivery(
+                final SessionContext context, final DeliveryRequest request) {
+            List<PendingDelivery> deliveries = getDeliveries(context);
+            if (deliveries != null) {
+                Iterator<PendingDelivery> it = deliveries.iterator();
+                while (it.hasNext()) {
+                    PendingDelivery delivery = it.next();
+                    if (delivery.getRequest() == request) {
+                        it.remove();
+                        return delivery;
+                    }
+                }
+            }
+            return null;
+        }
+
         @Override
         public void disconnected(final SessionContext context) {
-            PendingDelivery delivery = (PendingDelivery) context.removeAttribute(PENDING_DELIVERY);
-            if (delivery != null) {
-                delivery.getDeliveryFuture().cancel(true);
-                sessionManager.releaseSession(delivery.getLeasedSession());
+            ConnectRace race = (ConnectRace) context.removeAttribute(CONNECT_RACE);
+            if (race != null) {
+                race.attemptFailed(new IOException("Session closed before greeting completed"));
             }
+            List<PendingDelivery> deliveries = getDeliveries(context);
+            if (deliveries != null) {
+                for (PendingDelivery delivery: deliveries) {
+                    deliveryFinished(context, delivery);
+                    delivery.getDeliveryFuture().cancel(true);
+                }
+                deliveries.clear();
+            }
+            releaseSession(context);
+            releasePrewarmedSession(context);
         }
 
         @Override
         public void exception(final Exception ex, final SessionContext context) {
-            PendingDelivery delivery = (PendingDelivery) context.removeAttribute(PENDING_DELIVERY);
-            if (delivery != null) {
-                delivery.getDeliveryFuture().failed(ex);
-                sessionManager.releaseSession(delivery.getLeasedSession());
+            ConnectRace race = (ConnectRace) context.removeAttribute(CONNECT_RACE);
+            if (race != null) {
+                race.attemptFailed(ex);
+            }
+            EndpointDeliveryQueue queue = (EndpointDeliveryQueue) context.getAttribute(DELIVERY_QUEUE);
+            if (ex instanceof ServiceRefusedException
+                    && isTransientFailure(((ServiceRefusedException) ex).getReply())) {
+                failureFeedback(queue);
+            }
+            if (queue != null && ex instanceof ServiceRefusedException) {
+                circuitFailure(queue.getEndpoint(), ex);
+            }
+            List<PendingDelivery> deliveries = getDeliveries(context);
+            if (deliveries != null) {
+                for (PendingDelivery delivery: deliveries) {
+                    deliveryFinished(context, delivery);
+                    delivery.getDeliveryFuture().failed(ex);
+                }
+                deliveries.clear();
             }
         }
 
@@ -264,10 +1497,13 @@ public class DefaultMailUserAgent implements MailUserAgent {
                 final DeliveryRequest request,
                 final DeliveryResult result,
                 final SessionContext context) {
-            PendingDelivery delivery = (PendingDelivery) context.removeAttribute(PENDING_DELIVERY);
+            PendingDelivery delivery = removeDelivery(context, request);
             if (delivery != null) {
+                deliveryFinished(context, delivery);
+                deliveryFeedback(
+                        (EndpointDeliveryQueue) context.getAttribute(DELIVERY_QUEUE),
+                        delivery, result);
                 delivery.getDeliveryFuture().completed(result);
-                sessionManager.releaseSession(delivery.getLeasedSession());
             }
         }
 
@@ -279,14 +1515,56 @@ public class DefaultMailUserAgent implements MailUserAgent {
             completed(request, result, context);
         }
 
+        @Override
+        public void recipientCompleted(
+                final DeliveryRequest request,
+                final RcptResult result,
+                final SessionContext context) {
+            List<PendingDelivery> deliveries = getDeliveries(context);
+            if (deliveries == null) {
+                return;
+            }
+            for (PendingDelivery delivery: deliveries) {
+                if (delivery.getRequest() == request) {
+                    RecipientResultListener listener = delivery.getListener();
+                    if (listener != null) {
+                        listener.recipientCompleted(request, result);
+                    }
+                    return;
+                }
+            }
+        }
+
         @Override
         public DeliveryRequest submitRequest(final SessionContext context) {
-            PendingDelivery delivery = (PendingDelivery) context.getAttribute(PENDING_DELIVERY);
+            ConnectRace race = (ConnectRace) context.removeAttribute(CONNECT_RACE);
+            if (race != null && !race.sessionReady(context)) {
+                // Lost the race
+                releaseSession(context);
+                return null;
+            }
+            EndpointDeliveryQueue queue = (EndpointDeliveryQueue) context.getAttribute(DELIVERY_QUEUE);
+            if (queue == null) {
+                releasePrewarmedSession(context);
+                return null;
+            }
+            List<PendingDelivery> deliveries = getDeliveries(context);
+            if (deliveries == null) {
+                deliveries = new LinkedList<PendingDelivery>();
+                context.setAttribute(PENDING_DELIVERY, deliveries);
+            }
+            PendingDelivery delivery = dispatchDelivery(queue);
             if (delivery != null) {
+                delivery.setStartTime(System.currentTimeMillis());
+                deliveries.add(delivery);
                 return delivery.getRequest();
-            } else {
-                return null;
             }
+            if (deliveries.isEmpty()) {
+                // No more deliveries for this endpoint
+                context.removeAttribute(PENDING_DELIVERY);
+                releaseSession(context);
+            }
+            return null;
         }
 
     }
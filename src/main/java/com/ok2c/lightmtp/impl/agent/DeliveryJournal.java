@@ -0,0 +1,285 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+
+/**
+ * Append-only journal of queued deliveries. Every state change of a queued
+ * delivery is appended as a separate record. The journal is replayed and
+ * compacted when opened, so that only pending deliveries survive a restart.
+ * A truncated record at the end of the journal, as left by a crash, is ignored.
+ * <p/>
+ * Records are forced to the storage device before the methods recording them
+ * return. The compacted journal is written to a temporary file, forced and
+ * renamed over the old one, so that a crash during compaction leaves either
+ * the old or the new journal in place.
+ */
+class DeliveryJournal {
+
+    private static final int ENQUEUED = 'E';
+    private static final int RESCHEDULED = 'R';
+    private static final int COMPLETED = 'C';
+    private static final int DEAD = 'X';
+
+    private final File file;
+
+    private FileOutputStream fileout;
+    private DataOutputStream out;
+
+    DeliveryJournal(final File file) {
+        super();
+        this.file = file;
+    }
+
+    /**
+     * Replays the journal, rewrites it with pending deliveries only and opens it
+     * for appending.
+     *
+     * @return pending deliveries by id in the order they were enqueued.
+     */
+    synchronized Map<Long, Entry> open() throws IOException {
+        Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+        File tmp = new File(this.file.getPath() + ".tmp");
+        // The journal only goes missing if a crash interrupted the replacement
+        // of the old journal with the compacted one, which is complete by then
+        boolean recover = !this.file.exists() && tmp.exists();
+        File source = recover ? tmp : this.file;
+        if (source.exists()) {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(source)));
+            try {
+                replay(in, entries);
+            } finally {
+                in.close();
+            }
+        }
+        if (recover) {
+            replace(tmp);
+        }
+        FileOutputStream tmpfile = new FileOutputStream(tmp);
+        try {
+            DataOutputStream tmpout = new DataOutputStream(new BufferedOutputStream(tmpfile));
+            for (Entry entry: entries.values()) {
+                writeEnqueued(tmpout, entry);
+            }
+            tmpout.flush();
+            tmpfile.getChannel().force(true);
+        } finally {
+            tmpfile.close();
+        }
+        replace(tmp);
+        this.fileout = new FileOutputStream(this.file, true);
+        this.out = new DataOutputStream(new BufferedOutputStream(this.fileout));
+        return entries;
+    }
+
+    private void replace(final File tmp) throws IOException {
+        // Atomically replaces the journal on POSIX file systems
+        if (tmp.renameTo(this.file)) {
+            return;
+        }
+        // Some platforms do not rename over existing files. The complete
+        // temporary file is recovered if a crash happens in between
+        if (this.file.exists() && !this.file.delete()) {
+            throw new IOException("Unable to delete journal " + this.file);
+        }
+        if (!tmp.renameTo(this.file)) {
+            throw new IOException("Unable to rename " + tmp + " to " + this.file);
+        }
+    }
+
+    private static void replay(
+            final DataInputStream in, final Map<Long, Entry> entries) throws IOException {
+        try {
+            for (;;) {
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+                long id = in.readLong();
+                switch (type) {
+                case ENQUEUED:
+                    SocketAddress local = readAddress(in);
+                    SocketAddress remote = readAddress(in);
+                    String sender = in.readUTF();
+                    List<String> recipients = readRecipients(in);
+                    int attempts = in.readInt();
+                    entries.put(id, new Entry(id, new SessionEndpoint(local, remote),
+                            sender, recipients, attempts));
+                    break;
+                case RESCHEDULED:
+                    int n = in.readInt();
+                    List<String> remaining = readRecipients(in);
+                    Entry entry = entries.get(id);
+                    if (entry != null) {
+                        entry.attempts = n;
+                        entry.recipients = remaining;
+                    }
+                    break;
+                case COMPLETED:
+                case DEAD:
+                    entries.remove(id);
+                    break;
+                default:
+                    // Corrupt record. Nothing after it can be trusted
+                    return;
+                }
+            }
+        } catch (EOFException ex) {
+            // Truncated record
+        }
+    }
+
+    private static SocketAddress readAddress(final DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        String host = in.readUTF();
+        int port = in.readInt();
+        return new InetSocketAddress(host, port);
+    }
+
+    private static void writeAddress(
+            final DataOutputStream out, final SocketAddress address) throws IOException {
+        if (address == null) {
+            out.writeBoolean(false);
+            return;
+        }
+        InetSocketAddress isa = (InetSocketAddress) address;
+        out.writeBoolean(true);
+        out.writeUTF(isa.getAddress() != null ? isa.getAddress().getHostAddress() : isa.getHostName());
+        out.writeInt(isa.getPort());
+    }
+
+    private static List<String> readRecipients(final DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> recipients = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            recipients.add(in.readUTF());
+        }
+        return recipients;
+    }
+
+    private static void writeRecipients(
+            final DataOutputStream out, final List<String> recipients) throws IOException {
+        out.writeInt(recipients.size());
+        for (String recipient: recipients) {
+            out.writeUTF(recipient);
+        }
+    }
+
+    private static void writeEnqueued(
+            final DataOutputStream out, final Entry entry) throws IOException {
+        out.write(ENQUEUED);
+        out.writeLong(entry.id);
+        writeAddress(out, entry.endpoint.getLocalAddress());
+        writeAddress(out, entry.endpoint.getRemoteAddress());
+        out.writeUTF(entry.sender != null ? entry.sender : "");
+        writeRecipients(out, entry.recipients);
+        out.writeInt(entry.attempts);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (this.out == null) {
+            throw new IOException("Journal is closed");
+        }
+    }
+
+    private void sync() throws IOException {
+        this.out.flush();
+        this.fileout.getChannel().force(false);
+    }
+
+    synchronized void enqueued(final Entry entry) throws IOException {
+        ensureOpen();
+        writeEnqueued(this.out, entry);
+        sync();
+    }
+
+    synchronized void rescheduled(
+            final long id, final int attempts, final List<String> recipients) throws IOException {
+        ensureOpen();
+        this.out.write(RESCHEDULED);
+        this.out.writeLong(id);
+        this.out.writeInt(attempts);
+        writeRecipients(this.out, recipients);
+        sync();
+    }
+
+    synchronized void completed(final long id) throws IOException {
+        ensureOpen();
+        this.out.write(COMPLETED);
+        this.out.writeLong(id);
+        sync();
+    }
+
+    synchronized void dead(final long id) throws IOException {
+        ensureOpen();
+        this.out.write(DEAD);
+        this.out.writeLong(id);
+        sync();
+    }
+
+    synchronized void close() throws IOException {
+        if (this.out != null) {
+            this.out.close();
+            this.out = null;
+            this.fileout = null;
+        }
+    }
+
+    static class Entry {
+
+        final long id;
+        final SessionEndpoint endpoint;
+        final String sender;
+
+        List<String> recipients;
+        int attempts;
+
+        Entry(
+                final long id,
+                final SessionEndpoint endpoint,
+                final String sender,
+                final List<String> recipients,
+                final int attempts) {
+            super();
+            this.id = id;
+            this.endpoint = endpoint;
+            this.sender = sender;
+            this.recipients = recipients;
+            this.attempts = attempts;
+        }
+
+    }
+
+}
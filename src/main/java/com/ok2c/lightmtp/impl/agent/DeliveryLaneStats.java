@@ -0,0 +1,94 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+/**
+ * Statistics of a delivery priority lane. Wait times are measured from
+ * the moment a delivery is submitted to the moment it is handed over to
+ * a session.
+ */
+public class DeliveryLaneStats {
+
+    private final int queued;
+    private final int active;
+    private final long dispatched;
+    private final long totalWaitTime;
+    private final long maxWaitTime;
+
+    public DeliveryLaneStats(
+            final int queued,
+            final int active,
+            final long dispatched,
+            final long totalWaitTime,
+            final long maxWaitTime) {
+        super();
+        this.queued = queued;
+        this.active = active;
+        this.dispatched = dispatched;
+        this.totalWaitTime = totalWaitTime;
+        this.maxWaitTime = maxWaitTime;
+    }
+
+    /**
+     * Number of deliveries waiting for a session.
+     */
+    public int getQueued() {
+        return this.queued;
+    }
+
+    /**
+     * Number of deliveries being executed.
+     */
+    public int getActive() {
+        return this.active;
+    }
+
+    /**
+     * Total number of deliveries handed over to sessions.
+     */
+    public long getDispatched() {
+        return this.dispatched;
+    }
+
+    public long getTotalWaitTime() {
+        return this.totalWaitTime;
+    }
+
+    public long getAverageWaitTime() {
+        return this.dispatched > 0 ? this.totalWaitTime / this.dispatched : 0;
+    }
+
+    public long getMaxWaitTime() {
+        return this.maxWaitTime;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[queued: ");
+        buffer.append(this.queued);
+        buffer.append("][active: ");
+        buffer.append(this.active);
+        buffer.append("][dispatched: ");
+        buffer.append(this.dispatched);
+        buffer.append("][avg wait: ");
+        buffer.append(getAverageWaitTime());
+        buffer.append("][max wait: ");
+        buffer.append(this.maxWaitTime);
+        buffer.append("]");
+        return buffer.toString();
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+/**
+ * Priority class of a delivery submitted to {@link DefaultMailUserAgent}.
+ * Deliveries of different classes pending for the same endpoint are queued
+ * in separate lanes served in weighted round-robin order.
+ *
+ * @see PriorityLaneConfig
+ */
+public enum DeliveryPriority {
+
+    /**
+     * Latency sensitive mail such as password resets or notifications.
+     */
+    HIGH,
+
+    NORMAL,
+
+    /**
+     * Mail that may be delayed in favor of other classes such as newsletters.
+     */
+    BULK
+
+}
@@ -0,0 +1,234 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.util.Args;
+
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+
+/**
+ * Tracks the health of endpoints and stops deliveries to endpoints that
+ * repeatedly fail. An endpoint circuit opens after the given number of
+ * consecutive failures (connection failures or <code>421</code> replies).
+ * Deliveries to an endpoint with an open circuit fail immediately without
+ * a connection attempt. Once the open duration elapses the circuit becomes
+ * half-open and lets a limited number of probe deliveries through. The circuit
+ * closes on the first success and opens again on the first failure.
+ */
+public class EndpointCircuitBreaker {
+
+    public enum State {
+
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+
+    }
+
+    private final int failureThreshold;
+    private final long openDuration;
+    private final int maxProbes;
+    private final ConcurrentMap<SessionEndpoint, Entry> entries;
+
+    /**
+     * @param failureThreshold number of consecutive failures that opens the circuit.
+     * @param openDuration time the circuit stays open before probes are let through.
+     * @param unit time unit of the open duration.
+     * @param maxProbes maximum number of concurrent probe deliveries while
+     *   the circuit is half-open.
+     */
+    public EndpointCircuitBreaker(
+            final int failureThreshold,
+            final long openDuration,
+            final TimeUnit unit,
+            final int maxProbes) {
+        super();
+        Args.positive(failureThreshold, "Failure threshold");
+        Args.notNegative(openDuration, "Open duration");
+        Args.notNull(unit, "Time unit");
+        Args.positive(maxProbes, "Max probes");
+        this.failureThreshold = failureThreshold;
+        this.openDuration = unit.toMillis(openDuration);
+        this.maxProbes = maxProbes;
+        this.entries = new ConcurrentHashMap<SessionEndpoint, Entry>();
+    }
+
+    public EndpointCircuitBreaker() {
+        this(5, 30, TimeUnit.SECONDS, 1);
+    }
+
+    private Entry getEntry(final SessionEndpoint endpoint) {
+        Entry entry = this.entries.get(endpoint);
+        if (entry == null) {
+            Entry newEntry = new Entry();
+            entry = this.entries.putIfAbsent(endpoint, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+        return entry;
+    }
+
+    long currentTime() {
+        return System.currentTimeMillis();
+    }
+
+    public State getState(final SessionEndpoint endpoint) {
+        Args.notNull(endpoint, "Session endpoint");
+        Entry entry = this.entries.get(endpoint);
+        return entry != null ? entry.getState(currentTime()) : State.CLOSED;
+    }
+
+    /**
+     * Returns <code>true</code> if a delivery to the endpoint would currently
+     * be let through. Unlike {@link #allowRequest(SessionEndpoint)} this method
+     * does not take up a probe slot.
+     */
+    public boolean isAvailable(final SessionEndpoint endpoint) {
+        Args.notNull(endpoint, "Session endpoint");
+        Entry entry = this.entries.get(endpoint);
+        return entry == null || entry.isAvailable(currentTime());
+    }
+
+    /**
+     * Decides whether a delivery to the endpoint may proceed. While the circuit
+     * is half-open every permitted delivery takes up a probe slot until the
+     * outcome is reported.
+     */
+    public boolean allowRequest(final SessionEndpoint endpoint) {
+        Args.notNull(endpoint, "Session endpoint");
+        Entry entry = this.entries.get(endpoint);
+        return entry == null || entry.allowRequest(currentTime());
+    }
+
+    public void success(final SessionEndpoint endpoint) {
+        Args.notNull(endpoint, "Session endpoint");
+        Entry entry = this.entries.get(endpoint);
+        if (entry != null) {
+            entry.success();
+        }
+    }
+
+    /**
+     * Signals a connection failure or a service-not-available (421) reply.
+     *
+     * @return the new circuit state.
+     */
+    public State failure(final SessionEndpoint endpoint) {
+        Args.notNull(endpoint, "Session endpoint");
+        return getEntry(endpoint).failure(currentTime());
+    }
+
+    public void reset(final SessionEndpoint endpoint) {
+        Args.notNull(endpoint, "Session endpoint");
+        this.entries.remove(endpoint);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[failure threshold: ");
+        buffer.append(this.failureThreshold);
+        buffer.append("][open duration: ");
+        buffer.append(this.openDuration);
+        buffer.append("][endpoints: ");
+        buffer.append(this.entries.size());
+        buffer.append("]");
+        return buffer.toString();
+    }
+
+    class Entry {
+
+        private State state;
+        private int failures;
+        private long stateChanged;
+        private int probes;
+
+        Entry() {
+            super();
+            this.state = State.CLOSED;
+        }
+
+        private void update(final long now) {
+            if (this.state == State.OPEN && now - this.stateChanged >= openDuration) {
+                this.state = State.HALF_OPEN;
+                this.stateChanged = now;
+                this.probes = 0;
+            } else if (this.state == State.HALF_OPEN && this.probes >= maxProbes
+                    && now - this.stateChanged >= openDuration) {
+                // Probes never reported back
+                this.stateChanged = now;
+                this.probes = 0;
+            }
+        }
+
+        synchronized State getState(final long now) {
+            update(now);
+            return this.state;
+        }
+
+        synchronized boolean isAvailable(final long now) {
+            update(now);
+            switch (this.state) {
+            case OPEN:
+                return false;
+            case HALF_OPEN:
+                return this.probes < maxProbes;
+            default:
+                return true;
+            }
+        }
+
+        synchronized boolean allowRequest(final long now) {
+            update(now);
+            switch (this.state) {
+            case OPEN:
+                return false;
+            case HALF_OPEN:
+                if (this.probes < maxProbes) {
+                    this.probes++;
+                    return true;
+                }
+                return false;
+            default:
+                return true;
+            }
+        }
+
+        synchronized void success() {
+            this.state = State.CLOSED;
+            this.failures = 0;
+            this.probes = 0;
+        }
+
+        synchronized State failure(final long now) {
+            update(now);
+            this.failures++;
+            if (this.state == State.HALF_OPEN
+                    || (this.state == State.CLOSED && this.failures >= failureThreshold)) {
+                this.state = State.OPEN;
+                this.stateChanged = now;
+                this.probes = 0;
+            }
+            return this.state;
+        }
+
+    }
+
+}
@@ -0,0 +1,293 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+
+/**
+ * Queue of deliveries pending for the same endpoint. Sessions leased for
+ * the endpoint keep on taking deliveries from the queue until it is empty.
+ * <p/>
+ * Deliveries are kept in one lane per {@link DeliveryPriority}. Sessions
+ * take deliveries from non-empty lanes in smooth weighted round-robin order.
+ * Deliveries other than {@link DeliveryPriority#HIGH} may not occupy
+ * the sessions reserved by the {@link PriorityLaneConfig}.
+ * <p/>
+ * A queue that has been idle for a while may be retired, after which it
+ * takes no more deliveries or sessions.
+ */
+class EndpointDeliveryQueue {
+
+    private final SessionEndpoint endpoint;
+    private final int reservedSessions;
+    private final Lane[] lanes;
+    private final AtomicInteger size;
+    private final AtomicInteger sessionCount;
+
+    private int activeCount;
+    private boolean retired;
+    private volatile long updated;
+
+    public EndpointDeliveryQueue(final SessionEndpoint endpoint, final PriorityLaneConfig laneConfig) {
+        super();
+        this.endpoint = endpoint;
+        PriorityLaneConfig config = laneConfig != null ? laneConfig : PriorityLaneConfig.DEFAULT;
+        this.reservedSessions = config.getReservedSessions();
+        DeliveryPriority[] priorities = DeliveryPriority.values();
+        this.lanes = new Lane[priorities.length];
+        for (int i = 0; i < priorities.length; i++) {
+            this.lanes[i] = new Lane(priorities[i], config.getWeight(priorities[i]));
+        }
+        this.size = new AtomicInteger();
+        this.sessionCount = new AtomicInteger();
+        this.updated = System.currentTimeMillis();
+    }
+
+    public EndpointDeliveryQueue(final SessionEndpoint endpoint) {
+        this(endpoint, null);
+    }
+
+    public SessionEndpoint getEndpoint() {
+        return this.endpoint;
+    }
+
+    /**
+     * @return <code>false</code> if the queue has been retired.
+     */
+    public boolean add(final PendingDelivery delivery) {
+        synchronized (this) {
+            if (this.retired) {
+                return false;
+            }
+            this.lanes[delivery.getPriority().ordinal()].deliveries.add(delivery);
+            this.size.incrementAndGet();
+        }
+        this.updated = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Removes the next delivery in order of priority without accounting for
+     * it as active. Used to fail or cancel queued deliveries.
+     */
+    public PendingDelivery poll() {
+        PendingDelivery delivery = null;
+        synchronized (this) {
+            for (Lane lane: this.lanes) {
+                delivery = lane.deliveries.poll();
+                if (delivery != null) {
+                    break;
+                }
+            }
+        }
+        if (delivery != null) {
+            this.size.decrementAndGet();
+        }
+        return delivery;
+    }
+
+    /**
+     * Removes the next delivery to be handed over to a session and accounts for
+     * it as active until {@link #finished(PendingDelivery)} is called.
+     *
+     * @param max maximum number of sessions for the endpoint.
+     */
+    public PendingDelivery dispatch(final int max) {
+        PendingDelivery delivery;
+        synchronized (this) {
+            boolean capped = getOtherActive() >= getOtherLimit(max);
+            Lane selected = null;
+            int total = 0;
+            for (Lane lane: this.lanes) {
+                if (lane.deliveries.isEmpty()) {
+                    lane.current = 0;
+                    continue;
+                }
+                if (capped && lane.priority != DeliveryPriority.HIGH) {
+                    continue;
+                }
+                lane.current += lane.weight;
+                total += lane.weight;
+                if (selected == null || lane.current > selected.current) {
+                    selected = lane;
+                }
+            }
+            if (selected == null) {
+                return null;
+            }
+            selected.current -= total;
+            delivery = selected.deliveries.poll();
+            selected.active++;
+            selected.dispatched++;
+            long waitTime = Math.max(0, System.currentTimeMillis() - delivery.getQueuedTime());
+            selected.totalWaitTime += waitTime;
+            selected.maxWaitTime = Math.max(selected.maxWaitTime, waitTime);
+            this.activeCount++;
+        }
+        this.size.decrementAndGet();
+        return delivery;
+    }
+
+    /**
+     * Signals that a delivery returned by {@link #dispatch(int)} is no longer
+     * active.
+     */
+    public synchronized void finished(final PendingDelivery delivery) {
+        Lane lane = this.lanes[delivery.getPriority().ordinal()];
+        if (lane.active > 0) {
+            lane.active--;
+            this.activeCount--;
+        }
+    }
+
+    public PendingDelivery peek() {
+        synchronized (this) {
+            for (Lane lane: this.lanes) {
+                PendingDelivery delivery = lane.deliveries.peek();
+                if (delivery != null) {
+                    return delivery;
+                }
+            }
+        }
+        return null;
+    }
+
+    public boolean isEmpty() {
+        return this.size.get() == 0;
+    }
+
+    public int size() {
+        return this.size.get();
+    }
+
+    private int getOtherLimit(final int max) {
+        if (this.reservedSessions == 0 || max <= this.reservedSessions) {
+            return Integer.MAX_VALUE;
+        }
+        return max - this.reservedSessions;
+    }
+
+    private int getOtherActive() {
+        return this.activeCount - this.lanes[DeliveryPriority.HIGH.ordinal()].active;
+    }
+
+    private synchronized boolean needsSession(final int count, final int max) {
+        int high = this.lanes[DeliveryPriority.HIGH.ordinal()].deliveries.size();
+        // High priority deliveries do not wait for busy sessions to free up
+        if (high > count - this.activeCount) {
+            return true;
+        }
+        int otherLimit = getOtherLimit(max);
+        return count < this.size.get() && count < otherLimit && getOtherActive() < otherLimit;
+    }
+
+    /**
+     * Reserves a session slot if the number of sessions serving the queue
+     * is less than the number of queued deliveries and the given maximum.
+     * High priority deliveries get a new session if all sessions are busy.
+     */
+    public boolean reserveSession(final int max) {
+        for (;;) {
+            int count = this.sessionCount.get();
+            if (count >= max || !needsSession(count, max)) {
+                return false;
+            }
+            if (this.sessionCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Accounts for a session established on behalf of the queue outside of
+     * {@link #reserveSession(int)}.
+     *
+     * @return <code>false</code> if the queue has been retired.
+     */
+    public synchronized boolean attachSession() {
+        if (this.retired) {
+            return false;
+        }
+        this.sessionCount.incrementAndGet();
+        return true;
+    }
+
+    public void releaseSession() {
+        this.sessionCount.decrementAndGet();
+        this.updated = System.currentTimeMillis();
+    }
+
+    /**
+     * Retires the queue if it has neither deliveries nor sessions and
+     * has not been used since the given time.
+     *
+     * @return <code>true</code> if the queue has been retired.
+     */
+    public synchronized boolean retire(final long idleSince) {
+        if (!this.retired && this.size.get() == 0 && this.activeCount == 0
+                && this.sessionCount.get() == 0 && this.updated < idleSince) {
+            this.retired = true;
+        }
+        return this.retired;
+    }
+
+    public int getSessionCount() {
+        return this.sessionCount.get();
+    }
+
+    public synchronized DeliveryLaneStats getStats(final DeliveryPriority priority) {
+        Lane lane = this.lanes[priority.ordinal()];
+        return new DeliveryLaneStats(lane.deliveries.size(), lane.active,
+                lane.dispatched, lane.totalWaitTime, lane.maxWaitTime);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[endpoint: ");
+        buffer.append(this.endpoint);
+        buffer.append("][queued: ");
+        buffer.append(this.size.get());
+        buffer.append("][sessions: ");
+        buffer.append(this.sessionCount.get());
+        buffer.append("]");
+        return buffer.toString();
+    }
+
+    static class Lane {
+
+        final DeliveryPriority priority;
+        final int weight;
+        final LinkedList<PendingDelivery> deliveries;
+
+        int current;
+        int active;
+        long dispatched;
+        long totalWaitTime;
+        long maxWaitTime;
+
+        Lane(final DeliveryPriority priority, final int weight) {
+            super();
+            this.priority = priority;
+            this.weight = weight;
+            this.deliveries = new LinkedList<PendingDelivery>();
+        }
+
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.util.Args;
+
+import com.ok2c.lightmtp.SMTPCode;
+import com.ok2c.lightmtp.SMTPCodes;
+import com.ok2c.lightmtp.SMTPReply;
+import com.ok2c.lightmtp.protocol.BasicDeliveryResult;
+import com.ok2c.lightmtp.protocol.BlockingDeliveryHandler;
+import com.ok2c.lightmtp.protocol.DeliveryHandler;
+import com.ok2c.lightmtp.protocol.DeliveryRequest;
+import com.ok2c.lightmtp.protocol.DeliveryResult;
+
+/**
+ * Adapts a {@link BlockingDeliveryHandler} to {@link DeliveryHandler} by running
+ * delivery on a {@link BlockingTaskExecutor}. Requests rejected by the executor
+ * are answered with 451 4.3.2.
+ */
+public class ExecutorDeliveryHandler implements DeliveryHandler {
+
+    private final BlockingDeliveryHandler handler;
+    private final BlockingTaskExecutor executor;
+
+    public ExecutorDeliveryHandler(
+            final BlockingDeliveryHandler handler,
+            final BlockingTaskExecutor executor) {
+        super();
+        Args.notNull(handler, "Delivery handler");
+        Args.notNull(executor, "Executor");
+        this.handler = handler;
+        this.executor = executor;
+    }
+
+    @Override
+    public Future<DeliveryResult> handle(
+            final String messageId,
+            final DeliveryRequest request,
+            final FutureCallback<DeliveryResult> callback) {
+        try {
+            return this.executor.submit(new Callable<DeliveryResult>() {
+
+                @Override
+                public DeliveryResult call() throws Exception {
+                    return handler.handle(messageId, request);
+                }
+
+            }, callback);
+        } catch (RejectedExecutionException ex) {
+            BasicFuture<DeliveryResult> future = new BasicFuture<DeliveryResult>(callback);
+            future.completed(new BasicDeliveryResult(new SMTPReply(
+                    SMTPCodes.ERR_TRANS_PROCESSING_ERROR,
+                    new SMTPCode(4, 3, 2), "system busy, try again later")));
+            return future;
+        }
+    }
+
+}
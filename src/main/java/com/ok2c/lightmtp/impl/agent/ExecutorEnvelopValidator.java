@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.net.InetAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.util.Args;
+
+import com.ok2c.lightmtp.SMTPCode;
+import com.ok2c.lightmtp.SMTPCodes;
+import com.ok2c.lightmtp.SMTPReply;
+import com.ok2c.lightmtp.protocol.BlockingEnvelopValidator;
+import com.ok2c.lightmtp.protocol.EnvelopValidator;
+
+/**
+ * Adapts a {@link BlockingEnvelopValidator} to {@link EnvelopValidator} by running
+ * validation on a {@link BlockingTaskExecutor}. Requests rejected by the executor
+ * are answered with 451 4.3.2.
+ */
+public class ExecutorEnvelopValidator implements EnvelopValidator {
+
+    private final BlockingEnvelopValidator validator;
+    private final BlockingTaskExecutor executor;
+
+    public ExecutorEnvelopValidator(
+            final BlockingEnvelopValidator validator,
+            final BlockingTaskExecutor executor) {
+        super();
+        Args.notNull(validator, "Envelop validator");
+        Args.notNull(executor, "Executor");
+        this.validator = validator;
+        this.executor = executor;
+    }
+
+    private Future<SMTPReply> submit(
+            final Callable<SMTPReply> task,
+            final FutureCallback<SMTPReply> callback) {
+        try {
+            return this.executor.submit(task, callback);
+        } catch (RejectedExecutionException ex) {
+            BasicFuture<SMTPReply> future = new BasicFuture<SMTPReply>(callback);
+            future.completed(new SMTPReply(SMTPCodes.ERR_TRANS_PROCESSING_ERROR,
+                    new SMTPCode(4, 3, 2), "system busy, try again later"));
+            return future;
+        }
+    }
+
+    @Override
+    public Future<SMTPReply> validateSender(
+            final InetAddress client,
+            final String sender,
+            final FutureCallback<SMTPReply> callback) {
+        return submit(new Callable<SMTPReply>() {
+
+            @Override
+            public SMTPReply call() throws Exception {
+                return validator.validateSender(client, sender);
+            }
+
+        }, callback);
+    }
+
+    @Override
+    public Future<SMTPReply> validateRecipient(
+            final InetAddress client,
+            final String recipient,
+            final FutureCallback<SMTPReply> callback) {
+        return submit(new Callable<SMTPReply>() {
+
+            @Override
+            public SMTPReply call() throws Exception {
+                return validator.validateRecipient(client, recipient);
+            }
+
+        }, callback);
+    }
+
+}
@@ -20,6 +20,7 @@ import java.io.IOException;
 import org.apache.http.impl.nio.reactor.IOReactorConfig;
 
 import com.ok2c.lightmtp.impl.protocol.LocalServerSessionFactory;
+import com.ok2c.lightmtp.protocol.AsyncRemoteAddressValidator;
 import com.ok2c.lightmtp.protocol.DeliveryHandler;
 import com.ok2c.lightmtp.protocol.EnvelopValidator;
 import com.ok2c.lightmtp.protocol.RemoteAddressValidator;
@@ -52,7 +53,26 @@ public class LocalMailServerTransport extends DefaultMailServerTransport {
                 idgenerator,
                 addressValidator,
                 envelopValidator,
-                deliveryHandler);
+                deliveryHandler,
+                getSessionConfig(),
+                getMetrics());
+        start(sessionFactory);
+    }
+
+    @Override
+    public void startWithAsyncValidator(
+            final UniqueIdGenerator idgenerator,
+            final AsyncRemoteAddressValidator addressValidator,
+            final EnvelopValidator envelopValidator,
+            final DeliveryHandler deliveryHandler) {
+        LocalServerSessionFactory sessionFactory = new LocalServerSessionFactory(
+                getWorkingDir(),
+                idgenerator,
+                addressValidator,
+                envelopValidator,
+                deliveryHandler,
+                getSessionConfig(),
+                getMetrics());
         start(sessionFactory);
     }
 
@@ -0,0 +1,272 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+
+import com.ok2c.lightmtp.SMTPReply;
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+import com.ok2c.lightmtp.message.SMTPContent;
+import com.ok2c.lightmtp.protocol.BasicDeliveryRequest;
+import com.ok2c.lightmtp.protocol.BasicDeliveryResult;
+import com.ok2c.lightmtp.protocol.DeliveryRequest;
+import com.ok2c.lightmtp.protocol.DeliveryResult;
+import com.ok2c.lightmtp.protocol.RcptResult;
+
+/**
+ * Delivers recipients of multiple requests with the same sender and content
+ * in as few mail transactions as possible and splits the results back out
+ * per original request.
+ * <p/>
+ * Transactions of the same merged delivery share the same content object
+ * and are therefore executed one after another.
+ */
+class MergedDelivery implements FutureCallback<DeliveryResult> {
+
+    private final DefaultMailUserAgent agent;
+    private final SessionEndpoint endpoint;
+    private final int connectTimeout;
+    private final String sender;
+    private final SMTPContent<ReadableByteChannel> content;
+    private final int maxRecipients;
+    private final List<RequestPart> parts;
+    private final Set<String> recipients;
+    private final List<List<String>> chunks;
+    private final List<List<RequestPart>> chunkParts;
+
+    private int chunkIndex;
+    private boolean finished;
+
+    MergedDelivery(
+            final DefaultMailUserAgent agent,
+            final SessionEndpoint endpoint,
+            final int connectTimeout,
+            final String sender,
+            final SMTPContent<ReadableByteChannel> content,
+            final int maxRecipients) {
+        super();
+        this.agent = agent;
+        this.endpoint = endpoint;
+        this.connectTimeout = connectTimeout;
+        this.sender = sender;
+        this.content = content;
+        this.maxRecipients = maxRecipients;
+        this.parts = new ArrayList<RequestPart>();
+        this.recipients = new LinkedHashSet<String>();
+        this.chunks = new ArrayList<List<String>>();
+        this.chunkParts = new ArrayList<List<RequestPart>>();
+    }
+
+    void add(final DeliveryRequest request, final BasicFuture<DeliveryResult> future) {
+        RequestPart part = new RequestPart(future, request.getRecipients());
+        this.parts.add(part);
+        this.recipients.addAll(request.getRecipients());
+    }
+
+    void start() {
+        synchronized (this) {
+            List<String> chunk = null;
+            for (String recipient: this.recipients) {
+                if (chunk == null || chunk.size() >= this.maxRecipients) {
+                    chunk = new ArrayList<String>(this.maxRecipients);
+                    this.chunks.add(chunk);
+                }
+                chunk.add(recipient);
+            }
+            for (List<String> recipientChunk: this.chunks) {
+                List<RequestPart> list = new ArrayList<RequestPart>();
+                for (RequestPart part: this.parts) {
+                    if (part.intersects(recipientChunk)) {
+                        part.addChunk();
+                        list.add(part);
+                    }
+                }
+                this.chunkParts.add(list);
+            }
+        }
+        submitNext();
+    }
+
+    private void submitNext() {
+        List<String> chunk;
+        synchronized (this) {
+            if (this.chunkIndex < this.chunks.size()) {
+                chunk = this.chunks.get(this.chunkIndex);
+            } else {
+                chunk = null;
+            }
+        }
+        if (chunk == null) {
+            finish();
+            return;
+        }
+        try {
+            this.agent.submitDelivery(this.endpoint, this.connectTimeout,
+                    new BasicDeliveryRequest(this.sender, chunk, this.content),
+                    DeliveryPriority.NORMAL, null, this);
+        } catch (IllegalStateException ex) {
+            failed(ex);
+        }
+    }
+
+    private void finish() {
+        synchronized (this) {
+            if (this.finished) {
+                return;
+            }
+            this.finished = true;
+        }
+        this.agent.releasePermit();
+    }
+
+    @Override
+    public void completed(final DeliveryResult result) {
+        List<String> chunk;
+        List<RequestPart> affected;
+        synchronized (this) {
+            chunk = this.chunks.get(this.chunkIndex);
+            affected = this.chunkParts.get(this.chunkIndex);
+            this.chunkIndex++;
+        }
+        for (RequestPart part: affected) {
+            part.chunkCompleted(result, chunk);
+        }
+        submitNext();
+    }
+
+    /**
+     * Fails the merged delivery that has not been started.
+     */
+    void rejected(final Exception ex) {
+        synchronized (this) {
+            this.finished = true;
+        }
+        failed(ex);
+    }
+
+    @Override
+    public void failed(final Exception ex) {
+        finish();
+        for (RequestPart part: this.parts) {
+            part.future.failed(ex);
+        }
+    }
+
+    @Override
+    public void cancelled() {
+        finish();
+        for (RequestPart part: this.parts) {
+            part.future.cancel(true);
+        }
+    }
+
+    static class MergeKey {
+
+        private final String sender;
+        private final SMTPContent<ReadableByteChannel> content;
+
+        MergeKey(final String sender, final SMTPContent<ReadableByteChannel> content) {
+            super();
+            this.sender = sender;
+            this.content = content;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.sender.hashCode() * 31 + System.identityHashCode(this.content);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof MergeKey) {
+                MergeKey that = (MergeKey) obj;
+                return this.sender.equals(that.sender) && this.content == that.content;
+            } else {
+                return false;
+            }
+        }
+
+    }
+
+    static class RequestPart {
+
+        private final BasicFuture<DeliveryResult> future;
+        private final Set<String> recipients;
+        private final List<RcptResult> failures;
+
+        private int pendingChunks;
+        private SMTPReply reply;
+
+        RequestPart(final BasicFuture<DeliveryResult> future, final List<String> recipients) {
+            super();
+            this.future = future;
+            this.recipients = new HashSet<String>(recipients);
+            this.failures = new ArrayList<RcptResult>();
+        }
+
+        boolean intersects(final List<String> chunk) {
+            for (String recipient: chunk) {
+                if (this.recipients.contains(recipient)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void addChunk() {
+            this.pendingChunks++;
+        }
+
+        private static boolean isSuccess(final SMTPReply reply) {
+            return reply.getCode() >= 200 && reply.getCode() < 300;
+        }
+
+        void chunkCompleted(final DeliveryResult result, final List<String> chunk) {
+            DeliveryResult partResult = null;
+            synchronized (this) {
+                SMTPReply chunkReply = result.getReply();
+                // The first failure takes precedence over successful replies
+                if (this.reply == null || (isSuccess(this.reply) && !isSuccess(chunkReply))) {
+                    this.reply = chunkReply;
+                }
+                for (RcptResult failure: result.getFailures()) {
+                    if (this.recipients.contains(failure.getRecipient())) {
+                        this.failures.add(failure);
+                    }
+                }
+                this.pendingChunks--;
+                if (this.pendingChunks == 0) {
+                    partResult = new BasicDeliveryResult(this.reply, this.failures);
+                }
+            }
+            if (partResult != null) {
+                this.future.completed(partResult);
+            }
+        }
+
+    }
+
+}
@@ -16,7 +16,7 @@ package com.ok2c.lightmtp.impl.agent;
 
 import org.apache.http.concurrent.BasicFuture;
 
-import com.ok2c.lightmtp.impl.pool.LeasedSession;
+import com.ok2c.lightmtp.agent.RecipientResultListener;
 import com.ok2c.lightmtp.protocol.DeliveryRequest;
 import com.ok2c.lightmtp.protocol.DeliveryResult;
 
@@ -24,15 +24,41 @@ class PendingDelivery {
 
     private final DeliveryRequest request;
     private final BasicFuture<DeliveryResult> deliveryFuture;
+    private final int connectTimeout;
+    private final DeliveryPriority priority;
+    private final long queuedTime;
+    private final RecipientResultListener listener;
 
-    private volatile LeasedSession leasedSession;
+    private volatile long startTime;
 
     public PendingDelivery(
             final DeliveryRequest request,
-            final BasicFuture<DeliveryResult> deliveryFuture) {
+            final BasicFuture<DeliveryResult> deliveryFuture,
+            final int connectTimeout,
+            final DeliveryPriority priority,
+            final RecipientResultListener listener) {
         super();
         this.request = request;
         this.deliveryFuture = deliveryFuture;
+        this.connectTimeout = connectTimeout;
+        this.priority = priority != null ? priority : DeliveryPriority.NORMAL;
+        this.queuedTime = System.currentTimeMillis();
+        this.listener = listener;
+    }
+
+    public PendingDelivery(
+            final DeliveryRequest request,
+            final BasicFuture<DeliveryResult> deliveryFuture,
+            final int connectTimeout,
+            final DeliveryPriority priority) {
+        this(request, deliveryFuture, connectTimeout, priority, null);
+    }
+
+    public PendingDelivery(
+            final DeliveryRequest request,
+            final BasicFuture<DeliveryResult> deliveryFuture,
+            final int connectTimeout) {
+        this(request, deliveryFuture, connectTimeout, null);
     }
 
     public DeliveryRequest getRequest() {
@@ -43,12 +69,28 @@ class PendingDelivery {
         return this.deliveryFuture;
     }
 
-    public LeasedSession getLeasedSession() {
-        return this.leasedSession;
+    public int getConnectTimeout() {
+        return this.connectTimeout;
+    }
+
+    public DeliveryPriority getPriority() {
+        return this.priority;
+    }
+
+    public RecipientResultListener getListener() {
+        return this.listener;
+    }
+
+    public long getQueuedTime() {
+        return this.queuedTime;
+    }
+
+    public long getStartTime() {
+        return this.startTime;
     }
 
-    public void setLeasedSession(final LeasedSession leasedSession) {
-        this.leasedSession = leasedSession;
+    public void setStartTime(final long startTime) {
+        this.startTime = startTime;
     }
 
 }
@@ -0,0 +1,471 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.util.Args;
+
+import com.ok2c.lightmtp.SMTPReply;
+import com.ok2c.lightmtp.agent.MailUserAgent;
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+import com.ok2c.lightmtp.message.SMTPContent;
+import com.ok2c.lightmtp.message.content.FileSource;
+import com.ok2c.lightmtp.message.content.SharedEncodedContent;
+import com.ok2c.lightmtp.protocol.BasicDeliveryRequest;
+import com.ok2c.lightmtp.protocol.BasicDeliveryResult;
+import com.ok2c.lightmtp.protocol.DeliveryRequest;
+import com.ok2c.lightmtp.protocol.DeliveryResult;
+import com.ok2c.lightmtp.protocol.RcptResult;
+import com.ok2c.lightmtp.protocol.ServiceRefusedException;
+
+/**
+ * Durable outbound queue that retries deliveries failing with a transient
+ * error (a 4xx reply or an I/O error) with exponential backoff per endpoint.
+ * <p/>
+ * Message content is copied to the queue directory and every state change is
+ * recorded in an append-only journal. Deliveries still pending when the queue
+ * is shut down or the process crashes are resumed when the queue is started
+ * again. Messages that could not be delivered within the maximum number of
+ * attempts are moved to the <code>dead</code> sub-directory along with a
+ * description of their envelope and the last error.
+ * <p/>
+ * The future of a queued delivery completes once all its recipients have
+ * either been accepted or permanently rejected, or the maximum number of
+ * attempts has been reached. Deliveries resumed after a restart have no future.
+ */
+public class PersistentRetryQueue {
+
+    private static final String JOURNAL = "journal";
+    private static final String DEAD_LETTER = "dead";
+    private static final long LOCAL_REJECTION_DELAY = 1000;
+
+    private final MailUserAgent agent;
+    private final File directory;
+    private final File deadLetterDirectory;
+    private final RetryQueueConfig config;
+    private final DeliveryJournal journal;
+    private final ConcurrentMap<Long, QueuedDelivery> deliveries;
+    private final ConcurrentMap<SessionEndpoint, EndpointBackoff> endpointFailures;
+    private final AtomicLong idSeq;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile boolean shutdown;
+
+    public PersistentRetryQueue(
+            final MailUserAgent agent,
+            final File directory,
+            final RetryQueueConfig config) {
+        super();
+        Args.notNull(agent, "Mail user agent");
+        Args.notNull(directory, "Queue directory");
+        this.agent = agent;
+        this.directory = directory;
+        this.deadLetterDirectory = new File(directory, DEAD_LETTER);
+        this.config = config != null ? config : RetryQueueConfig.DEFAULT;
+        this.journal = new DeliveryJournal(new File(directory, JOURNAL));
+        this.deliveries = new ConcurrentHashMap<Long, QueuedDelivery>();
+        this.endpointFailures = new ConcurrentHashMap<SessionEndpoint, EndpointBackoff>();
+        this.idSeq = new AtomicLong(0);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "Retry queue scheduler");
+                t.setDaemon(true);
+                return t;
+            }
+
+        });
+    }
+
+    public PersistentRetryQueue(final MailUserAgent agent, final File directory) {
+        this(agent, directory, null);
+    }
+
+    /**
+     * Recovers deliveries left pending in the queue directory and schedules them
+     * for immediate delivery.
+     */
+    public void start() throws IOException {
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Unable to create queue directory " + this.directory);
+        }
+        if (!this.deadLetterDirectory.isDirectory() && !this.deadLetterDirectory.mkdirs()) {
+            throw new IOException("Unable to create dead letter directory " + this.deadLetterDirectory);
+        }
+        Map<Long, DeliveryJournal.Entry> entries = this.journal.open();
+        long maxId = 0;
+        for (DeliveryJournal.Entry entry: entries.values()) {
+            maxId = Math.max(maxId, entry.id);
+            if (!getContentFile(entry.id).exists()) {
+                this.journal.completed(entry.id);
+                continue;
+            }
+            QueuedDelivery delivery = new QueuedDelivery(entry, new BasicFuture<DeliveryResult>(null));
+            this.deliveries.put(entry.id, delivery);
+            schedule(delivery, 0);
+        }
+        this.idSeq.set(Math.max(maxId, System.currentTimeMillis()));
+    }
+
+    public File getDeadLetterDirectory() {
+        return this.deadLetterDirectory;
+    }
+
+    /**
+     * Returns the number of deliveries pending in the queue.
+     */
+    public int getQueueSize() {
+        return this.deliveries.size();
+    }
+
+    /**
+     * Copies the content of the request to the queue directory, records the delivery
+     * in the journal and schedules it for immediate delivery.
+     *
+     * @throws IllegalArgumentException if the request content is
+     *   {@link SharedEncodedContent} or the endpoint addresses are not
+     *   {@link InetSocketAddress}es.
+     */
+    public Future<DeliveryResult> submit(
+            final SessionEndpoint endpoint,
+            final DeliveryRequest request,
+            final FutureCallback<DeliveryResult> callback) throws IOException {
+        Args.notNull(endpoint, "Session endpoint");
+        Args.notNull(request, "Delivery request");
+        Args.check(endpoint.getRemoteAddress() instanceof InetSocketAddress,
+                "Remote address must be an InetSocketAddress");
+        Args.check(endpoint.getLocalAddress() == null
+                || endpoint.getLocalAddress() instanceof InetSocketAddress,
+                "Local address must be an InetSocketAddress");
+        Args.check(!(request.getContent() instanceof SharedEncodedContent),
+                "Encoded content cannot be queued");
+        if (this.shutdown) {
+            throw new IllegalStateException("Retry queue has been shut down");
+        }
+        long id = this.idSeq.incrementAndGet();
+        File file = getContentFile(id);
+        copyContent(request.getContent(), file);
+        DeliveryJournal.Entry entry = new DeliveryJournal.Entry(id, endpoint,
+                request.getSender(), new ArrayList<String>(request.getRecipients()), 0);
+        try {
+            this.journal.enqueued(entry);
+        } catch (IOException ex) {
+            file.delete();
+            throw ex;
+        }
+        QueuedDelivery delivery = new QueuedDelivery(entry, new BasicFuture<DeliveryResult>(callback));
+        this.deliveries.put(id, delivery);
+        schedule(delivery, 0);
+        return delivery.future;
+    }
+
+    public void shutdown() throws IOException {
+        this.shutdown = true;
+        this.scheduler.shutdownNow();
+        this.journal.close();
+    }
+
+    private File getContentFile(final long id) {
+        return new File(this.directory, id + ".msg");
+    }
+
+    private static void copyContent(
+            final SMTPContent<ReadableByteChannel> content, final File file) throws IOException {
+        FileOutputStream outstream = new FileOutputStream(file);
+        try {
+            FileChannel dst = outstream.getChannel();
+            ReadableByteChannel src = content.channel();
+            ByteBuffer buf = ByteBuffer.allocate(8 * 1024);
+            while (src.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    dst.write(buf);
+                }
+                buf.clear();
+            }
+            dst.force(false);
+        } finally {
+            content.reset();
+            outstream.close();
+        }
+    }
+
+    private void schedule(final QueuedDelivery delivery, final long delay) {
+        try {
+            this.scheduler.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    attempt(delivery);
+                }
+
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // Shut down. The delivery is resumed on the next start
+        }
+    }
+
+    private void attempt(final QueuedDelivery delivery) {
+        if (this.shutdown) {
+            return;
+        }
+        DeliveryJournal.Entry entry = delivery.entry;
+        DeliveryRequest request = new BasicDeliveryRequest(
+                entry.sender, entry.recipients, new FileSource(getContentFile(entry.id)));
+        try {
+            this.agent.deliver(entry.endpoint, this.config.getConnectTimeout(), request,
+                    new AttemptCallback(delivery));
+        } catch (IllegalStateException ex) {
+            // Agent shut down. The delivery is resumed on the next start
+        }
+    }
+
+    private long getDelay(final int failures) {
+        double delay = this.config.getInitialDelay()
+                * Math.pow(this.config.getBackoffMultiplier(), Math.max(0, failures - 1));
+        return (long) Math.min(delay, this.config.getMaxDelay());
+    }
+
+    /**
+     * Records a failed attempt to the given endpoint. Deliveries queued for
+     * the same endpoint usually fail together, so only one failure is counted
+     * per retry round regardless of the number of deliveries.
+     *
+     * @return number of consecutive retry rounds that failed.
+     */
+    private int endpointFailed(final SessionEndpoint endpoint) {
+        EndpointBackoff backoff = this.endpointFailures.get(endpoint);
+        if (backoff == null) {
+            EndpointBackoff newBackoff = new EndpointBackoff();
+            backoff = this.endpointFailures.putIfAbsent(endpoint, newBackoff);
+            if (backoff == null) {
+                backoff = newBackoff;
+            }
+        }
+        synchronized (backoff) {
+            long now = System.currentTimeMillis();
+            if (backoff.failures == 0 || now - backoff.lastFailure >= getDelay(backoff.failures)) {
+                backoff.failures++;
+                backoff.lastFailure = now;
+            }
+            return backoff.failures;
+        }
+    }
+
+    private static boolean isTransient(final SMTPReply reply) {
+        return reply.getCode() >= 400 && reply.getCode() < 500;
+    }
+
+    private void processResult(
+            final QueuedDelivery delivery,
+            final DeliveryResult result,
+            final Exception cause) {
+        DeliveryJournal.Entry entry = delivery.entry;
+        if (cause instanceof RejectedExecutionException) {
+            // Rejected by the local agent before any attempt was made. Neither
+            // an attempt nor a failure of the endpoint
+            schedule(delivery, Math.min(this.config.getInitialDelay(), LOCAL_REJECTION_DELAY));
+            return;
+        }
+        List<String> retry = new ArrayList<String>();
+        List<RcptResult> transientFailures = new ArrayList<RcptResult>();
+        SMTPReply reply = null;
+        if (result != null) {
+            reply = result.getReply();
+            List<String> rejected = new ArrayList<String>();
+            for (RcptResult failure: result.getFailures()) {
+                if (isTransient(failure.getReply())) {
+                    transientFailures.add(failure);
+                    retry.add(failure.getRecipient());
+                } else {
+                    delivery.failures.add(failure);
+                }
+                rejected.add(failure.getRecipient());
+            }
+            if (isTransient(reply)) {
+                for (String recipient: entry.recipients) {
+                    if (!rejected.contains(recipient)) {
+                        retry.add(recipient);
+                    }
+                }
+            }
+        } else {
+            if (cause instanceof ServiceRefusedException) {
+                reply = ((ServiceRefusedException) cause).getReply();
+                if (!isTransient(reply)) {
+                    // Permanently refused. No point in retrying
+                    for (String recipient: entry.recipients) {
+                        delivery.failures.add(new RcptResult(reply, recipient));
+                    }
+                }
+            }
+            if (reply == null || isTransient(reply)) {
+                retry.addAll(entry.recipients);
+            }
+        }
+
+        try {
+            if (retry.isEmpty()) {
+                this.endpointFailures.remove(entry.endpoint);
+                this.journal.completed(entry.id);
+                this.deliveries.remove(entry.id);
+                getContentFile(entry.id).delete();
+                delivery.future.completed(new BasicDeliveryResult(reply, delivery.failures));
+                return;
+            }
+            entry.attempts++;
+            int failures = endpointFailed(entry.endpoint);
+            if (entry.attempts >= this.config.getMaxAttempts()) {
+                deadLetter(delivery, retry, reply, cause);
+                this.deliveries.remove(entry.id);
+                if (result != null) {
+                    List<RcptResult> allFailures = new ArrayList<RcptResult>(delivery.failures);
+                    allFailures.addAll(transientFailures);
+                    delivery.future.completed(new BasicDeliveryResult(reply, allFailures));
+                } else {
+                    delivery.future.failed(cause);
+                }
+                return;
+            }
+            entry.recipients = retry;
+            this.journal.rescheduled(entry.id, entry.attempts, retry);
+            schedule(delivery, getDelay(failures));
+        } catch (IOException ex) {
+            this.deliveries.remove(entry.id);
+            delivery.future.failed(ex);
+        }
+    }
+
+    private void deadLetter(
+            final QueuedDelivery delivery,
+            final List<String> recipients,
+            final SMTPReply reply,
+            final Exception cause) throws IOException {
+        DeliveryJournal.Entry entry = delivery.entry;
+        File file = getContentFile(entry.id);
+        File deadFile = new File(this.deadLetterDirectory, file.getName());
+        if (!file.renameTo(deadFile)) {
+            throw new IOException("Unable to move " + file + " to " + deadFile);
+        }
+        Writer writer = new OutputStreamWriter(
+                new FileOutputStream(new File(this.deadLetterDirectory, entry.id + ".env")), "UTF-8");
+        try {
+            writer.write("endpoint: " + entry.endpoint + "\r\n");
+            writer.write("sender: " + entry.sender + "\r\n");
+            for (String recipient: recipients) {
+                writer.write("recipient: " + recipient + "\r\n");
+            }
+            writer.write("attempts: " + entry.attempts + "\r\n");
+            if (reply != null) {
+                writer.write("reply: " + reply.getLine() + "\r\n");
+            }
+            if (cause != null) {
+                writer.write("error: " + cause + "\r\n");
+            }
+        } finally {
+            writer.close();
+        }
+        this.journal.dead(entry.id);
+    }
+
+    static class EndpointBackoff {
+
+        int failures;
+        long lastFailure;
+
+    }
+
+    static class QueuedDelivery {
+
+        final DeliveryJournal.Entry entry;
+        final BasicFuture<DeliveryResult> future;
+        final List<RcptResult> failures;
+
+        QueuedDelivery(final DeliveryJournal.Entry entry, final BasicFuture<DeliveryResult> future) {
+            super();
+            this.entry = entry;
+            this.future = future;
+            this.failures = new ArrayList<RcptResult>();
+        }
+
+    }
+
+    class AttemptCallback implements FutureCallback<DeliveryResult> {
+
+        private final QueuedDelivery delivery;
+
+        AttemptCallback(final QueuedDelivery delivery) {
+            super();
+            this.delivery = delivery;
+        }
+
+        private void process(final DeliveryResult result, final Exception cause) {
+            // Keep disk I/O off the I/O dispatch threads
+            try {
+                scheduler.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        processResult(delivery, result, cause);
+                    }
+
+                });
+            } catch (RejectedExecutionException ex) {
+                // Shut down. The delivery is resumed on the next start
+            }
+        }
+
+        @Override
+        public void completed(final DeliveryResult result) {
+            process(result, null);
+        }
+
+        @Override
+        public void failed(final Exception ex) {
+            process(null, ex);
+        }
+
+        @Override
+        public void cancelled() {
+            // Agent shut down. The delivery is resumed on the next start
+        }
+
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import org.apache.http.util.Args;
+
+/**
+ * Priority lane configuration of {@link DefaultMailUserAgent}.
+ */
+public final class PriorityLaneConfig {
+
+    public static final PriorityLaneConfig DEFAULT = new Builder().build();
+
+    private final int highWeight;
+    private final int normalWeight;
+    private final int bulkWeight;
+    private final int reservedSessions;
+
+    PriorityLaneConfig(
+            final int highWeight,
+            final int normalWeight,
+            final int bulkWeight,
+            final int reservedSessions) {
+        super();
+        this.highWeight = highWeight;
+        this.normalWeight = normalWeight;
+        this.bulkWeight = bulkWeight;
+        this.reservedSessions = reservedSessions;
+    }
+
+    /**
+     * Share of deliveries taken from the {@link DeliveryPriority#HIGH} lane
+     * relative to other lanes.
+     * <p/>
+     * Default: <code>8</code>
+     */
+    public int getHighWeight() {
+        return this.highWeight;
+    }
+
+    /**
+     * Share of deliveries taken from the {@link DeliveryPriority#NORMAL} lane
+     * relative to other lanes.
+     * <p/>
+     * Default: <code>4</code>
+     */
+    public int getNormalWeight() {
+        return this.normalWeight;
+    }
+
+    /**
+     * Share of deliveries taken from the {@link DeliveryPriority#BULK} lane
+     * relative to other lanes.
+     * <p/>
+     * Default: <code>1</code>
+     */
+    public int getBulkWeight() {
+        return this.bulkWeight;
+    }
+
+    public int getWeight(final DeliveryPriority priority) {
+        Args.notNull(priority, "Delivery priority");
+        switch (priority) {
+        case HIGH:
+            return this.highWeight;
+        case BULK:
+            return this.bulkWeight;
+        default:
+            return this.normalWeight;
+        }
+    }
+
+    /**
+     * Number of sessions per endpoint that only {@link DeliveryPriority#HIGH}
+     * deliveries may use. Deliveries of other classes are limited to the
+     * per endpoint session limit less this value. The reservation does not
+     * apply to endpoints whose limit is not greater than this value.
+     * Independently of this setting, sessions requested for high priority
+     * deliveries are served ahead of others once the total limit is reached.
+     * <p/>
+     * Default: <code>0</code>
+     */
+    public int getReservedSessions() {
+        return this.reservedSessions;
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    public static Builder copy(final PriorityLaneConfig config) {
+        Args.notNull(config, "Priority lane config");
+        return new Builder()
+            .setHighWeight(config.getHighWeight())
+            .setNormalWeight(config.getNormalWeight())
+            .setBulkWeight(config.getBulkWeight())
+            .setReservedSessions(config.getReservedSessions());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[highWeight=").append(this.highWeight)
+                .append(", normalWeight=").append(this.normalWeight)
+                .append(", bulkWeight=").append(this.bulkWeight)
+                .append(", reservedSessions=").append(this.reservedSessions)
+                .append("]");
+        return buffer.toString();
+    }
+
+    public static class Builder {
+
+        private int highWeight;
+        private int normalWeight;
+        private int bulkWeight;
+        private int reservedSessions;
+
+        Builder() {
+            this.highWeight = 8;
+            this.normalWeight = 4;
+            this.bulkWeight = 1;
+            this.reservedSessions = 0;
+        }
+
+        public Builder setHighWeight(final int highWeight) {
+            Args.positive(highWeight, "High weight");
+            this.highWeight = highWeight;
+            return this;
+        }
+
+        public Builder setNormalWeight(final int normalWeight) {
+            Args.positive(normalWeight, "Normal weight");
+            this.normalWeight = normalWeight;
+            return this;
+        }
+
+        public Builder setBulkWeight(final int bulkWeight) {
+            Args.positive(bulkWeight, "Bulk weight");
+            this.bulkWeight = bulkWeight;
+            return this;
+        }
+
+        public Builder setReservedSessions(final int reservedSessions) {
+            Args.notNegative(reservedSessions, "Reserved sessions");
+            this.reservedSessions = reservedSessions;
+            return this;
+        }
+
+        public PriorityLaneConfig build() {
+            return new PriorityLaneConfig(
+                    this.highWeight,
+                    this.normalWeight,
+                    this.bulkWeight,
+                    this.reservedSessions);
+        }
+
+    }
+
+}
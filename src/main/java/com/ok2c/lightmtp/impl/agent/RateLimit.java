@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import org.apache.http.util.Args;
+
+/**
+ * Outbound rate limit of a destination. Up to one second worth of
+ * unused capacity can be used in a burst.
+ */
+public final class RateLimit {
+
+    private final double messageRate;
+    private final double recipientRate;
+
+    /**
+     * @param messageRate maximum number of messages per second.
+     *   <code>0</code> means no limit.
+     * @param recipientRate maximum number of recipients per second.
+     *   <code>0</code> means no limit.
+     */
+    public RateLimit(final double messageRate, final double recipientRate) {
+        super();
+        Args.check(messageRate >= 0, "Message rate may not be negative");
+        Args.check(recipientRate >= 0, "Recipient rate may not be negative");
+        this.messageRate = messageRate;
+        this.recipientRate = recipientRate;
+    }
+
+    public double getMessageRate() {
+        return this.messageRate;
+    }
+
+    public double getRecipientRate() {
+        return this.recipientRate;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[messageRate=").append(this.messageRate)
+                .append(", recipientRate=").append(this.recipientRate)
+                .append("]");
+        return buffer.toString();
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.ok2c.lightmtp.util.TokenBucket;
+
+/**
+ * Token buckets limiting the rate of messages and recipients per destination.
+ * Destinations are identified by arbitrary keys. Capacity is reserved ahead
+ * of time: a reservation that cannot be satisfied from the bucket is given
+ * the delay after which the delivery may proceed, and later reservations
+ * queue up behind it.
+ */
+class RateShaper {
+
+    private final ConcurrentMap<Object, Bucket> buckets;
+
+    RateShaper() {
+        super();
+        this.buckets = new ConcurrentHashMap<Object, Bucket>();
+    }
+
+    void setLimit(final Object key, final RateLimit limit) {
+        if (limit != null) {
+            this.buckets.put(key, new Bucket(limit,
+                    createTokenBucket(limit.getMessageRate()),
+                    createTokenBucket(limit.getRecipientRate())));
+        } else {
+            this.buckets.remove(key);
+        }
+    }
+
+    RateLimit getLimit(final Object key) {
+        Bucket bucket = this.buckets.get(key);
+        return bucket != null ? bucket.limit : null;
+    }
+
+    long currentTime() {
+        return System.currentTimeMillis();
+    }
+
+    private TokenBucket createTokenBucket(final double rate) {
+        if (rate <= 0) {
+            return null;
+        }
+        // Unused capacity accumulates up to one second worth
+        return new TokenBucket(rate, Math.max(1.0d, rate)) {
+
+            @Override
+            protected long currentTime() {
+                return RateShaper.this.currentTime();
+            }
+
+        };
+    }
+
+    /**
+     * Reserves capacity for one message to the given number of recipients.
+     *
+     * @return delay in milliseconds before the message may be sent. Positive
+     *   delays must be followed by {@link #released(Object, int)}.
+     */
+    long reserve(final Object key, final int recipients) {
+        Bucket bucket = this.buckets.get(key);
+        if (bucket == null) {
+            return 0;
+        }
+        long delay = bucket.reserve(recipients);
+        if (delay <= 0) {
+            bucket.record(currentTime(), recipients);
+        }
+        return delay;
+    }
+
+    /**
+     * Signals that a delayed message has been released.
+     */
+    void released(final Object key, final int recipients) {
+        Bucket bucket = this.buckets.get(key);
+        if (bucket != null) {
+            bucket.released(currentTime(), recipients);
+        }
+    }
+
+    RateShapingStats getStats(final Object key) {
+        Bucket bucket = this.buckets.get(key);
+        if (bucket == null) {
+            return new RateShapingStats(null, 0, 0, 0);
+        }
+        return bucket.getStats(currentTime());
+    }
+
+    static class Bucket {
+
+        private final RateLimit limit;
+        private final TokenBucket messages;
+        private final TokenBucket recipients;
+
+        private int queued;
+        private long window;
+        private int windowMessages;
+        private int windowRecipients;
+        private int lastMessages;
+        private int lastRecipients;
+
+        Bucket(final RateLimit limit, final TokenBucket messages, final TokenBucket recipients) {
+            super();
+            this.limit = limit;
+            this.messages = messages;
+            this.recipients = recipients;
+        }
+
+        synchronized long reserve(final int count) {
+            long delay = 0;
+            if (this.messages != null) {
+                delay = Math.max(delay, this.messages.reserve(1));
+            }
+            if (this.recipients != null && count > 0) {
+                delay = Math.max(delay, this.recipients.reserve(count));
+            }
+            if (delay > 0) {
+                this.queued++;
+            }
+            return delay;
+        }
+
+        synchronized void released(final long now, final int count) {
+            if (this.queued > 0) {
+                this.queued--;
+            }
+            record(now, count);
+        }
+
+        synchronized void record(final long now, final int count) {
+            roll(now);
+            this.windowMessages++;
+            this.windowRecipients += count;
+        }
+
+        private void roll(final long now) {
+            long current = now / 1000;
+            if (current != this.window) {
+                if (current == this.window + 1) {
+                    this.lastMessages = this.windowMessages;
+                    this.lastRecipients = this.windowRecipients;
+                } else {
+                    this.lastMessages = 0;
+                    this.lastRecipients = 0;
+                }
+                this.window = current;
+                this.windowMessages = 0;
+                this.windowRecipients = 0;
+            }
+        }
+
+        synchronized RateShapingStats getStats(final long now) {
+            roll(now);
+            return new RateShapingStats(this.limit, this.lastMessages, this.lastRecipients, this.queued);
+        }
+
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+/**
+ * Outbound rate statistics of a destination. Current rates are the number of
+ * messages and recipients released to the destination within the last
+ * complete second.
+ */
+public class RateShapingStats {
+
+    private final RateLimit limit;
+    private final int messageRate;
+    private final int recipientRate;
+    private final int queued;
+
+    public RateShapingStats(
+            final RateLimit limit,
+            final int messageRate,
+            final int recipientRate,
+            final int queued) {
+        super();
+        this.limit = limit;
+        this.messageRate = messageRate;
+        this.recipientRate = recipientRate;
+        this.queued = queued;
+    }
+
+    /**
+     * Returns the rate limit of the destination or <code>null</code> if
+     * it is not limited.
+     */
+    public RateLimit getLimit() {
+        return this.limit;
+    }
+
+    public int getMessageRate() {
+        return this.messageRate;
+    }
+
+    public int getRecipientRate() {
+        return this.recipientRate;
+    }
+
+    /**
+     * Number of deliveries delayed to stay within the limit.
+     */
+    public int getQueued() {
+        return this.queued;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[limit: ");
+        buffer.append(this.limit);
+        buffer.append("][messages/s: ");
+        buffer.append(this.messageRate);
+        buffer.append("][recipients/s: ");
+        buffer.append(this.recipientRate);
+        buffer.append("][queued: ");
+        buffer.append(this.queued);
+        buffer.append("]");
+        return buffer.toString();
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import org.apache.http.util.Args;
+
+/**
+ * Persistent retry queue configuration.
+ */
+public final class RetryQueueConfig {
+
+    public static final RetryQueueConfig DEFAULT = new Builder().build();
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final double backoffMultiplier;
+    private final int maxAttempts;
+    private final int connectTimeout;
+
+    RetryQueueConfig(
+            final long initialDelay,
+            final long maxDelay,
+            final double backoffMultiplier,
+            final int maxAttempts,
+            final int connectTimeout) {
+        super();
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.backoffMultiplier = backoffMultiplier;
+        this.maxAttempts = maxAttempts;
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Delay in milliseconds before the first retry to an endpoint.
+     * <p/>
+     * Default: <code>60000</code>
+     */
+    public long getInitialDelay() {
+        return this.initialDelay;
+    }
+
+    /**
+     * Maximum delay in milliseconds between retries.
+     * <p/>
+     * Default: <code>3600000</code>
+     */
+    public long getMaxDelay() {
+        return this.maxDelay;
+    }
+
+    /**
+     * Factor the retry delay gets multiplied by with every consecutive
+     * failure of the same endpoint.
+     * <p/>
+     * Default: <code>2.0</code>
+     */
+    public double getBackoffMultiplier() {
+        return this.backoffMultiplier;
+    }
+
+    /**
+     * Maximum number of delivery attempts after which a message is moved
+     * to the dead letter directory.
+     * <p/>
+     * Default: <code>10</code>
+     */
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    /**
+     * Connect timeout in milliseconds used for delivery attempts.
+     * <p/>
+     * Default: <code>30000</code>
+     */
+    public int getConnectTimeout() {
+        return this.connectTimeout;
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    public static Builder copy(final RetryQueueConfig config) {
+        Args.notNull(config, "Retry queue config");
+        return new Builder()
+            .setInitialDelay(config.getInitialDelay())
+            .setMaxDelay(config.getMaxDelay())
+            .setBackoffMultiplier(config.getBackoffMultiplier())
+            .setMaxAttempts(config.getMaxAttempts())
+            .setConnectTimeout(config.getConnectTimeout());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[initialDelay=").append(this.initialDelay)
+                .append(", maxDelay=").append(this.maxDelay)
+                .append(", backoffMultiplier=").append(this.backoffMultiplier)
+                .append(", maxAttempts=").append(this.maxAttempts)
+                .append(", connectTimeout=").append(this.connectTimeout)
+                .append("]");
+        return buffer.toString();
+    }
+
+    public static class Builder {
+
+        private long initialDelay;
+        private long maxDelay;
+        private double backoffMultiplier;
+        private int maxAttempts;
+        private int connectTimeout;
+
+        Builder() {
+            this.initialDelay = 60000;
+            this.maxDelay = 3600000;
+            this.backoffMultiplier = 2.0d;
+            this.maxAttempts = 10;
+            this.connectTimeout = 30000;
+        }
+
+        public Builder setInitialDelay(final long initialDelay) {
+            Args.notNegative(initialDelay, "Initial delay");
+            this.initialDelay = initialDelay;
+            return this;
+        }
+
+        public Builder setMaxDelay(final long maxDelay) {
+            Args.notNegative(maxDelay, "Max delay");
+            this.maxDelay = maxDelay;
+            return this;
+        }
+
+        public Builder setBackoffMultiplier(final double backoffMultiplier) {
+            Args.check(backoffMultiplier >= 1, "Backoff multiplier may not be less than 1");
+            this.backoffMultiplier = backoffMultiplier;
+            return this;
+        }
+
+        public Builder setMaxAttempts(final int maxAttempts) {
+            Args.positive(maxAttempts, "Max attempts");
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        public Builder setConnectTimeout(final int connectTimeout) {
+            Args.notNegative(connectTimeout, "Connect timeout");
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        public RetryQueueConfig build() {
+            return new RetryQueueConfig(
+                    this.initialDelay,
+                    this.maxDelay,
+                    this.backoffMultiplier,
+                    this.maxAttempts,
+                    this.connectTimeout);
+        }
+
+    }
+
+}
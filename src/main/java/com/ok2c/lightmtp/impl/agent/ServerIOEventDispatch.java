@@ -14,9 +14,16 @@
  */
 package com.ok2c.lightmtp.impl.agent;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
 import org.apache.http.nio.reactor.IOEventDispatch;
 import org.apache.http.nio.reactor.IOSession;
 import org.apache.http.util.Args;
+import org.apache.http.util.EncodingUtils;
 
 import com.ok2c.lightmtp.impl.protocol.ServerSession;
 import com.ok2c.lightmtp.protocol.SessionFactory;
@@ -24,22 +31,59 @@ import com.ok2c.lightmtp.protocol.SessionFactory;
 public class ServerIOEventDispatch implements IOEventDispatch {
 
     private static final String SERVER_SESSION = "smtp.server-session";
+    private static final String ADMITTED_ADDRESS = "smtp.admitted-address";
+
+    private static final ByteBuffer TOO_MANY_CONNECTIONS = ByteBuffer.wrap(
+            EncodingUtils.getAsciiBytes("421 4.7.0 Too many connections, try again later\r\n"))
+            .asReadOnlyBuffer();
 
     private final IOSessionRegistry sessionRegistry;
     private final SessionFactory<ServerSession> sessionFactory;
+    private final ConnectionAdmissionController admissionController;
 
     public ServerIOEventDispatch(
             final IOSessionRegistry sessionRegistry,
-            final SessionFactory<ServerSession> sessionFactory) {
+            final SessionFactory<ServerSession> sessionFactory,
+            final ConnectionAdmissionController admissionController) {
         super();
         Args.notNull(sessionRegistry, "I/O session registry");
         Args.notNull(sessionFactory, "Session factory");
         this.sessionRegistry = sessionRegistry;
         this.sessionFactory = sessionFactory;
+        this.admissionController = admissionController;
+    }
+
+    public ServerIOEventDispatch(
+            final IOSessionRegistry sessionRegistry,
+            final SessionFactory<ServerSession> sessionFactory) {
+        this(sessionRegistry, sessionFactory, null);
+    }
+
+    private void reject(final IOSession iosession) {
+        try {
+            // Best effort. The reply is small enough to fit into the socket send buffer
+            iosession.channel().write(TOO_MANY_CONNECTIONS.duplicate());
+        } catch (IOException ignore) {
+        }
+        iosession.close();
     }
 
     @Override
     public void connected(final IOSession iosession) {
+        if (this.admissionController != null) {
+            SocketAddress socketAddress = iosession.getRemoteAddress();
+            if (socketAddress instanceof InetSocketAddress) {
+                InetAddress address = ((InetSocketAddress) socketAddress).getAddress();
+                Admission admission = this.admissionController.admit(address);
+                if (admission == Admission.REJECTED) {
+                    reject(iosession);
+                    return;
+                }
+                if (admission == Admission.ADMITTED) {
+                    iosession.setAttribute(ADMITTED_ADDRESS, address);
+                }
+            }
+        }
         ServerSession serverSession = this.sessionFactory.create(iosession);
         iosession.setAttribute(SERVER_SESSION, serverSession);
         serverSession.connected();
@@ -49,8 +93,14 @@ public class ServerIOEventDispatch implements IOEventDispatch {
     @Override
     public void disconnected(final IOSession iosession) {
         ServerSession serverSession = (ServerSession) iosession.getAttribute(SERVER_SESSION);
-        if (serverSession != null) {
-            serverSession.disconneced();
+        if (serverSession == null) {
+            // Connection rejected by admission control
+            return;
+        }
+        serverSession.disconneced();
+        InetAddress address = (InetAddress) iosession.removeAttribute(ADMITTED_ADDRESS);
+        if (address != null) {
+            this.admissionController.release(address);
         }
         this.sessionRegistry.remove(iosession);
     }
@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.util.Args;
+
+/**
+ * Pool of local addresses the user agent spreads sessions to the same remote
+ * address over. Each (local, remote) address pair is a distinct session route
+ * with its own session limit.
+ */
+public class SourceAddressPool {
+
+    public enum Policy {
+
+        /**
+         * Local addresses are used in turn.
+         */
+        ROUND_ROBIN,
+
+        /**
+         * The local address with the fewest queued and in-flight deliveries
+         * to the remote address is used.
+         */
+        LEAST_CONNECTIONS
+
+    }
+
+    private final List<SocketAddress> addresses;
+    private final Policy policy;
+    private final AtomicInteger counter;
+
+    public SourceAddressPool(final List<? extends SocketAddress> addresses, final Policy policy) {
+        super();
+        Args.notEmpty(addresses, "Local address list");
+        this.addresses = Collections.unmodifiableList(new ArrayList<SocketAddress>(addresses));
+        this.policy = policy != null ? policy : Policy.ROUND_ROBIN;
+        this.counter = new AtomicInteger();
+    }
+
+    public SourceAddressPool(final List<? extends SocketAddress> addresses) {
+        this(addresses, Policy.ROUND_ROBIN);
+    }
+
+    public List<SocketAddress> getAddresses() {
+        return this.addresses;
+    }
+
+    public Policy getPolicy() {
+        return this.policy;
+    }
+
+    SocketAddress next() {
+        int i = this.counter.getAndIncrement() & Integer.MAX_VALUE;
+        return this.addresses.get(i % this.addresses.size());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[policy: ");
+        buffer.append(this.policy);
+        buffer.append("][addresses: ");
+        buffer.append(this.addresses);
+        buffer.append("]");
+        return buffer.toString();
+    }
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+/**
+ * Handling of deliveries submitted to {@link DefaultMailUserAgent} in excess
+ * of its pending delivery limit.
+ */
+public enum SubmissionPolicy {
+
+    /**
+     * The submitting thread is blocked until capacity frees up. Submissions
+     * from I/O dispatch threads would deadlock the I/O reactor.
+     */
+    BLOCK,
+
+    /**
+     * The delivery fails immediately with
+     * {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    REJECT
+
+}
@@ -0,0 +1,669 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.pool;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+import org.apache.http.nio.reactor.SessionRequest;
+import org.apache.http.nio.reactor.SessionRequestCallback;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.Args;
+import org.apache.http.util.Asserts;
+
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+
+/**
+ * Session pool partitioned by {@link SessionEndpoint}. Each endpoint is guarded
+ * by its own lock, so that lease and release operations on different endpoints
+ * do not contend with one another. The total number of allocated sessions is
+ * tracked with an atomic counter shared by all endpoints. Pool statistics are
+ * collected without locking and therefore are only approximate.
+ * <p/>
+ * Priority lease requests are served ahead of regular ones: they are queued in
+ * front of the regular requests of the same endpoint, and while any of them is
+ * blocked by the total limit regular requests of other endpoints may not
+ * allocate new sessions.
+ */
+class EndpointSessionPool {
+
+    private final ConnectingIOReactor ioreactor;
+    private final ConcurrentMap<SessionEndpoint, RoutePool> routes;
+    private final ConcurrentMap<SessionEndpoint, Integer> maxPerRoute;
+    private final AtomicInteger allocated;
+    private final AtomicInteger blockedRequests;
+    private final AtomicInteger blockedPriorityRequests;
+    private final AtomicLong idCounter;
+
+    private volatile int defaultMaxPerRoute;
+    private volatile int maxTotal;
+    private volatile boolean shutdown;
+
+    public EndpointSessionPool(
+            final ConnectingIOReactor ioreactor, final int defaultMaxPerRoute, final int maxTotal) {
+        super();
+        Args.notNull(ioreactor, "I/O reactor");
+        Args.positive(defaultMaxPerRoute, "Max per route value");
+        Args.positive(maxTotal, "Max total value");
+        this.ioreactor = ioreactor;
+        this.routes = new ConcurrentHashMap<SessionEndpoint, RoutePool>();
+        this.maxPerRoute = new ConcurrentHashMap<SessionEndpoint, Integer>();
+        this.allocated = new AtomicInteger();
+        this.blockedRequests = new AtomicInteger();
+        this.blockedPriorityRequests = new AtomicInteger();
+        this.idCounter = new AtomicLong();
+        this.defaultMaxPerRoute = defaultMaxPerRoute;
+        this.maxTotal = maxTotal;
+    }
+
+    private RoutePool getRoute(final SessionEndpoint endpoint) {
+        RoutePool route = this.routes.get(endpoint);
+        if (route == null) {
+            RoutePool newRoute = new RoutePool(endpoint);
+            route = this.routes.putIfAbsent(endpoint, newRoute);
+            if (route == null) {
+                route = newRoute;
+            }
+        }
+        return route;
+    }
+
+    private int getMax(final SessionEndpoint endpoint) {
+        Integer max = this.maxPerRoute.get(endpoint);
+        return max != null ? max.intValue() : this.defaultMaxPerRoute;
+    }
+
+    private boolean tryAllocate() {
+        for (;;) {
+            int current = this.allocated.get();
+            if (current >= this.maxTotal) {
+                return false;
+            }
+            if (this.allocated.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public Future<LeasedSession> lease(
+            final SessionEndpoint endpoint,
+            final long connectTimeout,
+            final TimeUnit tunit,
+            final FutureCallback<LeasedSession> callback) {
+        return lease(endpoint, connectTimeout, tunit, false, callback);
+    }
+
+    /**
+     * @param priority whether the request is to be served ahead of regular ones.
+     */
+    public Future<LeasedSession> lease(
+            final SessionEndpoint endpoint,
+            final long connectTimeout,
+            final TimeUnit tunit,
+            final boolean priority,
+            final FutureCallback<LeasedSession> callback) {
+        Args.notNull(endpoint, "Session endpoint");
+        Args.notNull(tunit, "Time unit");
+        Asserts.check(!this.shutdown, "Session pool shut down");
+        BasicFuture<LeasedSession> future = new BasicFuture<LeasedSession>(callback);
+        long timeout = tunit.toMillis(connectTimeout);
+        LeaseRequest request = new LeaseRequest(future,
+                timeout > 0 ? System.currentTimeMillis() + timeout : 0,
+                (int) Math.min(timeout, Integer.MAX_VALUE), priority);
+        RoutePool route = getRoute(endpoint);
+        synchronized (route) {
+            route.enqueue(request);
+        }
+        processPending(route);
+        if (this.blockedRequests.get() > 0) {
+            serviceBlocked();
+        }
+        return future;
+    }
+
+    public void release(final LeasedSession entry, final boolean reusable) {
+        Args.notNull(entry, "Pool entry");
+        RoutePool route = getRoute(entry.getRoute());
+        boolean keep = reusable && !this.shutdown && !entry.isClosed();
+        synchronized (route) {
+            if (!route.leased.remove(entry)) {
+                return;
+            }
+            if (keep) {
+                route.available.addFirst(entry);
+            } else {
+                this.allocated.decrementAndGet();
+            }
+            route.updateCounts();
+        }
+        if (!keep) {
+            entry.close();
+        }
+        processPending(route);
+        if (this.blockedRequests.get() > 0) {
+            serviceBlocked();
+        }
+    }
+
+    /**
+     * Attempts to satisfy pending lease requests of the given route
+     * in the order they were queued.
+     *
+     * @return number of requests removed from the queue.
+     */
+    private int processPending(final RoutePool route) {
+        List<Completion> completions = null;
+        int removed = 0;
+        synchronized (route) {
+            long now = System.currentTimeMillis();
+            Iterator<LeaseRequest> it = route.pending.iterator();
+            while (it.hasNext()) {
+                LeaseRequest request = it.next();
+                if (request.future.isDone()) {
+                    it.remove();
+                    removed++;
+                    request.setBlocked(route, false);
+                    continue;
+                }
+                if (request.deadline > 0 && now > request.deadline) {
+                    it.remove();
+                    removed++;
+                    request.setBlocked(route, false);
+                    completions = addCompletion(completions, new Completion(request, null,
+                            new TimeoutException("Timeout waiting for session")));
+                    continue;
+                }
+                LeasedSession entry = route.reuseAvailable(now);
+                if (entry != null) {
+                    it.remove();
+                    removed++;
+                    request.setBlocked(route, false);
+                    completions = addCompletion(completions, new Completion(request, entry, null));
+                    continue;
+                }
+                if (route.getAllocatedCount() >= getMax(route.endpoint)) {
+                    request.setBlocked(route, false);
+                    break;
+                }
+                // Priority requests of this route are queued ahead, so the blocked
+                // ones, if any, belong to other routes
+                if ((!request.priority && this.blockedPriorityRequests.get() > 0)
+                        || !tryAllocate()) {
+                    request.setBlocked(route, true);
+                    break;
+                }
+                it.remove();
+                removed++;
+                request.setBlocked(route, false);
+                route.connect(request);
+            }
+            route.updateCounts();
+        }
+        if (completions != null) {
+            for (Completion completion: completions) {
+                completion.complete();
+            }
+        }
+        return removed;
+    }
+
+    private static List<Completion> addCompletion(
+            final List<Completion> completions, final Completion completion) {
+        List<Completion> list = completions != null ? completions : new ArrayList<Completion>();
+        list.add(completion);
+        return list;
+    }
+
+    /**
+     * Services requests blocked by the total limit, if necessary by closing idle
+     * sessions of other endpoints to make room for new ones.
+     */
+    private void serviceBlocked() {
+        while (this.blockedRequests.get() > 0 && !this.shutdown) {
+            if (this.allocated.get() >= this.maxTotal && !evictIdle()) {
+                return;
+            }
+            int serviced = 0;
+            for (RoutePool route: this.routes.values()) {
+                if (route.blockedCount > 0) {
+                    serviced += processPending(route);
+                }
+            }
+            if (serviced == 0) {
+                return;
+            }
+        }
+    }
+
+    private boolean evictIdle() {
+        for (RoutePool route: this.routes.values()) {
+            LeasedSession entry = null;
+            synchronized (route) {
+                if (route.blockedCount == 0 && !route.available.isEmpty()) {
+                    entry = route.available.removeLast();
+                    this.allocated.decrementAndGet();
+                    route.updateCounts();
+                }
+            }
+            if (entry != null) {
+                entry.close();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void closeIdle(final long idletime, final TimeUnit tunit) {
+        Args.notNull(tunit, "Time unit");
+        long time = idletime > 0 ? tunit.toMillis(idletime) : 0;
+        long deadline = System.currentTimeMillis() - time;
+        closeAvailable(deadline, false);
+    }
+
+    public void closeExpired() {
+        closeAvailable(System.currentTimeMillis(), true);
+    }
+
+    private void closeAvailable(final long time, final boolean expired) {
+        boolean freed = false;
+        for (RoutePool route: this.routes.values()) {
+            List<LeasedSession> closed = null;
+            synchronized (route) {
+                Iterator<LeasedSession> it = route.available.iterator();
+                while (it.hasNext()) {
+                    LeasedSession entry = it.next();
+                    boolean close = expired ? entry.isExpired(time) : entry.getUpdated() <= time;
+                    if (close || entry.isClosed()) {
+                        it.remove();
+                        this.allocated.decrementAndGet();
+                        if (closed == null) {
+                            closed = new ArrayList<LeasedSession>();
+                        }
+                        closed.add(entry);
+                    }
+                }
+                route.updateCounts();
+            }
+            if (closed != null) {
+                freed = true;
+                for (LeasedSession entry: closed) {
+                    entry.close();
+                }
+            }
+            if (route.pendingCount > 0) {
+                processPending(route);
+            }
+        }
+        if (freed && this.blockedRequests.get() > 0) {
+            serviceBlocked();
+        }
+    }
+
+    public PoolStats getStats(final SessionEndpoint endpoint) {
+        Args.notNull(endpoint, "Session endpoint");
+        RoutePool route = this.routes.get(endpoint);
+        if (route != null) {
+            return route.getStats();
+        } else {
+            return new PoolStats(0, 0, 0, getMax(endpoint));
+        }
+    }
+
+    public PoolStats getTotalStats() {
+        int leased = 0;
+        int pending = 0;
+        int available = 0;
+        for (RoutePool route: this.routes.values()) {
+            leased += route.leasedCount;
+            pending += route.pendingCount + route.connectingCount;
+            available += route.availableCount;
+        }
+        return new PoolStats(leased, pending, available, this.maxTotal);
+    }
+
+    public int getAllocatedCount() {
+        return this.allocated.get();
+    }
+
+    public void setMaxTotal(final int max) {
+        Args.positive(max, "Max value");
+        this.maxTotal = max;
+        serviceBlocked();
+    }
+
+    public int getMaxTotal() {
+        return this.maxTotal;
+    }
+
+    public void setDefaultMaxPerRoute(final int max) {
+        Args.positive(max, "Max per route value");
+        this.defaultMaxPerRoute = max;
+    }
+
+    public int getDefaultMaxPerRoute() {
+        return this.defaultMaxPerRoute;
+    }
+
+    public void setMaxPerRoute(final SessionEndpoint endpoint, final int max) {
+        Args.notNull(endpoint, "Session endpoint");
+        Args.positive(max, "Max per route value");
+        this.maxPerRoute.put(endpoint, Integer.valueOf(max));
+        RoutePool route = this.routes.get(endpoint);
+        if (route != null) {
+            processPending(route);
+        }
+    }
+
+    public int getMaxPerRoute(final SessionEndpoint endpoint) {
+        Args.notNull(endpoint, "Session endpoint");
+        return getMax(endpoint);
+    }
+
+    public boolean isShutdown() {
+        return this.shutdown;
+    }
+
+    public void shutdown(final long waitMs) throws IOException {
+        if (this.shutdown) {
+            return;
+        }
+        this.shutdown = true;
+        for (RoutePool route: this.routes.values()) {
+            List<LeasedSession> sessions = new ArrayList<LeasedSession>();
+            List<LeaseRequest> requests;
+            synchronized (route) {
+                for (SessionRequest sessionRequest: route.connecting) {
+                    sessionRequest.cancel();
+                }
+                sessions.addAll(route.available);
+                sessions.addAll(route.leased);
+                route.available.clear();
+                route.leased.clear();
+                requests = new ArrayList<LeaseRequest>(route.pending);
+                route.pending.clear();
+                route.updateCounts();
+            }
+            for (LeasedSession entry: sessions) {
+                entry.close();
+            }
+            for (LeaseRequest request: requests) {
+                request.future.cancel(true);
+            }
+        }
+        this.routes.clear();
+        this.ioreactor.shutdown(waitMs);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[allocated: ");
+        buffer.append(this.allocated.get());
+        buffer.append(" of ");
+        buffer.append(this.maxTotal);
+        buffer.append("][routes: ");
+        buffer.append(this.routes.size());
+        buffer.append("]");
+        return buffer.toString();
+    }
+
+    class RoutePool {
+
+        private final SessionEndpoint endpoint;
+        private final LinkedList<LeasedSession> available;
+        private final Set<LeasedSession> leased;
+        private final LinkedList<LeaseRequest> pending;
+        private final Set<SessionRequest> connecting;
+
+        private int blocked;
+
+        // Snapshots of the collection sizes readable without locking
+        private volatile int availableCount;
+        private volatile int leasedCount;
+        private volatile int pendingCount;
+        private volatile int connectingCount;
+        private volatile int blockedCount;
+
+        RoutePool(final SessionEndpoint endpoint) {
+            super();
+            this.endpoint = endpoint;
+            this.available = new LinkedList<LeasedSession>();
+            this.leased = new HashSet<LeasedSession>();
+            this.pending = new LinkedList<LeaseRequest>();
+            this.connecting = new HashSet<SessionRequest>();
+        }
+
+        int getAllocatedCount() {
+            return this.available.size() + this.leased.size() + this.connecting.size();
+        }
+
+        void updateCounts() {
+            this.availableCount = this.available.size();
+            this.leasedCount = this.leased.size();
+            this.pendingCount = this.pending.size();
+            this.connectingCount = this.connecting.size();
+            this.blockedCount = this.blocked;
+        }
+
+        void enqueue(final LeaseRequest request) {
+            if (request.priority) {
+                ListIterator<LeaseRequest> it = this.pending.listIterator();
+                while (it.hasNext()) {
+                    if (!it.next().priority) {
+                        it.previous();
+                        break;
+                    }
+                }
+                it.add(request);
+            } else {
+                this.pending.add(request);
+            }
+        }
+
+        LeasedSession reuseAvailable(final long now) {
+            while (!this.available.isEmpty()) {
+                LeasedSession entry = this.available.removeFirst();
+                if (entry.isClosed() || entry.isExpired(now)) {
+                    allocated.decrementAndGet();
+                    entry.close();
+                } else {
+                    this.leased.add(entry);
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        void connect(final LeaseRequest request) {
+            SessionRequest sessionRequest = ioreactor.connect(
+                    this.endpoint.getRemoteAddress(),
+                    this.endpoint.getLocalAddress(),
+                    request,
+                    new InternalSessionRequestCallback(this));
+            if (request.connectTimeout > 0) {
+                sessionRequest.setConnectTimeout(request.connectTimeout);
+            }
+            this.connecting.add(sessionRequest);
+        }
+
+        PoolStats getStats() {
+            return new PoolStats(
+                    this.leasedCount,
+                    this.pendingCount + this.connectingCount,
+                    this.availableCount,
+                    getMax(this.endpoint));
+        }
+
+    }
+
+    class LeaseRequest {
+
+        private final BasicFuture<LeasedSession> future;
+        private final long deadline;
+        private final int connectTimeout;
+        private final boolean priority;
+
+        private boolean blocked;
+
+        LeaseRequest(
+                final BasicFuture<LeasedSession> future,
+                final long deadline,
+                final int connectTimeout,
+                final boolean priority) {
+            super();
+            this.future = future;
+            this.deadline = deadline;
+            this.connectTimeout = connectTimeout;
+            this.priority = priority;
+        }
+
+        // Called with the route lock held
+        void setBlocked(final RoutePool route, final boolean b) {
+            if (this.blocked != b) {
+                this.blocked = b;
+                if (b) {
+                    route.blocked++;
+                    blockedRequests.incrementAndGet();
+                    if (this.priority) {
+                        blockedPriorityRequests.incrementAndGet();
+                    }
+                } else {
+                    route.blocked--;
+                    blockedRequests.decrementAndGet();
+                    if (this.priority) {
+                        blockedPriorityRequests.decrementAndGet();
+                    }
+                }
+            }
+        }
+
+    }
+
+    class Completion {
+
+        private final LeaseRequest request;
+        private final LeasedSession entry;
+        private final Exception ex;
+
+        Completion(final LeaseRequest request, final LeasedSession entry, final Exception ex) {
+            super();
+            this.request = request;
+            this.entry = entry;
+            this.ex = ex;
+        }
+
+        void complete() {
+            if (this.entry != null) {
+                if (!this.request.future.completed(this.entry)) {
+                    release(this.entry, true);
+                }
+            } else {
+                this.request.future.failed(this.ex);
+            }
+        }
+
+    }
+
+    class InternalSessionRequestCallback implements SessionRequestCallback {
+
+        private final RoutePool route;
+
+        InternalSessionRequestCallback(final RoutePool route) {
+            super();
+            this.route = route;
+        }
+
+        @Override
+        public void completed(final SessionRequest sessionRequest) {
+            LeaseRequest request = (LeaseRequest) sessionRequest.getAttachment();
+            LeasedSession entry = new LeasedSession(
+                    Long.toString(idCounter.incrementAndGet()),
+                    this.route.endpoint,
+                    sessionRequest.getSession());
+            synchronized (this.route) {
+                this.route.connecting.remove(sessionRequest);
+                this.route.leased.add(entry);
+                this.route.updateCounts();
+            }
+            if (shutdown) {
+                entry.close();
+                request.future.cancel(true);
+                return;
+            }
+            if (!request.future.completed(entry)) {
+                release(entry, true);
+            }
+        }
+
+        private void connectFailed(final SessionRequest sessionRequest) {
+            synchronized (this.route) {
+                if (this.route.connecting.remove(sessionRequest)) {
+                    allocated.decrementAndGet();
+                }
+                this.route.updateCounts();
+            }
+        }
+
+        private void afterConnectFailed() {
+            if (!shutdown) {
+                processPending(this.route);
+                serviceBlocked();
+            }
+        }
+
+        @Override
+        public void failed(final SessionRequest sessionRequest) {
+            LeaseRequest request = (LeaseRequest) sessionRequest.getAttachment();
+            connectFailed(sessionRequest);
+            request.future.failed(sessionRequest.getException());
+            afterConnectFailed();
+        }
+
+        @Override
+        public void timeout(final SessionRequest sessionRequest) {
+            LeaseRequest request = (LeaseRequest) sessionRequest.getAttachment();
+            connectFailed(sessionRequest);
+            request.future.failed(new SocketTimeoutException());
+            afterConnectFailed();
+        }
+
+        @Override
+        public void cancelled(final SessionRequest sessionRequest) {
+            LeaseRequest request = (LeaseRequest) sessionRequest.getAttachment();
+            connectFailed(sessionRequest);
+            request.future.cancel(true);
+            afterConnectFailed();
+        }
+
+    }
+
+}
@@ -15,8 +15,16 @@
 package com.ok2c.lightmtp.impl.pool;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.http.concurrent.BasicFuture;
 import org.apache.http.concurrent.FutureCallback;
@@ -32,14 +40,71 @@ import com.ok2c.lightmtp.agent.SessionEndpoint;
 
 public class MailIOSessionManager {
 
+    /**
+     * Name of the I/O session attribute that holds the pool entry of a pre-warmed
+     * session until the session has completed the protocol handshake. The session
+     * handler is expected to remove the entry and pass it to
+     * {@link #releaseSession(LeasedSession)} once the session is ready for delivery
+     * or has been closed.
+     */
+    public static final String PREWARMED_SESSION = "com.ok2c.lightmtp.prewarmed-session";
+
     protected final Logger log = LoggerFactory.getLogger(getClass());
 
-    private final CPool pool;
+    private final EndpointSessionPool pool;
+    private final SessionPoolConfig config;
+    private final AtomicInteger pendingLeases;
+    private final ConcurrentMap<SessionEndpoint, Integer> minPerAddress;
+    private final ScheduledExecutorService maintenanceExecutor;
 
-    public MailIOSessionManager(final ConnectingIOReactor ioreactor) {
+    public MailIOSessionManager(
+            final ConnectingIOReactor ioreactor,
+            final SessionPoolConfig config) {
         super();
         Args.notNull(ioreactor, "I/O reactor");
-        this.pool = new CPool(ioreactor, 20, 50);
+        this.config = config != null ? config : SessionPoolConfig.DEFAULT;
+        this.pool = new EndpointSessionPool(ioreactor,
+                this.config.getDefaultMaxPerEndpoint(), this.config.getMaxTotal());
+        this.pendingLeases = new AtomicInteger();
+        this.minPerAddress = new ConcurrentHashMap<SessionEndpoint, Integer>();
+        int interval = this.config.getMaintenanceInterval();
+        if (interval > 0) {
+            this.maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new MaintenanceThreadFactory());
+            this.maintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    performMaintenance();
+                }
+
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.maintenanceExecutor = null;
+        }
+    }
+
+    public MailIOSessionManager(final ConnectingIOReactor ioreactor) {
+        this(ioreactor, null);
+    }
+
+    public SessionPoolConfig getConfig() {
+        return this.config;
+    }
+
+    protected void performMaintenance() {
+        try {
+            this.pool.closeExpired();
+            int maxIdleTime = this.config.getMaxIdleTime();
+            if (maxIdleTime > 0) {
+                this.pool.closeIdle(maxIdleTime, TimeUnit.MILLISECONDS);
+            }
+            for (Map.Entry<SessionEndpoint, Integer> entry: this.minPerAddress.entrySet()) {
+                prewarm(entry.getKey(), entry.getValue().intValue());
+            }
+        } catch (RuntimeException ex) {
+            this.log.warn("Session pool maintenance failed", ex);
+        }
     }
 
     private String format(final SessionEndpoint endpoint, final Object state) {
@@ -53,13 +118,12 @@ public class MailIOSessionManager {
 
     private String formatStats(final SessionEndpoint endpoint) {
         final StringBuilder buf = new StringBuilder();
-        final PoolStats totals = this.pool.getTotalStats();
         final PoolStats stats = this.pool.getStats(endpoint);
-        buf.append("[total kept alive: ").append(totals.getAvailable()).append("; ");
+        buf.append("[address kept alive: ").append(stats.getAvailable()).append("; ");
         buf.append("address allocated: ").append(stats.getLeased() + stats.getAvailable());
         buf.append(" of ").append(stats.getMax()).append("; ");
-        buf.append("total allocated: ").append(totals.getLeased() + totals.getAvailable());
-        buf.append(" of ").append(totals.getMax()).append("]");
+        buf.append("total allocated: ").append(this.pool.getAllocatedCount());
+        buf.append(" of ").append(this.pool.getMaxTotal()).append("]");
         return buf.toString();
     }
 
@@ -79,13 +143,34 @@ public class MailIOSessionManager {
             final long connectTimeout,
             final TimeUnit tunit,
             final FutureCallback<LeasedSession> callback) {
+        return leaseSession(endpoint, connectTimeout, tunit, false, callback);
+    }
+
+    /**
+     * Requests a session for the given endpoint. Priority requests are served
+     * ahead of regular ones when sessions are in short supply, including
+     * the ones made earlier for other endpoints and blocked by the total limit.
+     */
+    public Future<LeasedSession> leaseSession(
+            final SessionEndpoint endpoint,
+            final long connectTimeout,
+            final TimeUnit tunit,
+            final boolean priority,
+            final FutureCallback<LeasedSession> callback) {
         Args.notNull(endpoint, "Session endpoint");
         if (this.log.isDebugEnabled()) {
             this.log.debug("Session request: " + format(endpoint, null) + formatStats(endpoint));
         }
         final BasicFuture<LeasedSession> future = new BasicFuture<LeasedSession>(callback);
-        this.pool.lease(endpoint, null, connectTimeout,
-                tunit != null ? tunit : TimeUnit.MILLISECONDS,
+        int maxPendingLeases = this.config.getMaxPendingLeases();
+        if (this.pendingLeases.incrementAndGet() > maxPendingLeases && maxPendingLeases > 0) {
+            this.pendingLeases.decrementAndGet();
+            future.failed(new RejectedExecutionException(
+                    "Too many pending session requests: " + maxPendingLeases));
+            return future;
+        }
+        this.pool.lease(endpoint, connectTimeout,
+                tunit != null ? tunit : TimeUnit.MILLISECONDS, priority,
                 new InternalPoolEntryCallback(future));
         return future;
     }
@@ -96,10 +181,11 @@ public class MailIOSessionManager {
             final IOSession iosession = managedSession.getConnection();
             try {
                 if (!iosession.isClosed()) {
-                    managedSession.updateExpiry(30, TimeUnit.SECONDS);
+                    int keepAlive = this.config.getKeepAlive();
+                    managedSession.updateExpiry(keepAlive, TimeUnit.MILLISECONDS);
                     if (this.log.isDebugEnabled()) {
                         this.log.debug("Connection " + format(managedSession) +
-                                " can be kept alive for 30 seconds");
+                                " can be kept alive for " + keepAlive + " ms");
                     }
                 }
             } finally {
@@ -132,6 +218,50 @@ public class MailIOSessionManager {
         this.pool.setMaxPerRoute(endpoint, max);
     }
 
+    public int getMaxPerAddress(final SessionEndpoint endpoint) {
+        return this.pool.getMaxPerRoute(endpoint);
+    }
+
+    /**
+     * Sets the minimum number of sessions to be kept open for the given endpoint.
+     * Missing sessions get established in the background by the pool maintenance
+     * task, which replaces the ones that expire or get closed. Pre-warmed sessions
+     * are kept leased while the protocol handshake is in progress and become
+     * available for delivery only after the session handler has released them
+     * (see {@link #PREWARMED_SESSION}).
+     */
+    public void setMinPerAddress(final SessionEndpoint endpoint, final int min) {
+        Args.notNull(endpoint, "Session endpoint");
+        Args.notNegative(min, "Min value");
+        if (min > 0) {
+            this.minPerAddress.put(endpoint, Integer.valueOf(min));
+            prewarm(endpoint, min);
+        } else {
+            this.minPerAddress.remove(endpoint);
+        }
+    }
+
+    public int getMinPerAddress(final SessionEndpoint endpoint) {
+        Integer min = this.minPerAddress.get(endpoint);
+        return min != null ? min.intValue() : 0;
+    }
+
+    private void prewarm(final SessionEndpoint endpoint, final int min) {
+        if (this.pool.isShutdown()) {
+            return;
+        }
+        PoolStats stats = this.pool.getStats(endpoint);
+        int count = stats.getLeased() + stats.getPending() + stats.getAvailable();
+        int deficit = Math.min(min, stats.getMax()) - count;
+        for (int i = 0; i < deficit; i++) {
+            if (this.log.isDebugEnabled()) {
+                this.log.debug("Pre-warming session: " + format(endpoint, null) + formatStats(endpoint));
+            }
+            this.pool.lease(endpoint, this.config.getConnectTimeout(), TimeUnit.MILLISECONDS,
+                    new PrewarmCallback());
+        }
+    }
+
     public void closeExpired() {
         this.pool.closeExpired();
     }
@@ -140,8 +270,15 @@ public class MailIOSessionManager {
         this.pool.closeIdle(idletime, tunit);
     }
 
+    public int getPendingLeaseCount() {
+        return this.pendingLeases.get();
+    }
+
     public void shutdown() throws IOException {
         this.log.debug("I/O session manager shut down");
+        if (this.maintenanceExecutor != null) {
+            this.maintenanceExecutor.shutdownNow();
+        }
         this.pool.shutdown(2000);
     }
 
@@ -156,6 +293,7 @@ public class MailIOSessionManager {
 
         @Override
         public void completed(final LeasedSession entry) {
+            pendingLeases.decrementAndGet();
             Asserts.check(entry.getConnection() != null, "Pool entry with no connection");
             if (log.isDebugEnabled()) {
                 log.debug("Connection leased: " + format(entry) + formatStats(entry.getRoute()));
@@ -167,6 +305,7 @@ public class MailIOSessionManager {
 
         @Override
         public void failed(final Exception ex) {
+            pendingLeases.decrementAndGet();
             if (log.isDebugEnabled()) {
                 log.debug("Connection request failed", ex);
             }
@@ -175,10 +314,47 @@ public class MailIOSessionManager {
 
         @Override
         public void cancelled() {
+            pendingLeases.decrementAndGet();
             log.debug("Connection request cancelled");
             this.future.cancel(true);
         }
 
     }
 
+    class PrewarmCallback implements FutureCallback<LeasedSession> {
+
+        @Override
+        public void completed(final LeasedSession entry) {
+            // Keep the session leased until the handshake has been completed
+            final IOSession iosession = entry.getConnection();
+            iosession.setAttribute(PREWARMED_SESSION, entry);
+            if (iosession.isClosed() && iosession.removeAttribute(PREWARMED_SESSION) != null) {
+                releaseSession(entry);
+            }
+        }
+
+        @Override
+        public void failed(final Exception ex) {
+            if (log.isDebugEnabled()) {
+                log.debug("Session pre-warming failed", ex);
+            }
+        }
+
+        @Override
+        public void cancelled() {
+        }
+
+    }
+
+    static class MaintenanceThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(r, "MUA session pool maintenance");
+            t.setDaemon(true);
+            return t;
+        }
+
+    }
+
 }
@@ -0,0 +1,225 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.pool;
+
+import org.apache.http.util.Args;
+
+/**
+ * Client side session pool configuration.
+ */
+public final class SessionPoolConfig {
+
+    public static final SessionPoolConfig DEFAULT = new Builder().build();
+
+    private final int defaultMaxPerEndpoint;
+    private final int maxTotal;
+    private final int keepAlive;
+    private final int maxIdleTime;
+    private final int maxPendingLeases;
+    private final int maintenanceInterval;
+    private final int connectTimeout;
+
+    SessionPoolConfig(
+            final int defaultMaxPerEndpoint,
+            final int maxTotal,
+            final int keepAlive,
+            final int maxIdleTime,
+            final int maxPendingLeases,
+            final int maintenanceInterval,
+            final int connectTimeout) {
+        super();
+        this.defaultMaxPerEndpoint = defaultMaxPerEndpoint;
+        this.maxTotal = maxTotal;
+        this.keepAlive = keepAlive;
+        this.maxIdleTime = maxIdleTime;
+        this.maxPendingLeases = maxPendingLeases;
+        this.maintenanceInterval = maintenanceInterval;
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Default maximum number of sessions per endpoint.
+     * <p/>
+     * Default: <code>20</code>
+     */
+    public int getDefaultMaxPerEndpoint() {
+        return this.defaultMaxPerEndpoint;
+    }
+
+    /**
+     * Maximum total number of sessions.
+     * <p/>
+     * Default: <code>50</code>
+     */
+    public int getMaxTotal() {
+        return this.maxTotal;
+    }
+
+    /**
+     * Time in milliseconds a released session can be kept alive for re-use.
+     * <p/>
+     * Default: <code>30000</code>
+     */
+    public int getKeepAlive() {
+        return this.keepAlive;
+    }
+
+    /**
+     * Time in milliseconds after which idle sessions get closed by the pool
+     * maintenance task. <code>0</code> means idle sessions get closed only
+     * when their keep-alive expires.
+     * <p/>
+     * Default: <code>0</code>
+     */
+    public int getMaxIdleTime() {
+        return this.maxIdleTime;
+    }
+
+    /**
+     * Maximum number of pending session requests. Requests in excess of this limit
+     * fail immediately. <code>0</code> means no limit.
+     * <p/>
+     * Default: <code>0</code>
+     */
+    public int getMaxPendingLeases() {
+        return this.maxPendingLeases;
+    }
+
+    /**
+     * Interval in milliseconds at which the pool maintenance task evicts
+     * expired and idle sessions. <code>0</code> disables the maintenance task.
+     * <p/>
+     * Default: <code>5000</code>
+     */
+    public int getMaintenanceInterval() {
+        return this.maintenanceInterval;
+    }
+
+    /**
+     * Connect timeout in milliseconds for sessions the pool establishes on its own
+     * to maintain the minimum number of sessions per endpoint.
+     * <p/>
+     * Default: <code>30000</code>
+     */
+    public int getConnectTimeout() {
+        return this.connectTimeout;
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    public static Builder copy(final SessionPoolConfig config) {
+        Args.notNull(config, "Session pool config");
+        return new Builder()
+            .setDefaultMaxPerEndpoint(config.getDefaultMaxPerEndpoint())
+            .setMaxTotal(config.getMaxTotal())
+            .setKeepAlive(config.getKeepAlive())
+            .setMaxIdleTime(config.getMaxIdleTime())
+            .setMaxPendingLeases(config.getMaxPendingLeases())
+            .setMaintenanceInterval(config.getMaintenanceInterval())
+            .setConnectTimeout(config.getConnectTimeout());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[defaultMaxPerEndpoint=").append(this.defaultMaxPerEndpoint)
+                .append(", maxTotal=").append(this.maxTotal)
+                .append(", keepAlive=").append(this.keepAlive)
+                .append(", maxIdleTime=").append(this.maxIdleTime)
+                .append(", maxPendingLeases=").append(this.maxPendingLeases)
+                .append(", maintenanceInterval=").append(this.maintenanceInterval)
+                .append(", connectTimeout=").append(this.connectTimeout)
+                .append("]");
+        return buffer.toString();
+    }
+
+    public static class Builder {
+
+        private int defaultMaxPerEndpoint;
+        private int maxTotal;
+        private int keepAlive;
+        private int maxIdleTime;
+        private int maxPendingLeases;
+        private int maintenanceInterval;
+        private int connectTimeout;
+
+        Builder() {
+            this.defaultMaxPerEndpoint = 20;
+            this.maxTotal = 50;
+            this.keepAlive = 30000;
+            this.maxIdleTime = 0;
+            this.maxPendingLeases = 0;
+            this.maintenanceInterval = 5000;
+            this.connectTimeout = 30000;
+        }
+
+        public Builder setDefaultMaxPerEndpoint(final int defaultMaxPerEndpoint) {
+            Args.positive(defaultMaxPerEndpoint, "Default max per endpoint");
+            this.defaultMaxPerEndpoint = defaultMaxPerEndpoint;
+            return this;
+        }
+
+        public Builder setMaxTotal(final int maxTotal) {
+            Args.positive(maxTotal, "Max total");
+            this.maxTotal = maxTotal;
+            return this;
+        }
+
+        public Builder setKeepAlive(final int keepAlive) {
+            Args.notNegative(keepAlive, "Keep-alive");
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        public Builder setMaxIdleTime(final int maxIdleTime) {
+            Args.notNegative(maxIdleTime, "Max idle time");
+            this.maxIdleTime = maxIdleTime;
+            return this;
+        }
+
+        public Builder setMaxPendingLeases(final int maxPendingLeases) {
+            Args.notNegative(maxPendingLeases, "Max pending leases");
+            this.maxPendingLeases = maxPendingLeases;
+            return this;
+        }
+
+        public Builder setMaintenanceInterval(final int maintenanceInterval) {
+            Args.notNegative(maintenanceInterval, "Maintenance interval");
+            this.maintenanceInterval = maintenanceInterval;
+            return this;
+        }
+
+        public Builder setConnectTimeout(final int connectTimeout) {
+            Args.notNegative(connectTimeout, "Connect timeout");
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        public SessionPoolConfig build() {
+            return new SessionPoolConfig(
+                    this.defaultMaxPerEndpoint,
+                    this.maxTotal,
+                    this.keepAlive,
+                    this.maxIdleTime,
+                    this.maxPendingLeases,
+                    this.maintenanceInterval,
+                    this.connectTimeout);
+        }
+
+    }
+
+}
@@ -15,9 +15,12 @@
 package com.ok2c.lightmtp.impl.protocol;
 
 import java.io.IOException;
+import java.net.SocketAddress;
 import java.nio.channels.SelectionKey;
 import java.nio.charset.Charset;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.http.nio.reactor.IOSession;
@@ -28,6 +31,7 @@ import org.apache.http.util.CharArrayBuffer;
 
 import com.ok2c.lightmtp.SMTPCodes;
 import com.ok2c.lightmtp.SMTPCommand;
+import com.ok2c.lightmtp.SMTPConsts;
 import com.ok2c.lightmtp.SMTPProtocolException;
 import com.ok2c.lightmtp.SMTPReply;
 import com.ok2c.lightmtp.message.SMTPCommandWriter;
@@ -39,7 +43,11 @@ import com.ok2c.lightmtp.protocol.ProtocolCodecs;
 
 /**
  * {@link ProtocolCodec} implementation which handles SMTP AUTH. See {@link AuthMode} for all supported modes
- *
+ * <p/>
+ * PLAIN is preferred over LOGIN, as its credentials are sent along with the AUTH command
+ * as an initial response (RFC 4954), which completes authentication in a single round trip.
+ * The mechanism chosen for a remote address can be cached and shared with codecs of
+ * subsequent sessions to the same address.
  */
 public class AuthCodec implements ProtocolCodec<ClientState> {
 
@@ -66,6 +74,8 @@ public class AuthCodec implements ProtocolCodec<ClientState> {
 
    private final static Charset AUTH_CHARSET = Charset.forName("UTF-8");
    private final static String AUTH_TYPE = "smtp.auth-type";
+   // Length of 'AUTH PLAIN ' and the terminating CRLF
+   private final static int AUTH_PLAIN_OVERHEAD = "AUTH PLAIN ".length() + 2;
    private final SMTPBuffers iobuffers;
    private final SMTPMessageParser<SMTPReply> parser;
    private final SMTPMessageWriter<SMTPCommand> writer;
@@ -74,8 +84,20 @@ public class AuthCodec implements ProtocolCodec<ClientState> {
    private final String username;
    private final String password;
    private final CharArrayBuffer lineBuf;
+   private final ConcurrentMap<SocketAddress, AuthMode> mechanisms;
 
    public AuthCodec(final SMTPBuffers iobuffers, final String username, final String password) {
+       this(iobuffers, username, password, null);
+   }
+
+   /**
+    * @param mechanisms cache of mechanisms chosen per remote address. May be <code>null</code>.
+    */
+   public AuthCodec(
+           final SMTPBuffers iobuffers,
+           final String username,
+           final String password,
+           final ConcurrentMap<SocketAddress, AuthMode> mechanisms) {
        super();
        Args.notNull(iobuffers, "IO buffers");
        this.iobuffers = iobuffers;
@@ -85,23 +107,59 @@ public class AuthCodec implements ProtocolCodec<ClientState> {
        this.password = password;
        this.codecState = CodecState.AUTH_READY;
        this.lineBuf = new CharArrayBuffer(1024);
+       this.mechanisms = mechanisms;
    }
 
    /**
-    * Return the AuthMode to use
+    * Return the AuthMode to use. PLAIN takes precedence over LOGIN.
     *
     * @return type to use or null if no supported could be found
     */
-   private AuthMode getAuthMode(final String types) {
-       String[] parts = types.split(" ");
-       for (final String part : parts) {
-           if (part.equals(AuthMode.LOGIN.name())) {
-               return AuthMode.LOGIN;
-           } else if (part.equals(AuthMode.PLAIN.name())) {
-               return AuthMode.PLAIN;
+   static AuthMode getAuthMode(final Set<String> extensions) {
+       AuthMode mode = null;
+       for (final String extension : extensions) {
+           if (!extension.startsWith(ProtocolState.AUTH.name())
+                   || extension.length() <= ProtocolState.AUTH.name().length()) {
+               continue;
+           }
+           String types = extension.substring(ProtocolState.AUTH.name().length() + 1);
+           for (final String part : types.split(" ")) {
+               if (part.equals(AuthMode.PLAIN.name())) {
+                   return AuthMode.PLAIN;
+               } else if (part.equals(AuthMode.LOGIN.name())) {
+                   mode = AuthMode.LOGIN;
+               }
+           }
+       }
+       return mode;
+   }
+
+   private AuthMode selectAuthMode(final IOSession iosession, final ClientState state) {
+       SocketAddress remoteAddress = iosession.getRemoteAddress();
+       if (this.mechanisms != null && remoteAddress != null) {
+           AuthMode mode = this.mechanisms.get(remoteAddress);
+           if (mode != null) {
+               return mode;
            }
        }
-       return null;
+       AuthMode mode = getAuthMode(state.getExtensions());
+       if (mode != null && this.mechanisms != null && remoteAddress != null) {
+           this.mechanisms.put(remoteAddress, mode);
+       }
+       return mode;
+   }
+
+   private void authFailed(final IOSession iosession) {
+       // The server may no longer support the cached mechanism
+       SocketAddress remoteAddress = iosession.getRemoteAddress();
+       if (this.mechanisms != null && remoteAddress != null) {
+           this.mechanisms.remove(remoteAddress);
+       }
+   }
+
+   private String encodePlain() {
+       byte[] authdata = Base64.encodeBase64(("\0" + username + "\0" + password).getBytes(AUTH_CHARSET));
+       return new String(authdata, SMTPConsts.ASCII);
    }
 
    /*
@@ -134,16 +192,7 @@ public void produceData(final IOSession iosession, final ClientState state)
 
        switch (this.codecState) {
        case AUTH_READY:
-           AuthMode mode = null;
-           for (final String extension : state.getExtensions()) {
-               if (extension.startsWith(ProtocolState.AUTH.name())) {
-                   String types = extension.substring(ProtocolState.AUTH.name().length() + 1);
-                   mode = getAuthMode(types);
-                   if (mode != null) {
-                       break;
-                   }
-               }
-           }
+           AuthMode mode = selectAuthMode(iosession, state);
            if (mode == null) {
                // TODO: Maybe we should just skip auth then and call the next codec in the chain
                throw new SMTPProtocolException("Unsupported AUTH types");
@@ -151,14 +200,24 @@ public void produceData(final IOSession iosession, final ClientState state)
                iosession.setAttribute(AUTH_TYPE, mode);
            }
 
+           if (mode == AuthMode.PLAIN) {
+               String initialResponse = encodePlain();
+               // AUTH PLAIN <initial response><CRLF> must fit into the command line limit
+               if (initialResponse.length() + AUTH_PLAIN_OVERHEAD <= SMTPConsts.MAX_COMMAND_LEN) {
+                   SMTPCommand auth = new SMTPCommand("AUTH", mode.name(),
+                           Collections.singletonList(initialResponse));
+                   this.writer.write(auth, buf);
+                   this.codecState = CodecState.AUTH_PLAIN_INPUT_RESPONSE_EXPECTED;
+                   break;
+               }
+           }
            SMTPCommand auth = new SMTPCommand("AUTH", mode.name());
            this.writer.write(auth, buf);
            this.codecState = CodecState.AUTH_RESPONSE_READY;
            break;
 
        case AUTH_PLAIN_INPUT_READY:
-           byte[] authdata = Base64.encodeBase64(("\0" + username + "\0" + password).getBytes(AUTH_CHARSET));
-           lineBuf.append(authdata, 0 , authdata.length);
+           lineBuf.append(encodePlain());
            this.codecState = CodecState.AUTH_PLAIN_INPUT_RESPONSE_EXPECTED;
            break;
 
@@ -223,6 +282,7 @@ public void consumeData(final IOSession iosession, final ClientState state)
                     // TODO: should we set the failure here ?
                     //       At the moment we just process as maybe its possible to send
                     //       the mail even without auth
+                    authFailed(iosession);
                     this.codecState = CodecState.COMPLETED;
                     state.setReply(reply);
                 }
@@ -235,7 +295,14 @@ public void consumeData(final IOSession iosession, final ClientState state)
                    state.setReply(reply);
                    iosession.setEvent(SelectionKey.OP_WRITE);
 
+               } else if (reply.getCode() == SMTPCodes.START_AUTH_INPUT) {
+                   // Initial response has been ignored: send the credentials again
+                   this.codecState = CodecState.AUTH_PLAIN_INPUT_READY;
+                   state.setReply(reply);
+                   iosession.setEvent(SelectionKey.OP_WRITE);
+
                } else {
+                   authFailed(iosession);
                    // TODO: should we set the failure here ?
                    //       At the moment we just process as maybe its possible to send
                    //       the mail even without auth
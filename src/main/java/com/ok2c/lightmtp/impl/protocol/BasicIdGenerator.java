@@ -14,31 +14,26 @@
  */
 package com.ok2c.lightmtp.impl.protocol;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Formatter;
 import java.util.Locale;
 
 import com.ok2c.lightmtp.protocol.UniqueIdGenerator;
+import com.ok2c.lightmtp.util.LocalIdentity;
 
 public class BasicIdGenerator implements UniqueIdGenerator {
 
-    private final String hostname;
+    private final LocalIdentity identity;
     private final SecureRandom rnd;
 
     private long count;
 
     public BasicIdGenerator() {
         super();
-        String hostname;
-        try {
-            hostname = InetAddress.getLocalHost().getHostName();
-        } catch (UnknownHostException ex) {
-            hostname = "localhost";
-        }
-        this.hostname = hostname;
+        this.identity = LocalIdentity.getDefault();
+        // Start resolving the host name in the background
+        this.identity.getHostName();
         try {
             this.rnd = SecureRandom.getInstance("SHA1PRNG");
         } catch (NoSuchAlgorithmException ex) {
@@ -53,7 +48,7 @@ public class BasicIdGenerator implements UniqueIdGenerator {
         Formatter formatter = new Formatter(buffer, Locale.US);
         formatter.format("%016x-%x-%x", System.currentTimeMillis(), ++this.count, this.rnd.nextInt());
         buffer.append('@');
-        buffer.append(this.hostname);
+        buffer.append(this.identity.getHostName());
         return buffer.toString();
     }
 
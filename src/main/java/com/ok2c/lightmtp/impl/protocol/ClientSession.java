@@ -16,6 +16,7 @@ package com.ok2c.lightmtp.impl.protocol;
 
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
+import java.util.List;
 
 import org.apache.http.nio.reactor.IOSession;
 import org.apache.http.util.Args;
@@ -23,6 +24,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ok2c.lightmtp.SMTPCodes;
+import com.ok2c.lightmtp.SMTPExtensions;
 import com.ok2c.lightmtp.SMTPProtocolException;
 import com.ok2c.lightmtp.SMTPReply;
 import com.ok2c.lightmtp.protocol.BasicDeliveryResult;
@@ -31,6 +33,8 @@ import com.ok2c.lightmtp.protocol.DeliveryRequestHandler;
 import com.ok2c.lightmtp.protocol.DeliveryResult;
 import com.ok2c.lightmtp.protocol.ProtocolCodec;
 import com.ok2c.lightmtp.protocol.ProtocolCodecs;
+import com.ok2c.lightmtp.protocol.RcptResult;
+import com.ok2c.lightmtp.protocol.RecipientResultHandler;
 import com.ok2c.lightmtp.protocol.ServiceRefusedException;
 import com.ok2c.lightmtp.protocol.SessionContext;
 
@@ -44,16 +48,20 @@ public class ClientSession {
     private final SessionContext context;
     private final DeliveryRequestHandler handler;
     private final ProtocolCodecs<ClientState> codecs;
+    private final ClientSessionConfig config;
 
     private ProtocolCodec<ClientState> currentCodec;
 
     private ProtocolState state;
+    private long idleSince;
+    private int socketTimeout;
 
     public ClientSession(
             final IOSession iosession,
             final SMTPBuffers iobuffers,
             final DeliveryRequestHandler handler,
-            final ProtocolCodecs<ClientState> codecs) {
+            final ProtocolCodecs<ClientState> codecs,
+            final ClientSessionConfig config) {
         super();
         Args.notNull(iosession, "IO session");
         Args.notNull(iobuffers, "IO buffers");
@@ -66,21 +74,38 @@ public class ClientSession {
         this.context = new SessionContextImpl(iosession);
         this.handler = handler;
         this.codecs = codecs;
+        this.config = config != null ? config : ClientSessionConfig.DEFAULT;
 
         this.state = ProtocolState.INIT;
     }
 
+    public ClientSession(
+            final IOSession iosession,
+            final SMTPBuffers iobuffers,
+            final DeliveryRequestHandler handler,
+            final ProtocolCodecs<ClientState> codecs) {
+        this(iosession, iobuffers, handler, codecs, null);
+    }
+
     private void signalDeliveryReady() {
         if (this.sessionState.getRequest() != null) {
             throw new IllegalStateException("Delivery request is not null");
         }
         this.log.debug("Ready for delivery request");
 
-        DeliveryRequest request = this.handler.submitRequest(this.context);
+        // Clear write interest before asking for a request, as the handler
+        // may hand the session over to another party that sets it again
+        this.iosession.clearEvent(SelectionKey.OP_WRITE);
+        DeliveryRequest request = this.sessionState.getNextRequest();
+        if (request != null) {
+            this.sessionState.setNextRequest(null);
+        } else {
+            request = this.handler.submitRequest(this.context);
+        }
         this.sessionState.reset(request);
 
         if (request == null) {
-            this.iosession.clearEvent(SelectionKey.OP_WRITE);
+            this.idleSince = System.currentTimeMillis();
             this.log.debug("No delivery request submitted");
         } else {
             this.iosession.setEvent(SelectionKey.OP_WRITE);
@@ -90,18 +115,52 @@ public class ClientSession {
         }
     }
 
+    private void signalNextDeliveryReady() {
+        if (this.sessionState.isTerminated()
+                || this.sessionState.getNextRequest() != null
+                || !this.sessionState.getExtensions().contains(SMTPExtensions.PIPELINING)) {
+            return;
+        }
+        DeliveryRequest request = this.handler.submitRequest(this.context);
+        this.sessionState.setNextRequest(request);
+        if (request != null && this.log.isDebugEnabled()) {
+            this.log.debug("Delivery request submitted for pipelining: " + request);
+        }
+    }
+
     private void signalException(final Exception ex) {
         this.currentCodec.cleanUp();
         this.handler.exception(ex, this.context);
 
         DeliveryRequest request = this.sessionState.getRequest();
+        DeliveryRequest nextRequest = this.sessionState.getNextRequest();
         this.sessionState.reset(null);
+        this.sessionState.setNextRequest(null);
+        this.sessionState.setEnvelopSent(false);
         if (request != null) {
             this.handler.failed(request, null, this.context);
             this.log.error("Delivery failed: " + request, ex);
         } else {
             this.log.error(ex.getMessage(), ex);
         }
+        if (nextRequest != null) {
+            this.handler.failed(nextRequest, null, this.context);
+        }
+    }
+
+    private void signalRecipientResults() {
+        List<RcptResult> results = this.sessionState.getRecipientResults();
+        if (results.isEmpty()) {
+            return;
+        }
+        DeliveryRequest request = this.sessionState.getRequest();
+        if (request != null && this.handler instanceof RecipientResultHandler) {
+            RecipientResultHandler resultHandler = (RecipientResultHandler) this.handler;
+            for (RcptResult result: results) {
+                resultHandler.recipientCompleted(request, result, this.context);
+            }
+        }
+        results.clear();
     }
 
     private void signalDeliveryFailure() {
@@ -205,16 +264,53 @@ public class ClientSession {
 
     private void doConsumeData() throws IOException, SMTPProtocolException {
         this.log.debug("Consume data");
-        this.currentCodec.consumeData(this.iosession, this.sessionState);
-        updateSession();
+        ProtocolCodec<ClientState> codec;
+        do {
+            codec = this.currentCodec;
+            codec.consumeData(this.iosession, this.sessionState);
+            signalRecipientResults();
+            updateSession();
+            // Pipelined replies may already be buffered for the next codec
+        } while (this.currentCodec != codec
+                && this.iobuffers.getInbuf().hasData()
+                && !this.iosession.isClosed());
     }
 
     private void doProduceData() throws IOException, SMTPProtocolException {
         this.log.debug("Produce data");
+        if (this.state == ProtocolState.MAIL
+                && this.sessionState.getRequest() == null
+                && !this.sessionState.isTerminated()) {
+            // Idle session has been woken up to pick up a new request
+            if (isValidationRequired()) {
+                startValidation();
+            } else {
+                signalDeliveryReady();
+            }
+        }
         this.currentCodec.produceData(this.iosession, this.sessionState);
         updateSession();
     }
 
+    private boolean isValidationRequired() {
+        int validateAfterInactivity = this.config.getValidateAfterInactivity();
+        return validateAfterInactivity > 0 && this.idleSince > 0
+                && System.currentTimeMillis() - this.idleSince > validateAfterInactivity;
+    }
+
+    private void startValidation() throws IOException, SMTPProtocolException {
+        this.log.debug("Validating idle session");
+        this.idleSince = 0;
+        this.state = ProtocolState.NOOP;
+        this.currentCodec = this.codecs.getCodec(ProtocolState.NOOP.name());
+        this.currentCodec.reset(this.iosession, this.sessionState);
+        this.socketTimeout = this.iosession.getSocketTimeout();
+        int validationTimeout = this.config.getValidationTimeout();
+        if (validationTimeout > 0) {
+            this.iosession.setSocketTimeout(validationTimeout);
+        }
+    }
+
     private void updateSession() throws IOException, SMTPProtocolException {
         if (this.currentCodec.isCompleted()) {
 
@@ -256,6 +352,9 @@ public class ClientSession {
 
         String nextCodec = this.currentCodec.next(this.codecs, this.sessionState);
         if (nextCodec != null) {
+            if (this.state == ProtocolState.NOOP) {
+                this.iosession.setSocketTimeout(this.socketTimeout);
+            }
             this.state = ProtocolState.valueOf(nextCodec);
             if (this.log.isDebugEnabled()) {
                 this.log.debug("Next codec: " + this.state);
@@ -265,6 +364,8 @@ public class ClientSession {
 
             if (this.state == ProtocolState.MAIL) {
                 signalDeliveryReady();
+            } else if (this.state == ProtocolState.DATA) {
+                signalNextDeliveryReady();
             }
         }
 
@@ -277,6 +378,12 @@ public class ClientSession {
     }
 
     private void doTimeout() throws IOException, SMTPProtocolException {
+        if (this.state == ProtocolState.NOOP) {
+            this.log.debug("Session validation timed out");
+            this.currentCodec.cleanUp();
+            this.iosession.close();
+            return;
+        }
         this.log.debug("Session timed out");
         this.sessionState.terminated();
         this.iosession.setEvent(SelectionKey.OP_WRITE);
@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.protocol;
+
+import org.apache.http.util.Args;
+
+/**
+ * Client side session configuration.
+ */
+public final class ClientSessionConfig {
+
+    public static final ClientSessionConfig DEFAULT = new Builder().build();
+
+    private final int validateAfterInactivity;
+    private final int validationTimeout;
+
+    ClientSessionConfig(
+            final int validateAfterInactivity,
+            final int validationTimeout) {
+        super();
+        this.validateAfterInactivity = validateAfterInactivity;
+        this.validationTimeout = validationTimeout;
+    }
+
+    /**
+     * Period of inactivity in milliseconds after which an idle session gets
+     * validated with a NOOP command before a new delivery request is submitted.
+     * <code>0</code> disables validation.
+     * <p/>
+     * Default: <code>0</code>
+     */
+    public int getValidateAfterInactivity() {
+        return this.validateAfterInactivity;
+    }
+
+    /**
+     * Maximum time in milliseconds to wait for the reply to the NOOP command
+     * before the session is considered dead. <code>0</code> means the session's
+     * socket timeout applies.
+     * <p/>
+     * Default: <code>5000</code>
+     */
+    public int getValidationTimeout() {
+        return this.validationTimeout;
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    public static Builder copy(final ClientSessionConfig config) {
+        Args.notNull(config, "Session config");
+        return new Builder()
+            .setValidateAfterInactivity(config.getValidateAfterInactivity())
+            .setValidationTimeout(config.getValidationTimeout());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[validateAfterInactivity=").append(this.validateAfterInactivity)
+                .append(", validationTimeout=").append(this.validationTimeout)
+                .append("]");
+        return buffer.toString();
+    }
+
+    public static class Builder {
+
+        private int validateAfterInactivity;
+        private int validationTimeout;
+
+        Builder() {
+            this.validateAfterInactivity = 0;
+            this.validationTimeout = 5000;
+        }
+
+        public Builder setValidateAfterInactivity(final int validateAfterInactivity) {
+            Args.notNegative(validateAfterInactivity, "Validate after inactivity");
+            this.validateAfterInactivity = validateAfterInactivity;
+            return this;
+        }
+
+        public Builder setValidationTimeout(final int validationTimeout) {
+            Args.notNegative(validationTimeout, "Validation timeout");
+            this.validationTimeout = validationTimeout;
+            return this;
+        }
+
+        public ClientSessionConfig build() {
+            return new ClientSessionConfig(
+                    this.validateAfterInactivity,
+                    this.validationTimeout);
+        }
+
+    }
+
+}
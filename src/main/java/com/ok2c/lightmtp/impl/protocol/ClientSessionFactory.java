@@ -14,6 +14,10 @@
  */
 package com.ok2c.lightmtp.impl.protocol;
 
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.apache.http.nio.reactor.IOSession;
 import org.apache.http.util.Args;
 import org.slf4j.Logger;
@@ -32,6 +36,8 @@ public class ClientSessionFactory implements SessionFactory<ClientSession> {
 	private final String heloName;
     private final String username;
     private final String password;
+    private final ClientSessionConfig config;
+    private final ConcurrentMap<SocketAddress, AuthCodec.AuthMode> authMechanisms;
 
     public ClientSessionFactory(
             final DeliveryRequestHandler deliveryRequestHandler) {
@@ -41,12 +47,23 @@ public class ClientSessionFactory implements SessionFactory<ClientSession> {
 
     public ClientSessionFactory(
             final DeliveryRequestHandler deliveryRequestHandler, final String heloName, final String username, final String password) {
+        this(deliveryRequestHandler, heloName, username, password, null);
+    }
+
+    public ClientSessionFactory(
+            final DeliveryRequestHandler deliveryRequestHandler,
+            final String heloName,
+            final String username,
+            final String password,
+            final ClientSessionConfig config) {
         super();
         Args.notNull(deliveryRequestHandler, "Delivery request handler");
         this.deliveryRequestHandler = deliveryRequestHandler;
         this.heloName = heloName;
         this.username = username;
         this.password = password;
+        this.config = config != null ? config : ClientSessionConfig.DEFAULT;
+        this.authMechanisms = new ConcurrentHashMap<SocketAddress, AuthCodec.AuthMode>();
     }
 
     @Override
@@ -55,19 +72,22 @@ public class ClientSessionFactory implements SessionFactory<ClientSession> {
         ProtocolCodecs<ClientState> codecs = new ProtocolCodecRegistry<ClientState>();
         codecs.register(ProtocolState.HELO.name(), new ExtendedSendHeloCodec(iobuffers, heloName, (username != null && password != null)));
         if (username != null && password != null) {
-            codecs.register(ProtocolState.AUTH.name(), new AuthCodec(iobuffers, username, password));
+            codecs.register(ProtocolState.AUTH.name(),
+                    new AuthCodec(iobuffers, username, password, this.authMechanisms));
         }
         codecs.register(ProtocolState.MAIL.name(), new SimpleSendEnvelopCodec(iobuffers, false));
         codecs.register(ProtocolState.DATA.name(), new SendDataCodec(iobuffers, false));
         codecs.register(ProtocolState.QUIT.name(), new SendQuitCodec(iobuffers));
         codecs.register(ProtocolState.RSET.name(), new SendRsetCodec(iobuffers));
+        codecs.register(ProtocolState.NOOP.name(), new SendNoopCodec(iobuffers));
         final IOSession localIOSession;
         if (iolog.isDebugEnabled() || wirelog.isDebugEnabled()) {
             localIOSession = new LoggingIOSession(iosession, "SMTP client", iolog, wirelog);
         } else {
             localIOSession = iosession;
         }
-        return new ClientSession(localIOSession, iobuffers, this.deliveryRequestHandler, codecs);
+        return new ClientSession(localIOSession, iobuffers, this.deliveryRequestHandler, codecs,
+                this.config);
     }
 
 }
@@ -27,20 +27,25 @@ public class ClientState {
 
     private final Set<String> extensions;
     private final List<RcptResult> failures;
+    private final List<RcptResult> recipientResults;
 
     private DeliveryRequest request;
+    private DeliveryRequest nextRequest;
+    private boolean envelopSent;
     private SMTPReply reply;
     private boolean terminated;
 
     public ClientState() {
         super();
         this.failures = new ArrayList<RcptResult>();
+        this.recipientResults = new ArrayList<RcptResult>();
         this.extensions = new HashSet<String>();
     }
 
     public void reset(final DeliveryRequest request) {
         this.request = request;
         this.failures.clear();
+        this.recipientResults.clear();
         this.reply = null;
     }
 
@@ -48,10 +53,42 @@ public class ClientState {
         return this.request;
     }
 
+    /**
+     * Returns the request to be delivered after the current one, if it has been
+     * submitted ahead of time for pipelining.
+     */
+    public DeliveryRequest getNextRequest() {
+        return this.nextRequest;
+    }
+
+    public void setNextRequest(final DeliveryRequest nextRequest) {
+        this.nextRequest = nextRequest;
+    }
+
+    /**
+     * Returns <code>true</code> if the envelop of the next request has already
+     * been sent to the server following the content of the current request.
+     */
+    public boolean isEnvelopSent() {
+        return this.envelopSent;
+    }
+
+    public void setEnvelopSent(final boolean envelopSent) {
+        this.envelopSent = envelopSent;
+    }
+
     public List<RcptResult> getFailures() {
         return this.failures;
     }
 
+    /**
+     * Returns per-recipient results received since they have been last
+     * handed over to the delivery request handler.
+     */
+    public List<RcptResult> getRecipientResults() {
+        return this.recipientResults;
+    }
+
     public Set<String> getExtensions() {
         return this.extensions;
     }
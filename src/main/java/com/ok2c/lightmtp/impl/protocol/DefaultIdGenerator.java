@@ -20,18 +20,20 @@ import java.util.Formatter;
 import java.util.Locale;
 
 import com.ok2c.lightmtp.protocol.UniqueIdGenerator;
-import com.ok2c.lightmtp.util.AddressUtils;
+import com.ok2c.lightmtp.util.LocalIdentity;
 
 public class DefaultIdGenerator implements UniqueIdGenerator {
 
-    private final String hostname;
+    private final LocalIdentity identity;
     private final SecureRandom rnd;
 
     private long count;
 
     public DefaultIdGenerator() {
         super();
-        this.hostname = AddressUtils.getLocalCanonicalHostName();
+        this.identity = LocalIdentity.getDefault();
+        // Start resolving the host name in the background
+        this.identity.getHostName();
         try {
             this.rnd = SecureRandom.getInstance("SHA1PRNG");
         } catch (NoSuchAlgorithmException ex) {
@@ -46,7 +48,7 @@ public class DefaultIdGenerator implements UniqueIdGenerator {
         Formatter formatter = new Formatter(buffer, Locale.US);
         formatter.format("%1$016x-%2x-%3x", System.currentTimeMillis(), this.rnd.nextInt(), ++this.count);
         buffer.append('@');
-        buffer.append(this.hostname);
+        buffer.append(this.identity.getHostName());
         return buffer.toString();
     }
 
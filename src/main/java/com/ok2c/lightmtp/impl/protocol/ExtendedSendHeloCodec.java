@@ -36,7 +36,7 @@ import com.ok2c.lightmtp.message.SMTPMessageWriter;
 import com.ok2c.lightmtp.message.SMTPReplyParser;
 import com.ok2c.lightmtp.protocol.ProtocolCodec;
 import com.ok2c.lightmtp.protocol.ProtocolCodecs;
-import com.ok2c.lightmtp.util.AddressUtils;
+import com.ok2c.lightmtp.util.LocalIdentity;
 
 public class ExtendedSendHeloCodec implements ProtocolCodec<ClientState> {
 
@@ -102,7 +102,7 @@ public class ExtendedSendHeloCodec implements ProtocolCodec<ClientState> {
 
         String myHelo = heloName;
         if (myHelo == null) {
-            myHelo = AddressUtils.resolveLocalDomain(iosession.getLocalAddress());
+            myHelo = LocalIdentity.getDefault().getDomain(iosession.getLocalAddress());
         }
         switch (this.codecState) {
         case EHLO_READY:
@@ -209,7 +209,7 @@ public class ExtendedSendHeloCodec implements ProtocolCodec<ClientState> {
                 codecs.register(ProtocolState.MAIL.name(),
                         new PipeliningSendEnvelopCodec(this.iobuffers, enhancedCodes));
                 codecs.register(ProtocolState.DATA.name(),
-                        new SendDataCodec(this.iobuffers, enhancedCodes));
+                        new SendDataCodec(this.iobuffers, enhancedCodes, DataAckMode.SINGLE, true));
             }
             if (useAuth) {
                 return ProtocolState.AUTH.name();
@@ -30,13 +30,22 @@ public class LocalClientSessionFactory implements SessionFactory<ClientSession>
 
     private final DeliveryRequestHandler deliveryRequestHandler;
 	private final String heloName;
+    private final ClientSessionConfig config;
 
     public LocalClientSessionFactory(
-            final DeliveryRequestHandler deliveryRequestHandler, final String heloName) {
+            final DeliveryRequestHandler deliveryRequestHandler,
+            final String heloName,
+            final ClientSessionConfig config) {
         super();
         Args.notNull(deliveryRequestHandler, "Delivery request handler");
         this.deliveryRequestHandler = deliveryRequestHandler;
         this.heloName = heloName;
+        this.config = config != null ? config : ClientSessionConfig.DEFAULT;
+    }
+
+    public LocalClientSessionFactory(
+            final DeliveryRequestHandler deliveryRequestHandler, final String heloName) {
+        this(deliveryRequestHandler, heloName, null);
     }
     public LocalClientSessionFactory(
             final DeliveryRequestHandler deliveryRequestHandler) {
@@ -52,18 +61,21 @@ public class LocalClientSessionFactory implements SessionFactory<ClientSession>
         codecs.register(ProtocolState.MAIL.name(),
                 new PipeliningSendEnvelopCodec(iobuffers, true));
         codecs.register(ProtocolState.DATA.name(),
-                new SendDataCodec(iobuffers, true, DataAckMode.PER_RECIPIENT));
+                new SendDataCodec(iobuffers, true, DataAckMode.PER_RECIPIENT, true));
         codecs.register(ProtocolState.QUIT.name(),
                 new SendQuitCodec(iobuffers));
         codecs.register(ProtocolState.RSET.name(),
                 new SendRsetCodec(iobuffers));
+        codecs.register(ProtocolState.NOOP.name(),
+                new SendNoopCodec(iobuffers));
         final IOSession localIOSession;
         if (iolog.isDebugEnabled() || wirelog.isDebugEnabled()) {
             localIOSession = new LoggingIOSession(iosession, "LMTP client", iolog, wirelog);
         } else {
             localIOSession = iosession;
         }
-        return new ClientSession(localIOSession, iobuffers, this.deliveryRequestHandler, codecs);
+        return new ClientSession(localIOSession, iobuffers, this.deliveryRequestHandler, codecs,
+                this.config);
     }
 
 }
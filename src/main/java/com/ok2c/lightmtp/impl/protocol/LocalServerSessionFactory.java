@@ -30,6 +30,7 @@ import com.ok2c.lightmtp.impl.protocol.cmd.QuitHandler;
 import com.ok2c.lightmtp.impl.protocol.cmd.RcptToHandler;
 import com.ok2c.lightmtp.impl.protocol.cmd.RsetHandler;
 import com.ok2c.lightmtp.impl.protocol.cmd.VrfyHandler;
+import com.ok2c.lightmtp.protocol.AsyncRemoteAddressValidator;
 import com.ok2c.lightmtp.protocol.DeliveryHandler;
 import com.ok2c.lightmtp.protocol.EnvelopValidator;
 import com.ok2c.lightmtp.protocol.ProtocolCodecs;
@@ -46,15 +47,21 @@ public class LocalServerSessionFactory implements SessionFactory<ServerSession>
     private final File workingDir;
     private final UniqueIdGenerator idgenerator;
     private final RemoteAddressValidator addressValidator;
+    private final AsyncRemoteAddressValidator asyncAddressValidator;
     private final EnvelopValidator validator;
     private final DeliveryHandler deliveryHandler;
+    private final ServerSessionConfig config;
+    private final ServerSessionMetrics metrics;
 
-    public LocalServerSessionFactory(
+    private LocalServerSessionFactory(
             final File workingDir,
             final UniqueIdGenerator idgenerator,
             final RemoteAddressValidator addressValidator,
+            final AsyncRemoteAddressValidator asyncAddressValidator,
             final EnvelopValidator validator,
-            final DeliveryHandler deliveryHandler) {
+            final DeliveryHandler deliveryHandler,
+            final ServerSessionConfig config,
+            final ServerSessionMetrics metrics) {
         super();
         Args.notNull(workingDir, "Working dir");
         Args.notNull(idgenerator, "Id generator");
@@ -63,22 +70,71 @@ public class LocalServerSessionFactory implements SessionFactory<ServerSession>
         this.workingDir = workingDir;
         this.idgenerator = idgenerator;
         this.addressValidator = addressValidator;
+        this.asyncAddressValidator = asyncAddressValidator;
         this.validator = validator;
         this.deliveryHandler = deliveryHandler;
+        this.config = config != null ? config : ServerSessionConfig.DEFAULT;
+        this.metrics = metrics != null ? metrics : new ServerSessionMetrics();
+    }
+
+    public LocalServerSessionFactory(
+            final File workingDir,
+            final UniqueIdGenerator idgenerator,
+            final RemoteAddressValidator addressValidator,
+            final EnvelopValidator validator,
+            final DeliveryHandler deliveryHandler,
+            final ServerSessionConfig config,
+            final ServerSessionMetrics metrics) {
+        this(workingDir, idgenerator, addressValidator, null, validator, deliveryHandler,
+                config, metrics);
+    }
+
+    public LocalServerSessionFactory(
+            final File workingDir,
+            final UniqueIdGenerator idgenerator,
+            final RemoteAddressValidator addressValidator,
+            final EnvelopValidator validator,
+            final DeliveryHandler deliveryHandler) {
+        this(workingDir, idgenerator, addressValidator, null, validator, deliveryHandler,
+                null, null);
+    }
+
+    public LocalServerSessionFactory(
+            final File workingDir,
+            final UniqueIdGenerator idgenerator,
+            final AsyncRemoteAddressValidator asyncAddressValidator,
+            final EnvelopValidator validator,
+            final DeliveryHandler deliveryHandler,
+            final ServerSessionConfig config,
+            final ServerSessionMetrics metrics) {
+        this(workingDir, idgenerator, null, asyncAddressValidator, validator, deliveryHandler,
+                config, metrics);
+    }
+
+    public ServerSessionMetrics getMetrics() {
+        return this.metrics;
     }
 
     @Override
     public ServerSession create(final IOSession iosession) {
         SMTPBuffers iobuffers = new SMTPBuffers();
         ProtocolCodecs<ServerState> codecs = new ProtocolCodecRegistry<ServerState>();
-        codecs.register(ProtocolState.INIT.name(),
-                new ServiceReadyCodec(iobuffers, this.addressValidator));
+        if (this.asyncAddressValidator != null) {
+            codecs.register(ProtocolState.INIT.name(),
+                    new ServiceReadyCodec(iobuffers, this.asyncAddressValidator,
+                            this.config, this.metrics));
+        } else {
+            codecs.register(ProtocolState.INIT.name(),
+                    new ServiceReadyCodec(iobuffers, this.addressValidator));
+        }
         codecs.register(ProtocolState.MAIL.name(),
                 new PipeliningReceiveEnvelopCodec(iobuffers,
-                        createProtocolHandler(this.idgenerator, this.validator)));
+                        createProtocolHandler(this.idgenerator, this.validator),
+                        this.config, this.metrics));
         codecs.register(ProtocolState.DATA.name(),
                 new ReceiveDataCodec(iobuffers, this.workingDir, this.deliveryHandler,
-                        DataAckMode.PER_RECIPIENT));
+                        DataAckMode.PER_RECIPIENT,
+                        this.config, this.metrics));
         codecs.register(ProtocolState.QUIT.name(),
                 new ServiceShutdownCodec(iobuffers));
         final IOSession localIOSession;
@@ -87,7 +143,7 @@ public class LocalServerSessionFactory implements SessionFactory<ServerSession>
         } else {
             localIOSession = iosession;
         }
-        return new ServerSession(localIOSession, iobuffers, codecs);
+        return new ServerSession(localIOSession, iobuffers, codecs, this.config);
     }
 
     protected ProtocolHandler<ServerState> createProtocolHandler(
@@ -18,6 +18,7 @@ import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
@@ -49,13 +50,17 @@ public class PipeliningReceiveEnvelopCodec implements ProtocolCodec<ServerState>
     private final SMTPMessageParser<SMTPCommand> parser;
     private final SMTPMessageWriter<SMTPReply> writer;
     private final Queue<Action<ServerState>> pendingActions;
+    private final ServerSessionConfig config;
+    private final ServerSessionMetrics metrics;
 
     private Future<SMTPReply> actionFuture;
     private boolean completed;
 
     public PipeliningReceiveEnvelopCodec(
             final SMTPBuffers iobuffers,
-            final ProtocolHandler<ServerState> commandHandler) {
+            final ProtocolHandler<ServerState> commandHandler,
+            final ServerSessionConfig config,
+            final ServerSessionMetrics metrics) {
         super();
         Args.notNull(iobuffers, "IO buffers");
         Args.notNull(commandHandler, "Command handler");
@@ -64,11 +69,23 @@ public class PipeliningReceiveEnvelopCodec implements ProtocolCodec<ServerState>
         this.parser = new SMTPCommandParser();
         this.writer = new SMTPReplyWriter(true);
         this.pendingActions = new LinkedList<Action<ServerState>>();
+        this.config = config != null ? config : ServerSessionConfig.DEFAULT;
+        this.metrics = metrics;
         this.completed = false;
     }
 
+    public PipeliningReceiveEnvelopCodec(
+            final SMTPBuffers iobuffers,
+            final ProtocolHandler<ServerState> commandHandler) {
+        this(iobuffers, commandHandler, null, null);
+    }
+
     @Override
     public void cleanUp() {
+        if (this.actionFuture != null) {
+            this.actionFuture.cancel(true);
+            this.actionFuture = null;
+        }
     }
 
     @Override
@@ -95,6 +112,9 @@ public class PipeliningReceiveEnvelopCodec implements ProtocolCodec<ServerState>
         } catch (InterruptedException ex) {
             return new SMTPReply(SMTPCodes.ERR_PERM_TRX_FAILED, new SMTPCode(5, 3, 0),
                     ex.getMessage());
+        } catch (CancellationException ex) {
+            return new SMTPReply(SMTPCodes.ERR_TRANS_PROCESSING_ERROR, new SMTPCode(4, 3, 0),
+                    "operation cancelled");
         }
     }
 
@@ -110,9 +130,26 @@ public class PipeliningReceiveEnvelopCodec implements ProtocolCodec<ServerState>
         synchronized (sessionState) {
 
             if (this.actionFuture != null) {
-                SMTPReply reply = getReply(this.actionFuture);
-                this.actionFuture = null;
-                this.writer.write(reply, buf);
+                SMTPReply reply = null;
+                if (this.actionFuture.isDone()) {
+                    reply = getReply(this.actionFuture);
+                } else if (sessionState.isDeadlineExpired()) {
+                    if (this.actionFuture.cancel(true) || !this.actionFuture.isDone()) {
+                        if (this.metrics != null) {
+                            this.metrics.incrementEnvelopValidationTimeouts();
+                        }
+                        reply = new SMTPReply(SMTPCodes.ERR_TRANS_PROCESSING_ERROR,
+                                new SMTPCode(4, 3, 0),
+                                "validation timed out");
+                    } else {
+                        reply = getReply(this.actionFuture);
+                    }
+                }
+                if (reply != null) {
+                    this.actionFuture = null;
+                    sessionState.setDeadline(0);
+                    this.writer.write(reply, buf);
+                }
             }
 
             if (this.actionFuture == null) {
@@ -126,6 +163,10 @@ public class PipeliningReceiveEnvelopCodec implements ProtocolCodec<ServerState>
                         this.writer.write(reply, buf);
                     } else {
                         this.actionFuture = future;
+                        int timeout = this.config.getEnvelopValidationTimeout();
+                        if (timeout > 0) {
+                            sessionState.setDeadline(System.currentTimeMillis() + timeout);
+                        }
                         break;
                     }
                 }
@@ -108,18 +108,12 @@ public class PipeliningSendEnvelopCodec implements ProtocolCodec<ClientState> {
 
         switch (this.codecState) {
         case MAIL_REQUEST_READY:
-            SMTPCommand mailFrom = new SMTPCommand("MAIL",
-                    "FROM:<" + request.getSender() + ">");
-            this.writer.write(mailFrom, buf);
-
-            this.recipients.addAll(request.getRecipients());
-
-            for (String recipient: request.getRecipients()) {
-                SMTPCommand rcptTo = new SMTPCommand("RCPT", "TO:<" + recipient + ">");
-                this.writer.write(rcptTo, buf);
+            if (sessionState.isEnvelopSent()) {
+                envelopSent(sessionState);
+                break;
             }
-            SMTPCommand data = new SMTPCommand("DATA");
-            this.writer.write(data, buf);
+            writeEnvelop(this.writer, request, buf);
+            this.recipients.addAll(request.getRecipients());
             this.codecState = CodecState.MAIL_RESPONSE_EXPECTED;
             break;
         }
@@ -139,6 +133,12 @@ public class PipeliningSendEnvelopCodec implements ProtocolCodec<ClientState> {
         Args.notNull(iosession, "IO session");
         Args.notNull(sessionState, "Session state");
 
+        if (this.codecState == CodecState.MAIL_REQUEST_READY
+                && sessionState.getRequest() != null
+                && sessionState.isEnvelopSent()) {
+            envelopSent(sessionState);
+        }
+
         SessionInputBuffer buf = this.iobuffers.getInbuf();
 
         while (this.codecState != CodecState.COMPLETED) {
@@ -189,6 +189,28 @@ public class PipeliningSendEnvelopCodec implements ProtocolCodec<ClientState> {
         }
     }
 
+    private void envelopSent(final ClientState sessionState) {
+        // Envelop has been pipelined following the content of the previous message
+        sessionState.setEnvelopSent(false);
+        this.recipients.addAll(sessionState.getRequest().getRecipients());
+        this.codecState = CodecState.MAIL_RESPONSE_EXPECTED;
+    }
+
+    static void writeEnvelop(
+            final SMTPMessageWriter<SMTPCommand> writer,
+            final DeliveryRequest request,
+            final SessionOutputBuffer buf) throws SMTPProtocolException {
+        SMTPCommand mailFrom = new SMTPCommand("MAIL",
+                "FROM:<" + request.getSender() + ">");
+        writer.write(mailFrom, buf);
+        for (String recipient: request.getRecipients()) {
+            SMTPCommand rcptTo = new SMTPCommand("RCPT", "TO:<" + recipient + ">");
+            writer.write(rcptTo, buf);
+        }
+        SMTPCommand data = new SMTPCommand("DATA");
+        writer.write(data, buf);
+    }
+
     @Override
     public boolean isCompleted() {
         return this.codecState == CodecState.COMPLETED;
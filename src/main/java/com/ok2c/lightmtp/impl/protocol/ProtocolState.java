@@ -22,7 +22,8 @@ public enum ProtocolState {
     DATA,
     QUIT,
     RSET,
-    AUTH;
+    AUTH,
+    NOOP;
 
     public static final String ATTRIB = "com.ok2c.lightmtp.protocol-state";
 
@@ -22,6 +22,7 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
@@ -62,18 +63,23 @@ public class ReceiveDataCodec implements ProtocolCodec<ServerState> {
     private final LinkedList<SMTPReply> pendingReplies;
     private final CharArrayBuffer lineBuf;
     private final SMTPOutputBuffer contentBuf;
+    private final ServerSessionConfig config;
+    private final ServerSessionMetrics metrics;
 
     private File tempFile;
     private FileStore fileStore;
     private boolean dataReceived;
     private Future<DeliveryResult> pendingDelivery;
+    private boolean deliveryDone;
     private boolean completed;
 
     public ReceiveDataCodec(
             final SMTPBuffers iobuffers,
             final File workingDir,
             final DeliveryHandler handler,
-            final DataAckMode mode) {
+            final DataAckMode mode,
+            final ServerSessionConfig config,
+            final ServerSessionMetrics metrics) {
         super();
         Args.notNull(iobuffers, "IO buffers");
         Args.notNull(workingDir, "Working directory");
@@ -86,12 +92,23 @@ public class ReceiveDataCodec implements ProtocolCodec<ServerState> {
         this.pendingReplies = new LinkedList<SMTPReply>();
         this.lineBuf = new CharArrayBuffer(LINE_SIZE);
         this.contentBuf = new SMTPOutputBuffer(BUF_SIZE, LINE_SIZE, SMTPConsts.ISO_8859_1);
+        this.config = config != null ? config : ServerSessionConfig.DEFAULT;
+        this.metrics = metrics;
 
         this.dataReceived = false;
         this.pendingDelivery = null;
+        this.deliveryDone = false;
         this.completed = false;
     }
 
+    public ReceiveDataCodec(
+            final SMTPBuffers iobuffers,
+            final File workingDir,
+            final DeliveryHandler handler,
+            final DataAckMode mode) {
+        this(iobuffers, workingDir, handler, mode, null, null);
+    }
+
     public ReceiveDataCodec(
             final SMTPBuffers iobuffers,
             final File workingDir,
@@ -129,6 +146,7 @@ public class ReceiveDataCodec implements ProtocolCodec<ServerState> {
         this.pendingReplies.clear();
         this.dataReceived = false;
         this.pendingDelivery = null;
+        this.deliveryDone = false;
         this.completed = false;
     }
 
@@ -154,9 +172,21 @@ public class ReceiveDataCodec implements ProtocolCodec<ServerState> {
         SessionOutputBuffer buf = this.iobuffers.getOutbuf();
 
         synchronized (sessionState) {
-            if (this.pendingDelivery != null) {
+            if (this.pendingDelivery != null && !this.deliveryDone) {
                 if (this.pendingDelivery.isDone()) {
                     deliveryCompleted(sessionState);
+                } else if (sessionState.isDeadlineExpired()) {
+                    if (this.pendingDelivery.cancel(true) || !this.pendingDelivery.isDone()) {
+                        if (this.metrics != null) {
+                            this.metrics.incrementDeliveryTimeouts();
+                        }
+                        deliveryTimedOut(sessionState);
+                    } else {
+                        deliveryCompleted(sessionState);
+                    }
+                }
+                if (this.deliveryDone) {
+                    sessionState.setDeadline(0);
                     cleanUp();
                 }
                 while (!this.pendingReplies.isEmpty()) {
@@ -168,7 +198,8 @@ public class ReceiveDataCodec implements ProtocolCodec<ServerState> {
                 buf.flush(iosession.channel());
             }
             if (!buf.hasData()) {
-                if (sessionState.getDataType() != null) {
+                if (sessionState.getDataType() != null
+                        && (this.pendingDelivery == null || this.deliveryDone)) {
                     this.completed = true;
                     sessionState.reset();
                 }
@@ -177,7 +208,21 @@ public class ReceiveDataCodec implements ProtocolCodec<ServerState> {
         }
     }
 
+    private void deliveryTimedOut(final ServerState sessionState) {
+        this.deliveryDone = true;
+        SMTPReply reply = new SMTPReply(SMTPCodes.ERR_TRANS_PROCESSING_ERROR,
+                new SMTPCode(4, 3, 0), "delivery timed out");
+        if (this.mode.equals(DataAckMode.SINGLE)) {
+            this.pendingReplies.add(reply);
+        } else {
+            for (int i = 0; i < sessionState.getRecipients().size(); i++) {
+                this.pendingReplies.add(reply);
+            }
+        }
+    }
+
     private void deliveryCompleted(final ServerState sessionState) {
+        this.deliveryDone = true;
         if (this.mode.equals(DataAckMode.SINGLE)) {
             try {
                 DeliveryResult result = this.pendingDelivery.get();
@@ -190,6 +235,8 @@ public class ReceiveDataCodec implements ProtocolCodec<ServerState> {
                 this.pendingReplies.add(createErrorReply(cause));
             } catch (InterruptedException ex) {
                 this.pendingReplies.add(createErrorReply(ex));
+            } catch (CancellationException ex) {
+                this.pendingReplies.add(createErrorReply(ex));
             }
         } else {
             List<String> recipients = sessionState.getRecipients();
@@ -211,6 +258,11 @@ public class ReceiveDataCodec implements ProtocolCodec<ServerState> {
                 for (String recipient : recipients) {
                     this.pendingReplies.add(reply);
                 }
+            } catch (CancellationException ex) {
+                SMTPReply reply = createErrorReply(ex);
+                for (String recipient : recipients) {
+                    this.pendingReplies.add(reply);
+                }
             } catch (ExecutionException ex) {
                 Throwable cause = ex.getCause();
                 if (cause == null) {
@@ -231,6 +283,9 @@ public class ReceiveDataCodec implements ProtocolCodec<ServerState> {
         } else if (ex instanceof InterruptedException) {
             return new SMTPReply(SMTPCodes.ERR_TRANS_PROCESSING_ERROR,
                     new SMTPCode(4, 2, 0), ex.getMessage());
+        } else if (ex instanceof CancellationException) {
+            return new SMTPReply(SMTPCodes.ERR_TRANS_PROCESSING_ERROR,
+                    new SMTPCode(4, 3, 0), "delivery cancelled");
         } else {
             return new SMTPReply(SMTPCodes.ERR_PERM_TRX_FAILED,
                     new SMTPCode(5, 2, 0), ex.getMessage());
@@ -285,6 +340,10 @@ public class ReceiveDataCodec implements ProtocolCodec<ServerState> {
                         messageId,
                         deliveryRequest,
                         new OutputTrigger<DeliveryResult>(sessionState, iosession));
+                int timeout = this.config.getDeliveryTimeout();
+                if (timeout > 0 && !this.pendingDelivery.isDone()) {
+                    sessionState.setDeadline(System.currentTimeMillis() + timeout);
+                }
             }
         }
     }
@@ -52,6 +52,10 @@ public class SMTPBuffers implements SessionBufferStatus {
         return this.inbuf;
     }
 
+    public long getTotalBytesRead() {
+        return this.inbuf.getTotalBytesRead();
+    }
+
     public SessionOutputBuffer getOutbuf() {
         return this.outbuf;
     }
@@ -14,6 +14,8 @@
  */
 package com.ok2c.lightmtp.impl.protocol;
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 
 import org.apache.http.impl.nio.reactor.SessionInputBufferImpl;
@@ -22,6 +24,8 @@ import com.ok2c.lightmtp.SMTPConsts;
 
 public class SMTPInputBuffer extends SessionInputBufferImpl {
 
+    private long totalBytesRead;
+
     public SMTPInputBuffer(final int buffersize, final int linebuffersize, final Charset charset) {
         super(buffersize, linebuffersize, charset);
     }
@@ -30,6 +34,19 @@ public class SMTPInputBuffer extends SessionInputBufferImpl {
         super(buffersize, linebuffersize, SMTPConsts.ASCII);
     }
 
+    @Override
+    public int fill(final ReadableByteChannel channel) throws IOException {
+        int bytesRead = super.fill(channel);
+        if (bytesRead > 0) {
+            this.totalBytesRead += bytesRead;
+        }
+        return bytesRead;
+    }
+
+    public long getTotalBytesRead() {
+        return this.totalBytesRead;
+    }
+
     @Override
     public void clear() {
         super.clear();
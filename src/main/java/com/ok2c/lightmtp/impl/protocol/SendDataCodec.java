@@ -18,7 +18,9 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectionKey;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.Set;
 
 import org.apache.http.nio.reactor.IOSession;
 import org.apache.http.nio.reactor.SessionInputBuffer;
@@ -27,12 +29,16 @@ import org.apache.http.util.Args;
 import org.apache.http.util.CharArrayBuffer;
 
 import com.ok2c.lightmtp.SMTPCodes;
+import com.ok2c.lightmtp.SMTPCommand;
 import com.ok2c.lightmtp.SMTPConsts;
 import com.ok2c.lightmtp.SMTPProtocolException;
 import com.ok2c.lightmtp.SMTPReply;
+import com.ok2c.lightmtp.message.SMTPCommandWriter;
 import com.ok2c.lightmtp.message.SMTPContent;
 import com.ok2c.lightmtp.message.SMTPMessageParser;
+import com.ok2c.lightmtp.message.SMTPMessageWriter;
 import com.ok2c.lightmtp.message.SMTPReplyParser;
+import com.ok2c.lightmtp.message.content.SharedEncodedContent;
 import com.ok2c.lightmtp.protocol.DeliveryRequest;
 import com.ok2c.lightmtp.protocol.ProtocolCodec;
 import com.ok2c.lightmtp.protocol.ProtocolCodecs;
@@ -56,34 +62,56 @@ public class SendDataCodec implements ProtocolCodec<ClientState> {
     private final SMTPBuffers iobuffers;
     private final int maxLineLen;
     private final DataAckMode mode;
+    private final boolean pipelining;
     private final SMTPMessageParser<SMTPReply> parser;
+    private final SMTPMessageWriter<SMTPCommand> writer;
     private final SMTPInputBuffer contentBuf;
     private final CharArrayBuffer lineBuf;
     private final LinkedList<String> recipients;
 
     private SMTPContent<ReadableByteChannel> content;
     private ReadableByteChannel contentChannel;
+    private ByteBuffer encodedContent;
     private boolean contentSent;
     private CodecState codecState;
 
+    /**
+     * @param pipelining if <code>true</code> the envelop of the next request,
+     *   if available, is sent right after the end of the message content without
+     *   waiting for the server to acknowledge the content.
+     */
     public SendDataCodec(
             final SMTPBuffers iobuffers,
-            final int maxLineLen, final boolean enhancedCodes, final DataAckMode mode) {
+            final int maxLineLen, final boolean enhancedCodes, final DataAckMode mode,
+            final boolean pipelining) {
         super();
         Args.notNull(iobuffers, "IO buffers");
         this.iobuffers = iobuffers;
         this.maxLineLen = maxLineLen;
         this.mode = mode != null ? mode : DataAckMode.SINGLE;
+        this.pipelining = pipelining;
         this.parser = new SMTPReplyParser(enhancedCodes);
+        this.writer = new SMTPCommandWriter();
         this.contentBuf = new SMTPInputBuffer(BUF_SIZE, LINE_SIZE);
         this.lineBuf = new CharArrayBuffer(LINE_SIZE);
         this.recipients = new LinkedList<String>();
         this.codecState = CodecState.CONTENT_READY;
     }
 
+    public SendDataCodec(
+            final SMTPBuffers iobuffers,
+            final int maxLineLen, final boolean enhancedCodes, final DataAckMode mode) {
+        this(iobuffers, maxLineLen, enhancedCodes, mode, false);
+    }
+
+    public SendDataCodec(final SMTPBuffers iobuffers,
+            final boolean enhancedCodes, final DataAckMode mode, final boolean pipelining) {
+        this(iobuffers, SMTPConsts.MAX_LINE_LEN, enhancedCodes, mode, pipelining);
+    }
+
     public SendDataCodec(final SMTPBuffers iobuffers,
             final boolean enhancedCodes, final DataAckMode mode) {
-        this(iobuffers, SMTPConsts.MAX_LINE_LEN, enhancedCodes, mode);
+        this(iobuffers, SMTPConsts.MAX_LINE_LEN, enhancedCodes, mode, false);
     }
 
     public SendDataCodec(final SMTPBuffers iobuffers, final boolean enhancedCodes) {
@@ -107,15 +135,32 @@ public class SendDataCodec implements ProtocolCodec<ClientState> {
         DeliveryRequest request = sessionState.getRequest();
 
         this.parser.reset();
+        this.writer.reset();
         this.contentBuf.clear();
         this.lineBuf.clear();
         this.recipients.clear();
         if (this.mode.equals(DataAckMode.PER_RECIPIENT)) {
-            this.recipients.addAll(request.getRecipients());
+            // The server replies for accepted recipients only
+            Set<String> rejected = new HashSet<String>();
+            for (RcptResult failure: sessionState.getFailures()) {
+                rejected.add(failure.getRecipient());
+            }
+            for (String recipient: request.getRecipients()) {
+                if (!rejected.contains(recipient)) {
+                    this.recipients.add(recipient);
+                }
+            }
         }
 
         this.content = request.getContent();
-        this.contentChannel = this.content.channel();
+        if (this.content instanceof SharedEncodedContent) {
+            // Already dot-stuffed: send as is
+            this.encodedContent = ((SharedEncodedContent) this.content).buffer();
+            this.contentChannel = null;
+        } else {
+            this.encodedContent = null;
+            this.contentChannel = this.content.channel();
+        }
         this.contentSent = false;
         this.codecState = CodecState.CONTENT_READY;
 
@@ -133,6 +178,20 @@ public class SendDataCodec implements ProtocolCodec<ClientState> {
 
         switch (this.codecState) {
         case CONTENT_READY:
+            if (this.encodedContent != null) {
+                int chunk = Math.min(LIMIT - buf.length(), this.encodedContent.remaining());
+                if (chunk > 0) {
+                    int limit = this.encodedContent.limit();
+                    this.encodedContent.limit(this.encodedContent.position() + chunk);
+                    buf.write(this.encodedContent);
+                    this.encodedContent.limit(limit);
+                }
+                if (!this.encodedContent.hasRemaining()) {
+                    this.encodedContent = null;
+                    writeEndOfContent(buf, sessionState);
+                }
+                break;
+            }
             int bytesRead = 0;
             while (buf.length() < LIMIT) {
                 if (!this.contentBuf.hasData()) {
@@ -155,15 +214,7 @@ public class SendDataCodec implements ProtocolCodec<ClientState> {
                     bytesRead = this.contentBuf.fill(this.contentChannel);
                 }
                 if (bytesRead == -1 && !this.contentBuf.hasData()) {
-
-                    this.lineBuf.clear();
-                    this.lineBuf.append('.');
-                    buf.writeLine(this.lineBuf);
-                    this.lineBuf.clear();
-
-                    this.content.reset();
-                    this.contentSent = true;
-                    this.codecState = CodecState.CONTENT_RESPONSE_EXPECTED;
+                    writeEndOfContent(buf, sessionState);
                     break;
                 }
                 if (bytesRead == 0 && !lineComplete) {
@@ -180,6 +231,25 @@ public class SendDataCodec implements ProtocolCodec<ClientState> {
         }
     }
 
+    private void writeEndOfContent(
+            final SessionOutputBuffer buf,
+            final ClientState sessionState) throws IOException, SMTPProtocolException {
+        this.lineBuf.clear();
+        this.lineBuf.append('.');
+        buf.writeLine(this.lineBuf);
+        this.lineBuf.clear();
+
+        this.content.reset();
+        this.contentSent = true;
+        this.codecState = CodecState.CONTENT_RESPONSE_EXPECTED;
+
+        DeliveryRequest next = sessionState.getNextRequest();
+        if (this.pipelining && next != null && !sessionState.isTerminated()) {
+            PipeliningSendEnvelopCodec.writeEnvelop(this.writer, next, buf);
+            sessionState.setEnvelopSent(true);
+        }
+    }
+
     @Override
     public void consumeData(
             final IOSession iosession,
@@ -203,11 +273,13 @@ public class SendDataCodec implements ProtocolCodec<ClientState> {
 
             switch (this.codecState) {
             case CONTENT_RESPONSE_EXPECTED:
-                if (this.mode.equals(DataAckMode.PER_RECIPIENT)) {
-                    String recipient = this.recipients.removeFirst();
+                String recipient = this.recipients.poll();
+                if (recipient != null) {
+                    RcptResult result = new RcptResult(reply, recipient);
                     if (reply.getCode() != SMTPCodes.OK) {
-                        sessionState.getFailures().add(new RcptResult(reply, recipient));
+                        sessionState.getFailures().add(result);
                     }
+                    sessionState.getRecipientResults().add(result);
                 }
                 if (this.recipients.isEmpty()) {
                     this.codecState = CodecState.COMPLETED;
@@ -230,7 +302,7 @@ public class SendDataCodec implements ProtocolCodec<ClientState> {
             final ProtocolCodecs<ClientState> codecs,
             final ClientState sessionState) {
         if (isCompleted()) {
-            if (sessionState.isTerminated()) {
+            if (sessionState.isTerminated() && !sessionState.isEnvelopSent()) {
                 return ProtocolState.QUIT.name();
             }
             return ProtocolState.MAIL.name();
@@ -38,11 +38,17 @@ public class ServerSession {
 
     private ProtocolCodec<ServerState> currentCodec;
     private ProtocolState state;
+    private int socketTimeout;
+    private boolean timerActive;
+    private long bytesRead;
+    private long suspendedUntil;
+    private boolean readSuspended;
 
     public ServerSession(
             final IOSession iosession,
             final SMTPBuffers iobuffers,
-            final ProtocolCodecs<ServerState> codecs) {
+            final ProtocolCodecs<ServerState> codecs,
+            final ServerSessionConfig config) {
         super();
         Args.notNull(iosession, "IO session");
         Args.notNull(iobuffers, "IO buffers");
@@ -50,9 +56,18 @@ public class ServerSession {
         this.iosession = iosession;
         this.iobuffers = iobuffers;
         this.iosession.setBufferStatus(this.iobuffers);
-        this.sessionState = new ServerState("LightMTP SMTP");
+        this.sessionState = new ServerState("LightMTP SMTP", new SessionGovernor(
+                config != null ? config : ServerSessionConfig.DEFAULT));
         this.codecs = codecs;
         this.state = ProtocolState.INIT;
+        this.socketTimeout = iosession.getSocketTimeout();
+    }
+
+    public ServerSession(
+            final IOSession iosession,
+            final SMTPBuffers iobuffers,
+            final ProtocolCodecs<ServerState> codecs) {
+        this(iosession, iobuffers, codecs, null);
     }
 
     private void terminate() {
@@ -91,6 +106,7 @@ public class ServerSession {
         }
         try {
             doConnected();
+            updateTimeout();
         } catch (IOException ex) {
             handleIOException(ex);
         } catch (SMTPProtocolException ex) {
@@ -101,6 +117,8 @@ public class ServerSession {
     public void consumeData() {
         try {
             doConsumeData();
+            throttleInput();
+            updateTimeout();
         } catch (IOException ex) {
             handleIOException(ex);
         } catch (SMTPProtocolException ex) {
@@ -111,6 +129,7 @@ public class ServerSession {
     public void produceData() {
         try {
             doProduceData();
+            updateTimeout();
         } catch (IOException ex) {
             handleIOException(ex);
         } catch (SMTPProtocolException ex) {
@@ -119,6 +138,31 @@ public class ServerSession {
     }
 
     public void timeout() {
+        if (this.suspendedUntil > 0 && System.currentTimeMillis() >= this.suspendedUntil) {
+            resumeInput();
+            updateTimeout();
+            return;
+        }
+        if (!this.sessionState.isTerminated() && this.sessionState.getGovernor().isSessionExpired()) {
+            try {
+                expireSession();
+                updateTimeout();
+            } catch (IOException ex) {
+                handleIOException(ex);
+            } catch (SMTPProtocolException ex) {
+                handleSMTPException(ex);
+            }
+            return;
+        }
+        if (this.sessionState.getDeadline() > 0) {
+            // Let the current codec handle the expired deadline
+            this.iosession.setEvent(SelectionKey.OP_WRITE);
+            return;
+        }
+        if (this.suspendedUntil > 0) {
+            updateTimeout();
+            return;
+        }
         if (this.log.isDebugEnabled()) {
             this.log.error("Connection timed out: " + this.iosession.getRemoteAddress());
         }
@@ -130,6 +174,77 @@ public class ServerSession {
         this.log.debug("Session terminated");
     }
 
+    private void throttleInput() {
+        long total = this.iobuffers.getTotalBytesRead();
+        long n = total - this.bytesRead;
+        this.bytesRead = total;
+        long until = this.sessionState.getGovernor().inputReceived(n);
+        if (until > this.suspendedUntil) {
+            if (this.suspendedUntil == 0 && this.log.isDebugEnabled()) {
+                this.log.debug("Input rate exceeded; suspending input: " + this.iosession.getRemoteAddress());
+            }
+            this.suspendedUntil = until;
+        }
+    }
+
+    private void resumeInput() {
+        this.suspendedUntil = 0;
+        if (this.readSuspended) {
+            this.readSuspended = false;
+            this.iosession.setEvent(SelectionKey.OP_READ);
+        }
+    }
+
+    private void expireSession() throws IOException, SMTPProtocolException {
+        if (this.log.isDebugEnabled()) {
+            this.log.debug("Session duration limit exceeded: " + this.iosession.getRemoteAddress());
+        }
+        this.sessionState.terminated();
+        if (this.state == ProtocolState.MAIL) {
+            // No transaction in progress. Reply with 421 and close the session
+            this.currentCodec.cleanUp();
+            this.state = ProtocolState.QUIT;
+            this.currentCodec = this.codecs.getCodec(ProtocolState.QUIT.name());
+            this.currentCodec.reset(this.iosession, this.sessionState);
+        } else {
+            this.iosession.setEvent(SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void updateTimeout() {
+        if (this.iosession.isClosed()) {
+            return;
+        }
+        if (this.suspendedUntil > 0
+                && (this.iosession.getEventMask() & SelectionKey.OP_READ) != 0) {
+            this.readSuspended = true;
+            this.iosession.clearEvent(SelectionKey.OP_READ);
+        }
+        long wakeup = earliest(this.sessionState.getDeadline(), this.suspendedUntil);
+        if (!this.sessionState.isTerminated()) {
+            wakeup = earliest(wakeup, this.sessionState.getGovernor().getSessionExpiry());
+        }
+        if (wakeup > 0) {
+            long remaining = Math.max(1, wakeup - System.currentTimeMillis());
+            if (this.socketTimeout > 0) {
+                remaining = Math.min(remaining, this.socketTimeout);
+            }
+            this.iosession.setSocketTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+            this.timerActive = true;
+        } else if (this.timerActive) {
+            this.iosession.setSocketTimeout(this.socketTimeout);
+            this.timerActive = false;
+        }
+    }
+
+    private static long earliest(final long t1, final long t2) {
+        if (t1 > 0 && t2 > 0) {
+            return Math.min(t1, t2);
+        } else {
+            return t1 > 0 ? t1 : t2;
+        }
+    }
+
     private void doConnected() throws IOException, SMTPProtocolException {
         if (this.log.isDebugEnabled()) {
             this.log.debug("New incoming connection: " + this.iosession.getRemoteAddress());
@@ -0,0 +1,241 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.protocol;
+
+import org.apache.http.util.Args;
+
+/**
+ * Server side session configuration.
+ */
+public final class ServerSessionConfig {
+
+    public static final ServerSessionConfig DEFAULT = new Builder().build();
+
+    private final int addressValidationTimeout;
+    private final boolean addressValidationFallback;
+    private final int maxMessagesPerSession;
+    private final int maxRecipientsPerTransaction;
+    private final int maxInputRate;
+    private final int maxSessionDuration;
+    private final int envelopValidationTimeout;
+    private final int deliveryTimeout;
+
+    ServerSessionConfig(
+            final int addressValidationTimeout,
+            final boolean addressValidationFallback,
+            final int maxMessagesPerSession,
+            final int maxRecipientsPerTransaction,
+            final int maxInputRate,
+            final int maxSessionDuration,
+            final int envelopValidationTimeout,
+            final int deliveryTimeout) {
+        super();
+        this.addressValidationTimeout = addressValidationTimeout;
+        this.addressValidationFallback = addressValidationFallback;
+        this.maxMessagesPerSession = maxMessagesPerSession;
+        this.maxRecipientsPerTransaction = maxRecipientsPerTransaction;
+        this.maxInputRate = maxInputRate;
+        this.maxSessionDuration = maxSessionDuration;
+        this.envelopValidationTimeout = envelopValidationTimeout;
+        this.deliveryTimeout = deliveryTimeout;
+    }
+
+    /**
+     * Maximum time in milliseconds to wait for asynchronous remote address
+     * validation to complete. <code>0</code> means no deadline.
+     * <p/>
+     * Default: <code>0</code>
+     */
+    public int getAddressValidationTimeout() {
+        return this.addressValidationTimeout;
+    }
+
+    /**
+     * Verdict to apply when asynchronous remote address validation fails
+     * or does not complete within the deadline.
+     * <p/>
+     * Default: <code>true</code>
+     */
+    public boolean getAddressValidationFallback() {
+        return this.addressValidationFallback;
+    }
+
+    /**
+     * Maximum number of mail transactions per session. <code>0</code> means no limit.
+     * <p/>
+     * Default: <code>0</code>
+     */
+    public int getMaxMessagesPerSession() {
+        return this.maxMessagesPerSession;
+    }
+
+    /**
+     * Maximum number of recipients per mail transaction. <code>0</code> means no limit.
+     * <p/>
+     * Default: <code>0</code>
+     */
+    public int getMaxRecipientsPerTransaction() {
+        return this.maxRecipientsPerTransaction;
+    }
+
+    /**
+     * Maximum rate in bytes per second at which data is read from the client.
+     * Input from clients exceeding the rate is suspended. <code>0</code> means no limit.
+     * <p/>
+     * Default: <code>0</code>
+     */
+    public int getMaxInputRate() {
+        return this.maxInputRate;
+    }
+
+    /**
+     * Maximum session duration in milliseconds. <code>0</code> means no limit.
+     * <p/>
+     * Default: <code>0</code>
+     */
+    public int getMaxSessionDuration() {
+        return this.maxSessionDuration;
+    }
+
+    /**
+     * Maximum time in milliseconds to wait for the sender or a recipient
+     * validation to complete. <code>0</code> means no deadline.
+     * <p/>
+     * Default: <code>0</code>
+     */
+    public int getEnvelopValidationTimeout() {
+        return this.envelopValidationTimeout;
+    }
+
+    /**
+     * Maximum time in milliseconds to wait for message delivery to complete.
+     * <code>0</code> means no deadline.
+     * <p/>
+     * Default: <code>0</code>
+     */
+    public int getDeliveryTimeout() {
+        return this.deliveryTimeout;
+    }
+
+    public static Builder custom() {
+        return new Builder();
+    }
+
+    public static Builder copy(final ServerSessionConfig config) {
+        Args.notNull(config, "Session config");
+        return new Builder()
+            .setAddressValidationTimeout(config.getAddressValidationTimeout())
+            .setAddressValidationFallback(config.getAddressValidationFallback())
+            .setMaxMessagesPerSession(config.getMaxMessagesPerSession())
+            .setMaxRecipientsPerTransaction(config.getMaxRecipientsPerTransaction())
+            .setMaxInputRate(config.getMaxInputRate())
+            .setMaxSessionDuration(config.getMaxSessionDuration())
+            .setEnvelopValidationTimeout(config.getEnvelopValidationTimeout())
+            .setDeliveryTimeout(config.getDeliveryTimeout());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[addressValidationTimeout=").append(this.addressValidationTimeout)
+                .append(", addressValidationFallback=").append(this.addressValidationFallback)
+                .append(", maxMessagesPerSession=").append(this.maxMessagesPerSession)
+                .append(", maxRecipientsPerTransaction=").append(this.maxRecipientsPerTransaction)
+                .append(", maxInputRate=").append(this.maxInputRate)
+                .append(", maxSessionDuration=").append(this.maxSessionDuration)
+                .append(", envelopValidationTimeout=").append(this.envelopValidationTimeout)
+                .append(", deliveryTimeout=").append(this.deliveryTimeout)
+                .append("]");
+        return buffer.toString();
+    }
+
+    public static class Builder {
+
+        private int addressValidationTimeout;
+        private boolean addressValidationFallback;
+        private int maxMessagesPerSession;
+        private int maxRecipientsPerTransaction;
+        private int maxInputRate;
+        private int maxSessionDuration;
+        private int envelopValidationTimeout;
+        private int deliveryTimeout;
+
+        Builder() {
+            this.addressValidationTimeout = 0;
+            this.addressValidationFallback = true;
+        }
+
+        public Builder setAddressValidationTimeout(final int addressValidationTimeout) {
+            Args.notNegative(addressValidationTimeout, "Address validation timeout");
+            this.addressValidationTimeout = addressValidationTimeout;
+            return this;
+        }
+
+        public Builder setAddressValidationFallback(final boolean addressValidationFallback) {
+            this.addressValidationFallback = addressValidationFallback;
+            return this;
+        }
+
+        public Builder setMaxMessagesPerSession(final int maxMessagesPerSession) {
+            Args.notNegative(maxMessagesPerSession, "Max messages per session");
+            this.maxMessagesPerSession = maxMessagesPerSession;
+            return this;
+        }
+
+        public Builder setMaxRecipientsPerTransaction(final int maxRecipientsPerTransaction) {
+            Args.notNegative(maxRecipientsPerTransaction, "Max recipients per transaction");
+            this.maxRecipientsPerTransaction = maxRecipientsPerTransaction;
+            return this;
+        }
+
+        public Builder setMaxInputRate(final int maxInputRate) {
+            Args.notNegative(maxInputRate, "Max input rate");
+            this.maxInputRate = maxInputRate;
+            return this;
+        }
+
+        public Builder setMaxSessionDuration(final int maxSessionDuration) {
+            Args.notNegative(maxSessionDuration, "Max session duration");
+            this.maxSessionDuration = maxSessionDuration;
+            return this;
+        }
+
+        public Builder setEnvelopValidationTimeout(final int envelopValidationTimeout) {
+            Args.notNegative(envelopValidationTimeout, "Envelop validation timeout");
+            this.envelopValidationTimeout = envelopValidationTimeout;
+            return this;
+        }
+
+        public Builder setDeliveryTimeout(final int deliveryTimeout) {
+            Args.notNegative(deliveryTimeout, "Delivery timeout");
+            this.deliveryTimeout = deliveryTimeout;
+            return this;
+        }
+
+        public ServerSessionConfig build() {
+            return new ServerSessionConfig(
+                    this.addressValidationTimeout,
+                    this.addressValidationFallback,
+                    this.maxMessagesPerSession,
+                    this.maxRecipientsPerTransaction,
+                    this.maxInputRate,
+                    this.maxSessionDuration,
+                    this.envelopValidationTimeout,
+                    this.deliveryTimeout);
+        }
+
+    }
+
+}
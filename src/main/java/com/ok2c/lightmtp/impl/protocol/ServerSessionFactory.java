@@ -31,6 +31,7 @@ import com.ok2c.lightmtp.impl.protocol.cmd.QuitHandler;
 import com.ok2c.lightmtp.impl.protocol.cmd.RcptToHandler;
 import com.ok2c.lightmtp.impl.protocol.cmd.RsetHandler;
 import com.ok2c.lightmtp.impl.protocol.cmd.VrfyHandler;
+import com.ok2c.lightmtp.protocol.AsyncRemoteAddressValidator;
 import com.ok2c.lightmtp.protocol.DeliveryHandler;
 import com.ok2c.lightmtp.protocol.EnvelopValidator;
 import com.ok2c.lightmtp.protocol.ProtocolCodecs;
@@ -47,15 +48,21 @@ public class ServerSessionFactory implements SessionFactory<ServerSession> {
     private final File workingDir;
     private final UniqueIdGenerator idgenerator;
     private final RemoteAddressValidator addressValidator;
+    private final AsyncRemoteAddressValidator asyncAddressValidator;
     private final EnvelopValidator validator;
     private final DeliveryHandler deliveryHandler;
+    private final ServerSessionConfig config;
+    private final ServerSessionMetrics metrics;
 
-    public ServerSessionFactory(
+    private ServerSessionFactory(
             final File workingDir,
             final UniqueIdGenerator idgenerator,
             final RemoteAddressValidator addressValidator,
+            final AsyncRemoteAddressValidator asyncAddressValidator,
             final EnvelopValidator validator,
-            final DeliveryHandler deliveryHandler) {
+            final DeliveryHandler deliveryHandler,
+            final ServerSessionConfig config,
+            final ServerSessionMetrics metrics) {
         super();
         Args.notNull(workingDir, "Working dir");
         Args.notNull(idgenerator, "Id generator");
@@ -64,22 +71,71 @@ public class ServerSessionFactory implements SessionFactory<ServerSession> {
         this.workingDir = workingDir;
         this.idgenerator = idgenerator;
         this.addressValidator = addressValidator;
+        this.asyncAddressValidator = asyncAddressValidator;
         this.validator = validator;
         this.deliveryHandler = deliveryHandler;
+        this.config = config != null ? config : ServerSessionConfig.DEFAULT;
+        this.metrics = metrics != null ? metrics : new ServerSessionMetrics();
+    }
+
+    public ServerSessionFactory(
+            final File workingDir,
+            final UniqueIdGenerator idgenerator,
+            final RemoteAddressValidator addressValidator,
+            final EnvelopValidator validator,
+            final DeliveryHandler deliveryHandler,
+            final ServerSessionConfig config,
+            final ServerSessionMetrics metrics) {
+        this(workingDir, idgenerator, addressValidator, null, validator, deliveryHandler,
+                config, metrics);
+    }
+
+    public ServerSessionFactory(
+            final File workingDir,
+            final UniqueIdGenerator idgenerator,
+            final RemoteAddressValidator addressValidator,
+            final EnvelopValidator validator,
+            final DeliveryHandler deliveryHandler) {
+        this(workingDir, idgenerator, addressValidator, null, validator, deliveryHandler,
+                null, null);
+    }
+
+    public ServerSessionFactory(
+            final File workingDir,
+            final UniqueIdGenerator idgenerator,
+            final AsyncRemoteAddressValidator asyncAddressValidator,
+            final EnvelopValidator validator,
+            final DeliveryHandler deliveryHandler,
+            final ServerSessionConfig config,
+            final ServerSessionMetrics metrics) {
+        this(workingDir, idgenerator, null, asyncAddressValidator, validator, deliveryHandler,
+                config, metrics);
+    }
+
+    public ServerSessionMetrics getMetrics() {
+        return this.metrics;
     }
 
     @Override
     public ServerSession create(final IOSession iosession) {
         SMTPBuffers iobuffers = new SMTPBuffers();
         ProtocolCodecs<ServerState> codecs = new ProtocolCodecRegistry<ServerState>();
-        codecs.register(ProtocolState.INIT.name(),
-                new ServiceReadyCodec(iobuffers, this.addressValidator));
+        if (this.asyncAddressValidator != null) {
+            codecs.register(ProtocolState.INIT.name(),
+                    new ServiceReadyCodec(iobuffers, this.asyncAddressValidator,
+                            this.config, this.metrics));
+        } else {
+            codecs.register(ProtocolState.INIT.name(),
+                    new ServiceReadyCodec(iobuffers, this.addressValidator));
+        }
         codecs.register(ProtocolState.MAIL.name(),
                 new PipeliningReceiveEnvelopCodec(iobuffers,
-                        createProtocolHandler(this.idgenerator, this.validator)));
+                        createProtocolHandler(this.idgenerator, this.validator),
+                        this.config, this.metrics));
         codecs.register(ProtocolState.DATA.name(),
                 new ReceiveDataCodec(iobuffers,
-                        this.workingDir, this.deliveryHandler, DataAckMode.SINGLE));
+                        this.workingDir, this.deliveryHandler, DataAckMode.SINGLE,
+                        this.config, this.metrics));
         codecs.register(ProtocolState.QUIT.name(),
                 new ServiceShutdownCodec(iobuffers));
         final IOSession localIOSession;
@@ -88,7 +144,7 @@ public class ServerSessionFactory implements SessionFactory<ServerSession> {
         } else {
             localIOSession = iosession;
         }
-        return new ServerSession(localIOSession, iobuffers, codecs);
+        return new ServerSession(localIOSession, iobuffers, codecs, this.config);
     }
 
     protected ProtocolHandler<ServerState> createProtocolHandler(
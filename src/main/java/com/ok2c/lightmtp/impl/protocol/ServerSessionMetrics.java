@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server side session counters shared by all sessions created by the same
+ * session factory.
+ */
+public class ServerSessionMetrics {
+
+    private final AtomicLong addressValidationTimeouts;
+    private final AtomicLong envelopValidationTimeouts;
+    private final AtomicLong deliveryTimeouts;
+
+    public ServerSessionMetrics() {
+        super();
+        this.addressValidationTimeouts = new AtomicLong();
+        this.envelopValidationTimeouts = new AtomicLong();
+        this.deliveryTimeouts = new AtomicLong();
+    }
+
+    public long getAddressValidationTimeouts() {
+        return this.addressValidationTimeouts.get();
+    }
+
+    public void incrementAddressValidationTimeouts() {
+        this.addressValidationTimeouts.incrementAndGet();
+    }
+
+    public long getEnvelopValidationTimeouts() {
+        return this.envelopValidationTimeouts.get();
+    }
+
+    public void incrementEnvelopValidationTimeouts() {
+        this.envelopValidationTimeouts.incrementAndGet();
+    }
+
+    public long getDeliveryTimeouts() {
+        return this.deliveryTimeouts.get();
+    }
+
+    public void incrementDeliveryTimeouts() {
+        this.deliveryTimeouts.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[address validation timeouts: ");
+        buffer.append(this.addressValidationTimeouts.get());
+        buffer.append("][envelop validation timeouts: ");
+        buffer.append(this.envelopValidationTimeouts.get());
+        buffer.append("][delivery timeouts: ");
+        buffer.append(this.deliveryTimeouts.get());
+        buffer.append("]");
+        return buffer.toString();
+    }
+
+}
@@ -28,6 +28,7 @@ public class ServerState {
     private final Set<String> extensions;
     private final String serverId;
     private final LinkedList<String> recipients;
+    private final SessionGovernor governor;
 
     private ClientType clientType;
     private InetAddress client;
@@ -37,8 +38,9 @@ public class ServerState {
     private DataType dataType;
     private MIMEEncoding mimeEncoding;
     private boolean terminated;
+    private long deadline;
 
-    public ServerState(final String serverId) {
+    public ServerState(final String serverId, final SessionGovernor governor) {
         super();
         Set<String> exts = new HashSet<String>();
         exts.add(SMTPExtensions.ENHANCEDSTATUSCODES);
@@ -47,6 +49,11 @@ public class ServerState {
         this.extensions = Collections.unmodifiableSet(exts);
         this.serverId = serverId;
         this.recipients = new LinkedList<String>();
+        this.governor = governor != null ? governor : new SessionGovernor(ServerSessionConfig.DEFAULT);
+    }
+
+    public ServerState(final String serverId) {
+        this(serverId, null);
     }
 
     public String getServerId() {
@@ -57,6 +64,10 @@ public class ServerState {
         return this.extensions;
     }
 
+    public SessionGovernor getGovernor() {
+        return this.governor;
+    }
+
     public InetAddress getClient() {
         return this.client;
     }
@@ -125,6 +136,22 @@ public class ServerState {
         this.terminated = true;
     }
 
+    public long getDeadline() {
+        return this.deadline;
+    }
+
+    /**
+     * Sets the absolute time (in milliseconds) by which a pending asynchronous
+     * operation is expected to complete. <code>0</code> clears the deadline.
+     */
+    public void setDeadline(final long deadline) {
+        this.deadline = deadline;
+    }
+
+    public boolean isDeadlineExpired() {
+        return this.deadline > 0 && System.currentTimeMillis() >= this.deadline;
+    }
+
     public void reset() {
         this.sender = null;
         this.messageId = null;
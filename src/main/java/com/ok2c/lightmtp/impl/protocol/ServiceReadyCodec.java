@@ -18,6 +18,9 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.http.nio.reactor.IOSession;
 import org.apache.http.nio.reactor.SessionOutputBuffer;
@@ -28,6 +31,7 @@ import com.ok2c.lightmtp.SMTPProtocolException;
 import com.ok2c.lightmtp.SMTPReply;
 import com.ok2c.lightmtp.message.SMTPMessageWriter;
 import com.ok2c.lightmtp.message.SMTPReplyWriter;
+import com.ok2c.lightmtp.protocol.AsyncRemoteAddressValidator;
 import com.ok2c.lightmtp.protocol.ProtocolCodec;
 import com.ok2c.lightmtp.protocol.ProtocolCodecs;
 import com.ok2c.lightmtp.protocol.RemoteAddressValidator;
@@ -36,9 +40,14 @@ public class ServiceReadyCodec implements ProtocolCodec<ServerState> {
 
     private final SMTPBuffers iobuffers;
     private final RemoteAddressValidator addressValidator;
+    private final AsyncRemoteAddressValidator asyncAddressValidator;
+    private final ServerSessionConfig config;
+    private final ServerSessionMetrics metrics;
     private final SMTPMessageWriter<SMTPReply> writer;
 
+    private Future<Boolean> pendingValidation;
     private SMTPReply pendingReply;
+    private boolean rejected;
     private boolean completed;
 
     public ServiceReadyCodec(
@@ -48,11 +57,33 @@ public class ServiceReadyCodec implements ProtocolCodec<ServerState> {
         Args.notNull(iobuffers, "IO buffers");
         this.iobuffers = iobuffers;
         this.addressValidator = addressValidator;
+        this.asyncAddressValidator = null;
+        this.config = ServerSessionConfig.DEFAULT;
+        this.metrics = null;
+        this.writer = new SMTPReplyWriter();
+    }
+
+    public ServiceReadyCodec(
+            final SMTPBuffers iobuffers,
+            final AsyncRemoteAddressValidator asyncAddressValidator,
+            final ServerSessionConfig config,
+            final ServerSessionMetrics metrics) {
+        super();
+        Args.notNull(iobuffers, "IO buffers");
+        this.iobuffers = iobuffers;
+        this.addressValidator = null;
+        this.asyncAddressValidator = asyncAddressValidator;
+        this.config = config != null ? config : ServerSessionConfig.DEFAULT;
+        this.metrics = metrics;
         this.writer = new SMTPReplyWriter();
     }
 
     @Override
     public void cleanUp() {
+        if (this.pendingValidation != null) {
+            this.pendingValidation.cancel(true);
+            this.pendingValidation = null;
+        }
     }
 
     @Override
@@ -60,6 +91,10 @@ public class ServiceReadyCodec implements ProtocolCodec<ServerState> {
             final IOSession iosession,
             final ServerState sessionState) throws IOException, SMTPProtocolException {
         this.writer.reset();
+        this.pendingValidation = null;
+        this.pendingReply = null;
+        this.rejected = false;
+        this.completed = false;
 
         InetSocketAddress socketAddress = (InetSocketAddress) iosession.getRemoteAddress();
         InetAddress clientAddress = socketAddress.getAddress();
@@ -74,13 +109,46 @@ public class ServiceReadyCodec implements ProtocolCodec<ServerState> {
 
         sessionState.setClientAddress(clientAddress);
 
-        this.pendingReply = new SMTPReply(SMTPCodes.SERVICE_READY, null,
-                sessionState.getServerId() + " service ready");
-        this.completed = false;
+        if (this.asyncAddressValidator != null) {
+            synchronized (sessionState) {
+                iosession.setEventMask(0);
+                this.pendingValidation = this.asyncAddressValidator.validateAddress(
+                        clientAddress, new OutputTrigger<Boolean>(sessionState, iosession));
+                int timeout = this.config.getAddressValidationTimeout();
+                if (timeout > 0) {
+                    sessionState.setDeadline(System.currentTimeMillis() + timeout);
+                }
+                if (this.pendingValidation.isDone()) {
+                    iosession.setEvent(SelectionKey.OP_WRITE);
+                }
+            }
+            return;
+        }
+
+        this.pendingReply = createServiceReadyReply(sessionState);
 
         iosession.setEventMask(SelectionKey.OP_WRITE);
     }
 
+    private SMTPReply createServiceReadyReply(final ServerState sessionState) {
+        return new SMTPReply(SMTPCodes.SERVICE_READY, null,
+                sessionState.getServerId() + " service ready");
+    }
+
+    private boolean getVerdict(final Future<Boolean> future) {
+        try {
+            Boolean result = future.get();
+            return result != null ? result.booleanValue() : this.config.getAddressValidationFallback();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return this.config.getAddressValidationFallback();
+        } catch (ExecutionException ex) {
+            return this.config.getAddressValidationFallback();
+        } catch (CancellationException ex) {
+            return this.config.getAddressValidationFallback();
+        }
+    }
+
     @Override
     public void produceData(
             final IOSession iosession,
@@ -90,17 +158,52 @@ public class ServiceReadyCodec implements ProtocolCodec<ServerState> {
 
         SessionOutputBuffer buf = this.iobuffers.getOutbuf();
 
-        if (this.pendingReply != null) {
-            this.writer.write(this.pendingReply, buf);
-            this.pendingReply = null;
-        }
+        synchronized (sessionState) {
+            if (this.pendingValidation != null) {
+                boolean verdict;
+                if (this.pendingValidation.isDone()) {
+                    verdict = getVerdict(this.pendingValidation);
+                } else if (sessionState.isDeadlineExpired()) {
+                    if (this.pendingValidation.cancel(true) || !this.pendingValidation.isDone()) {
+                        if (this.metrics != null) {
+                            this.metrics.incrementAddressValidationTimeouts();
+                        }
+                        verdict = this.config.getAddressValidationFallback();
+                    } else {
+                        verdict = getVerdict(this.pendingValidation);
+                    }
+                } else {
+                    iosession.clearEvent(SelectionKey.OP_WRITE);
+                    return;
+                }
+                this.pendingValidation = null;
+                sessionState.setDeadline(0);
+                if (verdict) {
+                    this.pendingReply = createServiceReadyReply(sessionState);
+                } else {
+                    sessionState.terminated();
+                    this.rejected = true;
+                    this.pendingReply = new SMTPReply(SMTPCodes.ERR_PERM_TRX_FAILED, null,
+                            sessionState.getServerId() + " no SMTP service here");
+                }
+            }
 
-        if (buf.hasData()) {
-            buf.flush(iosession.channel());
-        }
-        if (!buf.hasData()) {
-            this.completed = true;
-            iosession.setEventMask(SelectionKey.OP_READ);
+            if (this.pendingReply != null) {
+                this.writer.write(this.pendingReply, buf);
+                this.pendingReply = null;
+            }
+
+            if (buf.hasData()) {
+                buf.flush(iosession.channel());
+            }
+            if (!buf.hasData()) {
+                if (this.rejected) {
+                    iosession.close();
+                } else {
+                    this.completed = true;
+                    iosession.setEventMask(SelectionKey.OP_READ);
+                }
+            }
         }
     }
 
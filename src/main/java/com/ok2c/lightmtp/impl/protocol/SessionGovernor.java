@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.protocol;
+
+import org.apache.http.util.Args;
+
+import com.ok2c.lightmtp.util.TokenBucket;
+
+/**
+ * Enforces per-session resource budgets defined by {@link ServerSessionConfig}.
+ */
+public class SessionGovernor {
+
+    private final ServerSessionConfig config;
+    private final long sessionStart;
+    private final TokenBucket inputBucket;
+
+    private int messageCount;
+
+    public SessionGovernor(final ServerSessionConfig config) {
+        super();
+        Args.notNull(config, "Session config");
+        this.config = config;
+        this.sessionStart = System.currentTimeMillis();
+        int maxInputRate = config.getMaxInputRate();
+        this.inputBucket = maxInputRate > 0 ? new TokenBucket(maxInputRate, maxInputRate) : null;
+    }
+
+    public ServerSessionConfig getConfig() {
+        return this.config;
+    }
+
+    public int getMessageCount() {
+        return this.messageCount;
+    }
+
+    public void messageStarted() {
+        this.messageCount++;
+    }
+
+    public boolean isMessageLimitReached() {
+        int max = this.config.getMaxMessagesPerSession();
+        return max > 0 && this.messageCount >= max;
+    }
+
+    public boolean isRecipientLimitReached(final int recipientCount) {
+        int max = this.config.getMaxRecipientsPerTransaction();
+        return max > 0 && recipientCount >= max;
+    }
+
+    /**
+     * Returns the absolute time (in milliseconds) the session expires at
+     * or <code>0</code> if the session duration is not limited.
+     */
+    public long getSessionExpiry() {
+        int max = this.config.getMaxSessionDuration();
+        return max > 0 ? this.sessionStart + max : 0;
+    }
+
+    public boolean isSessionExpired() {
+        long expiry = getSessionExpiry();
+        return expiry > 0 && System.currentTimeMillis() >= expiry;
+    }
+
+    /**
+     * Accounts for the given number of bytes received from the client.
+     *
+     * @return the absolute time (in milliseconds) until which input from the client
+     *   should be suspended or <code>0</code> if the session is within its budget.
+     */
+    public long inputReceived(final long bytes) {
+        if (this.inputBucket == null || bytes <= 0) {
+            return 0;
+        }
+        this.inputBucket.consume(bytes);
+        long delay = this.inputBucket.getDelay(0);
+        return delay > 0 ? System.currentTimeMillis() + delay : 0;
+    }
+
+}
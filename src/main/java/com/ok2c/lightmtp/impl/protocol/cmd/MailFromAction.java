@@ -51,6 +51,10 @@ class MailFromAction extends AbstractAsyncAction<ServerState> {
             return new SMTPReply(SMTPCodes.ERR_PERM_BAD_SEQUENCE,
                     new SMTPCode(5, 5, 1),
                     "bad sequence of commands");
+        } else if (state.getGovernor().isMessageLimitReached()) {
+            return new SMTPReply(SMTPCodes.ERR_TRANS_PROCESSING_ERROR,
+                    new SMTPCode(4, 7, 0),
+                    "too many messages in this session");
         } else {
             return null;
         }
@@ -69,6 +73,7 @@ class MailFromAction extends AbstractAsyncAction<ServerState> {
         if (reply.getCode() == SMTPCodes.OK) {
             state.setMimeEncoding(this.mimeEncoding);
             state.setSender(this.sender);
+            state.getGovernor().messageStarted();
         }
     }
 
@@ -41,6 +41,10 @@ class RcptToAction extends AbstractAsyncAction<ServerState> {
             return new SMTPReply(SMTPCodes.ERR_PERM_BAD_SEQUENCE,
                     new SMTPCode(5, 5, 1),
                     "bad sequence of commands");
+        } else if (state.getGovernor().isRecipientLimitReached(state.getRecipients().size())) {
+            return new SMTPReply(SMTPCodes.ERR_TRANS_INSUFFICIENT_STORAGE,
+                    new SMTPCode(4, 5, 3),
+                    "too many recipients");
         } else {
             return null;
         }
@@ -0,0 +1,207 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.resolver;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.util.Args;
+
+import com.ok2c.lightmtp.agent.EndpointResolver;
+import com.ok2c.lightmtp.agent.ResolvedEndpoints;
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+
+/**
+ * Caches resolution results of another resolver for the duration of their TTL,
+ * capped at the maximum TTL. Domains that resolve to no endpoints are cached
+ * for the negative TTL.
+ * <p/>
+ * If a prefetch executor is given, entries that are looked up within the last
+ * tenth of their lifetime get refreshed in the background, so that frequently
+ * used domains never expire. If a refresh fails with an I/O error the expired
+ * entry continues to be served until a lookup succeeds.
+ * <p/>
+ * The cache holds at most the given number of domains. Once full, expired and
+ * negative entries are purged first, then live entries in no particular order.
+ */
+public class CachingEndpointResolver implements EndpointResolver {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final EndpointResolver resolver;
+    private final long maxTtl;
+    private final long negativeTtl;
+    private final Executor prefetchExecutor;
+    private final int maxEntries;
+    private final ConcurrentMap<String, CacheEntry> cache;
+
+    /**
+     * @param resolver resolver to delegate lookups to.
+     * @param maxTtl maximum time in milliseconds results get cached for.
+     * @param negativeTtl time in milliseconds empty results get cached for.
+     * @param prefetchExecutor executor to refresh entries before they expire.
+     *   If <code>null</code> entries get refreshed on the calling thread
+     *   once expired.
+     * @param maxEntries maximum number of domains to cache.
+     */
+    public CachingEndpointResolver(
+            final EndpointResolver resolver,
+            final long maxTtl,
+            final long negativeTtl,
+            final Executor prefetchExecutor,
+            final int maxEntries) {
+        super();
+        Args.notNull(resolver, "Endpoint resolver");
+        Args.notNegative(maxTtl, "Max TTL");
+        Args.notNegative(negativeTtl, "Negative TTL");
+        Args.positive(maxEntries, "Max entries");
+        this.resolver = resolver;
+        this.maxTtl = maxTtl;
+        this.negativeTtl = negativeTtl;
+        this.prefetchExecutor = prefetchExecutor;
+        this.maxEntries = maxEntries;
+        this.cache = new ConcurrentHashMap<String, CacheEntry>();
+    }
+
+    public CachingEndpointResolver(
+            final EndpointResolver resolver,
+            final long maxTtl,
+            final long negativeTtl,
+            final Executor prefetchExecutor) {
+        this(resolver, maxTtl, negativeTtl, prefetchExecutor, DEFAULT_MAX_ENTRIES);
+    }
+
+    public CachingEndpointResolver(final EndpointResolver resolver) {
+        this(resolver, 3600000, 60000, null);
+    }
+
+    @Override
+    public ResolvedEndpoints resolve(final String domain) throws IOException {
+        Args.notBlank(domain, "Domain");
+        final String key = domain.toLowerCase(Locale.ROOT);
+        long now = currentTime();
+        final CacheEntry entry = this.cache.get(key);
+        if (entry != null && now < entry.expiry) {
+            if (this.prefetchExecutor != null && now >= entry.refreshTime
+                    && entry.refreshing.compareAndSet(false, true)) {
+                try {
+                    this.prefetchExecutor.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            try {
+                                lookup(key, entry);
+                            } catch (IOException ex) {
+                                entry.refreshing.set(false);
+                            }
+                        }
+
+                    });
+                } catch (RejectedExecutionException ex) {
+                    entry.refreshing.set(false);
+                }
+            }
+            return entry.result;
+        }
+        try {
+            return lookup(key, entry).result;
+        } catch (IOException ex) {
+            if (entry != null) {
+                // Serve stale
+                return entry.result;
+            }
+            throw ex;
+        }
+    }
+
+    private CacheEntry lookup(final String key, final CacheEntry oldEntry) throws IOException {
+        ResolvedEndpoints result = this.resolver.resolve(key);
+        if (result == null) {
+            result = new ResolvedEndpoints(Collections.<SessionEndpoint>emptyList(), 0);
+        }
+        long ttl = result.isEmpty() ? this.negativeTtl : Math.min(result.getTtl(), this.maxTtl);
+        CacheEntry newEntry = new CacheEntry(result, currentTime(), ttl);
+        if (oldEntry != null) {
+            this.cache.replace(key, oldEntry, newEntry);
+        } else {
+            if (this.cache.size() >= this.maxEntries) {
+                purge(newEntry.created);
+            }
+            this.cache.put(key, newEntry);
+        }
+        return newEntry;
+    }
+
+    private void purge(final long now) {
+        for (Iterator<CacheEntry> it = this.cache.values().iterator(); it.hasNext(); ) {
+            CacheEntry entry = it.next();
+            if (now >= entry.expiry || entry.result.isEmpty()) {
+                it.remove();
+            }
+        }
+        // Free a tenth of the capacity at once so that a full cache of live
+        // entries does not get scanned on every insert
+        int target = this.maxEntries - Math.max(1, this.maxEntries / 10);
+        for (Iterator<CacheEntry> it = this.cache.values().iterator();
+                it.hasNext() && this.cache.size() > target; ) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    long currentTime() {
+        return System.currentTimeMillis();
+    }
+
+    public void invalidate(final String domain) {
+        Args.notBlank(domain, "Domain");
+        this.cache.remove(domain.toLowerCase(Locale.ROOT));
+    }
+
+    public void clear() {
+        this.cache.clear();
+    }
+
+    public int size() {
+        return this.cache.size();
+    }
+
+    static class CacheEntry {
+
+        final ResolvedEndpoints result;
+        final long created;
+        final long expiry;
+        final long refreshTime;
+        final AtomicBoolean refreshing;
+
+        CacheEntry(final ResolvedEndpoints result, final long created, final long ttl) {
+            super();
+            this.result = result;
+            this.created = created;
+            this.expiry = ttl < Long.MAX_VALUE - created ? created + ttl : Long.MAX_VALUE;
+            this.refreshTime = this.expiry - ttl / 10;
+            this.refreshing = new AtomicBoolean(false);
+        }
+
+    }
+
+}
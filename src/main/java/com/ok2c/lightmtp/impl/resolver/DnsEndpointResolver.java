@@ -0,0 +1,149 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.resolver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+import org.apache.http.util.Args;
+
+import com.ok2c.lightmtp.agent.EndpointResolver;
+import com.ok2c.lightmtp.agent.ResolvedEndpoints;
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+
+/**
+ * Resolves domains to their MX hosts using the JNDI DNS provider. MX hosts are
+ * ordered by preference. Domains without MX records resolve to the domain itself
+ * as the implicit MX as per RFC 5321. A null MX record (RFC 7505) resolves to
+ * an empty endpoint list.
+ * <p/>
+ * The JNDI DNS provider does not expose record TTLs, so results are given
+ * a fixed TTL.
+ */
+public class DnsEndpointResolver implements EndpointResolver {
+
+    private static final String[] MX = new String[] { "MX" };
+
+    private final int port;
+    private final long ttl;
+    private final Hashtable<String, String> env;
+
+    /**
+     * @param port port of the resolved endpoints.
+     * @param ttl time in milliseconds resolution results may be cached for.
+     * @param dnsUrl DNS server URL such as <code>dns://10.0.0.1</code>.
+     *   If <code>null</code> the system DNS configuration is used.
+     */
+    public DnsEndpointResolver(final int port, final long ttl, final String dnsUrl) {
+        super();
+        Args.positive(port, "Port");
+        Args.notNegative(ttl, "TTL");
+        this.port = port;
+        this.ttl = ttl;
+        this.env = new Hashtable<String, String>();
+        this.env.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
+        if (dnsUrl != null) {
+            this.env.put("java.naming.provider.url", dnsUrl);
+        }
+    }
+
+    public DnsEndpointResolver() {
+        this(25, 300000, null);
+    }
+
+    @Override
+    public ResolvedEndpoints resolve(final String domain) throws IOException {
+        Args.notBlank(domain, "Domain");
+        List<MxRecord> records = new ArrayList<MxRecord>();
+        try {
+            DirContext context = new InitialDirContext(this.env);
+            try {
+                Attributes attributes = context.getAttributes(domain, MX);
+                Attribute attribute = attributes.get("MX");
+                if (attribute != null) {
+                    NamingEnumeration<?> values = attribute.getAll();
+                    while (values.hasMore()) {
+                        String[] tokens = values.next().toString().trim().split("\\s+");
+                        if (tokens.length == 2) {
+                            records.add(new MxRecord(Integer.parseInt(tokens[0]), tokens[1]));
+                        }
+                    }
+                }
+            } finally {
+                context.close();
+            }
+        } catch (NameNotFoundException ex) {
+            return new ResolvedEndpoints(Collections.<SessionEndpoint>emptyList(), this.ttl);
+        } catch (NamingException ex) {
+            IOException ioex = new IOException("DNS lookup of " + domain + " failed: " + ex.getMessage());
+            ioex.initCause(ex);
+            throw ioex;
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid MX record for " + domain);
+        }
+        List<SessionEndpoint> endpoints = new ArrayList<SessionEndpoint>(records.size());
+        if (records.isEmpty()) {
+            endpoints.add(new SessionEndpoint(new InetSocketAddress(domain, this.port)));
+        } else {
+            Collections.sort(records, new Comparator<MxRecord>() {
+
+                @Override
+                public int compare(final MxRecord r1, final MxRecord r2) {
+                    return r1.preference < r2.preference ? -1 : (r1.preference == r2.preference ? 0 : 1);
+                }
+
+            });
+            for (MxRecord record: records) {
+                String host = record.host;
+                if (host.endsWith(".")) {
+                    host = host.substring(0, host.length() - 1);
+                }
+                if (host.length() == 0) {
+                    // Null MX: the domain does not accept mail
+                    return new ResolvedEndpoints(Collections.<SessionEndpoint>emptyList(), this.ttl);
+                }
+                endpoints.add(new SessionEndpoint(new InetSocketAddress(host, this.port)));
+            }
+        }
+        return new ResolvedEndpoints(endpoints, this.ttl);
+    }
+
+    static class MxRecord {
+
+        final int preference;
+        final String host;
+
+        MxRecord(final int preference, final String host) {
+            super();
+            this.preference = preference;
+            this.host = host;
+        }
+
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.resolver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.http.util.Args;
+
+import com.ok2c.lightmtp.agent.EndpointResolver;
+import com.ok2c.lightmtp.agent.ResolvedEndpoints;
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+
+/**
+ * Resolves domains using a text file. Each line of the file consists of a domain
+ * name followed by whitespace separated endpoints in order of preference. An
+ * endpoint is a host name or address optionally followed by a colon and a port
+ * number (25 by default). IPv6 addresses must be enclosed in square brackets.
+ * Empty lines and lines starting with <code>#</code> are ignored.
+ * <pre>
+ * example.com    mx1.example.com mx2.example.com:2525
+ * example.net    [::1]:25
+ * </pre>
+ * The file is re-read when its modification time changes.
+ */
+public class FileEndpointResolver implements EndpointResolver {
+
+    private static final int DEFAULT_PORT = 25;
+
+    private final File file;
+    private final long ttl;
+
+    private Map<String, List<SessionEndpoint>> map;
+    private long lastModified;
+
+    /**
+     * @param ttl time in milliseconds resolution results may be cached for.
+     */
+    public FileEndpointResolver(final File file, final long ttl) {
+        super();
+        Args.notNull(file, "File");
+        Args.notNegative(ttl, "TTL");
+        this.file = file;
+        this.ttl = ttl;
+    }
+
+    private synchronized Map<String, List<SessionEndpoint>> getMap() throws IOException {
+        long modified = this.file.lastModified();
+        if (this.map == null || modified != this.lastModified) {
+            this.map = load(this.file);
+            this.lastModified = modified;
+        }
+        return this.map;
+    }
+
+    static Map<String, List<SessionEndpoint>> load(final File file) throws IOException {
+        Map<String, List<SessionEndpoint>> map = new HashMap<String, List<SessionEndpoint>>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            int lineNo = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNo++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] tokens = line.split("\\s+");
+                List<SessionEndpoint> endpoints = new ArrayList<SessionEndpoint>(tokens.length - 1);
+                for (int i = 1; i < tokens.length; i++) {
+                    endpoints.add(parseEndpoint(tokens[i], file, lineNo));
+                }
+                map.put(tokens[0].toLowerCase(Locale.ROOT), endpoints);
+            }
+        } finally {
+            reader.close();
+        }
+        return map;
+    }
+
+    static SessionEndpoint parseEndpoint(
+            final String s, final File file, final int lineNo) throws IOException {
+        String host = s;
+        int port = DEFAULT_PORT;
+        int portIdx;
+        if (s.startsWith("[")) {
+            int end = s.indexOf(']');
+            if (end == -1) {
+                throw new IOException("Invalid endpoint '" + s + "' in " + file + " at line " + lineNo);
+            }
+            host = s.substring(1, end);
+            portIdx = s.length() > end + 1 && s.charAt(end + 1) == ':' ? end + 1 : -1;
+        } else {
+            portIdx = s.indexOf(':');
+            if (portIdx != -1) {
+                host = s.substring(0, portIdx);
+            }
+        }
+        if (portIdx != -1) {
+            try {
+                port = Integer.parseInt(s.substring(portIdx + 1));
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid port in '" + s + "' in " + file + " at line " + lineNo);
+            }
+        }
+        return new SessionEndpoint(new InetSocketAddress(host, port));
+    }
+
+    @Override
+    public ResolvedEndpoints resolve(final String domain) throws IOException {
+        Args.notBlank(domain, "Domain");
+        List<SessionEndpoint> endpoints = getMap().get(domain.toLowerCase(Locale.ROOT));
+        if (endpoints == null) {
+            endpoints = Collections.emptyList();
+        }
+        return new ResolvedEndpoints(endpoints, this.ttl);
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.resolver;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.http.util.Args;
+
+import com.ok2c.lightmtp.agent.EndpointResolver;
+import com.ok2c.lightmtp.agent.ResolvedEndpoints;
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+
+/**
+ * Resolves domains using a fixed map of domains to endpoints. Domain names are
+ * matched case-insensitively. Unknown domains resolve to an empty endpoint list.
+ */
+public class StaticEndpointResolver implements EndpointResolver {
+
+    private final ConcurrentMap<String, List<SessionEndpoint>> map;
+    private final long ttl;
+
+    /**
+     * @param ttl time in milliseconds resolution results may be cached for.
+     */
+    public StaticEndpointResolver(final long ttl) {
+        super();
+        Args.notNegative(ttl, "TTL");
+        this.map = new ConcurrentHashMap<String, List<SessionEndpoint>>();
+        this.ttl = ttl;
+    }
+
+    public StaticEndpointResolver() {
+        this(Long.MAX_VALUE);
+    }
+
+    public void register(final String domain, final List<SessionEndpoint> endpoints) {
+        Args.notBlank(domain, "Domain");
+        Args.notNull(endpoints, "Endpoint list");
+        this.map.put(domain.toLowerCase(Locale.ROOT), endpoints);
+    }
+
+    public void register(final String domain, final SessionEndpoint... endpoints) {
+        register(domain, Arrays.asList(endpoints));
+    }
+
+    public void unregister(final String domain) {
+        Args.notBlank(domain, "Domain");
+        this.map.remove(domain.toLowerCase(Locale.ROOT));
+    }
+
+    @Override
+    public ResolvedEndpoints resolve(final String domain) {
+        Args.notBlank(domain, "Domain");
+        List<SessionEndpoint> endpoints = this.map.get(domain.toLowerCase(Locale.ROOT));
+        if (endpoints == null) {
+            endpoints = Collections.emptyList();
+        }
+        return new ResolvedEndpoints(endpoints, this.ttl);
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.message.content;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.util.Args;
+import org.apache.http.util.ByteArrayBuffer;
+
+import com.ok2c.lightmtp.SMTPConsts;
+import com.ok2c.lightmtp.SMTPProtocolException;
+import com.ok2c.lightmtp.message.SMTPContent;
+
+/**
+ * Message content that has been CRLF-normalized and dot-stuffed once and can be
+ * sent by any number of concurrent sessions without being encoded again. Content
+ * data encoded by this class does not include the terminating
+ * <code>&lt;CRLF&gt;.&lt;CRLF&gt;</code> sequence.
+ * <p/>
+ * Instances are reference counted. The content is created with the reference count
+ * of one held by the caller. Every delivery of the content retains a reference
+ * for its duration. The encoded data is discarded once the last reference has
+ * been released.
+ */
+public class SharedEncodedContent implements SMTPContent<ReadableByteChannel> {
+
+    private final AtomicInteger refCount;
+
+    private volatile ByteBuffer data;
+
+    SharedEncodedContent(final ByteBuffer data) {
+        super();
+        this.data = data;
+        this.refCount = new AtomicInteger(1);
+    }
+
+    /**
+     * Reads the source content to the end, normalizes line delimiters to CRLF and
+     * escapes lines starting with a period. Lines longer than
+     * {@link SMTPConsts#MAX_LINE_LEN} are rejected.
+     */
+    public static SharedEncodedContent encode(
+            final SMTPContent<ReadableByteChannel> source) throws IOException, SMTPProtocolException {
+        return encode(source, SMTPConsts.MAX_LINE_LEN);
+    }
+
+    /**
+     * Reads the source content to the end, normalizes line delimiters to CRLF and
+     * escapes lines starting with a period.
+     *
+     * @param maxLineLen maximum line length. <code>0</code> means no limit.
+     */
+    public static SharedEncodedContent encode(
+            final SMTPContent<ReadableByteChannel> source,
+            final int maxLineLen) throws IOException, SMTPProtocolException {
+        Args.notNull(source, "Content source");
+        long len = source.length();
+        int capacity = len > 0 && len < Integer.MAX_VALUE - 1024 ? (int) len + 1024 : 8 * 1024;
+        ByteArrayBuffer encoded = new ByteArrayBuffer(capacity);
+        ByteBuffer buf = ByteBuffer.allocate(8 * 1024);
+        boolean lineStart = true;
+        boolean pendingCR = false;
+        int lineLen = 0;
+        try {
+            ReadableByteChannel channel = source.channel();
+            while (channel.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    byte b = buf.get();
+                    if (pendingCR) {
+                        pendingCR = false;
+                        if (b == '\n') {
+                            encoded.append('\r');
+                            encoded.append('\n');
+                            lineStart = true;
+                            lineLen = 0;
+                            continue;
+                        }
+                        // Lone CR is not a line delimiter
+                        encoded.append('\r');
+                        lineLen++;
+                    }
+                    if (b == '\r') {
+                        pendingCR = true;
+                        continue;
+                    }
+                    if (b == '\n') {
+                        encoded.append('\r');
+                        encoded.append('\n');
+                        lineStart = true;
+                        lineLen = 0;
+                        continue;
+                    }
+                    if (lineStart && b == '.') {
+                        encoded.append('.');
+                    }
+                    lineStart = false;
+                    encoded.append(b);
+                    lineLen++;
+                    if (maxLineLen > 0 && lineLen > maxLineLen) {
+                        throw new SMTPProtocolException("Maximum line length limit exceeded");
+                    }
+                }
+                buf.clear();
+            }
+        } finally {
+            source.reset();
+        }
+        if (pendingCR || !lineStart) {
+            encoded.append('\r');
+            encoded.append('\n');
+        }
+        return new SharedEncodedContent(
+                ByteBuffer.wrap(encoded.buffer(), 0, encoded.length()).slice());
+    }
+
+    /**
+     * Returns a read-only view of the encoded data with independent position
+     * and limit.
+     *
+     * @throws IllegalStateException if the content has been released.
+     */
+    public ByteBuffer buffer() {
+        ByteBuffer buf = this.data;
+        if (buf == null) {
+            throw new IllegalStateException("Content has been released");
+        }
+        return buf.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns a new channel over the encoded data. Channels returned by this method
+     * do not share state and can be used concurrently.
+     */
+    @Override
+    public ReadableByteChannel channel() {
+        return new BufferChannel(buffer());
+    }
+
+    @Override
+    public long length() {
+        ByteBuffer buf = this.data;
+        return buf != null ? buf.remaining() : 0;
+    }
+
+    /**
+     * Does nothing. Shared content has no per-delivery state.
+     */
+    @Override
+    public void reset() {
+    }
+
+    /**
+     * Acquires a reference to the content.
+     *
+     * @throws IllegalStateException if the content has already been released.
+     */
+    public SharedEncodedContent retain() {
+        for (;;) {
+            int count = this.refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Content has been released");
+            }
+            if (this.refCount.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Releases a reference to the content.
+     *
+     * @return <code>true</code> if this was the last reference and the encoded
+     *   data has been discarded.
+     */
+    public boolean release() {
+        int count = this.refCount.decrementAndGet();
+        if (count == 0) {
+            this.data = null;
+            return true;
+        }
+        if (count < 0) {
+            this.refCount.incrementAndGet();
+            throw new IllegalStateException("Content has already been released");
+        }
+        return false;
+    }
+
+    public int getRefCount() {
+        return this.refCount.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[length: ");
+        buffer.append(length());
+        buffer.append("][refs: ");
+        buffer.append(this.refCount.get());
+        buffer.append("]");
+        return buffer.toString();
+    }
+
+    static class BufferChannel implements ReadableByteChannel {
+
+        private final ByteBuffer src;
+
+        private volatile boolean open;
+
+        BufferChannel(final ByteBuffer src) {
+            super();
+            this.src = src;
+            this.open = true;
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException {
+            if (!this.open) {
+                throw new ClosedChannelException();
+            }
+            if (!this.src.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(dst.remaining(), this.src.remaining());
+            int limit = this.src.limit();
+            this.src.limit(this.src.position() + n);
+            dst.put(this.src);
+            this.src.limit(limit);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.open;
+        }
+
+        @Override
+        public void close() {
+            this.open = false;
+        }
+
+    }
+
+}
@@ -0,0 +1,31 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.protocol;
+
+/**
+ * Optional extension of {@link DeliveryRequestHandler} notified of the outcome
+ * of individual recipients as soon as it becomes known. In LMTP sessions this
+ * is the moment the server replies for the recipient at the end of message
+ * data, rather than once the server has replied for all recipients.
+ * <p/>
+ * Notifications precede the completion of the request by
+ * {@link DeliveryRequestHandler#completed(DeliveryRequest, DeliveryResult, SessionContext)}
+ * or {@link DeliveryRequestHandler#failed(DeliveryRequest, DeliveryResult, SessionContext)}.
+ */
+public interface RecipientResultHandler {
+
+    void recipientCompleted(DeliveryRequest request, RcptResult result, SessionContext context);
+
+}
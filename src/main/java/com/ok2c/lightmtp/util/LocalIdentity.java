@@ -0,0 +1,314 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.util;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.util.Args;
+
+/**
+ * Caches names of the local host and of local addresses. Names are resolved
+ * by a background executor and refreshed once they get older than the refresh
+ * interval, so that callers such as HELO codecs running on an I/O dispatcher
+ * thread never block on DNS. Until a name has been resolved a fallback is
+ * returned: an address literal or <code>localdomain</code> for local domains
+ * and the address literal of a non-loopback interface for the local host name.
+ * The latter also stands in for host names that do not resolve or resolve to
+ * <code>localhost</code>, so that names such as message ids stay unique
+ * to the host.
+ */
+public class LocalIdentity {
+
+    private static final Object LOCAL_HOST = new Object();
+
+    private static volatile LocalIdentity DEFAULT;
+
+    private final Executor executor;
+    private final long refreshInterval;
+    private final ConcurrentMap<Object, Entry> hostNames;
+    private final ConcurrentMap<Object, Entry> domains;
+
+    private volatile String hostFallback;
+
+    /**
+     * @param executor executor used to resolve names.
+     * @param refreshInterval age after which resolved names get refreshed.
+     *   <code>0</code> means names are never refreshed.
+     * @param unit time unit of the refresh interval.
+     */
+    public LocalIdentity(final Executor executor, final long refreshInterval, final TimeUnit unit) {
+        super();
+        Args.notNull(executor, "Executor");
+        Args.notNegative(refreshInterval, "Refresh interval");
+        Args.notNull(unit, "Time unit");
+        this.executor = executor;
+        this.refreshInterval = unit.toMillis(refreshInterval);
+        this.hostNames = new ConcurrentHashMap<Object, Entry>();
+        this.domains = new ConcurrentHashMap<Object, Entry>();
+    }
+
+    /**
+     * Returns the shared instance that resolves names on a single daemon thread
+     * and refreshes them every hour.
+     */
+    public static LocalIdentity getDefault() {
+        LocalIdentity identity = DEFAULT;
+        if (identity == null) {
+            synchronized (LocalIdentity.class) {
+                identity = DEFAULT;
+                if (identity == null) {
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                            new ThreadFactory() {
+
+                                @Override
+                                public Thread newThread(final Runnable r) {
+                                    Thread t = new Thread(r, "Local identity resolver");
+                                    t.setDaemon(true);
+                                    return t;
+                                }
+
+                            });
+                    executor.allowCoreThreadTimeOut(true);
+                    identity = new LocalIdentity(executor, 1, TimeUnit.HOURS);
+                    DEFAULT = identity;
+                }
+            }
+        }
+        return identity;
+    }
+
+    /**
+     * Returns the canonical name of the local host. Never blocks.
+     */
+    public String getHostName() {
+        return lookup(this.hostNames, LOCAL_HOST, null, getHostFallback());
+    }
+
+    private String getHostFallback() {
+        String fallback = this.hostFallback;
+        if (fallback == null) {
+            InetAddress address = findLocalAddress();
+            fallback = address != null ? toAddressLiteral(address) : "localhost.localdomain";
+            this.hostFallback = fallback;
+        }
+        return fallback;
+    }
+
+    /**
+     * Returns an address of a local interface other than loopback and link local
+     * ones, preferring IPv4 addresses, or <code>null</code> if there is none.
+     * Does not perform DNS lookups.
+     */
+    protected InetAddress findLocalAddress() {
+        Enumeration<NetworkInterface> interfaces;
+        try {
+            interfaces = NetworkInterface.getNetworkInterfaces();
+        } catch (SocketException ex) {
+            return null;
+        }
+        InetAddress candidate = null;
+        while (interfaces != null && interfaces.hasMoreElements()) {
+            NetworkInterface networkInterface = interfaces.nextElement();
+            try {
+                if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+                    continue;
+                }
+            } catch (SocketException ex) {
+                continue;
+            }
+            Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+            while (addresses.hasMoreElements()) {
+                InetAddress address = addresses.nextElement();
+                if (address.isLoopbackAddress() || address.isLinkLocalAddress()) {
+                    continue;
+                }
+                if (address instanceof Inet4Address) {
+                    return address;
+                }
+                if (candidate == null) {
+                    candidate = address;
+                }
+            }
+        }
+        return candidate;
+    }
+
+    /**
+     * Returns the domain of the given local address or of the local host if the
+     * address is not known. Never blocks.
+     *
+     * @see AddressUtils#resolveLocalDomain(SocketAddress)
+     */
+    public String getDomain(final SocketAddress localAddress) {
+        InetAddress inetAddress = null;
+        if (localAddress instanceof InetSocketAddress) {
+            inetAddress = ((InetSocketAddress) localAddress).getAddress();
+        }
+        if (inetAddress == null) {
+            return lookup(this.domains, LOCAL_HOST, null, "localdomain");
+        }
+        return lookup(this.domains, inetAddress, localAddress, toAddressLiteral(inetAddress));
+    }
+
+    /**
+     * Formats the given address as an SMTP address literal (RFC 5321, 4.1.3).
+     */
+    static String toAddressLiteral(final InetAddress inetAddress) {
+        if (inetAddress instanceof Inet6Address) {
+            String s = inetAddress.getHostAddress();
+            // Zone index is only meaningful to the local host
+            int i = s.indexOf('%');
+            if (i != -1) {
+                s = s.substring(0, i);
+            }
+            return "[IPv6:" + s + "]";
+        }
+        return "[" + inetAddress.getHostAddress() + "]";
+    }
+
+    private String lookup(
+            final ConcurrentMap<Object, Entry> cache,
+            final Object key,
+            final SocketAddress address,
+            final String fallback) {
+        Entry entry = cache.get(key);
+        if (entry == null) {
+            Entry newEntry = new Entry();
+            entry = cache.putIfAbsent(key, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+        String name = entry.name;
+        if (name == null
+                || (this.refreshInterval > 0
+                    && currentTime() - entry.updated >= this.refreshInterval)) {
+            scheduleResolve(cache, entry, address);
+        }
+        return name != null ? name : fallback;
+    }
+
+    private void scheduleResolve(
+            final ConcurrentMap<Object, Entry> cache,
+            final Entry entry,
+            final SocketAddress address) {
+        synchronized (entry) {
+            if (entry.resolving) {
+                return;
+            }
+            entry.resolving = true;
+        }
+        try {
+            this.executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        String name;
+                        if (cache == hostNames) {
+                            name = resolveHostName();
+                            if (name == null || isLocalhost(name)) {
+                                name = getHostFallback();
+                            }
+                        } else {
+                            name = resolveDomain(address);
+                        }
+                        entry.name = name;
+                        entry.updated = currentTime();
+                    } finally {
+                        synchronized (entry) {
+                            entry.resolving = false;
+                        }
+                    }
+                }
+
+            });
+        } catch (RejectedExecutionException ex) {
+            synchronized (entry) {
+                entry.resolving = false;
+            }
+        }
+    }
+
+    /**
+     * Resolves the canonical name of the local host. Executed by the background
+     * executor; may block.
+     *
+     * @return host name or <code>null</code> if it cannot be resolved.
+     */
+    protected String resolveHostName() {
+        try {
+            return InetAddress.getLocalHost().getCanonicalHostName();
+        } catch (UnknownHostException ex) {
+            return null;
+        }
+    }
+
+    private static boolean isLocalhost(final String name) {
+        String s = name.toLowerCase(Locale.ROOT);
+        return s.equals("localhost") || s.startsWith("localhost.");
+    }
+
+    /**
+     * Resolves the domain of the given local address. Executed by the background
+     * executor; may block.
+     */
+    protected String resolveDomain(final SocketAddress localAddress) {
+        return AddressUtils.resolveLocalDomain(localAddress);
+    }
+
+    protected long currentTime() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[host names: ");
+        buffer.append(this.hostNames.size());
+        buffer.append("][domains: ");
+        buffer.append(this.domains.size());
+        buffer.append("]");
+        return buffer.toString();
+    }
+
+    static class Entry {
+
+        volatile String name;
+        volatile long updated;
+
+        boolean resolving;
+
+    }
+
+}
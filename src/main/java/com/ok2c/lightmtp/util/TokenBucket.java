@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.util;
+
+import org.apache.http.util.Args;
+
+/**
+ * Token bucket refilled at a constant rate up to its capacity. Tokens can be
+ * consumed unconditionally, in which case the bucket may go into debt that
+ * must be paid off by subsequent refills.
+ */
+public class TokenBucket {
+
+    private final double rate;
+    private final double capacity;
+
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param rate number of tokens added per second.
+     * @param capacity maximum number of tokens the bucket can hold.
+     */
+    public TokenBucket(final double rate, final double capacity) {
+        super();
+        Args.check(rate > 0, "Rate may not be negative or zero");
+        Args.check(capacity > 0, "Capacity may not be negative or zero");
+        this.rate = rate;
+        this.capacity = capacity;
+        // Full to begin with: refills are capped at capacity
+        this.tokens = capacity;
+    }
+
+    public double getRate() {
+        return this.rate;
+    }
+
+    public double getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Returns the current time in milliseconds.
+     */
+    protected long currentTime() {
+        return System.currentTimeMillis();
+    }
+
+    private void refill(final long now) {
+        if (now > this.lastRefill) {
+            this.tokens = Math.min(this.capacity,
+                    this.tokens + (now - this.lastRefill) * this.rate / 1000d);
+            this.lastRefill = now;
+        }
+    }
+
+    public synchronized long getAvailable() {
+        refill(currentTime());
+        return (long) this.tokens;
+    }
+
+    /**
+     * Consumes the given number of tokens if available.
+     *
+     * @return <code>true</code> if the tokens have been consumed,
+     *   <code>false</code> otherwise.
+     */
+    public synchronized boolean tryConsume(final long n) {
+        refill(currentTime());
+        if (this.tokens >= n) {
+            this.tokens -= n;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Consumes the given number of tokens unconditionally.
+     */
+    public synchronized void consume(final long n) {
+        refill(currentTime());
+        this.tokens -= n;
+    }
+
+    /**
+     * Reserves the given number of tokens ahead of time. Tokens not in
+     * the bucket are borrowed from future refills and delay subsequent
+     * reservations.
+     *
+     * @return time in milliseconds until the reserved tokens will have been
+     *   available or <code>0</code> if they are available now.
+     */
+    public synchronized long reserve(final long n) {
+        refill(currentTime());
+        this.tokens -= n;
+        return toDelay(-this.tokens);
+    }
+
+    /**
+     * Returns the time in milliseconds until the given number of tokens
+     * becomes available or <code>0</code> if they are available now.
+     */
+    public synchronized long getDelay(final long n) {
+        refill(currentTime());
+        return toDelay(n - this.tokens);
+    }
+
+    private long toDelay(final double deficit) {
+        if (deficit <= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(deficit * 1000d / this.rate);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[rate: ");
+        buffer.append(this.rate);
+        buffer.append("/s][capacity: ");
+        buffer.append((long) this.capacity);
+        buffer.append("][tokens: ");
+        buffer.append((long) this.tokens);
+        buffer.append("]");
+        return buffer.toString();
+    }
+
+}
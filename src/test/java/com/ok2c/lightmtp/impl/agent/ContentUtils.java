@@ -44,7 +44,7 @@ final class ContentUtils {
                 dst.compact();
                 chars.flip();
                 buffer.append(chars);
-                chars.compact();
+                chars.clear();
             }
         } finally {
             content.reset();
@@ -0,0 +1,49 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.net.InetAddress;
+import java.util.concurrent.Future;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+
+import com.ok2c.lightmtp.protocol.AsyncRemoteAddressValidator;
+
+public class DelayedRemoteAddressValidator implements AsyncRemoteAddressValidator {
+
+    @Override
+    public Future<Boolean> validateAddress(
+            final InetAddress address,
+            final FutureCallback<Boolean> callback) {
+        final BasicFuture<Boolean> future = new BasicFuture<Boolean>(callback);
+        Thread t = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                    future.completed(Boolean.valueOf(address.isLoopbackAddress()));
+                } catch (InterruptedException ex) {
+                    future.failed(ex);
+                }
+            }
+
+        };
+        t.start();
+        return future;
+    }
+
+}
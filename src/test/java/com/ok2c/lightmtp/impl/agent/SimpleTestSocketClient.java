@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Blocking line based client used to exercise the wire protocol directly.
+ * Can also wrap an accepted socket to script the server side of a session.
+ */
+public class SimpleTestSocketClient {
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final OutputStream out;
+
+    public SimpleTestSocketClient(final Socket socket) throws IOException {
+        super();
+        this.socket = socket;
+        this.socket.setSoTimeout(10000);
+        this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream(), "US-ASCII"));
+        this.out = this.socket.getOutputStream();
+    }
+
+    public SimpleTestSocketClient(final SocketAddress address) throws IOException {
+        this(connect(address));
+    }
+
+    private static Socket connect(final SocketAddress address) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(address, 5000);
+        return socket;
+    }
+
+    public void setSoTimeout(final int timeout) throws IOException {
+        this.socket.setSoTimeout(timeout);
+    }
+
+    /**
+     * Reads a single line. Returns <code>null</code> if the connection has been closed.
+     */
+    public String readLine() throws IOException {
+        return this.in.readLine();
+    }
+
+    /**
+     * Reads a possibly multiline reply and returns its last line.
+     * Returns <code>null</code> if the connection has been closed.
+     */
+    public String readReply() throws IOException {
+        List<String> lines = readReplyLines();
+        return lines != null ? lines.get(lines.size() - 1) : null;
+    }
+
+    public List<String> readReplyLines() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        for (;;) {
+            String line = this.in.readLine();
+            if (line == null) {
+                return lines.isEmpty() ? null : lines;
+            }
+            lines.add(line);
+            if (line.length() < 4 || line.charAt(3) != '-') {
+                return lines;
+            }
+        }
+    }
+
+    public void write(final String s) throws IOException {
+        this.out.write(s.getBytes("US-ASCII"));
+        this.out.flush();
+    }
+
+    public void writeLine(final String line) throws IOException {
+        write(line + "\r\n");
+    }
+
+    public String command(final String line) throws IOException {
+        writeLine(line);
+        return readReply();
+    }
+
+    /**
+     * Returns <code>true</code> if the peer has closed the connection.
+     */
+    public boolean isClosedByPeer() throws IOException {
+        try {
+            return this.in.read() == -1;
+        } catch (IOException ex) {
+            // Connection reset
+            return true;
+        }
+    }
+
+    public void close() throws IOException {
+        this.socket.close();
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+
+public class TestAdaptiveConcurrencyController {
+
+    private static final SessionEndpoint ENDPOINT1 = new SessionEndpoint(
+            InetSocketAddress.createUnresolved("mx1.example.com", 25));
+    private static final SessionEndpoint ENDPOINT2 = new SessionEndpoint(
+            InetSocketAddress.createUnresolved("mx2.example.com", 25));
+
+    @Test
+    public void testAdditiveIncrease() throws Exception {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(1, 4);
+        Assert.assertEquals(1, controller.getLimit(ENDPOINT1));
+        Assert.assertEquals(2, controller.success(ENDPOINT1, 10));
+        Assert.assertEquals(2, controller.success(ENDPOINT1, 10));
+        Assert.assertEquals(3, controller.success(ENDPOINT1, 10));
+        for (int i = 0; i < 10; i++) {
+            controller.success(ENDPOINT1, 10);
+        }
+        Assert.assertEquals(4, controller.getLimit(ENDPOINT1));
+        Assert.assertEquals(1, controller.getLimit(ENDPOINT2));
+    }
+
+    @Test
+    public void testLatencyThreshold() throws Exception {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(
+                1, 10, 2, 0.5d, 100, 0, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(2, controller.success(ENDPOINT1, 500));
+        }
+        controller.success(ENDPOINT1, 50);
+        Assert.assertEquals(3, controller.success(ENDPOINT1, 50));
+    }
+
+    @Test
+    public void testMultiplicativeDecrease() throws Exception {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(
+                2, 20, 16, 0.5d, 0, 0, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(8, controller.backoff(ENDPOINT1));
+        Assert.assertEquals(4, controller.backoff(ENDPOINT1));
+        Assert.assertEquals(2, controller.backoff(ENDPOINT1));
+        Assert.assertEquals(2, controller.backoff(ENDPOINT1));
+    }
+
+    @Test
+    public void testBackoffInterval() throws Exception {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(
+                1, 20, 16, 0.5d, 0, 1, TimeUnit.HOURS);
+        Assert.assertEquals(8, controller.backoff(ENDPOINT1));
+        Assert.assertEquals(8, controller.backoff(ENDPOINT1));
+        Assert.assertEquals(8, controller.backoff(ENDPOINT1));
+        controller.reset(ENDPOINT1);
+        Assert.assertEquals(16, controller.getLimit(ENDPOINT1));
+    }
+
+}
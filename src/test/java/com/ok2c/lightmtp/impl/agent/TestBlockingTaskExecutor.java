@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.net.InetAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ok2c.lightmtp.SMTPCode;
+import com.ok2c.lightmtp.SMTPCodes;
+import com.ok2c.lightmtp.SMTPReply;
+import com.ok2c.lightmtp.protocol.BlockingEnvelopValidator;
+
+public class TestBlockingTaskExecutor {
+
+    private BlockingTaskExecutor executor;
+
+    @Before
+    public void setUp() throws Exception {
+        this.executor = new BlockingTaskExecutor("Test", 1, 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.executor.shutdown();
+        this.executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    static class BlockingTask implements Callable<String> {
+
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        @Override
+        public String call() throws Exception {
+            this.latch.await(5, TimeUnit.SECONDS);
+            return "done";
+        }
+
+    }
+
+    @Test
+    public void testTaskExecution() throws Exception {
+        Future<String> future = this.executor.submit(new Callable<String>() {
+
+            @Override
+            public String call() throws Exception {
+                return "done";
+            }
+
+        }, null);
+        Assert.assertEquals("done", future.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, this.executor.getSubmittedCount());
+    }
+
+    @Test
+    public void testQueueLimit() throws Exception {
+        BlockingTask task = new BlockingTask();
+        Future<String> future1 = this.executor.submit(task, null);
+        Future<String> future2 = this.executor.submit(task, null);
+        try {
+            this.executor.submit(task, null);
+            Assert.fail("RejectedExecutionException should have been thrown");
+        } catch (RejectedExecutionException expected) {
+        }
+        Assert.assertEquals(1, this.executor.getRejectedCount());
+        task.latch.countDown();
+        Assert.assertEquals("done", future1.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals("done", future2.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testValidatorRejectedWhenBusy() throws Exception {
+        BlockingTask task = new BlockingTask();
+        Future<String> future1 = this.executor.submit(task, null);
+        Future<String> future2 = this.executor.submit(task, null);
+
+        ExecutorEnvelopValidator validator = new ExecutorEnvelopValidator(
+                new BlockingEnvelopValidator() {
+
+                    @Override
+                    public SMTPReply validateSender(
+                            final InetAddress client, final String sender) {
+                        return new SMTPReply(SMTPCodes.OK, null, "ok");
+                    }
+
+                    @Override
+                    public SMTPReply validateRecipient(
+                            final InetAddress client, final String recipient) {
+                        return new SMTPReply(SMTPCodes.OK, null, "ok");
+                    }
+
+                }, this.executor);
+        Future<SMTPReply> future = validator.validateSender(
+                InetAddress.getByName("localhost"), "root", null);
+        Assert.assertTrue(future.isDone());
+        SMTPReply reply = future.get();
+        Assert.assertEquals(451, reply.getCode());
+        Assert.assertEquals(new SMTPCode(4, 3, 2), reply.getEnhancedCode());
+        task.latch.countDown();
+        future1.get(5, TimeUnit.SECONDS);
+        future2.get(5, TimeUnit.SECONDS);
+
+        future = validator.validateRecipient(
+                InetAddress.getByName("localhost"), "testuser1", null);
+        Assert.assertEquals(250, future.get(5, TimeUnit.SECONDS).getCode());
+    }
+
+}
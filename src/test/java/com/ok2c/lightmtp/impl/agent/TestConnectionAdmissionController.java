@@ -0,0 +1,169 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestConnectionAdmissionController {
+
+    @Test
+    public void testConcurrentConnectionLimit() throws Exception {
+        ConnectionAdmissionController controller = new ConnectionAdmissionController(
+                2, 0, 1, TimeUnit.SECONDS);
+        InetAddress client1 = InetAddress.getByName("192.168.0.1");
+        InetAddress client2 = InetAddress.getByName("192.168.0.2");
+        Assert.assertEquals(Admission.ADMITTED, controller.admit(client1));
+        Assert.assertEquals(Admission.ADMITTED, controller.admit(client1));
+        Assert.assertEquals(Admission.REJECTED, controller.admit(client1));
+        Assert.assertEquals(Admission.ADMITTED, controller.admit(client2));
+        Assert.assertEquals(2, controller.getConnectionCount(client1));
+        Assert.assertEquals(1, controller.getConnectionCount(client2));
+        Assert.assertEquals(1, controller.getRejectedCount());
+
+        controller.release(client1);
+        Assert.assertEquals(1, controller.getConnectionCount(client1));
+        Assert.assertEquals(Admission.ADMITTED, controller.admit(client1));
+    }
+
+    @Test
+    public void testConnectionRateLimit() throws Exception {
+        ConnectionAdmissionController controller = new ConnectionAdmissionController(
+                0, 2, 1, TimeUnit.HOURS);
+        InetAddress client = InetAddress.getByName("192.168.0.1");
+        Assert.assertEquals(Admission.ADMITTED, controller.admit(client));
+        controller.release(client);
+        Assert.assertEquals(Admission.ADMITTED, controller.admit(client));
+        controller.release(client);
+        Assert.assertEquals(Admission.REJECTED, controller.admit(client));
+        Assert.assertEquals(0, controller.getConnectionCount(client));
+    }
+
+    @Test
+    public void testPrefixGrouping() throws Exception {
+        ConnectionAdmissionController controller = new ConnectionAdmissionController(
+                1, 0, 1, TimeUnit.SECONDS, 24, 64, 100);
+        Assert.assertEquals(Admission.ADMITTED, controller.admit(InetAddress.getByName("10.0.1.1")));
+        Assert.assertEquals(Admission.REJECTED, controller.admit(InetAddress.getByName("10.0.1.200")));
+        Assert.assertEquals(Admission.ADMITTED, controller.admit(InetAddress.getByName("10.0.2.1")));
+        Assert.assertEquals(Admission.ADMITTED, controller.admit(InetAddress.getByName("fe80::1")));
+        Assert.assertEquals(Admission.REJECTED, controller.admit(InetAddress.getByName("fe80::2")));
+    }
+
+    @Test
+    public void testBoundedEntries() throws Exception {
+        ConnectionAdmissionController controller = new ConnectionAdmissionController(
+                1, 0, 1, TimeUnit.MILLISECONDS, 32, 64, 2);
+        InetAddress client1 = InetAddress.getByName("192.168.0.1");
+        InetAddress client2 = InetAddress.getByName("192.168.0.2");
+        InetAddress client3 = InetAddress.getByName("192.168.0.3");
+        Assert.assertEquals(Admission.ADMITTED, controller.admit(client1));
+        Assert.assertEquals(Admission.ADMITTED, controller.admit(client2));
+        Assert.assertEquals(2, controller.getEntryCount());
+        // Table full of active clients: admitted untracked
+        Assert.assertEquals(Admission.UNTRACKED, controller.admit(client3));
+        Assert.assertEquals(2, controller.getEntryCount());
+        Assert.assertEquals(1, controller.getUntrackedCount());
+        Assert.assertEquals(0, controller.getConnectionCount(client3));
+
+        controller.release(client1);
+        Thread.sleep(10);
+        Assert.assertEquals(Admission.ADMITTED, controller.admit(client3));
+        Assert.assertEquals(2, controller.getEntryCount());
+        Assert.assertEquals(0, controller.getConnectionCount(client1));
+        Assert.assertEquals(1, controller.getConnectionCount(client3));
+    }
+
+    @Test
+    public void testRejectWhenFull() throws Exception {
+        ConnectionAdmissionController controller = new ConnectionAdmissionController(
+                1, 0, 1, TimeUnit.MILLISECONDS, 32, 64, 1, true);
+        InetAddress client1 = InetAddress.getByName("192.168.0.1");
+        InetAddress client2 = InetAddress.getByName("192.168.0.2");
+        Assert.assertEquals(Admission.ADMITTED, controller.admit(client1));
+        Assert.assertEquals(Admission.REJECTED, controller.admit(client2));
+        Assert.assertEquals(1, controller.getRejectedCount());
+        Assert.assertEquals(0, controller.getUntrackedCount());
+    }
+
+    @Test
+    public void testEvictionSkipsActiveEntries() throws Exception {
+        ConnectionAdmissionController controller = new ConnectionAdmissionController(
+                0, 0, 1, TimeUnit.MILLISECONDS, 32, 64, 110);
+        for (int i = 0; i < 100; i++) {
+            controller.admit(InetAddress.getByName("10.0.0." + i));
+        }
+        for (int i = 0; i < 10; i++) {
+            InetAddress address = InetAddress.getByName("10.0.1." + i);
+            controller.admit(address);
+            controller.release(address);
+        }
+        Assert.assertEquals(110, controller.getEntryCount());
+        Thread.sleep(10);
+        // Each scan covers fewer entries than the table holds, but successive
+        // scans get past active entries to the idle ones
+        int admitted = 0;
+        for (int i = 0; i < 40; i++) {
+            if (controller.admit(InetAddress.getByName("10.0.2." + i)) == Admission.ADMITTED) {
+                admitted++;
+            }
+        }
+        Assert.assertEquals(10, admitted);
+        Assert.assertEquals(110, controller.getEntryCount());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(1, controller.getConnectionCount(InetAddress.getByName("10.0.0." + i)));
+        }
+        Assert.assertEquals(30, controller.getUntrackedCount());
+    }
+
+
+    @Test
+    public void testConcurrentAdmission() throws Exception {
+        final ConnectionAdmissionController controller = new ConnectionAdmissionController(
+                0, 0, 1, TimeUnit.MILLISECONDS, 32, 64, 50);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int n = t;
+            threads[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            InetAddress address = InetAddress.getByName(
+                                    "10." + n + "." + (i / 200) + "." + (i % 200));
+                            if (controller.admit(address) == Admission.ADMITTED) {
+                                controller.release(address);
+                            }
+                        }
+                    } catch (Exception ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+
+            };
+            threads[t].start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        Assert.assertTrue(controller.getEntryCount() <= 50);
+        Assert.assertEquals(0, controller.getRejectedCount());
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+import com.ok2c.lightmtp.impl.agent.EndpointCircuitBreaker.State;
+
+public class TestEndpointCircuitBreaker {
+
+    private final SessionEndpoint endpoint = new SessionEndpoint(
+            InetSocketAddress.createUnresolved("somehost", 25));
+
+    private long now;
+    private EndpointCircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        this.now = 1000000;
+        this.breaker = new EndpointCircuitBreaker(3, 10, TimeUnit.SECONDS, 2) {
+
+            @Override
+            long currentTime() {
+                return now;
+            }
+
+        };
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() throws Exception {
+        Assert.assertEquals(State.CLOSED, this.breaker.getState(this.endpoint));
+        Assert.assertEquals(State.CLOSED, this.breaker.failure(this.endpoint));
+        Assert.assertEquals(State.CLOSED, this.breaker.failure(this.endpoint));
+        Assert.assertTrue(this.breaker.allowRequest(this.endpoint));
+        Assert.assertEquals(State.OPEN, this.breaker.failure(this.endpoint));
+        Assert.assertFalse(this.breaker.isAvailable(this.endpoint));
+        Assert.assertFalse(this.breaker.allowRequest(this.endpoint));
+    }
+
+    @Test
+    public void testSuccessResetsFailureCount() throws Exception {
+        this.breaker.failure(this.endpoint);
+        this.breaker.failure(this.endpoint);
+        this.breaker.success(this.endpoint);
+        this.breaker.failure(this.endpoint);
+        this.breaker.failure(this.endpoint);
+        Assert.assertEquals(State.CLOSED, this.breaker.getState(this.endpoint));
+    }
+
+    @Test
+    public void testHalfOpenProbes() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            this.breaker.failure(this.endpoint);
+        }
+        this.now += 10000;
+        Assert.assertEquals(State.HALF_OPEN, this.breaker.getState(this.endpoint));
+        Assert.assertTrue(this.breaker.allowRequest(this.endpoint));
+        Assert.assertTrue(this.breaker.allowRequest(this.endpoint));
+        Assert.assertFalse(this.breaker.isAvailable(this.endpoint));
+        Assert.assertFalse(this.breaker.allowRequest(this.endpoint));
+
+        this.breaker.success(this.endpoint);
+        Assert.assertEquals(State.CLOSED, this.breaker.getState(this.endpoint));
+        Assert.assertTrue(this.breaker.allowRequest(this.endpoint));
+    }
+
+    @Test
+    public void testHalfOpenFailureReopens() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            this.breaker.failure(this.endpoint);
+        }
+        this.now += 10000;
+        Assert.assertTrue(this.breaker.allowRequest(this.endpoint));
+        Assert.assertEquals(State.OPEN, this.breaker.failure(this.endpoint));
+        Assert.assertFalse(this.breaker.allowRequest(this.endpoint));
+        this.now += 9999;
+        Assert.assertEquals(State.OPEN, this.breaker.getState(this.endpoint));
+        this.now += 1;
+        Assert.assertEquals(State.HALF_OPEN, this.breaker.getState(this.endpoint));
+    }
+
+    @Test
+    public void testLostProbesReleased() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            this.breaker.failure(this.endpoint);
+        }
+        this.now += 10000;
+        Assert.assertTrue(this.breaker.allowRequest(this.endpoint));
+        Assert.assertTrue(this.breaker.allowRequest(this.endpoint));
+        Assert.assertFalse(this.breaker.allowRequest(this.endpoint));
+        this.now += 10000;
+        Assert.assertTrue(this.breaker.allowRequest(this.endpoint));
+    }
+
+}
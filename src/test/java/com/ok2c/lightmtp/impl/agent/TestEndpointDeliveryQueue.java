@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+import com.ok2c.lightmtp.message.content.ByteArraySource;
+import com.ok2c.lightmtp.protocol.BasicDeliveryRequest;
+import com.ok2c.lightmtp.protocol.DeliveryResult;
+
+public class TestEndpointDeliveryQueue {
+
+    private final SessionEndpoint endpoint = new SessionEndpoint(
+            InetSocketAddress.createUnresolved("somehost", 25));
+
+    private static PendingDelivery delivery(final DeliveryPriority priority) {
+        return new PendingDelivery(
+                new BasicDeliveryRequest("root", Arrays.asList("testuser"),
+                        new ByteArraySource(new byte[] {})),
+                new BasicFuture<DeliveryResult>(null), 1000, priority);
+    }
+
+    @Test
+    public void testWeightedRoundRobin() throws Exception {
+        PriorityLaneConfig config = PriorityLaneConfig.custom()
+            .setHighWeight(2)
+            .setNormalWeight(1)
+            .setBulkWeight(1)
+            .build();
+        EndpointDeliveryQueue queue = new EndpointDeliveryQueue(this.endpoint, config);
+        for (int i = 0; i < 4; i++) {
+            queue.add(delivery(DeliveryPriority.BULK));
+            queue.add(delivery(DeliveryPriority.HIGH));
+        }
+        StringBuilder order = new StringBuilder();
+        PendingDelivery delivery;
+        while ((delivery = queue.dispatch(10)) != null) {
+            order.append(delivery.getPriority().name().charAt(0));
+        }
+        Assert.assertEquals("HBHHBHBB", order.toString());
+        Assert.assertEquals(0, queue.size());
+        Assert.assertEquals(4, queue.getStats(DeliveryPriority.HIGH).getActive());
+        Assert.assertEquals(4, queue.getStats(DeliveryPriority.BULK).getDispatched());
+    }
+
+    @Test
+    public void testReservedSessions() throws Exception {
+        PriorityLaneConfig config = PriorityLaneConfig.custom()
+            .setReservedSessions(1)
+            .build();
+        EndpointDeliveryQueue queue = new EndpointDeliveryQueue(this.endpoint, config);
+        for (int i = 0; i < 5; i++) {
+            queue.add(delivery(DeliveryPriority.BULK));
+        }
+        Assert.assertTrue(queue.reserveSession(3));
+        Assert.assertTrue(queue.reserveSession(3));
+        Assert.assertFalse(queue.reserveSession(3));
+
+        PendingDelivery bulk1 = queue.dispatch(3);
+        Assert.assertNotNull(bulk1);
+        Assert.assertNotNull(queue.dispatch(3));
+        Assert.assertNull(queue.dispatch(3));
+
+        queue.add(delivery(DeliveryPriority.HIGH));
+        Assert.assertTrue(queue.reserveSession(3));
+        PendingDelivery high = queue.dispatch(3);
+        Assert.assertNotNull(high);
+        Assert.assertEquals(DeliveryPriority.HIGH, high.getPriority());
+
+        queue.finished(bulk1);
+        PendingDelivery bulk3 = queue.dispatch(3);
+        Assert.assertNotNull(bulk3);
+        Assert.assertEquals(DeliveryPriority.BULK, bulk3.getPriority());
+        Assert.assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void testHighPriorityDoesNotWaitForBusySessions() throws Exception {
+        EndpointDeliveryQueue queue = new EndpointDeliveryQueue(this.endpoint);
+        queue.add(delivery(DeliveryPriority.NORMAL));
+        Assert.assertTrue(queue.reserveSession(2));
+        Assert.assertNotNull(queue.dispatch(2));
+
+        queue.add(delivery(DeliveryPriority.NORMAL));
+        Assert.assertFalse(queue.reserveSession(2));
+
+        queue.add(delivery(DeliveryPriority.HIGH));
+        Assert.assertTrue(queue.reserveSession(2));
+        Assert.assertEquals(DeliveryPriority.HIGH, queue.dispatch(2).getPriority());
+    }
+
+    @Test
+    public void testRetire() throws Exception {
+        EndpointDeliveryQueue queue = new EndpointDeliveryQueue(this.endpoint);
+        Assert.assertTrue(queue.add(delivery(DeliveryPriority.NORMAL)));
+        Assert.assertTrue(queue.reserveSession(1));
+        long later = System.currentTimeMillis() + 1000;
+        Assert.assertFalse(queue.retire(later));
+
+        PendingDelivery delivery = queue.dispatch(1);
+        Assert.assertFalse(queue.retire(later));
+        queue.finished(delivery);
+        Assert.assertFalse(queue.retire(later));
+        queue.releaseSession();
+        // Recently used
+        Assert.assertFalse(queue.retire(System.currentTimeMillis() - 1000));
+
+        Assert.assertTrue(queue.retire(later));
+        Assert.assertFalse(queue.add(delivery(DeliveryPriority.NORMAL)));
+        Assert.assertFalse(queue.attachSession());
+        Assert.assertFalse(queue.reserveSession(1));
+        Assert.assertEquals(0, queue.size());
+    }
+
+}
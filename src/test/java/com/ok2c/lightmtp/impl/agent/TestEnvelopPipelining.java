@@ -0,0 +1,366 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+import com.ok2c.lightmtp.agent.TransportType;
+import com.ok2c.lightmtp.impl.pool.SessionPoolConfig;
+import com.ok2c.lightmtp.message.content.ByteArraySource;
+import com.ok2c.lightmtp.protocol.BasicDeliveryRequest;
+import com.ok2c.lightmtp.protocol.DeliveryRequest;
+import com.ok2c.lightmtp.protocol.DeliveryResult;
+
+/**
+ * Wire level tests of the envelop of the next message being pipelined
+ * following the end of the message content.
+ */
+public class TestEnvelopPipelining {
+
+    static abstract class ScriptedServer extends Thread {
+
+        private final ServerSocket serverSocket;
+        private final CountDownLatch scriptDone;
+
+        private volatile SimpleTestSocketClient conn;
+        private volatile Throwable failure;
+
+        ScriptedServer() throws IOException {
+            super();
+            this.serverSocket = new ServerSocket(0);
+            this.scriptDone = new CountDownLatch(1);
+            setDaemon(true);
+        }
+
+        SessionEndpoint getEndpoint() {
+            return new SessionEndpoint(
+                    new InetSocketAddress("localhost", this.serverSocket.getLocalPort()));
+        }
+
+        abstract void script(SimpleTestSocketClient conn) throws Exception;
+
+        @Override
+        public void run() {
+            try {
+                Socket socket = this.serverSocket.accept();
+                this.conn = new SimpleTestSocketClient(socket);
+                script(this.conn);
+            } catch (Throwable ex) {
+                this.failure = ex;
+            } finally {
+                this.scriptDone.countDown();
+            }
+            try {
+                // Let the idle session shut down gracefully
+                if (this.conn != null && "QUIT".equals(this.conn.readLine())) {
+                    this.conn.write("221 bye\r\n");
+                }
+            } catch (IOException ignore) {
+            }
+        }
+
+        void await() throws Throwable {
+            Assert.assertTrue("Script did not complete", this.scriptDone.await(10, TimeUnit.SECONDS));
+            if (this.failure != null) {
+                throw this.failure;
+            }
+        }
+
+        void close() throws IOException {
+            this.serverSocket.close();
+            if (this.conn != null) {
+                this.conn.close();
+            }
+        }
+
+    }
+
+    static class CountingCallback implements FutureCallback<DeliveryResult> {
+
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public void completed(final DeliveryResult result) {
+            this.count.incrementAndGet();
+        }
+
+        @Override
+        public void failed(final Exception ex) {
+            this.count.incrementAndGet();
+        }
+
+        @Override
+        public void cancelled() {
+            this.count.incrementAndGet();
+        }
+
+    }
+
+    private DefaultMailUserAgent agent;
+    private ScriptedServer server;
+
+    @After
+    public void shutDown() throws Exception {
+        if (this.agent != null) {
+            this.agent.shutdown();
+        }
+        if (this.server != null) {
+            this.server.close();
+        }
+    }
+
+    private void startAgent(final TransportType type) throws Exception {
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        SessionPoolConfig poolConfig = SessionPoolConfig.custom()
+                .setDefaultMaxPerEndpoint(1)
+                .build();
+        this.agent = new DefaultMailUserAgent(type, config, poolConfig);
+        this.agent.start();
+    }
+
+    private static DeliveryRequest createRequest(
+            final String text, final String... recipients) throws Exception {
+        return new BasicDeliveryRequest("root", Arrays.asList(recipients),
+                new ByteArraySource(("Subject: " + text + "\r\n\r\n" + text + "\r\n").getBytes("US-ASCII")));
+    }
+
+    static void greet(final SimpleTestSocketClient conn, final boolean lmtp) throws Exception {
+        // Give the client time to queue up all deliveries
+        Thread.sleep(200);
+        conn.write("220 localhost ready\r\n");
+        String helo = conn.readLine();
+        Assert.assertTrue(helo, helo.startsWith(lmtp ? "LHLO " : "EHLO "));
+        conn.write("250-localhost\r\n250-PIPELINING\r\n250 ENHANCEDSTATUSCODES\r\n");
+    }
+
+    static void expectEnvelop(
+            final SimpleTestSocketClient conn, final String... recipients) throws Exception {
+        Assert.assertEquals("MAIL FROM:<root>", conn.readLine());
+        for (String recipient: recipients) {
+            Assert.assertEquals("RCPT TO:<" + recipient + ">", conn.readLine());
+        }
+        Assert.assertEquals("DATA", conn.readLine());
+    }
+
+    static void readContent(final SimpleTestSocketClient conn) throws Exception {
+        String line;
+        while ((line = conn.readLine()) != null) {
+            if (line.equals(".")) {
+                return;
+            }
+        }
+        Assert.fail("Unexpected end of stream");
+    }
+
+    private void testNextEnvelopSentWithEndOfData(final boolean lmtp) throws Throwable {
+        this.server = new ScriptedServer() {
+
+            @Override
+            void script(final SimpleTestSocketClient conn) throws Exception {
+                greet(conn, lmtp);
+                expectEnvelop(conn, "a1", "a2");
+                conn.write("250 2.1.0 OK\r\n250 2.1.5 OK\r\n250 2.1.5 OK\r\n354 go ahead\r\n");
+                readContent(conn);
+                // The next envelop must arrive without the content being acknowledged
+                conn.setSoTimeout(2000);
+                expectEnvelop(conn, "b1");
+                conn.setSoTimeout(10000);
+                if (lmtp) {
+                    conn.write("250 2.1.5 a1 delivered A\r\n250 2.1.5 a2 delivered A\r\n");
+                } else {
+                    conn.write("250 2.0.0 accepted A\r\n");
+                }
+                conn.write("250 2.1.0 OK\r\n250 2.1.5 OK\r\n354 go ahead\r\n");
+                readContent(conn);
+                if (lmtp) {
+                    conn.write("250 2.1.5 b1 delivered B\r\n");
+                } else {
+                    conn.write("250 2.0.0 accepted B\r\n");
+                }
+            }
+
+        };
+        this.server.start();
+        startAgent(lmtp ? TransportType.LMTP : TransportType.SMTP);
+
+        SessionEndpoint endpoint = this.server.getEndpoint();
+        Future<DeliveryResult> future1 = this.agent.deliver(endpoint, 5000,
+                createRequest("A", "a1", "a2"), null);
+        Future<DeliveryResult> future2 = this.agent.deliver(endpoint, 5000,
+                createRequest("B", "b1"), null);
+
+        DeliveryResult result1 = future1.get(30, TimeUnit.SECONDS);
+        DeliveryResult result2 = future2.get(30, TimeUnit.SECONDS);
+        this.server.await();
+
+        Assert.assertEquals(250, result1.getReply().getCode());
+        Assert.assertTrue(result1.getReply().getLine().endsWith("A"));
+        Assert.assertTrue(result1.getFailures().isEmpty());
+        Assert.assertEquals(250, result2.getReply().getCode());
+        Assert.assertTrue(result2.getReply().getLine().endsWith("B"));
+        Assert.assertTrue(result2.getFailures().isEmpty());
+    }
+
+    @Test
+    public void testNextEnvelopSentWithEndOfDataSMTP() throws Throwable {
+        testNextEnvelopSentWithEndOfData(false);
+    }
+
+    @Test
+    public void testNextEnvelopSentWithEndOfDataLMTP() throws Throwable {
+        testNextEnvelopSentWithEndOfData(true);
+    }
+
+    private void testPipelinedRejections(final boolean lmtp) throws Throwable {
+        this.server = new ScriptedServer() {
+
+            @Override
+            void script(final SimpleTestSocketClient conn) throws Exception {
+                greet(conn, lmtp);
+                expectEnvelop(conn, "a1");
+                conn.write("250 2.1.0 OK\r\n250 2.1.5 OK\r\n354 go ahead\r\n");
+                readContent(conn);
+                expectEnvelop(conn, "b1");
+                if (lmtp) {
+                    conn.write("250 2.1.5 a1 delivered A\r\n");
+                } else {
+                    conn.write("250 2.0.0 accepted A\r\n");
+                }
+                // Sender of the pipelined transaction gets rejected
+                conn.write("550 5.7.1 sender rejected\r\n" +
+                        "503 5.5.1 no valid sender\r\n" +
+                        "503 5.5.1 no valid recipients\r\n");
+                Assert.assertEquals("RSET", conn.readLine());
+                conn.write("250 2.0.0 OK\r\n");
+                expectEnvelop(conn, "c1", "c2");
+                conn.write("250 2.1.0 OK\r\n250 2.1.5 OK\r\n550 5.1.1 c2 unknown\r\n354 go ahead\r\n");
+                readContent(conn);
+                if (lmtp) {
+                    conn.write("250 2.1.5 c1 delivered C\r\n");
+                } else {
+                    conn.write("250 2.0.0 accepted C\r\n");
+                }
+            }
+
+        };
+        this.server.start();
+        startAgent(lmtp ? TransportType.LMTP : TransportType.SMTP);
+
+        SessionEndpoint endpoint = this.server.getEndpoint();
+        Future<DeliveryResult> future1 = this.agent.deliver(endpoint, 5000,
+                createRequest("A", "a1"), null);
+        Future<DeliveryResult> future2 = this.agent.deliver(endpoint, 5000,
+                createRequest("B", "b1"), null);
+        Future<DeliveryResult> future3 = this.agent.deliver(endpoint, 5000,
+                createRequest("C", "c1", "c2"), null);
+
+        DeliveryResult result1 = future1.get(30, TimeUnit.SECONDS);
+        DeliveryResult result2 = future2.get(30, TimeUnit.SECONDS);
+        DeliveryResult result3 = future3.get(30, TimeUnit.SECONDS);
+        this.server.await();
+
+        Assert.assertEquals(250, result1.getReply().getCode());
+        Assert.assertTrue(result1.getReply().getLine().endsWith("A"));
+        Assert.assertTrue(result1.getFailures().isEmpty());
+
+        Assert.assertEquals(503, result2.getReply().getCode());
+        Assert.assertEquals(1, result2.getFailures().size());
+        Assert.assertEquals("b1", result2.getFailures().get(0).getRecipient());
+
+        Assert.assertEquals(250, result3.getReply().getCode());
+        Assert.assertTrue(result3.getReply().getLine().endsWith("C"));
+        Assert.assertEquals(1, result3.getFailures().size());
+        Assert.assertEquals("c2", result3.getFailures().get(0).getRecipient());
+        Assert.assertEquals(550, result3.getFailures().get(0).getReply().getCode());
+    }
+
+    @Test
+    public void testPipelinedRejectionsSMTP() throws Throwable {
+        testPipelinedRejections(false);
+    }
+
+    @Test
+    public void testPipelinedRejectionsLMTP() throws Throwable {
+        testPipelinedRejections(true);
+    }
+
+    private void testFailureWithNextRequestInFlight(final boolean lmtp) throws Throwable {
+        this.server = new ScriptedServer() {
+
+            @Override
+            void script(final SimpleTestSocketClient conn) throws Exception {
+                greet(conn, lmtp);
+                expectEnvelop(conn, "a1");
+                conn.write("250 2.1.0 OK\r\n250 2.1.5 OK\r\n354 go ahead\r\n");
+                readContent(conn);
+                expectEnvelop(conn, "b1");
+                // Connection drops before any reply to the pipelined commands
+                conn.close();
+            }
+
+        };
+        this.server.start();
+        startAgent(lmtp ? TransportType.LMTP : TransportType.SMTP);
+
+        SessionEndpoint endpoint = this.server.getEndpoint();
+        CountingCallback callback1 = new CountingCallback();
+        CountingCallback callback2 = new CountingCallback();
+        Future<DeliveryResult> future1 = this.agent.deliver(endpoint, 5000,
+                createRequest("A", "a1"), callback1);
+        Future<DeliveryResult> future2 = this.agent.deliver(endpoint, 5000,
+                createRequest("B", "b1"), callback2);
+
+        for (Future<DeliveryResult> future: Arrays.asList(future1, future2)) {
+            try {
+                future.get(30, TimeUnit.SECONDS);
+                Assert.fail("ExecutionException should have been thrown");
+            } catch (ExecutionException expected) {
+            }
+        }
+        this.server.await();
+        // Give any duplicate completion a chance to show up
+        Thread.sleep(200);
+        Assert.assertEquals(1, callback1.count.get());
+        Assert.assertEquals(1, callback2.count.get());
+        Assert.assertEquals(0, this.agent.getPendingDeliveryCount());
+    }
+
+    @Test
+    public void testFailureWithNextRequestInFlightSMTP() throws Throwable {
+        testFailureWithNextRequestInFlight(false);
+    }
+
+    @Test
+    public void testFailureWithNextRequestInFlightLMTP() throws Throwable {
+        testFailureWithNextRequestInFlight(true);
+    }
+
+}
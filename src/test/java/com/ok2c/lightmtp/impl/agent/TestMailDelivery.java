@@ -20,9 +20,11 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -40,10 +42,12 @@ import com.ok2c.lightmtp.agent.SessionEndpoint;
 import com.ok2c.lightmtp.impl.BaseTransportTest;
 import com.ok2c.lightmtp.impl.protocol.LocalClientSessionFactory;
 import com.ok2c.lightmtp.impl.protocol.LocalServerSessionFactory;
+import com.ok2c.lightmtp.impl.protocol.ServerSessionConfig;
 import com.ok2c.lightmtp.impl.protocol.ServerSessionFactory;
 import com.ok2c.lightmtp.impl.protocol.ServerState;
 import com.ok2c.lightmtp.impl.protocol.cmd.DefaultProtocolHandler;
 import com.ok2c.lightmtp.message.content.ByteArraySource;
+import com.ok2c.lightmtp.protocol.AsyncRemoteAddressValidator;
 import com.ok2c.lightmtp.protocol.BasicDeliveryRequest;
 import com.ok2c.lightmtp.protocol.DeliveryHandler;
 import com.ok2c.lightmtp.protocol.DeliveryRequest;
@@ -434,6 +438,57 @@ public class TestMailDelivery extends BaseTransportTest {
         Assert.assertNull(deliveries.poll());
     }
 
+    @Test
+    public void testRecipientLimitPipelinedDelivery() throws Exception {
+
+        List<DeliveryRequest> requests = new ArrayList<DeliveryRequest>();
+        requests.add(new BasicDeliveryRequest(
+                "root",
+                Arrays.asList("testuser1", "testuser2", "testuser3"),
+                new ByteArraySource(TEXT3.getBytes("US-ASCII"))));
+
+        SimpleTestJob testJob = new SimpleTestJob(requests);
+
+        SimpleTestDeliveryHandler deliveryHandler = new SimpleTestDeliveryHandler();
+        SimpleEnvelopValidator envelopValidator = new SimpleEnvelopValidator();
+        SimpleIdGenerator idgenerator = new SimpleIdGenerator();
+        this.mta.setSessionConfig(ServerSessionConfig.custom()
+                .setMaxRecipientsPerTransaction(2)
+                .build());
+        this.mta.start(idgenerator, envelopValidator, deliveryHandler);
+        ListenerEndpoint endpoint = this.mta.listen(new InetSocketAddress("localhost", 0));
+        endpoint.waitFor();
+        SocketAddress address = endpoint.getAddress();
+        Assert.assertNotNull(address);
+        Assert.assertNull(endpoint.getException());
+
+        SimpleTestDeliveryRequestHandler deliveryRequestHandler = new SimpleTestDeliveryRequestHandler();
+        this.mua.start(deliveryRequestHandler);
+
+        SessionEndpoint sessEndpoint = new SessionEndpoint(address);
+        SessionRequest sessionRequest = this.mua.connect(sessEndpoint, testJob, null);
+        sessionRequest.waitFor();
+        Assert.assertNotNull(sessionRequest.getSession());
+        Assert.assertNull(sessionRequest.getException());
+
+        List<DeliveryResult> results = testJob.waitForResults();
+        Assert.assertNotNull(results);
+        Assert.assertEquals(1, results.size());
+
+        DeliveryResult res1 = results.get(0);
+        Assert.assertEquals(1, res1.getFailures().size());
+        RcptResult rcres1 = res1.getFailures().get(0);
+        Assert.assertEquals("testuser3", rcres1.getRecipient());
+        Assert.assertEquals(452, rcres1.getReply().getCode());
+        Assert.assertEquals(new SMTPCode(4, 5, 3), rcres1.getReply().getEnhancedCode());
+        Assert.assertEquals(250, res1.getReply().getCode());
+
+        Queue<SimpleTestDelivery> deliveries = deliveryHandler.getDeliveries();
+        SimpleTestDelivery delivery1 = deliveries.poll();
+        Assert.assertNotNull(delivery1);
+        Assert.assertEquals(Arrays.asList("testuser1", "testuser2"), delivery1.getRecipients());
+    }
+
     @Test
     public void testRecipientRejectionNonPipelinedDelivery() throws Exception {
 
@@ -730,6 +785,288 @@ public class TestMailDelivery extends BaseTransportTest {
         Assert.assertEquals(new SMTPCode(2, 6, 0), res2.getReply().getEnhancedCode());
     }
 
+    @Test
+    public void testDelayedAddressValidationDelivery() throws Exception {
+
+        List<DeliveryRequest> requests = new ArrayList<DeliveryRequest>();
+        requests.add(new BasicDeliveryRequest(
+                "root@somewhere.com",
+                Arrays.asList("testuser1"),
+                new ByteArraySource(TEXT1.getBytes("US-ASCII"))));
+
+        SimpleTestJob testJob = new SimpleTestJob(requests);
+
+        SimpleIdGenerator idgenerator = new SimpleIdGenerator();
+        SimpleEnvelopValidator envelopValidator = new SimpleEnvelopValidator();
+        SimpleTestDeliveryHandler deliveryHandler = new SimpleTestDeliveryHandler();
+        this.mta.startWithAsyncValidator(idgenerator, new DelayedRemoteAddressValidator(),
+                envelopValidator, deliveryHandler);
+        ListenerEndpoint endpoint = this.mta.listen(new InetSocketAddress("localhost", 0));
+        endpoint.waitFor();
+        SocketAddress address = endpoint.getAddress();
+        Assert.assertNotNull(address);
+        Assert.assertNull(endpoint.getException());
+
+        SimpleTestDeliveryRequestHandler deliveryRequestHandler = new SimpleTestDeliveryRequestHandler();
+        this.mua.start(deliveryRequestHandler);
+
+        SessionEndpoint sessEndpoint = new SessionEndpoint(address);
+        SessionRequest sessionRequest = this.mua.connect(sessEndpoint, testJob, null);
+        sessionRequest.waitFor();
+        Assert.assertNotNull(sessionRequest.getSession());
+        Assert.assertNull(sessionRequest.getException());
+
+        List<DeliveryResult> results = testJob.waitForResults();
+        Assert.assertNotNull(results);
+        Assert.assertEquals(1, results.size());
+
+        DeliveryResult res1 = results.get(0);
+        Assert.assertTrue(res1.getFailures().isEmpty());
+        Assert.assertEquals(250, res1.getReply().getCode());
+        Assert.assertEquals(new SMTPCode(2, 6, 0), res1.getReply().getEnhancedCode());
+    }
+
+    private SocketAddress startWithAsyncValidator(
+            final AsyncRemoteAddressValidator addressValidator) throws Exception {
+        this.mta.startWithAsyncValidator(new SimpleIdGenerator(), addressValidator,
+                new SimpleEnvelopValidator(), new SimpleTestDeliveryHandler());
+        ListenerEndpoint endpoint = this.mta.listen(new InetSocketAddress("localhost", 0));
+        endpoint.waitFor();
+        Assert.assertNull(endpoint.getException());
+        return endpoint.getAddress();
+    }
+
+    @Test
+    public void testAsyncAddressValidationRejection() throws Exception {
+        SocketAddress address = startWithAsyncValidator(new AsyncRemoteAddressValidator() {
+
+            @Override
+            public Future<Boolean> validateAddress(
+                    final InetAddress address,
+                    final FutureCallback<Boolean> callback) {
+                BasicFuture<Boolean> future = new BasicFuture<Boolean>(callback);
+                future.completed(Boolean.FALSE);
+                return future;
+            }
+
+        });
+
+        SimpleTestSocketClient client = new SimpleTestSocketClient(address);
+        try {
+            String reply = client.readReply();
+            Assert.assertNotNull(reply);
+            Assert.assertTrue(reply, reply.startsWith("554 "));
+            Assert.assertTrue(client.isClosedByPeer());
+        } finally {
+            client.close();
+        }
+        Assert.assertEquals(0, this.mta.getMetrics().getAddressValidationTimeouts());
+    }
+
+    @Test
+    public void testAsyncAddressValidationTimeout() throws Exception {
+        this.mta.setSessionConfig(ServerSessionConfig.custom()
+                .setAddressValidationTimeout(200)
+                .build());
+        final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        SocketAddress address = startWithAsyncValidator(new AsyncRemoteAddressValidator() {
+
+            @Override
+            public Future<Boolean> validateAddress(
+                    final InetAddress address,
+                    final FutureCallback<Boolean> callback) {
+                // Never completes
+                BasicFuture<Boolean> future = new BasicFuture<Boolean>(callback);
+                futures.add(future);
+                return future;
+            }
+
+        });
+
+        SimpleTestSocketClient client = new SimpleTestSocketClient(address);
+        try {
+            long start = System.currentTimeMillis();
+            String reply = client.readReply();
+            Assert.assertNotNull(reply);
+            Assert.assertTrue(reply, reply.startsWith("220 "));
+            Assert.assertTrue(System.currentTimeMillis() - start >= 150);
+            Assert.assertTrue(client.command("QUIT").startsWith("221 "));
+        } finally {
+            client.close();
+        }
+        Assert.assertEquals(1, futures.size());
+        Assert.assertTrue(futures.get(0).isCancelled());
+        Assert.assertEquals(1, this.mta.getMetrics().getAddressValidationTimeouts());
+    }
+
+    @Test
+    public void testAsyncAddressValidationFallback() throws Exception {
+        this.mta.setSessionConfig(ServerSessionConfig.custom()
+                .setAddressValidationFallback(false)
+                .build());
+        SocketAddress address = startWithAsyncValidator(new AsyncRemoteAddressValidator() {
+
+            @Override
+            public Future<Boolean> validateAddress(
+                    final InetAddress address,
+                    final FutureCallback<Boolean> callback) {
+                BasicFuture<Boolean> future = new BasicFuture<Boolean>(callback);
+                future.failed(new IOException("DNSBL lookup failed"));
+                return future;
+            }
+
+        });
+
+        SimpleTestSocketClient client = new SimpleTestSocketClient(address);
+        try {
+            String reply = client.readReply();
+            Assert.assertNotNull(reply);
+            Assert.assertTrue(reply, reply.startsWith("554 "));
+            Assert.assertTrue(client.isClosedByPeer());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testAdmissionControlRejection() throws Exception {
+        ConnectionAdmissionController admissionController = new ConnectionAdmissionController(
+                1, 0, 1, TimeUnit.SECONDS);
+        this.mta.setAdmissionController(admissionController);
+        this.mta.start(new SimpleIdGenerator(), new SimpleEnvelopValidator(),
+                new SimpleTestDeliveryHandler());
+        ListenerEndpoint endpoint = this.mta.listen(new InetSocketAddress("localhost", 0));
+        endpoint.waitFor();
+        Assert.assertNull(endpoint.getException());
+        SocketAddress address = endpoint.getAddress();
+
+        SimpleTestSocketClient client1 = new SimpleTestSocketClient(address);
+        try {
+            Assert.assertTrue(client1.readReply().startsWith("220 "));
+
+            SimpleTestSocketClient client2 = new SimpleTestSocketClient(address);
+            try {
+                Assert.assertEquals("421 4.7.0 Too many connections, try again later",
+                        client2.readReply());
+                Assert.assertTrue(client2.isClosedByPeer());
+            } finally {
+                client2.close();
+            }
+            Assert.assertEquals(1, admissionController.getRejectedCount());
+
+            Assert.assertTrue(client1.command("QUIT").startsWith("221 "));
+            Assert.assertTrue(client1.isClosedByPeer());
+        } finally {
+            client1.close();
+        }
+
+        // The released slot can be used again
+        long deadline = System.currentTimeMillis() + 5000;
+        while (admissionController.getConnectionCount(InetAddress.getByName("127.0.0.1")) > 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        SimpleTestSocketClient client3 = new SimpleTestSocketClient(address);
+        try {
+            Assert.assertTrue(client3.readReply().startsWith("220 "));
+        } finally {
+            client3.close();
+        }
+    }
+
+    private SocketAddress startServer(final ServerSessionConfig config) throws Exception {
+        this.mta.setSessionConfig(config);
+        this.mta.start(new SimpleIdGenerator(), new SimpleEnvelopValidator(),
+                new SimpleTestDeliveryHandler());
+        ListenerEndpoint endpoint = this.mta.listen(new InetSocketAddress("localhost", 0));
+        endpoint.waitFor();
+        Assert.assertNull(endpoint.getException());
+        return endpoint.getAddress();
+    }
+
+    @Test
+    public void testMessageLimitPerSession() throws Exception {
+        SocketAddress address = startServer(ServerSessionConfig.custom()
+                .setMaxMessagesPerSession(1)
+                .build());
+
+        SimpleTestSocketClient client = new SimpleTestSocketClient(address);
+        try {
+            Assert.assertTrue(client.readReply().startsWith("220 "));
+            Assert.assertTrue(client.command("EHLO localhost").startsWith("250 "));
+            Assert.assertTrue(client.command("MAIL FROM:<root@somewhere.com>").startsWith("250 "));
+            Assert.assertTrue(client.command("RCPT TO:<testuser1>").startsWith("250 "));
+            Assert.assertTrue(client.command("DATA").startsWith("354 "));
+            client.write(TEXT1);
+            Assert.assertTrue(client.command(".").startsWith("250 "));
+
+            String reply = client.command("MAIL FROM:<root@somewhere.com>");
+            Assert.assertTrue(reply, reply.startsWith("451 4.7.0 "));
+            Assert.assertTrue(client.command("QUIT").startsWith("221 "));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testInputRateThrottling() throws Exception {
+        SocketAddress address = startServer(ServerSessionConfig.custom()
+                .setMaxInputRate(2000)
+                .build());
+
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            buffer.append("This is a line of a larger test message ........................ ");
+            buffer.append(i);
+            buffer.append("\r\n");
+        }
+        String content = buffer.toString();
+        Assert.assertTrue(content.length() > 3000);
+
+        SimpleTestSocketClient client = new SimpleTestSocketClient(address);
+        try {
+            Assert.assertTrue(client.readReply().startsWith("220 "));
+            Assert.assertTrue(client.command("EHLO localhost").startsWith("250 "));
+            Assert.assertTrue(client.command("MAIL FROM:<root@somewhere.com>").startsWith("250 "));
+            Assert.assertTrue(client.command("RCPT TO:<testuser1>").startsWith("250 "));
+            Assert.assertTrue(client.command("DATA").startsWith("354 "));
+            long start = System.currentTimeMillis();
+            client.write(content);
+            Thread.sleep(100);
+            // Input is suspended until the budget has been paid off
+            String reply = client.command(".");
+            long elapsed = System.currentTimeMillis() - start;
+            Assert.assertTrue(reply, reply.startsWith("250 "));
+            Assert.assertTrue("Elapsed " + elapsed, elapsed >= 1000);
+            // Input is resumed afterwards
+            Assert.assertTrue(client.command("QUIT").startsWith("221 "));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testSessionDurationLimit() throws Exception {
+        SocketAddress address = startServer(ServerSessionConfig.custom()
+                .setMaxSessionDuration(300)
+                .build());
+
+        SimpleTestSocketClient client = new SimpleTestSocketClient(address);
+        try {
+            long start = System.currentTimeMillis();
+            Assert.assertTrue(client.readReply().startsWith("220 "));
+            Assert.assertTrue(client.command("EHLO localhost").startsWith("250 "));
+            // Idle client gets disconnected once the session expires
+            String reply = client.readReply();
+            Assert.assertNotNull(reply);
+            Assert.assertTrue(reply, reply.startsWith("421 "));
+            Assert.assertTrue(System.currentTimeMillis() - start >= 250);
+            Assert.assertTrue(client.isClosedByPeer());
+        } finally {
+            client.close();
+        }
+    }
+
     @Test
     public void testDelayedValidationNonPipelinedDelivery() throws Exception {
 
@@ -845,6 +1182,120 @@ public class TestMailDelivery extends BaseTransportTest {
         Assert.assertEquals(new SMTPCode(4, 2, 0), res2.getReply().getEnhancedCode());
     }
 
+    @Test
+    public void testDeliveryTimeout() throws Exception {
+
+        List<DeliveryRequest> requests = new ArrayList<DeliveryRequest>();
+        requests.add(new BasicDeliveryRequest(
+                "root@somewhere.com",
+                Arrays.asList("testuser1"),
+                new ByteArraySource(TEXT1.getBytes("US-ASCII"))));
+
+        SimpleTestJob testJob = new SimpleTestJob(requests);
+
+        SimpleIdGenerator idgenerator = new SimpleIdGenerator();
+        SimpleEnvelopValidator envelopValidator = new SimpleEnvelopValidator();
+        DeliveryHandler deliveryHandler = new DeliveryHandler() {
+
+            @Override
+            public Future<DeliveryResult> handle(
+                    final String messageId,
+                    final DeliveryRequest request,
+                    final FutureCallback<DeliveryResult> callback) {
+                // Never completes
+                return new BasicFuture<DeliveryResult>(callback);
+            }
+
+        };
+
+        this.mta.setSessionConfig(ServerSessionConfig.custom()
+                .setDeliveryTimeout(100)
+                .build());
+        this.mta.start(idgenerator, envelopValidator, deliveryHandler);
+        ListenerEndpoint endpoint = this.mta.listen(new InetSocketAddress("localhost", 0));
+        endpoint.waitFor();
+        SocketAddress address = endpoint.getAddress();
+        Assert.assertNotNull(address);
+        Assert.assertNull(endpoint.getException());
+
+        SimpleTestDeliveryRequestHandler deliveryRequestHandler = new SimpleTestDeliveryRequestHandler();
+        this.mua.start(deliveryRequestHandler);
+
+        SessionEndpoint sessEndpoint = new SessionEndpoint(address);
+        SessionRequest sessionRequest = this.mua.connect(sessEndpoint, testJob, null);
+        sessionRequest.waitFor();
+        Assert.assertNotNull(sessionRequest.getSession());
+        Assert.assertNull(sessionRequest.getException());
+
+        List<DeliveryResult> results = testJob.waitForResults();
+        Assert.assertNotNull(results);
+        Assert.assertEquals(1, results.size());
+
+        DeliveryResult res1 = results.get(0);
+        Assert.assertTrue(res1.getFailures().isEmpty());
+        Assert.assertEquals(451, res1.getReply().getCode());
+        Assert.assertEquals(new SMTPCode(4, 3, 0), res1.getReply().getEnhancedCode());
+        Assert.assertEquals(1, this.mta.getMetrics().getDeliveryTimeouts());
+    }
+
+    @Test
+    public void testEnvelopValidationTimeout() throws Exception {
+        final List<Future<SMTPReply>> futures = Collections.synchronizedList(
+                new ArrayList<Future<SMTPReply>>());
+        EnvelopValidator envelopValidator = new EnvelopValidator() {
+
+            @Override
+            public Future<SMTPReply> validateSender(
+                    final InetAddress client,
+                    final String sender,
+                    final FutureCallback<SMTPReply> callback) {
+                BasicFuture<SMTPReply> future = new BasicFuture<SMTPReply>(callback);
+                future.completed(new SMTPReply(SMTPCodes.OK, new SMTPCode(2, 1, 0),
+                        "originator <" + sender + "> ok"));
+                return future;
+            }
+
+            @Override
+            public Future<SMTPReply> validateRecipient(
+                    final InetAddress client,
+                    final String recipient,
+                    final FutureCallback<SMTPReply> callback) {
+                // Never completes
+                BasicFuture<SMTPReply> future = new BasicFuture<SMTPReply>(callback);
+                futures.add(future);
+                return future;
+            }
+
+        };
+
+        this.mta.setSessionConfig(ServerSessionConfig.custom()
+                .setEnvelopValidationTimeout(200)
+                .build());
+        this.mta.start(new SimpleIdGenerator(), envelopValidator, new SimpleTestDeliveryHandler());
+        ListenerEndpoint endpoint = this.mta.listen(new InetSocketAddress("localhost", 0));
+        endpoint.waitFor();
+        Assert.assertNull(endpoint.getException());
+
+        SimpleTestSocketClient client = new SimpleTestSocketClient(endpoint.getAddress());
+        try {
+            Assert.assertTrue(client.readReply().startsWith("220 "));
+            Assert.assertTrue(client.command("EHLO localhost").startsWith("250 "));
+            Assert.assertTrue(client.command("MAIL FROM:<root@somewhere.com>").startsWith("250 "));
+            long start = System.currentTimeMillis();
+            String reply = client.command("RCPT TO:<testuser1>");
+            Assert.assertTrue(reply, reply.startsWith("451 4.3.0 "));
+            Assert.assertTrue(System.currentTimeMillis() - start >= 150);
+            // The session remains usable
+            Assert.assertTrue(client.command("RSET").startsWith("250 "));
+            Assert.assertTrue(client.command("QUIT").startsWith("221 "));
+        } finally {
+            client.close();
+        }
+        Assert.assertEquals(1, futures.size());
+        Assert.assertTrue(futures.get(0).isCancelled());
+        Assert.assertEquals(1, this.mta.getMetrics().getEnvelopValidationTimeouts());
+    }
+
     @Test
     public void testBasicLocalDelivery() throws Exception {
 
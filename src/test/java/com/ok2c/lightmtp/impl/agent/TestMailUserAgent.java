@@ -0,0 +1,1112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Base64;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.ListenerEndpoint;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.ok2c.lightmtp.SMTPCode;
+import com.ok2c.lightmtp.SMTPReply;
+import com.ok2c.lightmtp.agent.EndpointResolver;
+import com.ok2c.lightmtp.agent.RecipientResultListener;
+import com.ok2c.lightmtp.agent.ResolvedEndpoints;
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+import com.ok2c.lightmtp.agent.TransportType;
+import com.ok2c.lightmtp.impl.BaseTransportTest;
+import com.ok2c.lightmtp.impl.protocol.ClientSessionConfig;
+import com.ok2c.lightmtp.impl.resolver.CachingEndpointResolver;
+import com.ok2c.lightmtp.impl.resolver.StaticEndpointResolver;
+import com.ok2c.lightmtp.impl.pool.SessionPoolConfig;
+import com.ok2c.lightmtp.message.content.ByteArraySource;
+import com.ok2c.lightmtp.message.content.SharedEncodedContent;
+import com.ok2c.lightmtp.protocol.BasicDeliveryRequest;
+import com.ok2c.lightmtp.protocol.DeliveryRequest;
+import com.ok2c.lightmtp.protocol.DeliveryResult;
+import com.ok2c.lightmtp.protocol.EnvelopValidator;
+import com.ok2c.lightmtp.protocol.RcptResult;
+import com.ok2c.lightmtp.protocol.RemoteAddressValidator;
+
+public class TestMailUserAgent extends BaseTransportTest {
+
+    static String TEXT1 = "From: root\r\n" +
+            "To: testuser1\r\n" +
+            "Subject: test message 1\r\n" +
+            "\r\n" +
+            "This is a short test message 1\r\n";
+
+    private SimpleTestDeliveryHandler deliveryHandler;
+    private AtomicInteger connectionCount;
+    private Set<InetAddress> clientAddresses;
+    private DefaultMailUserAgent agent;
+
+    @After
+    public void shutDownAgent() throws Exception {
+        if (this.agent != null) {
+            try {
+                this.agent.shutdown();
+            } catch (IOException ex) {
+                ex.printStackTrace(System.out);
+            }
+        }
+    }
+
+    private SessionEndpoint startServer() throws Exception {
+        return startServer(new SimpleEnvelopValidator());
+    }
+
+    private SessionEndpoint startServer(final EnvelopValidator envelopValidator) throws Exception {
+        this.deliveryHandler = new SimpleTestDeliveryHandler();
+        this.connectionCount = new AtomicInteger();
+        this.clientAddresses = Collections.synchronizedSet(new HashSet<InetAddress>());
+        RemoteAddressValidator addressValidator = new RemoteAddressValidator() {
+
+            @Override
+            public boolean validateAddress(final InetAddress address) {
+                connectionCount.incrementAndGet();
+                clientAddresses.add(address);
+                return true;
+            }
+
+        };
+        this.mta.start(new SimpleIdGenerator(), addressValidator,
+                envelopValidator, this.deliveryHandler);
+        ListenerEndpoint endpoint = this.mta.listen(new InetSocketAddress("localhost", 0));
+        endpoint.waitFor();
+        SocketAddress address = endpoint.getAddress();
+        Assert.assertNotNull(address);
+        return new SessionEndpoint(address);
+    }
+
+    @Test
+    public void testMultipleDeliveries() throws Exception {
+        SessionEndpoint endpoint = startServer();
+
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        SessionPoolConfig poolConfig = SessionPoolConfig.custom()
+                .setDefaultMaxPerEndpoint(2)
+                .setMaintenanceInterval(100)
+                .build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config, poolConfig);
+        this.agent.start();
+
+        List<Future<DeliveryResult>> futures = new ArrayList<Future<DeliveryResult>>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(this.agent.deliver(endpoint, 5000,
+                    new BasicDeliveryRequest(
+                            "root",
+                            Arrays.asList("testuser1"),
+                            new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                    null));
+        }
+        for (Future<DeliveryResult> future: futures) {
+            DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+            Assert.assertNotNull(result);
+            Assert.assertEquals(250, result.getReply().getCode());
+            Assert.assertTrue(result.getFailures().isEmpty());
+        }
+        Assert.assertEquals(10, this.deliveryHandler.getDeliveries().size());
+    }
+
+    @Test
+    public void testDeliveriesToMultipleEndpointsOverTotalLimit() throws Exception {
+        SessionEndpoint endpoint1 = startServer();
+        SessionEndpoint endpoint2 = new SessionEndpoint(
+                new InetSocketAddress("127.0.0.1", 0), endpoint1.getRemoteAddress());
+
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        SessionPoolConfig poolConfig = SessionPoolConfig.custom()
+                .setDefaultMaxPerEndpoint(2)
+                .setMaxTotal(1)
+                .build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config, poolConfig);
+        this.agent.start();
+
+        List<Future<DeliveryResult>> futures = new ArrayList<Future<DeliveryResult>>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(this.agent.deliver(i % 2 == 0 ? endpoint1 : endpoint2, 5000,
+                    new BasicDeliveryRequest(
+                            "root",
+                            Arrays.asList("testuser1"),
+                            new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                    null));
+        }
+        for (Future<DeliveryResult> future: futures) {
+            DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+            Assert.assertNotNull(result);
+            Assert.assertEquals(250, result.getReply().getCode());
+        }
+        Assert.assertEquals(10, this.deliveryHandler.getDeliveries().size());
+    }
+
+    @Test
+    public void testQueuedDeliveriesShareSessions() throws Exception {
+        SessionEndpoint endpoint = startServer();
+
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        SessionPoolConfig poolConfig = SessionPoolConfig.custom()
+                .setDefaultMaxPerEndpoint(2)
+                .build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config, poolConfig);
+        this.agent.start();
+
+        List<Future<DeliveryResult>> futures = new ArrayList<Future<DeliveryResult>>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(this.agent.deliver(endpoint, 5000,
+                    new BasicDeliveryRequest(
+                            "root",
+                            Arrays.asList("testuser1"),
+                            new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                    null));
+        }
+        for (Future<DeliveryResult> future: futures) {
+            DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+            Assert.assertNotNull(result);
+            Assert.assertEquals(250, result.getReply().getCode());
+        }
+        Assert.assertEquals(50, this.deliveryHandler.getDeliveries().size());
+        Assert.assertTrue(this.connectionCount.get() <= 2);
+    }
+
+    @Test
+    public void testBulkDeliveryMergesEnvelopes() throws Exception {
+        SessionEndpoint endpoint = startServer();
+
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config);
+        this.agent.setMaxRecipientsPerTransaction(2);
+        this.agent.start();
+
+        ByteArraySource content1 = new ByteArraySource(TEXT1.getBytes("US-ASCII"));
+        ByteArraySource content2 = new ByteArraySource(TEXT1.getBytes("US-ASCII"));
+        List<BasicDeliveryRequest> requests = new ArrayList<BasicDeliveryRequest>();
+        requests.add(new BasicDeliveryRequest("root",
+                Arrays.asList("testuser1", "testuser2"), content1));
+        requests.add(new BasicDeliveryRequest("root",
+                Arrays.asList("testuser2", "testuser3"), content1));
+        requests.add(new BasicDeliveryRequest("root",
+                Arrays.asList("testuser4"), content1));
+        requests.add(new BasicDeliveryRequest("root",
+                Arrays.asList("testuser1"), content2));
+
+        List<Future<DeliveryResult>> futures = this.agent.deliver(endpoint, 5000, requests, null);
+        Assert.assertEquals(4, futures.size());
+        for (Future<DeliveryResult> future: futures) {
+            DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+            Assert.assertNotNull(result);
+            Assert.assertEquals(250, result.getReply().getCode());
+            Assert.assertTrue(result.getFailures().isEmpty());
+        }
+        // 4 distinct recipients of content1 in 2 transactions, 1 transaction for content2
+        Assert.assertEquals(3, this.deliveryHandler.getDeliveries().size());
+        int recipients = 0;
+        for (SimpleTestDelivery delivery: this.deliveryHandler.getDeliveries()) {
+            Assert.assertTrue(delivery.getRecipients().size() <= 2);
+            recipients += delivery.getRecipients().size();
+        }
+        Assert.assertEquals(5, recipients);
+    }
+
+    @Test
+    public void testSharedEncodedContentDeliveries() throws Exception {
+        SessionEndpoint endpoint = startServer();
+
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config);
+        this.agent.start();
+
+        String text = "Subject: shared\n\n.leading period\nline\n";
+        SharedEncodedContent content = SharedEncodedContent.encode(
+                new ByteArraySource(text.getBytes("US-ASCII")));
+        List<Future<DeliveryResult>> futures = new ArrayList<Future<DeliveryResult>>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(this.agent.deliver(endpoint, 5000,
+                    new BasicDeliveryRequest("root", Arrays.asList("testuser" + i), content),
+                    null));
+        }
+        content.release();
+        for (Future<DeliveryResult> future: futures) {
+            DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+            Assert.assertNotNull(result);
+            Assert.assertEquals(250, result.getReply().getCode());
+        }
+        // Future callbacks run after waiting threads have been released
+        for (int i = 0; i < 50 && content.getRefCount() > 0; i++) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(0, content.getRefCount());
+        Assert.assertEquals(10, this.deliveryHandler.getDeliveries().size());
+        for (SimpleTestDelivery delivery: this.deliveryHandler.getDeliveries()) {
+            Assert.assertEquals("Subject: shared\r\n\r\n.leading period\r\nline\r\n",
+                    delivery.getContent());
+        }
+    }
+
+    @Test
+    public void testDomainDeliveryFailover() throws Exception {
+        SessionEndpoint endpoint = startServer();
+        ServerSocket socket = new ServerSocket(0);
+        SessionEndpoint deadEndpoint = new SessionEndpoint(
+                new InetSocketAddress("localhost", socket.getLocalPort()));
+        socket.close();
+
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config);
+        StaticEndpointResolver resolver = new StaticEndpointResolver();
+        resolver.register("example.com", deadEndpoint, endpoint);
+        this.agent.setEndpointResolver(new CachingEndpointResolver(resolver));
+        this.agent.start();
+
+        Future<DeliveryResult> future = this.agent.deliver("example.com", 5000,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser1@example.com"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                null);
+        DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(250, result.getReply().getCode());
+        Assert.assertEquals(1, this.deliveryHandler.getDeliveries().size());
+
+        Future<DeliveryResult> future2 = this.agent.deliver("example.org", 5000,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser1@example.org"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                null);
+        try {
+            future2.get(30, TimeUnit.SECONDS);
+            Assert.fail("ExecutionException should have been thrown");
+        } catch (ExecutionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof UnknownHostException);
+        }
+    }
+
+    @Test
+    public void testDomainResolverRuntimeException() throws Exception {
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config);
+        this.agent.setMaxPendingDeliveries(1);
+        this.agent.setEndpointResolver(new EndpointResolver() {
+
+            @Override
+            public ResolvedEndpoints resolve(final String domain) {
+                throw new IllegalArgumentException("Invalid domain: " + domain);
+            }
+
+        });
+        this.agent.start();
+
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < 2; i++) {
+            try {
+                this.agent.deliver("example.com", 5000,
+                        new BasicDeliveryRequest("root", Arrays.asList("testuser1@example.com"),
+                                new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                        new FutureCallback<DeliveryResult>() {
+
+                            @Override
+                            public void completed(final DeliveryResult result) {
+                            }
+
+                            @Override
+                            public void failed(final Exception ex) {
+                                failures.incrementAndGet();
+                            }
+
+                            @Override
+                            public void cancelled() {
+                            }
+
+                        });
+                Assert.fail("IllegalArgumentException should have been thrown");
+            } catch (IllegalArgumentException expected) {
+            }
+            // The submission permit must have been released
+            Assert.assertEquals(0, this.agent.getPendingDeliveryCount());
+        }
+        Assert.assertEquals(2, failures.get());
+    }
+
+    /**
+     * Serves one connection per script and closes it after a single message.
+     * The first element of a script lists the advertised AUTH mechanisms, the
+     * remaining ones are sent in reply to the AUTH command and to each line that
+     * follows it. All lines received in the course of the AUTH exchange are recorded.
+     */
+    private static void startAuthServer(
+            final ServerSocket socket,
+            final List<String[]> scripts,
+            final List<String> authLines) {
+        Thread server = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    for (final String[] script : scripts) {
+                        Socket conn = socket.accept();
+                        try {
+                            serveAuth(conn, script, authLines);
+                        } finally {
+                            conn.close();
+                        }
+                    }
+                } catch (IOException ex) {
+                }
+            }
+
+        };
+        server.setDaemon(true);
+        server.start();
+    }
+
+    private static void serveAuth(
+            final Socket conn,
+            final String[] script,
+            final List<String> authLines) throws IOException {
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(conn.getInputStream(), "US-ASCII"));
+        OutputStream out = conn.getOutputStream();
+        out.write("220 localhost ESMTP\r\n".getBytes("US-ASCII"));
+        in.readLine();
+        out.write(("250-localhost\r\n250-AUTH " + script[0] + "\r\n250 OK\r\n").getBytes("US-ASCII"));
+        for (int i = 1; i < script.length; i++) {
+            authLines.add(in.readLine());
+            out.write((script[i] + "\r\n").getBytes("US-ASCII"));
+        }
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("DATA")) {
+                out.write("354 Start mail input\r\n".getBytes("US-ASCII"));
+                while ((line = in.readLine()) != null && !line.equals(".")) {
+                }
+                out.write("250 OK\r\n".getBytes("US-ASCII"));
+                return;
+            } else {
+                out.write("250 OK\r\n".getBytes("US-ASCII"));
+            }
+        }
+    }
+
+    private List<String> deliverWithAuth(final List<String[]> scripts) throws Exception {
+        List<String> authLines = Collections.synchronizedList(new ArrayList<String>());
+        ServerSocket socket = new ServerSocket(0);
+        startAuthServer(socket, scripts, authLines);
+        try {
+            SessionEndpoint endpoint = new SessionEndpoint(
+                    new InetSocketAddress("localhost", socket.getLocalPort()));
+            IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+            SessionPoolConfig poolConfig = SessionPoolConfig.custom()
+                    .setKeepAlive(1)
+                    .build();
+            this.agent = new DefaultMailUserAgent(TransportType.SMTP, config, poolConfig);
+            this.agent.setAuthentication("testuser", "secret");
+            this.agent.start();
+
+            for (int i = 0; i < scripts.size(); i++) {
+                Future<DeliveryResult> future = this.agent.deliver(endpoint, 5000,
+                        new BasicDeliveryRequest("root", Arrays.asList("testuser1"),
+                                new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                        null);
+                DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+                Assert.assertEquals(250, result.getReply().getCode());
+                // Wait for the session to be released and to expire, so that
+                // the next delivery has to open and authenticate a new one
+                long deadline = System.currentTimeMillis() + 10000;
+                while (this.agent.getSessionStats(endpoint).getLeased() > 0
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(50);
+                }
+                Thread.sleep(50);
+            }
+        } finally {
+            socket.close();
+        }
+        return authLines;
+    }
+
+    private static String encode(final String s) throws Exception {
+        return new String(Base64.encodeBase64(s.getBytes("US-ASCII")), "US-ASCII");
+    }
+
+    @Test
+    public void testAuthPlainInitialResponse() throws Exception {
+        List<String[]> scripts = new ArrayList<String[]>();
+        scripts.add(new String[] {"LOGIN PLAIN", "235 2.7.0 Authentication successful"});
+
+        List<String> authLines = deliverWithAuth(scripts);
+        Assert.assertEquals(Arrays.asList(
+                "AUTH PLAIN " + encode("\0testuser\0secret")), authLines);
+    }
+
+    @Test
+    public void testAuthPlainInitialResponseIgnored() throws Exception {
+        List<String[]> scripts = new ArrayList<String[]>();
+        scripts.add(new String[] {"PLAIN", "334 ", "235 2.7.0 Authentication successful"});
+
+        List<String> authLines = deliverWithAuth(scripts);
+        Assert.assertEquals(Arrays.asList(
+                "AUTH PLAIN " + encode("\0testuser\0secret"),
+                encode("\0testuser\0secret")), authLines);
+    }
+
+    @Test
+    public void testAuthMechanismCached() throws Exception {
+        List<String[]> scripts = new ArrayList<String[]>();
+        scripts.add(new String[] {"LOGIN PLAIN", "235 2.7.0 Authentication successful"});
+        // Only LOGIN is advertised now: the mechanism chosen for the first connection
+        // must be used without being renegotiated
+        scripts.add(new String[] {"LOGIN", "235 2.7.0 Authentication successful"});
+
+        List<String> authLines = deliverWithAuth(scripts);
+        Assert.assertEquals(Arrays.asList(
+                "AUTH PLAIN " + encode("\0testuser\0secret"),
+                "AUTH PLAIN " + encode("\0testuser\0secret")), authLines);
+    }
+
+    @Test
+    public void testAuthFailureEvictsCachedMechanism() throws Exception {
+        List<String[]> scripts = new ArrayList<String[]>();
+        scripts.add(new String[] {"LOGIN PLAIN", "535 5.7.8 Authentication credentials invalid"});
+        scripts.add(new String[] {"LOGIN", "334 VXNlcm5hbWU6", "334 UGFzc3dvcmQ6",
+                "235 2.7.0 Authentication successful"});
+
+        List<String> authLines = deliverWithAuth(scripts);
+        Assert.assertEquals(Arrays.asList(
+                "AUTH PLAIN " + encode("\0testuser\0secret"),
+                "AUTH LOGIN",
+                encode("testuser"),
+                encode("secret")), authLines);
+    }
+
+    private static boolean isBindable(final String address) {
+        Socket socket = new Socket();
+        try {
+            socket.bind(new InetSocketAddress(address, 0));
+            return true;
+        } catch (IOException ex) {
+            return false;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    @Test
+    public void testSourceAddressRotation() throws Exception {
+        // Only some platforms (such as Linux) route the entire 127.0.0.0/8 block
+        // to the loopback interface by default
+        Assume.assumeTrue(isBindable("127.0.0.2") && isBindable("127.0.0.3"));
+        SessionEndpoint endpoint = startServer();
+
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        SessionPoolConfig poolConfig = SessionPoolConfig.custom()
+                .setDefaultMaxPerEndpoint(1)
+                .build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config, poolConfig);
+        SessionEndpoint server = new SessionEndpoint(new InetSocketAddress("127.0.0.1",
+                ((InetSocketAddress) endpoint.getRemoteAddress()).getPort()));
+        this.agent.setSourceAddressPool(new SourceAddressPool(Arrays.asList(
+                new InetSocketAddress("127.0.0.1", 0),
+                new InetSocketAddress("127.0.0.2", 0),
+                new InetSocketAddress("127.0.0.3", 0))));
+        this.agent.start();
+
+        List<Future<DeliveryResult>> futures = new ArrayList<Future<DeliveryResult>>();
+        for (int i = 0; i < 9; i++) {
+            futures.add(this.agent.deliver(server, 5000,
+                    new BasicDeliveryRequest(
+                            "root",
+                            Arrays.asList("testuser1"),
+                            new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                    null));
+        }
+        for (Future<DeliveryResult> future: futures) {
+            DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+            Assert.assertEquals(250, result.getReply().getCode());
+        }
+        Assert.assertEquals(9, this.deliveryHandler.getDeliveries().size());
+        Assert.assertEquals(3, this.clientAddresses.size());
+        Assert.assertEquals(3, this.connectionCount.get());
+    }
+
+    @Test
+    public void testConnectRacing() throws Exception {
+        SessionEndpoint endpoint = startServer();
+        // Non-routable address: connects hang until they time out
+        SessionEndpoint blackhole = new SessionEndpoint(new InetSocketAddress("10.255.255.1", 25));
+
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config);
+        StaticEndpointResolver resolver = new StaticEndpointResolver();
+        resolver.register("example.com", blackhole, endpoint);
+        this.agent.setEndpointResolver(resolver);
+        this.agent.setConnectStagger(100);
+        this.agent.start();
+
+        long start = System.currentTimeMillis();
+        Future<DeliveryResult> future = this.agent.deliver("example.com", 20000,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser1@example.com"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                null);
+        DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(250, result.getReply().getCode());
+        Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+        Assert.assertEquals(1, this.deliveryHandler.getDeliveries().size());
+        Assert.assertEquals(1, this.connectionCount.get());
+    }
+
+    @Test
+    public void testCircuitBreakerFailsFast() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        SessionEndpoint deadEndpoint = new SessionEndpoint(
+                new InetSocketAddress("localhost", socket.getLocalPort()));
+        socket.close();
+
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config);
+        this.agent.setCircuitBreaker(new EndpointCircuitBreaker(2, 1, TimeUnit.MINUTES, 1));
+        this.agent.start();
+
+        for (int i = 0; i < 2; i++) {
+            Future<DeliveryResult> future = this.agent.deliver(deadEndpoint, 5000,
+                    new BasicDeliveryRequest("root", Arrays.asList("testuser1"),
+                            new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                    null);
+            try {
+                future.get(30, TimeUnit.SECONDS);
+                Assert.fail("ExecutionException should have been thrown");
+            } catch (ExecutionException expected) {
+                Assert.assertTrue(expected.getCause() instanceof IOException);
+                Assert.assertFalse(expected.getCause() instanceof CircuitOpenException);
+            }
+        }
+        Assert.assertEquals(EndpointCircuitBreaker.State.OPEN,
+                this.agent.getCircuitBreaker().getState(deadEndpoint));
+
+        Future<DeliveryResult> future = this.agent.deliver(deadEndpoint, 5000,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser1"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                null);
+        Assert.assertTrue(future.isDone());
+        try {
+            future.get();
+            Assert.fail("ExecutionException should have been thrown");
+        } catch (ExecutionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof CircuitOpenException);
+        }
+    }
+
+    @Test
+    public void testPriorityDeliveries() throws Exception {
+        SessionEndpoint endpoint = startServer();
+
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config);
+        this.agent.setPriorityLaneConfig(PriorityLaneConfig.custom()
+                .setReservedSessions(1)
+                .build());
+        this.agent.start();
+
+        List<Future<DeliveryResult>> futures = new ArrayList<Future<DeliveryResult>>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(this.agent.deliver(endpoint, 5000,
+                    new BasicDeliveryRequest("root", Arrays.asList("testuser1"),
+                            new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                    DeliveryPriority.BULK, null));
+        }
+        futures.add(this.agent.deliver(endpoint, 5000,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser2"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                DeliveryPriority.HIGH, null));
+        for (Future<DeliveryResult> future: futures) {
+            DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+            Assert.assertEquals(250, result.getReply().getCode());
+        }
+        Assert.assertEquals(6, this.deliveryHandler.getDeliveries().size());
+
+        DeliveryLaneStats bulkStats = this.agent.getLaneStats(DeliveryPriority.BULK);
+        Assert.assertEquals(5, bulkStats.getDispatched());
+        Assert.assertEquals(0, bulkStats.getQueued());
+        DeliveryLaneStats highStats = this.agent.getLaneStats(endpoint, DeliveryPriority.HIGH);
+        Assert.assertEquals(1, highStats.getDispatched());
+        Assert.assertEquals(0, this.agent.getLaneStats(DeliveryPriority.NORMAL).getDispatched());
+    }
+
+    @Test
+    public void testIdleDeliveryQueuesDiscarded() throws Exception {
+        SessionEndpoint endpoint1 = startServer();
+        SessionEndpoint endpoint2 = new SessionEndpoint(
+                new InetSocketAddress("127.0.0.1", 0), endpoint1.getRemoteAddress());
+
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config);
+        this.agent.setQueueIdleTime(0);
+        this.agent.start();
+
+        Future<DeliveryResult> future1 = this.agent.deliver(endpoint1, 5000,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser1"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                null);
+        Assert.assertEquals(250, future1.get(30, TimeUnit.SECONDS).getReply().getCode());
+        Thread.sleep(50);
+
+        // Releasing the session of another endpoint discards the idle queue
+        Future<DeliveryResult> future2 = this.agent.deliver(endpoint2, 5000,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser2"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                null);
+        Assert.assertEquals(250, future2.get(30, TimeUnit.SECONDS).getReply().getCode());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (this.agent.getLaneStats(endpoint1, DeliveryPriority.NORMAL).getDispatched() > 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(0, this.agent.getLaneStats(
+                endpoint1, DeliveryPriority.NORMAL).getDispatched());
+
+        Future<DeliveryResult> future3 = this.agent.deliver(endpoint1, 5000,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser3"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                null);
+        Assert.assertEquals(250, future3.get(30, TimeUnit.SECONDS).getReply().getCode());
+        Assert.assertEquals(3, this.deliveryHandler.getDeliveries().size());
+    }
+
+    @Test
+    public void testRateShaping() throws Exception {
+        SessionEndpoint endpoint = startServer();
+
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config);
+        this.agent.setRateLimit(endpoint, new RateLimit(4, 0));
+        this.agent.start();
+
+        long start = System.currentTimeMillis();
+        List<Future<DeliveryResult>> futures = new ArrayList<Future<DeliveryResult>>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(this.agent.deliver(endpoint, 5000,
+                    new BasicDeliveryRequest("root", Arrays.asList("testuser1"),
+                            new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                    null));
+        }
+        Assert.assertEquals(4, this.agent.getRateStats(endpoint).getQueued());
+        for (Future<DeliveryResult> future: futures) {
+            DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+            Assert.assertEquals(250, result.getReply().getCode());
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start >= 900);
+        Assert.assertEquals(0, this.agent.getRateStats(endpoint).getQueued());
+        Assert.assertEquals(8, this.deliveryHandler.getDeliveries().size());
+    }
+
+    @Test
+    public void testRateDelayedDeliveryFailedOnShutdown() throws Exception {
+        SessionEndpoint endpoint = startServer();
+
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config);
+        StaticEndpointResolver resolver = new StaticEndpointResolver();
+        resolver.register("example.com", endpoint);
+        this.agent.setEndpointResolver(resolver);
+        // One message every 10 seconds
+        this.agent.setRateLimit("example.com", new RateLimit(0.1d, 0));
+        this.agent.start();
+
+        Future<DeliveryResult> future1 = this.agent.deliver("example.com", 5000,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser1@example.com"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                null);
+        Assert.assertEquals(250, future1.get(30, TimeUnit.SECONDS).getReply().getCode());
+
+        final AtomicInteger failures = new AtomicInteger();
+        Future<DeliveryResult> future2 = this.agent.deliver("example.com", 5000,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser1@example.com"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                new FutureCallback<DeliveryResult>() {
+
+                    @Override
+                    public void completed(final DeliveryResult result) {
+                    }
+
+                    @Override
+                    public void failed(final Exception ex) {
+                        failures.incrementAndGet();
+                    }
+
+                    @Override
+                    public void cancelled() {
+                    }
+
+                });
+        Assert.assertEquals(1, this.agent.getRateStats("example.com").getQueued());
+
+        this.agent.shutdown();
+        try {
+            future2.get(5, TimeUnit.SECONDS);
+            Assert.fail("ExecutionException should have been thrown");
+        } catch (ExecutionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(1, failures.get());
+        Assert.assertEquals(0, this.agent.getPendingDeliveryCount());
+        Assert.assertEquals(1, this.deliveryHandler.getDeliveries().size());
+    }
+
+    @Test
+    public void testSubmissionLimit() throws Exception {
+        SessionEndpoint endpoint = startServer();
+
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config);
+        this.agent.setMaxPendingDeliveries(1);
+        Assert.assertEquals(SubmissionPolicy.REJECT, this.agent.getSubmissionPolicy());
+        this.agent.start();
+
+        Future<DeliveryResult> future1 = this.agent.deliver(endpoint, 5000,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser1"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                null);
+        Assert.assertEquals(1, this.agent.getPendingDeliveryCount());
+        Future<Boolean> capacity = this.agent.awaitCapacity(null);
+        Future<DeliveryResult> future2 = this.agent.deliver(endpoint, 5000,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser2"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                null);
+        try {
+            future2.get();
+            Assert.fail("ExecutionException should have been thrown");
+        } catch (ExecutionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof RejectedExecutionException);
+        }
+        Assert.assertEquals(250, future1.get(30, TimeUnit.SECONDS).getReply().getCode());
+        Assert.assertEquals(Boolean.TRUE, capacity.get(30, TimeUnit.SECONDS));
+        Assert.assertEquals(0, this.agent.getPendingDeliveryCount());
+
+        this.agent.setSubmissionPolicy(SubmissionPolicy.BLOCK);
+        List<Future<DeliveryResult>> futures = new ArrayList<Future<DeliveryResult>>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(this.agent.deliver(endpoint, 5000,
+                    new BasicDeliveryRequest("root", Arrays.asList("testuser3"),
+                            new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                    null));
+            Assert.assertTrue(this.agent.getPendingDeliveryCount() <= 1);
+        }
+        for (Future<DeliveryResult> future: futures) {
+            Assert.assertEquals(250, future.get(30, TimeUnit.SECONDS).getReply().getCode());
+        }
+        Assert.assertEquals(4, this.deliveryHandler.getDeliveries().size());
+    }
+
+    @Test
+    public void testLmtpRecipientResults() throws Exception {
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        this.mta.shutdown();
+        this.mta = new LocalMailServerTransport(TMP_DIR, config);
+        this.deliveryHandler = new SimpleTestDeliveryHandler();
+        this.mta.start(new SimpleIdGenerator(), new SimpleEnvelopValidator(), this.deliveryHandler);
+        ListenerEndpoint listenerEndpoint = this.mta.listen(new InetSocketAddress("localhost", 0));
+        listenerEndpoint.waitFor();
+        SessionEndpoint endpoint = new SessionEndpoint(listenerEndpoint.getAddress());
+
+        this.agent = new DefaultMailUserAgent(TransportType.LMTP, config);
+        this.agent.start();
+
+        final List<String> notified = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger notifiedBeforeResult = new AtomicInteger();
+        final BasicFuture<DeliveryResult> resultFuture = new BasicFuture<DeliveryResult>(null);
+        RecipientResultListener listener = new RecipientResultListener() {
+
+            @Override
+            public void recipientCompleted(final DeliveryRequest request, final RcptResult result) {
+                Assert.assertEquals(250, result.getReply().getCode());
+                notified.add(result.getRecipient());
+                if (!resultFuture.isDone()) {
+                    notifiedBeforeResult.incrementAndGet();
+                }
+            }
+
+        };
+        Future<DeliveryResult> future = this.agent.deliver(endpoint, 5000,
+                new BasicDeliveryRequest("root",
+                        Arrays.asList("testuser1", "testuser2", "testuser3"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                DeliveryPriority.NORMAL, listener, new FutureCallback<DeliveryResult>() {
+
+                    @Override
+                    public void completed(final DeliveryResult result) {
+                        resultFuture.completed(result);
+                    }
+
+                    @Override
+                    public void failed(final Exception ex) {
+                        resultFuture.failed(ex);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        resultFuture.cancel(true);
+                    }
+
+                });
+        DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(250, result.getReply().getCode());
+        Assert.assertEquals(Arrays.asList("testuser1", "testuser2", "testuser3"), notified);
+        Assert.assertEquals(3, notifiedBeforeResult.get());
+    }
+
+    @Test
+    public void testIdleSessionReuse() throws Exception {
+        SessionEndpoint endpoint = startServer();
+
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config);
+        this.agent.start();
+
+        for (int i = 0; i < 3; i++) {
+            Future<DeliveryResult> future = this.agent.deliver(endpoint, 5000,
+                    new BasicDeliveryRequest(
+                            "root",
+                            Arrays.asList("testuser1"),
+                            new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                    null);
+            DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+            Assert.assertNotNull(result);
+            Assert.assertEquals(250, result.getReply().getCode());
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(3, this.deliveryHandler.getDeliveries().size());
+        Assert.assertEquals(1, this.connectionCount.get());
+    }
+
+    @Test
+    public void testSessionPrewarming() throws Exception {
+        SessionEndpoint endpoint = startServer();
+
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        SessionPoolConfig poolConfig = SessionPoolConfig.custom()
+                .setMaintenanceInterval(100)
+                .build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config, poolConfig);
+        this.agent.start();
+        this.agent.setMinSessions(endpoint, 2);
+
+        for (int i = 0; i < 50 && this.connectionCount.get() < 2; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(2, this.connectionCount.get());
+
+        Future<DeliveryResult> future = this.agent.deliver(endpoint, 5000,
+                new BasicDeliveryRequest(
+                        "root",
+                        Arrays.asList("testuser1"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                null);
+        DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+        Assert.assertNotNull(result);
+        Assert.assertEquals(250, result.getReply().getCode());
+        Thread.sleep(300);
+        Assert.assertEquals(2, this.connectionCount.get());
+    }
+
+    @Test
+    public void testPrewarmedSessionReadyForDelivery() throws Exception {
+        final ServerSocket socket = new ServerSocket(0);
+        final AtomicInteger ehloCount = new AtomicInteger();
+        final AtomicLong ehloCompleted = new AtomicLong();
+        final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+        Thread server = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    Socket conn = socket.accept();
+                    try {
+                        BufferedReader in = new BufferedReader(
+                                new InputStreamReader(conn.getInputStream(), "US-ASCII"));
+                        OutputStream out = conn.getOutputStream();
+                        out.write("220 localhost ESMTP\r\n".getBytes("US-ASCII"));
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            commands.add(line);
+                            if (line.startsWith("EHLO")) {
+                                ehloCount.incrementAndGet();
+                                // Slow handshake
+                                Thread.sleep(1000);
+                                ehloCompleted.set(System.currentTimeMillis());
+                                out.write("250-localhost\r\n250 OK\r\n".getBytes("US-ASCII"));
+                            } else if (line.startsWith("DATA")) {
+                                out.write("354 Start mail input\r\n".getBytes("US-ASCII"));
+                                while ((line = in.readLine()) != null && !line.equals(".")) {
+                                }
+                                out.write("250 OK\r\n".getBytes("US-ASCII"));
+                            } else if (line.startsWith("QUIT")) {
+                                out.write("221 Bye\r\n".getBytes("US-ASCII"));
+                                break;
+                            } else {
+                                out.write("250 OK\r\n".getBytes("US-ASCII"));
+                            }
+                        }
+                    } finally {
+                        conn.close();
+                    }
+                } catch (IOException ex) {
+                } catch (InterruptedException ex) {
+                }
+            }
+
+        };
+        server.setDaemon(true);
+        server.start();
+        try {
+            SessionEndpoint endpoint = new SessionEndpoint(
+                    new InetSocketAddress("localhost", socket.getLocalPort()));
+            IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+            SessionPoolConfig poolConfig = SessionPoolConfig.custom()
+                    .setDefaultMaxPerEndpoint(1)
+                    .build();
+            this.agent = new DefaultMailUserAgent(TransportType.SMTP, config, poolConfig);
+            this.agent.start();
+            this.agent.setMinSessions(endpoint, 1);
+
+            for (int i = 0; i < 100 && this.agent.getSessionStats(endpoint).getAvailable() == 0; i++) {
+                Thread.sleep(50);
+            }
+            // Pre-warmed session must not be made available before the handshake is over
+            Assert.assertEquals(1, this.agent.getSessionStats(endpoint).getAvailable());
+            Assert.assertTrue(ehloCompleted.get() > 0);
+            Assert.assertEquals(1, ehloCount.get());
+
+            long start = System.currentTimeMillis();
+            Future<DeliveryResult> future = this.agent.deliver(endpoint, 5000,
+                    new BasicDeliveryRequest("root", Arrays.asList("testuser1"),
+                            new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                    null);
+            DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+            long elapsed = System.currentTimeMillis() - start;
+            Assert.assertEquals(250, result.getReply().getCode());
+            // Delivery must not have waited for the slow handshake
+            Assert.assertTrue("Delivery took " + elapsed + " ms", elapsed < 1000);
+            Assert.assertEquals(1, ehloCount.get());
+            Assert.assertEquals("EHLO", commands.get(0).substring(0, 4));
+            Assert.assertEquals("MAIL FROM:<root>", commands.get(1));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testConcurrencyControlIgnoresRecipientFailures() throws Exception {
+        SessionEndpoint endpoint = startServer(new SimpleEnvelopValidator() {
+
+            @Override
+            public Future<SMTPReply> validateRecipient(
+                    final InetAddress client,
+                    final String recipient,
+                    final FutureCallback<SMTPReply> callback) {
+                if (recipient.startsWith("busy")) {
+                    BasicFuture<SMTPReply> future = new BasicFuture<SMTPReply>(callback);
+                    future.completed(new SMTPReply(450, new SMTPCode(4, 2, 1),
+                            "mailbox busy"));
+                    return future;
+                }
+                return super.validateRecipient(client, recipient, callback);
+            }
+
+        });
+
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config);
+        this.agent.start();
+
+        Future<DeliveryResult> future = this.agent.deliver(endpoint, 5000,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser1"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                null);
+        Assert.assertEquals(250, future.get(30, TimeUnit.SECONDS).getReply().getCode());
+
+        // Limits apply to endpoints delivered to before the controller was set
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(
+                1, 4, 4, 0.5d, 0, 0, TimeUnit.MILLISECONDS);
+        this.agent.setConcurrencyController(controller);
+        Assert.assertEquals(4, this.agent.getSessionStats(endpoint).getMax());
+
+        future = this.agent.deliver(endpoint, 5000,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser1", "busy1"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                null);
+        DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(250, result.getReply().getCode());
+        Assert.assertEquals(1, result.getFailures().size());
+        Assert.assertEquals(450, result.getFailures().get(0).getReply().getCode());
+        Assert.assertEquals(4, controller.getLimit(endpoint));
+        Assert.assertEquals(4, this.agent.getSessionStats(endpoint).getMax());
+    }
+
+    @Test
+    public void testIdleSessionValidation() throws Exception {
+        SessionEndpoint endpoint = startServer();
+
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config);
+        this.agent.setSessionConfig(ClientSessionConfig.custom()
+                .setValidateAfterInactivity(100)
+                .build());
+        this.agent.start();
+
+        for (int i = 0; i < 3; i++) {
+            Future<DeliveryResult> future = this.agent.deliver(endpoint, 5000,
+                    new BasicDeliveryRequest(
+                            "root",
+                            Arrays.asList("testuser1"),
+                            new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                    null);
+            DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+            Assert.assertNotNull(result);
+            Assert.assertEquals(250, result.getReply().getCode());
+            Thread.sleep(300);
+        }
+        Assert.assertEquals(3, this.deliveryHandler.getDeliveries().size());
+        Assert.assertEquals(1, this.connectionCount.get());
+    }
+
+}
@@ -0,0 +1,439 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.reactor.ExceptionEvent;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorStatus;
+import org.apache.http.nio.reactor.ListenerEndpoint;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.ok2c.lightmtp.SMTPCode;
+import com.ok2c.lightmtp.SMTPCodes;
+import com.ok2c.lightmtp.SMTPReply;
+import com.ok2c.lightmtp.agent.MailUserAgent;
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+import com.ok2c.lightmtp.agent.TransportType;
+import com.ok2c.lightmtp.impl.BaseTransportTest;
+import com.ok2c.lightmtp.message.content.ByteArraySource;
+import com.ok2c.lightmtp.protocol.BasicDeliveryRequest;
+import com.ok2c.lightmtp.protocol.BasicDeliveryResult;
+import com.ok2c.lightmtp.protocol.DeliveryRequest;
+import com.ok2c.lightmtp.protocol.DeliveryResult;
+import com.ok2c.lightmtp.protocol.RcptResult;
+
+public class TestPersistentRetryQueue extends BaseTransportTest {
+
+    static String TEXT1 = "From: root\r\n" +
+            "To: testuser1\r\n" +
+            "Subject: test message 1\r\n" +
+            "\r\n" +
+            "This is a short test message 1\r\n";
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private SimpleTestDeliveryHandler deliveryHandler;
+    private DefaultMailUserAgent agent;
+    private PersistentRetryQueue queue;
+
+    @After
+    public void shutDownQueue() throws Exception {
+        if (this.queue != null) {
+            this.queue.shutdown();
+        }
+        if (this.agent != null) {
+            try {
+                this.agent.shutdown();
+            } catch (IOException ex) {
+                ex.printStackTrace(System.out);
+            }
+        }
+    }
+
+    private SessionEndpoint startServer(final String tempfailRecipient) throws Exception {
+        this.deliveryHandler = new SimpleTestDeliveryHandler();
+        final AtomicInteger tempfailCount = new AtomicInteger();
+        SimpleEnvelopValidator envelopValidator = new SimpleEnvelopValidator() {
+
+            @Override
+            public Future<SMTPReply> validateRecipient(
+                    final InetAddress client,
+                    final String recipient,
+                    final FutureCallback<SMTPReply> callback) {
+                if (recipient.equals(tempfailRecipient) && tempfailCount.getAndIncrement() == 0) {
+                    BasicFuture<SMTPReply> future = new BasicFuture<SMTPReply>(callback);
+                    future.completed(new SMTPReply(SMTPCodes.ERR_TRANS_MAILBOX_UNAVAILABLE,
+                            new SMTPCode(4, 2, 1), "try again later"));
+                    return future;
+                }
+                return super.validateRecipient(client, recipient, callback);
+            }
+
+        };
+        this.mta.start(new SimpleIdGenerator(), envelopValidator, this.deliveryHandler);
+        ListenerEndpoint endpoint = this.mta.listen(new InetSocketAddress("localhost", 0));
+        endpoint.waitFor();
+        Assert.assertNotNull(endpoint.getAddress());
+        return new SessionEndpoint(endpoint.getAddress());
+    }
+
+    private void startAgent() throws Exception {
+        IOReactorConfig config = IOReactorConfig.custom().setIoThreadCount(1).build();
+        this.agent = new DefaultMailUserAgent(TransportType.SMTP, config);
+        this.agent.start();
+    }
+
+    @Test
+    public void testTransientRecipientFailureRetried() throws Exception {
+        SessionEndpoint endpoint = startServer("testuser2");
+        startAgent();
+
+        File dir = this.tmpFolder.newFolder("queue");
+        this.queue = new PersistentRetryQueue(this.agent, dir, RetryQueueConfig.custom()
+                .setInitialDelay(10)
+                .build());
+        this.queue.start();
+
+        Future<DeliveryResult> future = this.queue.submit(endpoint,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser1", "testuser2"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                null);
+        DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(250, result.getReply().getCode());
+        Assert.assertTrue(result.getFailures().isEmpty());
+
+        Assert.assertEquals(2, this.deliveryHandler.getDeliveries().size());
+        SimpleTestDelivery delivery1 = this.deliveryHandler.getDeliveries().poll();
+        Assert.assertEquals(Arrays.asList("testuser1"), delivery1.getRecipients());
+        SimpleTestDelivery delivery2 = this.deliveryHandler.getDeliveries().poll();
+        Assert.assertEquals(Arrays.asList("testuser2"), delivery2.getRecipients());
+        Assert.assertEquals(TEXT1, delivery2.getContent());
+
+        Assert.assertEquals(0, this.queue.getQueueSize());
+        Assert.assertEquals(0, dir.list(new MessageFilter()).length);
+    }
+
+    @Test
+    public void testDeadLetter() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        SessionEndpoint endpoint = new SessionEndpoint(new InetSocketAddress("localhost", port));
+        startAgent();
+
+        File dir = this.tmpFolder.newFolder("queue");
+        this.queue = new PersistentRetryQueue(this.agent, dir, RetryQueueConfig.custom()
+                .setInitialDelay(10)
+                .setMaxAttempts(2)
+                .build());
+        this.queue.start();
+
+        Future<DeliveryResult> future = this.queue.submit(endpoint,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser1"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                null);
+        try {
+            future.get(30, TimeUnit.SECONDS);
+            Assert.fail("ExecutionException should have been thrown");
+        } catch (ExecutionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof IOException);
+        }
+        Assert.assertEquals(0, this.queue.getQueueSize());
+        Assert.assertEquals(0, dir.list(new MessageFilter()).length);
+        Assert.assertEquals(1, this.queue.getDeadLetterDirectory().list(new MessageFilter()).length);
+    }
+
+    @Test
+    public void testDeadLetterRecipients() throws Exception {
+        SessionEndpoint endpoint = startServer("testuser2");
+        startAgent();
+
+        File dir = this.tmpFolder.newFolder("queue");
+        this.queue = new PersistentRetryQueue(this.agent, dir, RetryQueueConfig.custom()
+                .setInitialDelay(10)
+                .setMaxAttempts(1)
+                .build());
+        this.queue.start();
+
+        Future<DeliveryResult> future = this.queue.submit(endpoint,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser1", "testuser2"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                null);
+        DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(1, result.getFailures().size());
+        Assert.assertEquals("testuser2", result.getFailures().get(0).getRecipient());
+
+        File[] envFiles = this.queue.getDeadLetterDirectory().listFiles(new java.io.FilenameFilter() {
+
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(".env");
+            }
+
+        });
+        Assert.assertEquals(1, envFiles.length);
+        List<String> recipients = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(envFiles[0]), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("recipient: ")) {
+                    recipients.add(line.substring(11));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        // Only the recipients still pending delivery
+        Assert.assertEquals(Arrays.asList("testuser2"), recipients);
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        SessionEndpoint endpoint = startServer(null);
+        File dir = this.tmpFolder.newFolder("queue");
+
+        PersistentRetryQueue queue1 = new PersistentRetryQueue(new StalledMailUserAgent(), dir);
+        queue1.start();
+        queue1.submit(endpoint,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser1", "testuser2"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                null);
+        Assert.assertEquals(1, queue1.getQueueSize());
+        queue1.shutdown();
+
+        startAgent();
+        this.queue = new PersistentRetryQueue(this.agent, dir);
+        this.queue.start();
+        Assert.assertEquals(1, this.queue.getQueueSize());
+        for (int i = 0; i < 100 && this.queue.getQueueSize() > 0; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(0, this.queue.getQueueSize());
+        Assert.assertEquals(1, this.deliveryHandler.getDeliveries().size());
+        SimpleTestDelivery delivery = this.deliveryHandler.getDeliveries().poll();
+        Assert.assertEquals("root", delivery.getSender());
+        Assert.assertEquals(Arrays.asList("testuser1", "testuser2"), delivery.getRecipients());
+        Assert.assertEquals(TEXT1, delivery.getContent());
+        Assert.assertEquals(0, dir.list(new MessageFilter()).length);
+    }
+
+    @Test
+    public void testRecoveryFromCompactedJournal() throws Exception {
+        SessionEndpoint endpoint = startServer(null);
+        File dir = this.tmpFolder.newFolder("queue");
+
+        PersistentRetryQueue queue1 = new PersistentRetryQueue(new StalledMailUserAgent(), dir);
+        queue1.start();
+        queue1.submit(endpoint,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser1"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                null);
+        queue1.shutdown();
+        // Crash after the old journal has been removed and before the compacted
+        // one has been renamed into place
+        File journal = new File(dir, "journal");
+        Assert.assertTrue(journal.renameTo(new File(dir, "journal.tmp")));
+
+        startAgent();
+        this.queue = new PersistentRetryQueue(this.agent, dir);
+        this.queue.start();
+        Assert.assertEquals(1, this.queue.getQueueSize());
+        for (int i = 0; i < 100 && this.queue.getQueueSize() > 0; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(0, this.queue.getQueueSize());
+        Assert.assertEquals(1, this.deliveryHandler.getDeliveries().size());
+        Assert.assertTrue(journal.exists());
+    }
+
+    @Test
+    public void testLocalRejectionNotCountedAsAttempt() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        SessionEndpoint endpoint = new SessionEndpoint(
+                new InetSocketAddress("localhost", socket.getLocalPort()));
+        socket.close();
+        File dir = this.tmpFolder.newFolder("queue");
+
+        ScriptedMailUserAgent agent = new ScriptedMailUserAgent(3, 0);
+        this.queue = new PersistentRetryQueue(agent, dir, RetryQueueConfig.custom()
+                .setInitialDelay(10)
+                .setMaxAttempts(1)
+                .build());
+        this.queue.start();
+
+        Future<DeliveryResult> future = this.queue.submit(endpoint,
+                new BasicDeliveryRequest("root", Arrays.asList("testuser1"),
+                        new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                null);
+        DeliveryResult result = future.get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(250, result.getReply().getCode());
+        Assert.assertEquals(4, agent.count.get());
+        Assert.assertEquals(0, this.queue.getDeadLetterDirectory().list(new MessageFilter()).length);
+    }
+
+    @Test
+    public void testBackoffIndependentOfQueueDepth() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        SessionEndpoint endpoint = new SessionEndpoint(
+                new InetSocketAddress("localhost", socket.getLocalPort()));
+        socket.close();
+        File dir = this.tmpFolder.newFolder("queue");
+
+        ScriptedMailUserAgent agent = new ScriptedMailUserAgent(0, Integer.MAX_VALUE);
+        this.queue = new PersistentRetryQueue(agent, dir, RetryQueueConfig.custom()
+                .setInitialDelay(200)
+                .setBackoffMultiplier(2)
+                .setMaxDelay(60000)
+                .setMaxAttempts(2)
+                .build());
+        this.queue.start();
+
+        long start = System.currentTimeMillis();
+        List<Future<DeliveryResult>> futures = new ArrayList<Future<DeliveryResult>>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(this.queue.submit(endpoint,
+                    new BasicDeliveryRequest("root", Arrays.asList("testuser1"),
+                            new ByteArraySource(TEXT1.getBytes("US-ASCII"))),
+                    null));
+        }
+        for (Future<DeliveryResult> future: futures) {
+            try {
+                future.get(30, TimeUnit.SECONDS);
+                Assert.fail("ExecutionException should have been thrown");
+            } catch (ExecutionException expected) {
+                Assert.assertTrue(expected.getCause() instanceof IOException);
+            }
+        }
+        // One outage: every delivery is retried after the initial delay rather
+        // than after a delay growing with the number of queued deliveries
+        long elapsed = System.currentTimeMillis() - start;
+        Assert.assertTrue("Took " + elapsed + " ms", elapsed < 1600);
+        Assert.assertEquals(10, agent.count.get());
+    }
+
+    /**
+     * Rejects the given number of deliveries locally, then fails the given number
+     * with an I/O error and completes the rest.
+     */
+    static class ScriptedMailUserAgent extends StalledMailUserAgent {
+
+        final AtomicInteger count = new AtomicInteger();
+        private final int rejections;
+        private final int failures;
+
+        ScriptedMailUserAgent(final int rejections, final int failures) {
+            super();
+            this.rejections = rejections;
+            this.failures = failures;
+        }
+
+        @Override
+        public Future<DeliveryResult> deliver(
+                final SessionEndpoint endpoint,
+                final int connectTimeout,
+                final DeliveryRequest request,
+                final FutureCallback<DeliveryResult> callback) {
+            int n = this.count.getAndIncrement();
+            BasicFuture<DeliveryResult> future = new BasicFuture<DeliveryResult>(callback);
+            if (n < this.rejections) {
+                future.failed(new RejectedExecutionException("Too many pending deliveries"));
+            } else if (n - this.rejections < this.failures) {
+                future.failed(new IOException("Connection refused"));
+            } else {
+                future.completed(new BasicDeliveryResult(new SMTPReply(SMTPCodes.OK,
+                        new SMTPCode(2, 0, 0), "OK"), Collections.<RcptResult>emptyList()));
+            }
+            return future;
+        }
+
+    }
+
+    static class MessageFilter implements java.io.FilenameFilter {
+
+        @Override
+        public boolean accept(final File dir, final String name) {
+            return name.endsWith(".msg");
+        }
+
+    }
+
+    static class StalledMailUserAgent implements MailUserAgent {
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public Future<DeliveryResult> deliver(
+                final SessionEndpoint endpoint,
+                final int connectTimeout,
+                final DeliveryRequest request,
+                final FutureCallback<DeliveryResult> callback) {
+            return new BasicFuture<DeliveryResult>(callback);
+        }
+
+        @Override
+        public IOReactorStatus getStatus() {
+            return IOReactorStatus.ACTIVE;
+        }
+
+        @Override
+        public Exception getException() {
+            return null;
+        }
+
+        @Override
+        public List<ExceptionEvent> getAuditLog() {
+            return null;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public void forceShutdown() {
+        }
+
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.agent;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestRateShaper {
+
+    private long now;
+    private RateShaper shaper;
+
+    @Before
+    public void setUp() {
+        this.now = 1000000;
+        this.shaper = new RateShaper() {
+
+            @Override
+            long currentTime() {
+                return now;
+            }
+
+        };
+    }
+
+    @Test
+    public void testUnlimited() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(0, this.shaper.reserve("somedomain", 10));
+        }
+        Assert.assertNull(this.shaper.getStats("somedomain").getLimit());
+    }
+
+    @Test
+    public void testMessageRate() throws Exception {
+        this.shaper.setLimit("somedomain", new RateLimit(2, 0));
+        Assert.assertEquals(0, this.shaper.reserve("somedomain", 1));
+        Assert.assertEquals(0, this.shaper.reserve("somedomain", 1));
+        Assert.assertEquals(500, this.shaper.reserve("somedomain", 1));
+        Assert.assertEquals(1000, this.shaper.reserve("somedomain", 1));
+        Assert.assertEquals(2, this.shaper.getStats("somedomain").getQueued());
+
+        this.now += 500;
+        this.shaper.released("somedomain", 1);
+        Assert.assertEquals(1, this.shaper.getStats("somedomain").getQueued());
+        this.now += 500;
+        this.shaper.released("somedomain", 1);
+        Assert.assertEquals(0, this.shaper.getStats("somedomain").getQueued());
+        Assert.assertEquals(500, this.shaper.reserve("somedomain", 1));
+
+        // Unused capacity accumulates up to one second worth
+        this.now += 10000;
+        Assert.assertEquals(0, this.shaper.reserve("somedomain", 1));
+        Assert.assertEquals(0, this.shaper.reserve("somedomain", 1));
+        Assert.assertEquals(500, this.shaper.reserve("somedomain", 1));
+    }
+
+    @Test
+    public void testRecipientRate() throws Exception {
+        this.shaper.setLimit("somedomain", new RateLimit(0, 10));
+        Assert.assertEquals(0, this.shaper.reserve("somedomain", 5));
+        Assert.assertEquals(1000, this.shaper.reserve("somedomain", 15));
+        Assert.assertEquals(1100, this.shaper.reserve("somedomain", 1));
+    }
+
+    @Test
+    public void testCurrentRate() throws Exception {
+        this.shaper.setLimit("somedomain", new RateLimit(100, 0));
+        this.now = 5000;
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(0, this.shaper.reserve("somedomain", 2));
+        }
+        this.now = 6000;
+        RateShapingStats stats = this.shaper.getStats("somedomain");
+        Assert.assertEquals(3, stats.getMessageRate());
+        Assert.assertEquals(6, stats.getRecipientRate());
+        this.now = 8000;
+        stats = this.shaper.getStats("somedomain");
+        Assert.assertEquals(0, stats.getMessageRate());
+    }
+
+}
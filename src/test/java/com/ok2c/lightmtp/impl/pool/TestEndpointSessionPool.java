@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.pool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.impl.nio.reactor.SessionRequestImpl;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.nio.reactor.IOReactorStatus;
+import org.apache.http.nio.reactor.SessionRequest;
+import org.apache.http.nio.reactor.SessionRequestCallback;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+
+public class TestEndpointSessionPool {
+
+    static SessionEndpoint endpoint(final int port) {
+        return new SessionEndpoint(new InetSocketAddress("localhost", port));
+    }
+
+    @Test
+    public void testPriorityRequestServedFirstAcrossEndpoints() throws Exception {
+        RecordingIOReactor ioreactor = new RecordingIOReactor();
+        EndpointSessionPool pool = new EndpointSessionPool(ioreactor, 1, 1);
+
+        Future<LeasedSession> future1 = pool.lease(endpoint(1), 0, TimeUnit.MILLISECONDS, null);
+        for (int i = 0; i < 4; i++) {
+            pool.lease(endpoint(10 + i), 0, TimeUnit.MILLISECONDS, null);
+        }
+        Future<LeasedSession> future2 = pool.lease(
+                endpoint(2), 0, TimeUnit.MILLISECONDS, true, null);
+        Assert.assertEquals(1, ioreactor.requests.size());
+
+        ioreactor.requests.get(0).failed(new IOException("Connection refused"));
+        Assert.assertTrue(future1.isDone());
+        Assert.assertEquals(2, ioreactor.requests.size());
+        Assert.assertEquals(endpoint(2).getRemoteAddress(),
+                ioreactor.requests.get(1).getRemoteAddress());
+
+        ioreactor.requests.get(1).failed(new IOException("Connection refused"));
+        Assert.assertTrue(future2.isDone());
+        Assert.assertEquals(3, ioreactor.requests.size());
+        Assert.assertFalse(endpoint(2).getRemoteAddress().equals(
+                ioreactor.requests.get(2).getRemoteAddress()));
+    }
+
+    @Test
+    public void testPriorityRequestQueuedAhead() throws Exception {
+        RecordingIOReactor ioreactor = new RecordingIOReactor();
+        EndpointSessionPool pool = new EndpointSessionPool(ioreactor, 1, 10);
+
+        Future<LeasedSession> future1 = pool.lease(endpoint(1), 0, TimeUnit.MILLISECONDS, null);
+        Future<LeasedSession> future2 = pool.lease(endpoint(1), 0, TimeUnit.MILLISECONDS, null);
+        Future<LeasedSession> future3 = pool.lease(
+                endpoint(1), 0, TimeUnit.MILLISECONDS, true, null);
+        Assert.assertEquals(1, ioreactor.requests.size());
+        // Two queued requests and one being connected
+        Assert.assertEquals(3, pool.getStats(endpoint(1)).getPending());
+
+        ioreactor.requests.get(0).failed(new IOException("Connection refused"));
+        Assert.assertTrue(future1.isDone());
+        Assert.assertEquals(2, ioreactor.requests.size());
+
+        ioreactor.requests.get(1).failed(new IOException("Connection refused"));
+        Assert.assertTrue(future3.isDone());
+        Assert.assertFalse(future2.isDone());
+    }
+
+    static class RecordingIOReactor implements ConnectingIOReactor {
+
+        final List<SessionRequestImpl> requests = new ArrayList<SessionRequestImpl>();
+
+        @Override
+        public SessionRequest connect(
+                final SocketAddress remoteAddress,
+                final SocketAddress localAddress,
+                final Object attachment,
+                final SessionRequestCallback callback) {
+            SessionRequestImpl request = new SessionRequestImpl(
+                    remoteAddress, localAddress, attachment, callback);
+            this.requests.add(request);
+            return request;
+        }
+
+        @Override
+        public IOReactorStatus getStatus() {
+            return IOReactorStatus.ACTIVE;
+        }
+
+        @Override
+        public void execute(final IOEventDispatch eventDispatch) {
+        }
+
+        @Override
+        public void shutdown(final long waitMs) {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.resolver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ok2c.lightmtp.agent.EndpointResolver;
+import com.ok2c.lightmtp.agent.ResolvedEndpoints;
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+
+public class TestCachingEndpointResolver {
+
+    static class CountingResolver implements EndpointResolver {
+
+        private final List<SessionEndpoint> endpoints;
+        private final long ttl;
+
+        int count;
+        boolean fail;
+
+        CountingResolver(final List<SessionEndpoint> endpoints, final long ttl) {
+            super();
+            this.endpoints = endpoints;
+            this.ttl = ttl;
+        }
+
+        @Override
+        public ResolvedEndpoints resolve(final String domain) throws IOException {
+            this.count++;
+            if (this.fail) {
+                throw new IOException("Lookup failed");
+            }
+            return new ResolvedEndpoints(this.endpoints, this.ttl);
+        }
+
+    }
+
+    private static List<SessionEndpoint> endpoints() {
+        List<SessionEndpoint> endpoints = new ArrayList<SessionEndpoint>();
+        endpoints.add(new SessionEndpoint(InetSocketAddress.createUnresolved("mx1", 25)));
+        endpoints.add(new SessionEndpoint(InetSocketAddress.createUnresolved("mx2", 25)));
+        return endpoints;
+    }
+
+    @Test
+    public void testCachingWithinTtl() throws Exception {
+        CountingResolver backend = new CountingResolver(endpoints(), 60000);
+        CachingEndpointResolver resolver = new CachingEndpointResolver(backend);
+        ResolvedEndpoints result1 = resolver.resolve("example.com");
+        ResolvedEndpoints result2 = resolver.resolve("EXAMPLE.com");
+        Assert.assertEquals(2, result1.getEndpoints().size());
+        Assert.assertSame(result1, result2);
+        Assert.assertEquals(1, backend.count);
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        CountingResolver backend = new CountingResolver(endpoints(), 0);
+        CachingEndpointResolver resolver = new CachingEndpointResolver(backend);
+        resolver.resolve("example.com");
+        resolver.resolve("example.com");
+        Assert.assertEquals(2, backend.count);
+    }
+
+    @Test
+    public void testMaxTtl() throws Exception {
+        CountingResolver backend = new CountingResolver(endpoints(), 60000);
+        CachingEndpointResolver resolver = new CachingEndpointResolver(backend, 0, 0, null);
+        resolver.resolve("example.com");
+        resolver.resolve("example.com");
+        Assert.assertEquals(2, backend.count);
+    }
+
+    @Test
+    public void testNegativeCaching() throws Exception {
+        CountingResolver backend = new CountingResolver(
+                Collections.<SessionEndpoint>emptyList(), 0);
+        CachingEndpointResolver resolver = new CachingEndpointResolver(backend, 60000, 60000, null);
+        Assert.assertTrue(resolver.resolve("example.com").isEmpty());
+        Assert.assertTrue(resolver.resolve("example.com").isEmpty());
+        Assert.assertEquals(1, backend.count);
+    }
+
+    @Test
+    public void testServeStaleOnFailure() throws Exception {
+        CountingResolver backend = new CountingResolver(endpoints(), 0);
+        CachingEndpointResolver resolver = new CachingEndpointResolver(backend);
+        ResolvedEndpoints result1 = resolver.resolve("example.com");
+        backend.fail = true;
+        ResolvedEndpoints result2 = resolver.resolve("example.com");
+        Assert.assertSame(result1, result2);
+        try {
+            resolver.resolve("example.net");
+            Assert.fail("IOException should have been thrown");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Executor executor = new Executor() {
+
+            @Override
+            public void execute(final Runnable command) {
+                tasks.add(command);
+            }
+
+        };
+        final long[] clock = new long[] { 1000000 };
+        CountingResolver backend = new CountingResolver(endpoints(), 10000);
+        CachingEndpointResolver resolver = new CachingEndpointResolver(backend, 60000, 0, executor) {
+
+            @Override
+            long currentTime() {
+                return clock[0];
+            }
+
+        };
+        ResolvedEndpoints result1 = resolver.resolve("example.com");
+        clock[0] += 5000;
+        Assert.assertSame(result1, resolver.resolve("example.com"));
+        Assert.assertTrue(tasks.isEmpty());
+
+        clock[0] += 4500;
+        Assert.assertSame(result1, resolver.resolve("example.com"));
+        Assert.assertSame(result1, resolver.resolve("example.com"));
+        // At most one refresh is in progress at a time
+        Assert.assertEquals(1, tasks.size());
+        Assert.assertEquals(1, backend.count);
+        tasks.get(0).run();
+        Assert.assertEquals(2, backend.count);
+
+        clock[0] += 1000;
+        ResolvedEndpoints result2 = resolver.resolve("example.com");
+        Assert.assertNotSame(result1, result2);
+        Assert.assertEquals(2, backend.count);
+    }
+
+    @Test
+    public void testMaxEntries() throws Exception {
+        CountingResolver backend = new CountingResolver(endpoints(), 60000);
+        CachingEndpointResolver resolver = new CachingEndpointResolver(backend, 60000, 60000, null, 10);
+        for (int i = 0; i < 50; i++) {
+            resolver.resolve("domain" + i + ".com");
+        }
+        Assert.assertTrue(resolver.size() <= 10);
+        Assert.assertEquals(50, backend.count);
+        resolver.resolve("domain49.com");
+        Assert.assertEquals(50, backend.count);
+    }
+
+    @Test
+    public void testNegativeEntriesPurgedFirst() throws Exception {
+        final CountingResolver backend = new CountingResolver(endpoints(), 60000);
+        EndpointResolver mixed = new EndpointResolver() {
+
+            @Override
+            public ResolvedEndpoints resolve(final String domain) throws IOException {
+                if (domain.startsWith("unknown")) {
+                    return new ResolvedEndpoints(Collections.<SessionEndpoint>emptyList(), 0);
+                }
+                return backend.resolve(domain);
+            }
+
+        };
+        CachingEndpointResolver resolver = new CachingEndpointResolver(mixed, 60000, 60000, null, 4);
+        resolver.resolve("example1.com");
+        resolver.resolve("unknown1.com");
+        resolver.resolve("example2.com");
+        resolver.resolve("unknown2.com");
+        Assert.assertEquals(4, resolver.size());
+
+        resolver.resolve("example3.com");
+        Assert.assertEquals(3, resolver.size());
+        resolver.resolve("example1.com");
+        resolver.resolve("example2.com");
+        Assert.assertEquals(3, backend.count);
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.impl.resolver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.ok2c.lightmtp.agent.SessionEndpoint;
+
+public class TestFileEndpointResolver {
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void testResolve() throws Exception {
+        File file = this.tmpFolder.newFile("endpoints");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write("# test endpoints\n");
+            writer.write("\n");
+            writer.write("Example.com   127.0.0.1 127.0.0.2:2525\n");
+            writer.write("example.net\t[::1]:26\n");
+        } finally {
+            writer.close();
+        }
+        FileEndpointResolver resolver = new FileEndpointResolver(file, 1000);
+
+        List<SessionEndpoint> endpoints = resolver.resolve("example.COM").getEndpoints();
+        Assert.assertEquals(2, endpoints.size());
+        InetSocketAddress address1 = (InetSocketAddress) endpoints.get(0).getRemoteAddress();
+        Assert.assertEquals("127.0.0.1", address1.getAddress().getHostAddress());
+        Assert.assertEquals(25, address1.getPort());
+        InetSocketAddress address2 = (InetSocketAddress) endpoints.get(1).getRemoteAddress();
+        Assert.assertEquals("127.0.0.2", address2.getAddress().getHostAddress());
+        Assert.assertEquals(2525, address2.getPort());
+
+        endpoints = resolver.resolve("example.net").getEndpoints();
+        Assert.assertEquals(1, endpoints.size());
+        Assert.assertEquals(26, ((InetSocketAddress) endpoints.get(0).getRemoteAddress()).getPort());
+
+        Assert.assertTrue(resolver.resolve("example.org").isEmpty());
+        Assert.assertEquals(1000, resolver.resolve("example.org").getTtl());
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.message.content;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ok2c.lightmtp.SMTPProtocolException;
+
+public class TestSharedEncodedContent {
+
+    private final static Charset ASCII = Charset.forName("ASCII");
+
+    private static String readAll(final ReadableByteChannel channel) throws Exception {
+        StringBuilder buffer = new StringBuilder();
+        ByteBuffer dst = ByteBuffer.allocate(7);
+        while (channel.read(dst) != -1) {
+            dst.flip();
+            buffer.append(ASCII.decode(dst));
+            dst.clear();
+        }
+        return buffer.toString();
+    }
+
+    @Test
+    public void testEncoding() throws Exception {
+        String text = "Subject: test\n" +
+                "\r\n" +
+                ".leading period\r\n" +
+                "..two periods\n" +
+                "lone\rCR\r\n" +
+                "no line delimiter";
+        SharedEncodedContent content = SharedEncodedContent.encode(
+                new ByteArraySource(text.getBytes(ASCII)));
+        String expected = "Subject: test\r\n" +
+                "\r\n" +
+                "..leading period\r\n" +
+                "...two periods\r\n" +
+                "lone\rCR\r\n" +
+                "no line delimiter\r\n";
+        Assert.assertEquals(expected.length(), content.length());
+        Assert.assertEquals(expected, readAll(content.channel()));
+    }
+
+    @Test
+    public void testConcurrentChannels() throws Exception {
+        SharedEncodedContent content = SharedEncodedContent.encode(
+                new ByteArraySource("line 1\r\nline 2\r\n".getBytes(ASCII)));
+        ReadableByteChannel channel1 = content.channel();
+        ReadableByteChannel channel2 = content.channel();
+        ByteBuffer dst = ByteBuffer.allocate(4);
+        Assert.assertEquals(4, channel1.read(dst));
+        Assert.assertEquals("line 1\r\nline 2\r\n", readAll(channel2));
+        Assert.assertEquals(" 1\r\nline 2\r\n", readAll(channel1));
+    }
+
+    @Test(expected=SMTPProtocolException.class)
+    public void testMaxLineLength() throws Exception {
+        SharedEncodedContent.encode(
+                new ByteArraySource("short\r\nmuch too long\r\n".getBytes(ASCII)), 10);
+    }
+
+    @Test
+    public void testReferenceCounting() throws Exception {
+        SharedEncodedContent content = SharedEncodedContent.encode(
+                new ByteArraySource("stuff\r\n".getBytes(ASCII)));
+        Assert.assertEquals(1, content.getRefCount());
+        content.retain();
+        Assert.assertFalse(content.release());
+        Assert.assertTrue(content.release());
+        Assert.assertEquals(0, content.length());
+        try {
+            content.channel();
+            Assert.fail("IllegalStateException should have been thrown");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            content.retain();
+            Assert.fail("IllegalStateException should have been thrown");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.util;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestLocalIdentity {
+
+    static class QueueExecutor implements Executor {
+
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+        @Override
+        public void execute(final Runnable task) {
+            this.tasks.add(task);
+        }
+
+        int runAll() {
+            int n = 0;
+            while (!this.tasks.isEmpty()) {
+                this.tasks.removeFirst().run();
+                n++;
+            }
+            return n;
+        }
+
+    }
+
+    static class TestIdentity extends LocalIdentity {
+
+        private final AtomicInteger resolveCount = new AtomicInteger();
+
+        private volatile long now;
+        private volatile InetAddress localAddress;
+        private volatile boolean unresolvable;
+
+        TestIdentity(final Executor executor) {
+            super(executor, 10, TimeUnit.SECONDS);
+        }
+
+        @Override
+        protected String resolveHostName() {
+            this.resolveCount.incrementAndGet();
+            return this.unresolvable ? null : "host" + this.resolveCount.get() + ".example.com";
+        }
+
+        @Override
+        protected InetAddress findLocalAddress() {
+            return this.localAddress;
+        }
+
+        @Override
+        protected String resolveDomain(final SocketAddress localAddress) {
+            this.resolveCount.incrementAndGet();
+            return "example" + this.resolveCount.get() + ".com";
+        }
+
+        @Override
+        protected long currentTime() {
+            return this.now;
+        }
+
+    }
+
+    @Test
+    public void testFallbackUntilResolved() throws Exception {
+        QueueExecutor executor = new QueueExecutor();
+        TestIdentity identity = new TestIdentity(executor);
+        identity.localAddress = InetAddress.getByName("192.0.2.1");
+        SocketAddress address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 25);
+
+        Assert.assertEquals("[192.0.2.1]", identity.getHostName());
+        Assert.assertEquals("[127.0.0.1]", identity.getDomain(address));
+        Assert.assertEquals("localdomain", identity.getDomain(null));
+        // Pending resolutions are not scheduled twice
+        Assert.assertEquals("[127.0.0.1]", identity.getDomain(address));
+        Assert.assertEquals(3, executor.runAll());
+
+        Assert.assertEquals("host1.example.com", identity.getHostName());
+        Assert.assertTrue(identity.getDomain(address).startsWith("example"));
+        Assert.assertEquals(0, executor.runAll());
+        Assert.assertEquals(3, identity.resolveCount.get());
+    }
+
+    @Test
+    public void testHostNameFallback() throws Exception {
+        QueueExecutor executor = new QueueExecutor();
+        TestIdentity identity = new TestIdentity(executor);
+        identity.localAddress = InetAddress.getByName("2001:db8::1");
+        identity.unresolvable = true;
+        Assert.assertEquals("[IPv6:2001:db8:0:0:0:0:0:1]", identity.getHostName());
+        executor.runAll();
+        // Unresolvable host name
+        Assert.assertEquals("[IPv6:2001:db8:0:0:0:0:0:1]", identity.getHostName());
+
+        TestIdentity noAddress = new TestIdentity(executor);
+        Assert.assertEquals("localhost.localdomain", noAddress.getHostName());
+    }
+
+    @Test
+    public void testLocalhostNotUsedAsHostName() throws Exception {
+        QueueExecutor executor = new QueueExecutor();
+        LocalIdentity identity = new LocalIdentity(executor, 0, TimeUnit.SECONDS) {
+
+            @Override
+            protected String resolveHostName() {
+                return "localhost";
+            }
+
+            @Override
+            protected InetAddress findLocalAddress() {
+                try {
+                    return InetAddress.getByName("192.0.2.1");
+                } catch (UnknownHostException ex) {
+                    return null;
+                }
+            }
+
+        };
+        identity.getHostName();
+        executor.runAll();
+        Assert.assertEquals("[192.0.2.1]", identity.getHostName());
+    }
+
+    @Test
+    public void testAddressLiteralFallback() throws Exception {
+        QueueExecutor executor = new QueueExecutor();
+        TestIdentity identity = new TestIdentity(executor);
+        SocketAddress address = new InetSocketAddress(InetAddress.getByName("::1"), 25);
+        Assert.assertEquals("[IPv6:0:0:0:0:0:0:0:1]", identity.getDomain(address));
+
+        byte[] linkLocal = new byte[16];
+        linkLocal[0] = (byte) 0xfe;
+        linkLocal[1] = (byte) 0x80;
+        linkLocal[15] = 1;
+        SocketAddress scopedAddress = new InetSocketAddress(
+                Inet6Address.getByAddress(null, linkLocal, 2), 25);
+        Assert.assertEquals("[IPv6:fe80:0:0:0:0:0:0:1]", identity.getDomain(scopedAddress));
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        QueueExecutor executor = new QueueExecutor();
+        TestIdentity identity = new TestIdentity(executor);
+        identity.getHostName();
+        executor.runAll();
+        Assert.assertEquals("host1.example.com", identity.getHostName());
+
+        identity.now = 9999;
+        Assert.assertEquals("host1.example.com", identity.getHostName());
+        Assert.assertEquals(0, executor.runAll());
+
+        identity.now = 10000;
+        // Stale name is returned while refreshing
+        Assert.assertEquals("host1.example.com", identity.getHostName());
+        Assert.assertEquals(1, executor.runAll());
+        Assert.assertEquals("host2.example.com", identity.getHostName());
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ok2c.lightmtp.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestTokenBucket {
+
+    @Test
+    public void testTryConsume() throws Exception {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        Assert.assertEquals(5, bucket.getAvailable());
+        Assert.assertTrue(bucket.tryConsume(3));
+        Assert.assertTrue(bucket.tryConsume(2));
+        Assert.assertFalse(bucket.tryConsume(1));
+        Assert.assertTrue(bucket.getDelay(1) > 0);
+        Thread.sleep(250);
+        Assert.assertTrue(bucket.tryConsume(1));
+    }
+
+    @Test
+    public void testRefillCappedAtCapacity() throws Exception {
+        TokenBucket bucket = new TokenBucket(1000, 10);
+        Thread.sleep(50);
+        Assert.assertEquals(10, bucket.getAvailable());
+        Assert.assertEquals(0, bucket.getDelay(10));
+    }
+
+    @Test
+    public void testConsumeIntoDebt() throws Exception {
+        TokenBucket bucket = new TokenBucket(100, 100);
+        bucket.consume(150);
+        long delay = bucket.getDelay(0);
+        Assert.assertTrue(delay > 400 && delay <= 500);
+        Assert.assertFalse(bucket.tryConsume(1));
+    }
+
+    @Test
+    public void testReserveAhead() throws Exception {
+        final long[] now = new long[] { 1000000 };
+        TokenBucket bucket = new TokenBucket(2, 2) {
+
+            @Override
+            protected long currentTime() {
+                return now[0];
+            }
+
+        };
+        Assert.assertEquals(0, bucket.reserve(1));
+        Assert.assertEquals(0, bucket.reserve(1));
+        Assert.assertEquals(500, bucket.reserve(1));
+        // Later reservations queue up behind earlier ones
+        Assert.assertEquals(1000, bucket.reserve(1));
+        now[0] += 500;
+        Assert.assertEquals(500, bucket.getDelay(0));
+        now[0] += 10000;
+        Assert.assertEquals(2, bucket.getAvailable());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidRate() throws Exception {
+        new TokenBucket(0, 10);
+    }
+
+}